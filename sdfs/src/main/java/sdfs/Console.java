@@ -5,7 +5,11 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigRenderOptions;
@@ -15,15 +19,25 @@ import org.slf4j.LoggerFactory;
 import scala.tools.jline.console.ConsoleReader;
 import scala.tools.jline.console.history.FileHistory;
 import sdfs.client.CannotPutException;
+import sdfs.client.ChangeListener;
 import sdfs.client.Client;
+import sdfs.client.Listing;
+import sdfs.client.Result;
+import sdfs.protocol.Bundle;
+import sdfs.protocol.Header;
+import sdfs.protocol.Stat;
 import sdfs.sdfs.AccessType;
+import sdfs.sdfs.Delegation;
 import sdfs.sdfs.DelegationType;
 import sdfs.sdfs.Right;
 import sdfs.server.Server;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public class Console {
 
@@ -270,32 +284,122 @@ public class Console {
                     client = null;
                 }
             }
-        } else if (head.equals("get") && tail.size() == 1) {
+        } else if (head.equals("get") && tail.size() >= 1 && tail.size() <= 3) {
             if (!ensureClient()) return;
             String filename = tail.get(0);
+            long offset, length;
+            try {
+                offset = tail.size() > 1 ? Long.parseLong(tail.get(1)) : 0;
+                length = tail.size() > 2 ? Long.parseLong(tail.get(2)) : Header.Get.TO_END;
+            } catch (NumberFormatException e) {
+                System.out.println(help());
+                return;
+            }
             System.out.printf("Getting file `%s'...%n", filename);
-            client.get(filename);
+            report("Got", filename, client.get(filename, offset, length));
         } else if (head.equals("put") && tail.size() == 1) {
             if (!ensureClient()) return;
             String filename = tail.get(0);
+            System.out.printf("Putting file `%s'...%n", filename);
             try {
-                client.put(filename);
+                report("Put", filename, client.put(filename));
             } catch (CannotPutException e) {
                 System.out.printf("Could not put file: %s%n", e.getMessage());
             }
-            System.out.printf("Putting file `%s'...%n", filename);
+        } else if (head.equals("put") && tail.size() == 2) {
+            if (!ensureClient()) return;
+            String filename = tail.get(0);
+            String source = tail.get(1);
+            System.out.printf("Streaming `%s' to file `%s'...%n", source, filename);
+            try {
+                report("Put", filename, client.put(filename, new FileInputStream(source)));
+            } catch (FileNotFoundException | CannotPutException e) {
+                System.out.printf("Could not put file: %s%n", e.getMessage());
+            }
+        } else if (head.equals("append") && tail.size() == 1) {
+            if (!ensureClient()) return;
+            String filename = tail.get(0);
+            System.out.printf("Appending to file `%s'...%n", filename);
+            try {
+                report("Appended to", filename, client.append(filename));
+            } catch (CannotPutException e) {
+                System.out.printf("Could not append to file: %s%n", e.getMessage());
+            }
+        } else if (head.equals("get-all") && tail.size() >= 1) {
+            if (!ensureClient()) return;
+            System.out.printf("Getting %d files...%n", tail.size());
+            try {
+                reportAll("Got", client.getAll(tail));
+            } catch (IllegalStateException e) {
+                System.out.println("Could not get files: binary headers needed.");
+            }
+        } else if (head.equals("put-all") && tail.size() >= 1) {
+            if (!ensureClient()) return;
+            System.out.printf("Putting %d files...%n", tail.size());
+            try {
+                reportAll("Put", client.putAll(tail));
+            } catch (CannotPutException e) {
+                System.out.printf("Could not put files: %s%n", e.getMessage());
+            }
+        } else if (head.equals("stat") && tail.size() >= 1) {
+            if (!ensureClient()) return;
+            try {
+                reportStats(client.stat(tail));
+            } catch (IllegalStateException e) {
+                System.out.println("Could not stat files: binary headers needed.");
+            }
+        } else if (head.equals("list") && tail.size() <= 1) {
+            if (!ensureClient()) return;
+            try {
+                listFrom(tail.isEmpty() ? "" : tail.get(0), null, 0);
+            } catch (IllegalStateException e) {
+                System.out.println("Could not list files: binary headers needed.");
+            }
+        } else if ((head.equals("watch") || head.equals("watch*")) && tail.size() == 1) {
+            if (!ensureClient()) return;
+            try {
+                report("Watching", tail.get(0), client.watch(tail.get(0), head.endsWith("*"), changePrinter));
+            } catch (IllegalStateException e) {
+                System.out.println("Could not watch files: binary headers needed.");
+            }
+        } else if ((head.equals("unwatch") || head.equals("unwatch*")) && tail.size() == 1) {
+            if (!ensureClient()) return;
+            try {
+                report("Stopped watching", tail.get(0), client.unwatch(tail.get(0), head.endsWith("*")));
+            } catch (IllegalStateException e) {
+                System.out.println("Could not watch files: binary headers needed.");
+            }
+        } else if ((head.equals("copy") || head.equals("move")) && tail.size() == 2) {
+            if (!ensureClient()) return;
+            String filename = tail.get(0);
+            String to = tail.get(1);
+            if (head.equals("copy")) {
+                report("Copied", filename, client.copy(filename, to));
+            } else {
+                report("Moved", filename, client.move(filename, to));
+            }
+        } else if (head.startsWith("delegate-all") && tail.size() >= 3) {
+            if (!ensureClient()) return;
+            Iterable<Right> rights = rights(head, ImmutableList.copyOf(AccessType.values()));
+            Instant expiration = expiration(tail.get(1));
+            List<Delegation> delegations = Lists.newArrayList();
+            for (String delegateClient : Splitter.on(',').omitEmptyStrings().split(tail.get(0))) {
+                delegations.add(new Delegation(new CN(delegateClient), rights, expiration));
+            }
+            List<String> filenames = tail.subList(2, tail.size());
+            System.out.printf("Delegating rights on %d files to %d clients...%n", filenames.size(), delegations.size());
+            try {
+                reportAll("Delegated rights on", client.delegateAll(filenames, delegations));
+            } catch (IllegalStateException e) {
+                System.out.println("Could not delegate rights: binary headers needed.");
+            }
         } else if (head.startsWith("delegate") && tail.size() >= 3) {
             if (!ensureClient()) return;
-            final DelegationType delegationType = head.endsWith("*") ? DelegationType.Star : DelegationType.None;
 
             String filename = tail.get(0);
             CN delegateClient = new CN(tail.get(1));
 
-            Instant expiration = new Instant(
-                    new com.joestelmach.natty.Parser().parse(
-                            tail.get(2)
-                    ).get(0).getDates().get(0)
-            );
+            Instant expiration = expiration(tail.get(2));
 
             List<AccessType> accessTypes;
             if (tail.size() < 4) {
@@ -309,21 +413,142 @@ public class Console {
                     accessTypes.add(AccessType.Put);
                 }
             }
-            Iterable<Right> rights = FluentIterable
-                    .from(accessTypes)
-                    .transform(new Function<AccessType, Right>() {
-                        public Right apply(AccessType type) {
-                            return new Right(type, delegationType);
-                        }
-                    });
+            Iterable<Right> rights = rights(head, accessTypes);
 
-            client.delegate(delegateClient, filename, rights, expiration);
+            report("Delegated rights on", filename, client.delegate(delegateClient, filename, rights, expiration));
         } else {
             System.out.println(help());
         }
 
     }
 
+    /** The rights to delegate of each access type, which may be delegated on if the command ends in *. */
+    private static Iterable<Right> rights(String head, List<AccessType> accessTypes) {
+        final DelegationType delegationType = head.endsWith("*") ? DelegationType.Star : DelegationType.None;
+        return FluentIterable
+                .from(accessTypes)
+                .transform(new Function<AccessType, Right>() {
+                    public Right apply(AccessType type) {
+                        return new Right(type, delegationType);
+                    }
+                });
+    }
+
+    private static Instant expiration(String duration) {
+        return new Instant(
+                new com.joestelmach.natty.Parser().parse(
+                        duration
+                ).get(0).getDates().get(0)
+        );
+    }
+
+    private void report(final String done, final String filename, ListenableFuture<Result> result) {
+        final Stopwatch stopwatch = new Stopwatch().start();
+        Futures.addCallback(result, new FutureCallback<Result>() {
+            public void onSuccess(Result result) {
+                report(done, filename, result, stopwatch.stop());
+            }
+
+            public void onFailure(Throwable t) {
+                System.out.printf("Failed: `%s' (%s).%n", filename, t.getMessage());
+            }
+        });
+    }
+
+    private void reportAll(final String done, ListenableFuture<Map<String, Result>> results) {
+        final Stopwatch stopwatch = new Stopwatch().start();
+        Futures.addCallback(results, new FutureCallback<Map<String, Result>>() {
+            public void onSuccess(Map<String, Result> results) {
+                stopwatch.stop();
+                for (Map.Entry<String, Result> result : results.entrySet()) {
+                    report(done, result.getKey(), result.getValue(), stopwatch);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                System.out.printf("Failed: bundle (%s).%n", t.getMessage());
+            }
+        });
+    }
+
+    /** Prints the names in each page as it arrives, asking for the next until there are no more. */
+    private void listFrom(final String prefix, String after, final int listed) {
+        Futures.addCallback(client.list(prefix, after, 0), new FutureCallback<Listing>() {
+            public void onSuccess(Listing listing) {
+                for (String name : listing.names) {
+                    System.out.println(name);
+                }
+                if (listing.next != null) {
+                    listFrom(prefix, listing.next, listed + listing.names.size());
+                } else {
+                    System.out.printf("%d files.%n", listed + listing.names.size());
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                System.out.printf("Failed: list (%s).%n", t.getMessage());
+            }
+        });
+    }
+
+    private final ChangeListener changePrinter = new ChangeListener() {
+        public void changed(String filename, long size, HashCode hash) {
+            System.out.printf("`%s' changed: %s %s%n", filename, Output.transferSize(size), hash);
+        }
+
+        public void removed(String filename) {
+            System.out.printf("`%s' removed.%n", filename);
+        }
+
+        public void overflowed() {
+            System.out.println("Missed changes to watched files.");
+        }
+    };
+
+    private void reportStats(ListenableFuture<Map<String, Stat.Entry>> stats) {
+        Futures.addCallback(stats, new FutureCallback<Map<String, Stat.Entry>>() {
+            public void onSuccess(Map<String, Stat.Entry> stats) {
+                for (Stat.Entry stat : stats.values()) {
+                    switch (stat.status) {
+                        case Bundle.OK:
+                            System.out.printf("`%s' %s %s [%s]%n", stat.name, Output.transferSize(stat.size),
+                                    stat.hash, Joiner.on(" ").join(stat.rights));
+                            break;
+                        case Bundle.PROHIBITED:
+                            System.out.printf("`%s' permission denied [%s]%n", stat.name, Joiner.on(" ").join(stat.rights));
+                            break;
+                        default:
+                            System.out.printf("`%s' does not exist.%n", stat.name);
+                    }
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                System.out.printf("Failed: stat (%s).%n", t.getMessage());
+            }
+        });
+    }
+
+    private static void report(String done, String filename, Result result, Stopwatch stopwatch) {
+        switch (result) {
+            case Success:
+                System.out.printf("%s `%s' in %s.%n", done, filename, stopwatch);
+                break;
+            case Prohibited:
+                System.out.printf("`%s' permission denied.%n", filename);
+                break;
+            case Unavailable:
+                System.out.printf("`%s' currently unavailable. Please try again.%n", filename);
+                break;
+            case Nonexistent:
+                System.out.printf("`%s' does not exist.%n", filename);
+                break;
+            case NotModified:
+                System.out.printf("`%s' is already up to date.%n", filename);
+                break;
+        }
+    }
+
     private boolean ensureClient() {
         if (client == null) {
             System.out.println("Client not connected.");
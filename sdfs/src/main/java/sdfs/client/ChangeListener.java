@@ -0,0 +1,19 @@
+package sdfs.client;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Hears of changes to files a client watches. Called on the connection's I/O thread, so must be
+ * quick.
+ */
+public interface ChangeListener {
+
+    void changed(String filename, long size, HashCode hash);
+
+    /** The file was moved away, or can no longer be read. */
+    void removed(String filename);
+
+    /** Changes came faster than they were read and were dropped; any watched file may have changed. */
+    void overflowed();
+
+}
@@ -1,9 +1,21 @@
 package sdfs.client;
 
+import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
@@ -15,16 +27,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sdfs.CN;
 import sdfs.crypto.Crypto;
+import sdfs.protocol.AdaptiveChunkedStream;
+import sdfs.protocol.Bundle;
+import sdfs.protocol.Compression;
+import sdfs.protocol.CorrelationId;
+import sdfs.protocol.Delegations;
 import sdfs.protocol.Header;
+import sdfs.protocol.HeaderFormat;
 import sdfs.protocol.Protocol;
+import sdfs.protocol.Stat;
+import sdfs.sdfs.Delegation;
 import sdfs.sdfs.Right;
 import sdfs.store.ByteStore;
 import sdfs.store.FileStore;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -36,16 +64,33 @@ public class Client {
     public final InetSocketAddress serverAddr;
     private final Crypto crypto;
     private final ByteStore store;
+    private final HeaderFormat headerFormat;
+    private final boolean deltaPuts;
+    private final List<Compression> compressions;
+    private final int inlinePutSize;
+    private final AdaptiveChunkedStream.Bounds chunkSizes;
 
     private final Protocol protocol = new Protocol();
 
+    /** Hashes local files for requests, so that the methods returning futures read no files. */
+    private final ListeningExecutorService hasher = MoreExecutors.listeningDecorator(
+            Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sdfs-hash-%d").build()));
+
     private ClientBootstrap bootstrap;
-    private Channel channel;
+    private volatile Channel channel;
 
-    public Client(String host, int port, Crypto crypto, ByteStore store) {
+    public Client(String host, int port, Crypto crypto, ByteStore store, HeaderFormat headerFormat,
+                  boolean deltaPuts, List<Compression> compressions, int inlinePutSize,
+                  AdaptiveChunkedStream.Bounds chunkSizes) {
         serverAddr = new InetSocketAddress(host, port);
         this.crypto = crypto;
         this.store = store;
+        this.headerFormat = headerFormat;
+        this.deltaPuts = deltaPuts;
+        this.compressions = compressions;
+        this.inlinePutSize = Math.min(inlinePutSize, protocol.maxInlinePutSize());
+        this.chunkSizes = chunkSizes;
     }
 
     public static Client fromConfig(Config config) {
@@ -53,7 +98,17 @@ public class Client {
             config.getString("sdfs.host"),
             config.getInt("sdfs.port"),
             new Crypto(config),
-            new FileStore(new File(config.getString("sdfs.store.client")).toPath())
+            new FileStore(new File(config.getString("sdfs.store.client")).toPath()),
+            HeaderFormat.unmarshal(config.getString("sdfs.headers")),
+            config.getBoolean("sdfs.delta-puts"),
+            FluentIterable.from(config.getStringList("sdfs.compression"))
+                .transform(new Function<String, Compression>() {
+                    public Compression apply(String name) {
+                        return Compression.unmarshal(name);
+                    }
+                }).toList(),
+            config.getBytes("sdfs.inline-put-size").intValue(),
+            AdaptiveChunkedStream.Bounds.fromConfig(config)
         );
     }
 
@@ -66,10 +121,15 @@ public class Client {
                             Executors.newCachedThreadPool(),
                             Executors.newCachedThreadPool()));
 
-            bootstrap.setPipelineFactory(new ClientPipelineFactory(protocol, crypto.newSslContext(), store));
+            bootstrap.setPipelineFactory(
+                    new ClientPipelineFactory(protocol, headerFormat, crypto.newSslContext(), store, compressions, chunkSizes));
 
             channel = bootstrap.connect(serverAddr).sync().getChannel();
 
+            if (headerFormat == HeaderFormat.Binary) {
+                channel.write(protocol.binaryPreface());
+            }
+
             channel.getCloseFuture().addListener(new ChannelFutureListener() {
                 public void operationComplete(ChannelFuture future) throws Exception {
                     channel = null;
@@ -92,51 +152,414 @@ public class Client {
         }
     }
 
-    public synchronized void get(String filename) {
-        checkState(channel != null);
+    /**
+     * Requests a file from the server. The future resolves once the file has been received, or to
+     * the reason the server refused. If the local copy is already the same as the server's, the
+     * server doesn't send it again and the future resolves to {@link Result#NotModified}.
+     */
+    public ListenableFuture<Result> get(String filename) {
+        return get(filename, 0, Header.Get.TO_END);
+    }
 
-        Header.Get get = new Header.Get();
+    /**
+     * Requests {@code length} bytes of a file starting at {@code offset}, and stores just those
+     * bytes locally. A negative offset counts back from the end of the file, and a length of
+     * {@link Header.Get#TO_END} reads to the end.
+     */
+    public ListenableFuture<Result> get(final String filename, long offset, long length) {
+        final Header.Get get = new Header.Get();
         get.filename = filename;
-        channel.write(get);
+        get.offset = offset;
+        get.length = length;
+        if (ClientHandler.isMultiplexed(channel().getPipeline())) {
+            get.accept = compressions;
+        }
+        if (get.isRange()) {
+            return request(get, false);
+        }
+        // Hashing the local copy reads all of it, so the request waits for it on the hasher
+        ListenableFuture<HashCode> hash = hasher.submit(new Callable<HashCode>() {
+            public HashCode call() {
+                return localHash(filename);
+            }
+        });
+        return Futures.transform(hash, new AsyncFunction<HashCode, Result>() {
+            public ListenableFuture<Result> apply(HashCode hash) {
+                get.hash = hash;
+                return request(get, false);
+            }
+        });
     }
 
-    public synchronized void put(String filename) throws CannotPutException {
-        checkState(channel != null);
+    /**
+     * Sends a file to the server. The future resolves once the server has committed the file, or
+     * to the reason the server refused. With delta puts on, a file the server already has is sent
+     * as a delta against the server's copy. Over a binary connection, a file no bigger than the
+     * inline put size is sent with the request, saving the wait for the server to OK it.
+     */
+    public ListenableFuture<Result> put(String filename) throws CannotPutException {
+        Channel channel = channel();
 
         ByteSource file = store.get(new File(filename).toPath());
         try {
             ClientHandler clientHandler = channel.getPipeline().get(ClientHandler.class);
 
             final Header.Put put = new Header.Put();
+            put.correlationId = new CorrelationId(protocol.correlationId());
             put.filename = filename;
 
-            System.out.printf("Calculating hash of `%s'...%n", put.filename);
+            if (ClientHandler.isMultiplexed(channel.getPipeline()) && file.size() <= inlinePutSize) {
+                // Read once, and hash what was read, so that the content always matches the hash
+                put.content = file.read();
+                put.size = put.content.length;
+                put.hash = protocol.fileHashFunction().hashBytes(put.content);
+                return request(put, false);
+            }
+
             final Stopwatch stopwatch = new Stopwatch().start();
             put.hash = file.hash(protocol.fileHashFunction());
             log.debug("Hashed file in {}", stopwatch.stop());
 
             put.size = file.size();
+            put.delta = deltaPuts;
 
-            if (!clientHandler.setOutboundFile(new OutboundFile(put, file))) {
+            if (!clientHandler.addOutboundFile(channel.getPipeline(), new OutboundFile(put, file))) {
                 throw new CannotPutException("Client already putting another file.");
             }
 
-            channel.write(put);
+            return request(put, false);
         } catch (IOException e) {
             throw new CannotPutException(e.getMessage(), e);
         }
     }
 
-    public synchronized void delegate(CN to, String filename, Iterable<Right> rights, Instant expiration) {
-        checkState(channel != null);
+    /**
+     * Sends what can be read from a stream to the server as a file, such as from a pipe. The size
+     * and hash needn't be known up front: they follow the content in a trailer, and the server
+     * commits the file only if they match. Only binary connections can stream a put, and it can be
+     * neither resumed nor sent as a delta. The stream is closed once read.
+     */
+    public ListenableFuture<Result> put(String filename, InputStream content) throws CannotPutException {
+        Channel channel = channel();
+        if (!ClientHandler.isMultiplexed(channel.getPipeline())) {
+            throw new CannotPutException("Streaming a put needs binary headers.");
+        }
+        ClientHandler clientHandler = channel.getPipeline().get(ClientHandler.class);
+
+        Header.Put put = new Header.Put();
+        put.correlationId = new CorrelationId(protocol.correlationId());
+        put.filename = filename;
+        put.trailer = true;
+
+        if (!clientHandler.addOutboundFile(channel.getPipeline(), new OutboundFile(put, content))) {
+            throw new CannotPutException("Client already putting another file.");
+        }
+        return request(put, false);
+    }
+
+    /**
+     * Adds the end of a local file, such as a log, to the server's copy: the server answers with how
+     * much it has, and only what the local file has beyond that is sent. The server's copy is
+     * assumed to be the start of the local file. Only binary connections can append.
+     */
+    public ListenableFuture<Result> append(String filename) throws CannotPutException {
+        Channel channel = channel();
+        if (!ClientHandler.isMultiplexed(channel.getPipeline())) {
+            throw new CannotPutException("Appending needs binary headers.");
+        }
+        ClientHandler clientHandler = channel.getPipeline().get(ClientHandler.class);
+
+        Header.Put put = new Header.Put();
+        put.correlationId = new CorrelationId(protocol.correlationId());
+        put.filename = filename;
+        put.trailer = true;
+        put.append = true;
+
+        ByteSource file = store.get(new File(filename).toPath());
+        try {
+            log.debug("Appending from `{}' of {} bytes", filename, file.size());
+        } catch (IOException e) {
+            throw new CannotPutException(e.getMessage(), e);
+        }
+        if (!clientHandler.addOutboundFile(channel.getPipeline(), new OutboundFile(put, file))) {
+            throw new CannotPutException("Client already putting another file.");
+        }
+        return request(put, false);
+    }
+
+    /**
+     * Sends many files to the server as one bundle, in a single request. The server stores each as
+     * soon as all of it has arrived, and the future resolves once all have been, to what became of
+     * each. Only binary connections can send a bundle. The files are hashed before it is sent, and
+     * the future fails if one cannot be read.
+     */
+    public ListenableFuture<Map<String, Result>> putAll(Iterable<String> filenames) throws CannotPutException {
+        Channel channel = channel();
+        if (!ClientHandler.isMultiplexed(channel.getPipeline())) {
+            throw new CannotPutException("Sending a bundle needs binary headers.");
+        }
+        final List<String> names = ImmutableSet.copyOf(filenames).asList();
+
+        // Every file is hashed before the bundle is sent, which reads all of them, so on the hasher
+        ListenableFuture<List<BundledFile>> files = hasher.submit(new Callable<List<BundledFile>>() {
+            public List<BundledFile> call() throws IOException {
+                return bundledFiles(names);
+            }
+        });
+        return Futures.transform(files, new AsyncFunction<List<BundledFile>, Map<String, Result>>() {
+            public ListenableFuture<Map<String, Result>> apply(List<BundledFile> files) {
+                return sendBundle(names, files);
+            }
+        });
+    }
+
+    /** A file of a bundle being sent, sized and hashed. */
+    private static final class BundledFile {
+        final Bundle.Entry entry;
+        final ByteSource content;
+
+        BundledFile(Bundle.Entry entry, ByteSource content) {
+            this.entry = entry;
+            this.content = content;
+        }
+    }
+
+    private List<BundledFile> bundledFiles(List<String> names) throws IOException {
+        List<BundledFile> files = new ArrayList<>(names.size());
+        for (String name : names) {
+            ByteSource file = store.get(new File(name).toPath());
+            long fileSize = file.size();
+            if (fileSize <= inlinePutSize) {
+                // Read once, and hash what was read, so that the content always matches the hash
+                byte[] bytes = file.read();
+                files.add(new BundledFile(
+                        new Bundle.Entry(name, bytes.length, protocol.fileHashFunction().hashBytes(bytes)),
+                        ByteStreams.asByteSource(bytes)));
+            } else {
+                files.add(new BundledFile(
+                        new Bundle.Entry(name, fileSize, file.hash(protocol.fileHashFunction())),
+                        file.slice(0, fileSize)));
+            }
+        }
+        return files;
+    }
+
+    private ListenableFuture<Map<String, Result>> sendBundle(List<String> names, List<BundledFile> files) {
+        Channel channel = channel();
+        long size = 0;
+        for (BundledFile file : files) {
+            size += Bundle.length(protocol, file.entry.name, file.entry.size);
+        }
 
+        final Iterator<BundledFile> remaining = files.iterator();
+        InputStream body = new Bundle.Writer(protocol) {
+            private ByteSource content;
+
+            protected Bundle.Entry next() {
+                if (!remaining.hasNext()) {
+                    return null;
+                }
+                BundledFile file = remaining.next();
+                content = file.content;
+                return file.entry;
+            }
+
+            protected InputStream open(Bundle.Entry entry) throws IOException {
+                return content.openStream();
+            }
+        };
+
+        Header.Bundle bundle = new Header.Bundle();
+        bundle.correlationId = new CorrelationId(protocol.correlationId());
+        bundle.count = names.size();
+        bundle.size = size;
+        return channel.getPipeline().get(ClientHandler.class).bundle(channel, bundle, names, body);
+    }
+
+    /**
+     * Requests many files from the server as one bundle. The future resolves once all of them have
+     * been received, to whether each was. Only binary connections can fetch a bundle.
+     */
+    public ListenableFuture<Map<String, Result>> getAll(Iterable<String> filenames) {
+        Channel channel = channel();
+        checkState(ClientHandler.isMultiplexed(channel.getPipeline()), "Fetching a bundle needs binary headers.");
+        List<String> names = ImmutableSet.copyOf(filenames).asList();
+        byte[] body = Bundle.names(protocol, names);
+
+        Header.Bundle bundle = new Header.Bundle();
+        bundle.correlationId = new CorrelationId(protocol.correlationId());
+        bundle.get = true;
+        bundle.count = names.size();
+        bundle.size = body.length;
+        return channel.getPipeline().get(ClientHandler.class)
+                .bundle(channel, bundle, names, new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Asks the server for the size and hash of many files at once, and what this client may do with
+     * each, without fetching any of them. Only binary connections can ask.
+     */
+    public ListenableFuture<Map<String, Stat.Entry>> stat(Iterable<String> filenames) {
+        Channel channel = channel();
+        checkState(ClientHandler.isMultiplexed(channel.getPipeline()), "Stat needs binary headers.");
+        List<String> names = ImmutableSet.copyOf(filenames).asList();
+        byte[] body = Bundle.names(protocol, names);
+
+        Header.Stat stat = new Header.Stat();
+        stat.correlationId = new CorrelationId(protocol.correlationId());
+        stat.count = names.size();
+        stat.size = body.length;
+        return channel.getPipeline().get(ClientHandler.class).stat(channel, stat, names, body);
+    }
+
+    /**
+     * Lists a page of the names of files on the server that begin with {@code prefix}, of at most
+     * {@code limit} names, or as many as the server lists at once if that is zero. The first page
+     * starts after null; each one after that where the last said the next starts. Only binary
+     * connections can list.
+     */
+    public ListenableFuture<Listing> list(String prefix, String after, int limit) {
+        Channel channel = channel();
+        checkState(ClientHandler.isMultiplexed(channel.getPipeline()), "Listing needs binary headers.");
+
+        Header.Listing listing = new Header.Listing();
+        listing.correlationId = new CorrelationId(protocol.correlationId());
+        listing.prefix = prefix;
+        listing.after = after;
+        listing.count = limit;
+        return channel.getPipeline().get(ClientHandler.class).list(channel, listing);
+    }
+
+    /**
+     * Watches a file, or every file whose name begins with {@code name} if {@code prefix}, telling
+     * the listener of each change the server sees from then on to those this client may get. A
+     * later watch of the same name or prefix takes the place of this one. Only binary connections
+     * can watch.
+     */
+    public ListenableFuture<Result> watch(String name, boolean prefix, ChangeListener listener) {
+        Channel channel = channel();
+        checkState(ClientHandler.isMultiplexed(channel.getPipeline()), "Watching needs binary headers.");
+        ClientHandler clientHandler = channel.getPipeline().get(ClientHandler.class);
+
+        Header.Watch watch = watch(name, prefix, false);
+        // The server starts sending changes as soon as it has answered
+        clientHandler.unwatch(watch);
+        clientHandler.watch(watch, listener);
+        return request(watch, false);
+    }
+
+    /** Stops watching a name or prefix. */
+    public ListenableFuture<Result> unwatch(String name, boolean prefix) {
+        Channel channel = channel();
+        checkState(ClientHandler.isMultiplexed(channel.getPipeline()), "Watching needs binary headers.");
+
+        Header.Watch stop = watch(name, prefix, true);
+        channel.getPipeline().get(ClientHandler.class).unwatch(stop);
+        return request(stop, false);
+    }
+
+    private Header.Watch watch(String name, boolean prefix, boolean stop) {
+        Header.Watch watch = new Header.Watch();
+        watch.correlationId = new CorrelationId(protocol.correlationId());
+        watch.filename = name;
+        watch.prefix = prefix;
+        watch.stop = stop;
+        return watch;
+    }
+
+    /**
+     * Copies a file on the server to another name, without sending it either way. Over text headers
+     * the future resolves as soon as the request has been sent, as for a delegation.
+     */
+    public ListenableFuture<Result> copy(String filename, String to) {
+        return copy(filename, to, false);
+    }
+
+    /** Renames a file on the server, keeping its policy. */
+    public ListenableFuture<Result> move(String filename, String to) {
+        return copy(filename, to, true);
+    }
+
+    private ListenableFuture<Result> copy(String filename, String to, boolean move) {
+        Header.Copy copy = new Header.Copy();
+        copy.filename = filename;
+        copy.to = to;
+        copy.move = move;
+
+        return request(copy, !ClientHandler.isMultiplexed(channel().getPipeline()));
+    }
+
+    /**
+     * Delegates rights on a file. A text server only responds to refused delegations, so over text
+     * headers the future resolves as soon as the request has been sent.
+     */
+    public ListenableFuture<Result> delegate(CN to, String filename, Iterable<Right> rights, Instant expiration) {
         Header.Delegate delegate = new Header.Delegate();
         delegate.filename = filename;
         delegate.to = to;
         delegate.rights = ImmutableList.copyOf(rights);
         delegate.expiration = expiration;
 
-        channel.write(delegate);
+        return request(delegate, !ClientHandler.isMultiplexed(channel().getPipeline()));
+    }
+
+    /**
+     * Makes every one of the delegations on each of many files, in one request. The future resolves
+     * to whether each file took them: a file takes all of them, or if this client may not make one
+     * of them there, none. Only binary connections can delegate many at once.
+     */
+    public ListenableFuture<Map<String, Result>> delegateAll(Iterable<String> filenames,
+                                                             Iterable<Delegation> delegations) {
+        Channel channel = channel();
+        checkState(ClientHandler.isMultiplexed(channel.getPipeline()), "Delegating many at once needs binary headers.");
+        List<String> names = ImmutableSet.copyOf(filenames).asList();
+        byte[] body = Delegations.request(protocol, new Delegations.Request(delegations, names));
+
+        Header.Delegations request = new Header.Delegations();
+        request.correlationId = new CorrelationId(protocol.correlationId());
+        request.count = names.size();
+        request.size = body.length;
+        return channel.getPipeline().get(ClientHandler.class).delegate(channel, request, names, body);
+    }
+
+    /** Hashes the local copy of a file, or returns null if there isn't one. */
+    private HashCode localHash(String filename) {
+        try {
+            return store.get(new File(filename).toPath()).hash(protocol.fileHashFunction());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            log.debug("Cannot hash local copy of `{}'", filename, e);
+            return null;
+        }
+    }
+
+    private ListenableFuture<Result> request(final Header header, final boolean resolveOnWrite) {
+        Channel channel = channel();
+        final ClientHandler clientHandler = channel.getPipeline().get(ClientHandler.class);
+
+        if (header.correlationId == null) {
+            header.correlationId = new CorrelationId(protocol.correlationId());
+        }
+        SettableFuture<Result> result = SettableFuture.create();
+        clientHandler.expect(header.correlationId, result);
+
+        channel.write(header).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    clientHandler.fail(header.correlationId, future.getCause());
+                } else if (resolveOnWrite) {
+                    clientHandler.resolve(header.correlationId, Result.Success);
+                }
+            }
+        });
+        return result;
+    }
+
+    private Channel channel() {
+        Channel channel = this.channel;
+        checkState(channel != null);
+        return channel;
     }
 
     public synchronized void disconnect() {
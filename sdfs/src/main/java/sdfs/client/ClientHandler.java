@@ -1,18 +1,41 @@
 package sdfs.client;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sdfs.Output;
+import sdfs.delta.Delta;
+import sdfs.delta.Signatures;
 import sdfs.protocol.*;
 import sdfs.store.ByteStore;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ClientHandler extends SimpleChannelUpstreamHandler {
 
@@ -20,11 +43,25 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
 
     private final Protocol protocol = new Protocol();
     private final ByteStore store;
+    private final List<Compression> compressions;
+    private final AdaptiveChunkedStream.Bounds chunkSizes;
 
-    private final AtomicReference<OutboundFile> outboundFile = new AtomicReference<>();
+    private final ConcurrentMap<CorrelationId, OutboundFile> outboundFiles = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CorrelationId, SettableFuture<Result>> requests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CorrelationId, PendingBundle> bundles = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CorrelationId, PendingStat> stats = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CorrelationId, PendingDelegations> delegations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CorrelationId, SettableFuture<Listing>> listings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<CorrelationId, Watch> watches = new ConcurrentHashMap<>();
 
-    public ClientHandler(ByteStore store) {
+    private final ExecutorService deltaWorker = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sdfs-delta-%d").build());
+
+    /** @param compressions compressions to send puts with, most preferred first */
+    public ClientHandler(ByteStore store, List<Compression> compressions, AdaptiveChunkedStream.Bounds chunkSizes) {
         this.store = store;
+        this.compressions = compressions;
+        this.chunkSizes = chunkSizes;
     }
 
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
@@ -60,77 +97,626 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                     put.size, protocol.fileHashFunction(),
                     put.hash
             );
-            InboundFileHandler inboundFileHandler = new InboundFileHandler(inboundFile);
-            ctx.getPipeline().addBefore("framer", "inboundFile", inboundFileHandler);
-            inboundFileHandler.transferFuture().addListener(new ChannelFutureListener() {
+            ChannelFuture transferFuture =
+                    RawTransport.of(ctx.getPipeline()).receive(ctx, put.correlationId, inboundFile);
+            transferFuture.addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
                     if (future.isSuccess()) {
-                        System.out.printf("Got `%s' (%s) in %s (%s).%n",
+                        log.info("Got `{}' ({}) in {} ({})",
                                 put.filename, Output.transferSize(inboundFile.size),
                                 inboundFile.transferTime(), inboundFile.transferRate());
-                    } else {
-                        System.out.printf("Failed to get `%s'.%n", put.filename);
                     }
+                    complete(put.correlationId, future);
                 }
             });
 
-            log.info("Receiving file `{}' ({} bytes)", put.filename, put.size);
+            if (put.hash == null) {
+                log.info("Receiving {} bytes of file `{}' from offset {}", put.size, put.filename, put.offset);
+            } else {
+                log.info("Receiving file `{}' ({} bytes)", put.filename, put.size);
+            }
         }
 
-        public void visit(Header.Ok ok) throws IOException {
-            final OutboundFile file = outboundFile.get();
+        public void visit(final Header.Ok ok) throws IOException {
+            final OutboundFile file = outboundFiles.remove(ok.correlationId);
             if (file == null) {
-                throw new ProtocolException("Server OK'd client put, but client didn't put");
+                // A multiplexing server OKs a put a second time once it has committed the file, and
+                // OKs a delegation once it has been granted.
+                resolve(ok.correlationId, Result.Success);
+                return;
             }
             log.debug("Server OK'd put of `{}'. Writing file contents...", file.put.filename);
+            if (file.stream != null) {
+                sendTrailed(file, file.stream, ok.accept, null);
+            } else {
+                send(file, 0, ok.accept);
+            }
+        }
 
-            final Stopwatch stopwatch = new Stopwatch().start();
-            ctx.getChannel().write(new ChunkedStream(file.file.openBufferedStream())).addListener(
+        public void visit(final Header.Resume resume) throws IOException {
+            final OutboundFile file = outboundFiles.remove(resume.correlationId);
+            if (file == null) {
+                throw new ProtocolException("Server resumed a put that was not requested");
+            }
+            log.info("Server already has {} bytes of `{}'. Writing the rest...", resume.offset, file.put.filename);
+            if (file.put.append) {
+                // Hashing what the server already has reads it all, so keep it off the I/O thread
+                deltaWorker.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            sendAppended(file, resume);
+                        } catch (IOException e) {
+                            fail(resume.correlationId, e);
+                        }
+                    }
+                });
+            } else {
+                send(file, resume.offset, resume.accept);
+            }
+        }
+
+        /**
+         * Sends the end of a file from where the server's copy ends, with the hash of the whole
+         * file in the trailer, so the server can tell that its copy really was the start of it.
+         */
+        private void sendAppended(OutboundFile file, Header.Resume resume) throws IOException {
+            Hasher fileHasher = protocol.fileHashFunction().newHasher();
+            file.file.slice(0, resume.offset).copyTo(Funnels.asOutputStream(fileHasher));
+            InputStream tail = new HashingInputStream(
+                    file.file.slice(resume.offset, Long.MAX_VALUE).openBufferedStream(), fileHasher);
+            sendTrailed(file, tail, resume.accept, fileHasher);
+        }
+
+        public void visit(final Header.Signatures signatures) throws IOException {
+            final OutboundFile file = outboundFiles.remove(signatures.correlationId);
+            if (file == null) {
+                throw new ProtocolException("Server sent signatures for a put that was not requested");
+            }
+            if (signatures.blockSize <= 0 || signatures.size > Integer.MAX_VALUE
+                    || signatures.size != Signatures.length(signatures.baseSize, signatures.blockSize)) {
+                throw new ProtocolException("Server sent malformed signatures");
+            }
+            log.debug("Server has `{}' already. Receiving signatures...", file.put.filename);
+
+            final ByteArrayOutputStream records = new ByteArrayOutputStream();
+            InboundFile inboundFile = new InboundFile(records, signatures.size, protocol.fileHashFunction(), null);
+            RawTransport.of(ctx.getPipeline()).receive(ctx, signatures.correlationId, inboundFile).addListener(
                     new ChannelFutureListener() {
                         @Override
                         public void operationComplete(ChannelFuture future) throws Exception {
-                            stopwatch.stop();
-                            outboundFile.compareAndSet(file, null);
-                            Header.Put put = file.put;
-                            if (future.isSuccess()) {
-                                System.out.printf("Put `%s' (%s) in %s (%s).%n",
-                                        put.filename, Output.transferSize(put.size),
-                                        stopwatch.toString(), Output.transferRate(put.size, stopwatch));
-                            } else {
-                                System.out.printf("Failed to put `%s'.%n", put.filename);
+                            if (!future.isSuccess()) {
+                                complete(signatures.correlationId, future);
+                                return;
                             }
+                            // Finding the delta reads the whole file, so keep it off the I/O thread
+                            deltaWorker.execute(new Runnable() {
+                                public void run() {
+                                    sendDelta(file, signatures, records.toByteArray());
+                                }
+                            });
                         }
                     });
         }
 
+        private void sendDelta(OutboundFile file, Header.Signatures signatures, byte[] records) {
+            Delta delta;
+            try {
+                Stopwatch stopwatch = new Stopwatch().start();
+                delta = Delta.compute(Signatures.read(
+                        new ByteArrayInputStream(records), signatures.blockSize, signatures.baseSize), file.file);
+                log.info("Found delta of `{}' in {}: {} of {} bytes are new",
+                        file.put.filename, stopwatch.stop(), delta.literalBytes(), file.put.size);
+            } catch (IOException e) {
+                log.warn("Cannot compute delta of `{}'; sending all of it", file.put.filename, e);
+                delta = Delta.literal(file.put.size);
+            }
+            ctx.getChannel().write(Header.delta(signatures, delta.size()));
+            try {
+                send(file.put, delta.openStream(file.file), signatures.accept);
+            } catch (IOException e) {
+                fail(signatures.correlationId, e);
+            }
+        }
+
+        private void send(final OutboundFile file, long offset, List<Compression> accept) throws IOException {
+            long size = file.put.size - offset;
+            send(file.put, file.file.slice(offset, size).openBufferedStream(), accept);
+        }
+
+        /**
+         * Sends content of unknown size, and then its size and hash in a trailer, along with the hash
+         * of the whole file if {@code fileHasher} isn't null.
+         */
+        private void sendTrailed(OutboundFile file, InputStream content, List<Compression> accept,
+                                 final Hasher fileHasher) throws IOException {
+            final Header.Put put = file.put;
+            final HashingInputStream in = new HashingInputStream(content, protocol.fileHashFunction().newHasher());
+            send(put, in, accept).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        log.debug("Sent {} bytes of `{}'. Writing trailer...", in.count(), put.filename);
+                        Header.Trailer trailer = Header.trailer(put, in.count(), in.hash());
+                        if (fileHasher != null) {
+                            trailer.fileHash = fileHasher.hash();
+                        }
+                        ctx.getChannel().write(trailer);
+                    }
+                }
+            });
+        }
+
+        /** Sends a body, compressed with the first of the server's accepted compressions that is worth it. */
+        private ChannelFuture send(final Header.Put put, InputStream in, List<Compression> accept)
+                throws IOException {
+            List<Compression> candidates = Compression.negotiate(compressions, accept);
+            if (!candidates.isEmpty()) {
+                in = new BufferedInputStream(in, Compression.SAMPLE_SIZE);
+            }
+            Compression compression = Compression.choose(candidates, in);
+            log.debug("Sending `{}' with {} compression", put.filename, compression.marshal());
+
+            final boolean acknowledged = isMultiplexed(ctx.getPipeline());
+            final Stopwatch stopwatch = new Stopwatch().start();
+            final CountingInputStream counted = new CountingInputStream(in);
+            final AdaptiveChunkedStream content = new AdaptiveChunkedStream(counted, compression.chunkSize(), chunkSizes);
+            ChannelFuture future = RawTransport.of(ctx.getPipeline()).send(ctx, put.correlationId, content, compression);
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    stopwatch.stop();
+                    if (future.isSuccess()) {
+                        log.info("Put `{}' ({}) in {} ({}, chunks of {})",
+                                put.filename, Output.transferSize(counted.getCount()), stopwatch,
+                                Output.transferRate(counted.getCount(), stopwatch), content.chunkSizes());
+                    }
+                    if (!future.isSuccess() || !acknowledged) {
+                        complete(put.correlationId, future);
+                    }
+                }
+            });
+            return future;
+        }
+
         public void visit(Header.Prohibited prohibited) {
-            outboundFile.set(null);
-            System.out.println("`" + prohibited.filename + "' permission denied.");
+            outboundFiles.remove(prohibited.correlationId);
+            resolve(prohibited.correlationId, Result.Prohibited);
         }
 
         public void visit(Header.Unavailable unavailable) {
-            outboundFile.set(null);
-            System.out.println("`" + unavailable.filename + "' currently unavailable. Please try again.");
+            outboundFiles.remove(unavailable.correlationId);
+            resolve(unavailable.correlationId, Result.Unavailable);
         }
 
         @Override
         public void visit(Header.Nonexistent nonexistent) {
-            outboundFile.set(null);
-            System.out.println("`" + nonexistent.filename + "' does not exist.");
+            outboundFiles.remove(nonexistent.correlationId);
+            resolve(nonexistent.correlationId, Result.Nonexistent);
+        }
+
+        public void visit(Header.NotModified notModified) {
+            resolve(notModified.correlationId, Result.NotModified);
         }
 
         public void visit(Header.Get get) {
             throw new ProtocolException("Server cannot sent get header to client");
         }
 
+        public void visit(Header.Delta delta) {
+            throw new ProtocolException("Server cannot sent delta header to client");
+        }
+
+        public void visit(Header.Trailer trailer) {
+            throw new ProtocolException("Server cannot sent trailer header to client");
+        }
+
+        public void visit(final Header.Bundle bundle) {
+            final PendingBundle pending = bundles.get(bundle.correlationId);
+            if (pending == null || pending.request.get != bundle.get || pending.request.count != bundle.count) {
+                throw new ProtocolException("Server answered a bundle that was not requested");
+            }
+            final Map<String, Result> results = new LinkedHashMap<>();
+            final ByteArrayOutputStream statuses = new ByteArrayOutputStream();
+            OutputStream body;
+            if (bundle.get) {
+                body = new Bundle.Reader(protocol, bundle.count) {
+                    protected OutputStream open(Bundle.Entry entry) throws IOException {
+                        if (!pending.requested.contains(entry.name) || results.containsKey(entry.name)) {
+                            throw new ProtocolException("Server sent `" + entry.name + "', which was not requested");
+                        }
+                        results.put(entry.name, result(entry.status));
+                        return entry.status == Bundle.OK
+                                ? store.put(new File(entry.name).toPath()).openBufferedStream()
+                                : null;
+                    }
+
+                    protected void commit(Bundle.Entry entry) { }
+
+                    protected void abort(Bundle.Entry entry) {
+                        log.warn("Failed to get `{}' from bundle", entry.name);
+                    }
+                };
+            } else if (bundle.size != bundle.count) {
+                throw new ProtocolException("Server sent " + bundle.size + " statuses for " + bundle.count + " files");
+            } else {
+                body = statuses;
+            }
+
+            InboundFile inboundFile = new InboundFile(body, bundle.size, protocol.fileHashFunction(), null);
+            RawTransport.of(ctx.getPipeline()).receive(ctx, bundle.correlationId, inboundFile).addListener(
+                    new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            bundles.remove(bundle.correlationId);
+                            if (!future.isSuccess()) {
+                                pending.future.setException(future.getCause());
+                                return;
+                            }
+                            if (!bundle.get) {
+                                byte[] codes = statuses.toByteArray();
+                                for (int i = 0; i < codes.length; i++) {
+                                    results.put(pending.names.get(i), result(codes[i]));
+                                }
+                            }
+                            pending.future.set(results);
+                        }
+                    });
+        }
+
+        public void visit(final Header.Stat stat) {
+            final PendingStat pending = stats.get(stat.correlationId);
+            if (pending == null || pending.request.count != stat.count) {
+                throw new ProtocolException("Server answered a stat that was not requested");
+            }
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InboundFile inboundFile = new InboundFile(body, stat.size, protocol.fileHashFunction(), null);
+            RawTransport.of(ctx.getPipeline()).receive(ctx, stat.correlationId, inboundFile).addListener(
+                    new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            stats.remove(stat.correlationId);
+                            if (!future.isSuccess()) {
+                                pending.future.setException(future.getCause());
+                                return;
+                            }
+                            Map<String, Stat.Entry> entries = new LinkedHashMap<>();
+                            try {
+                                for (Stat.Entry entry : Stat.readEntries(protocol, body.toByteArray(), stat.count)) {
+                                    if (!pending.requested.contains(entry.name) || entries.containsKey(entry.name)) {
+                                        throw new ProtocolException("Server stat `" + entry.name + "', which was not requested");
+                                    }
+                                    entries.put(entry.name, entry);
+                                }
+                            } catch (ProtocolException e) {
+                                pending.future.setException(e);
+                                throw e;
+                            }
+                            pending.future.set(entries);
+                        }
+                    });
+        }
+
+        public void visit(final Header.Delegations answer) {
+            final PendingDelegations pending = delegations.get(answer.correlationId);
+            if (pending == null || pending.request.count != answer.count) {
+                throw new ProtocolException("Server answered delegations that were not requested");
+            }
+            if (answer.size != answer.count) {
+                throw new ProtocolException("Server sent " + answer.size + " statuses for " + answer.count + " files");
+            }
+            final ByteArrayOutputStream statuses = new ByteArrayOutputStream();
+            InboundFile inboundFile = new InboundFile(statuses, answer.size, protocol.fileHashFunction(), null);
+            RawTransport.of(ctx.getPipeline()).receive(ctx, answer.correlationId, inboundFile).addListener(
+                    new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            delegations.remove(answer.correlationId);
+                            if (!future.isSuccess()) {
+                                pending.future.setException(future.getCause());
+                                return;
+                            }
+                            Map<String, Result> results = new LinkedHashMap<>();
+                            byte[] codes = statuses.toByteArray();
+                            for (int i = 0; i < codes.length; i++) {
+                                results.put(pending.names.get(i), result(codes[i]));
+                            }
+                            pending.future.set(results);
+                        }
+                    });
+        }
+
+        public void visit(final Header.Listing listing) {
+            final SettableFuture<Listing> pending = listings.get(listing.correlationId);
+            if (pending == null) {
+                throw new ProtocolException("Server answered a listing that was not requested");
+            }
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InboundFile inboundFile = new InboundFile(body, listing.size, protocol.fileHashFunction(), null);
+            RawTransport.of(ctx.getPipeline()).receive(ctx, listing.correlationId, inboundFile).addListener(
+                    new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            listings.remove(listing.correlationId);
+                            if (!future.isSuccess()) {
+                                pending.setException(future.getCause());
+                                return;
+                            }
+                            try {
+                                pending.set(new Listing(
+                                        Bundle.readNames(protocol, body.toByteArray(), listing.count), listing.after));
+                            } catch (ProtocolException e) {
+                                pending.setException(e);
+                                throw e;
+                            }
+                        }
+                    });
+        }
+
+        public void visit(Header.Copy copy) {
+            throw new ProtocolException("Server cannot sent copy header to client");
+        }
+
+        public void visit(Header.Watch watch) {
+            throw new ProtocolException("Server cannot sent watch header to client");
+        }
+
+        public void visit(Header.Changed changed) {
+            Watch watch = watches.get(changed.correlationId);
+            if (watch == null) {
+                log.debug("Ignoring change of `{}' for unknown watch {}", changed.filename, changed.correlationId);
+            } else if (changed.overflowed) {
+                watch.listener.overflowed();
+            } else if (changed.removed) {
+                watch.listener.removed(changed.filename);
+            } else {
+                watch.listener.changed(changed.filename, changed.size, changed.hash);
+            }
+        }
+
         public void visit(Header.Delegate delegate) {
             throw new ProtocolException("Server cannot sent delegate header to client");
         }
     }
 
-    boolean setOutboundFile(OutboundFile outboundFile) {
-        return this.outboundFile.compareAndSet(null, outboundFile);
+    private static Result result(byte status) {
+        switch (status) {
+            case Bundle.OK: return Result.Success;
+            case Bundle.PROHIBITED: return Result.Prohibited;
+            case Bundle.UNAVAILABLE: return Result.Unavailable;
+            case Bundle.NONEXISTENT: return Result.Nonexistent;
+        }
+        throw new ProtocolException("Unknown bundle status " + status);
+    }
+
+    private static final class PendingBundle {
+        final Header.Bundle request;
+        final List<String> names;
+        final Set<String> requested;
+        final SettableFuture<Map<String, Result>> future = SettableFuture.create();
+
+        PendingBundle(Header.Bundle request, List<String> names) {
+            this.request = request;
+            this.names = names;
+            requested = ImmutableSet.copyOf(names);
+        }
+    }
+
+    /**
+     * Sends a bundle and its body, and returns the future of the server's answer about each of the
+     * named files. The server takes the body without first accepting the bundle.
+     */
+    ListenableFuture<Map<String, Result>> bundle(Channel channel, final Header.Bundle bundle, List<String> names,
+                                                 InputStream body) {
+        final PendingBundle pending = new PendingBundle(bundle, names);
+        if (bundles.putIfAbsent(bundle.correlationId, pending) != null) {
+            throw new IllegalStateException("Duplicate correlation id " + bundle.correlationId);
+        }
+        ChannelFutureListener failure = new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    bundles.remove(bundle.correlationId);
+                    pending.future.setException(future.getCause());
+                }
+            }
+        };
+        channel.write(bundle).addListener(failure);
+        ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+        RawTransport.of(channel.getPipeline()).send(ctx, bundle.correlationId,
+                new AdaptiveChunkedStream(body, Compression.None.chunkSize(), chunkSizes)).addListener(failure);
+        return pending.future;
+    }
+
+    private static final class PendingStat {
+        final Header.Stat request;
+        final Set<String> requested;
+        final SettableFuture<Map<String, Stat.Entry>> future = SettableFuture.create();
+
+        PendingStat(Header.Stat request, List<String> names) {
+            this.request = request;
+            requested = ImmutableSet.copyOf(names);
+        }
+    }
+
+    /** Sends a stat request naming {@code names}, and returns the future of the server's answer. */
+    ListenableFuture<Map<String, Stat.Entry>> stat(Channel channel, final Header.Stat stat, List<String> names,
+                                                   byte[] body) {
+        final PendingStat pending = new PendingStat(stat, names);
+        if (stats.putIfAbsent(stat.correlationId, pending) != null) {
+            throw new IllegalStateException("Duplicate correlation id " + stat.correlationId);
+        }
+        ChannelFutureListener failure = new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    stats.remove(stat.correlationId);
+                    pending.future.setException(future.getCause());
+                }
+            }
+        };
+        channel.write(stat).addListener(failure);
+        ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+        RawTransport.of(channel.getPipeline()).send(ctx, stat.correlationId,
+                new ChunkedStream(new ByteArrayInputStream(body))).addListener(failure);
+        return pending.future;
+    }
+
+    private static final class PendingDelegations {
+        final Header.Delegations request;
+        final List<String> names;
+        final SettableFuture<Map<String, Result>> future = SettableFuture.create();
+
+        PendingDelegations(Header.Delegations request, List<String> names) {
+            this.request = request;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Sends a delegations request of the delegations and names in {@code body}, and returns the
+     * future of the server's answer about each of the named files.
+     */
+    ListenableFuture<Map<String, Result>> delegate(Channel channel, final Header.Delegations request,
+                                                   List<String> names, byte[] body) {
+        final PendingDelegations pending = new PendingDelegations(request, names);
+        if (delegations.putIfAbsent(request.correlationId, pending) != null) {
+            throw new IllegalStateException("Duplicate correlation id " + request.correlationId);
+        }
+        ChannelFutureListener failure = new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    delegations.remove(request.correlationId);
+                    pending.future.setException(future.getCause());
+                }
+            }
+        };
+        channel.write(request).addListener(failure);
+        ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+        RawTransport.of(channel.getPipeline()).send(ctx, request.correlationId,
+                new ChunkedStream(new ByteArrayInputStream(body))).addListener(failure);
+        return pending.future;
+    }
+
+    ListenableFuture<Listing> list(Channel channel, final Header.Listing listing) {
+        final SettableFuture<Listing> pending = SettableFuture.create();
+        if (listings.putIfAbsent(listing.correlationId, pending) != null) {
+            throw new IllegalStateException("Duplicate correlation id " + listing.correlationId);
+        }
+        channel.write(listing).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    listings.remove(listing.correlationId);
+                    pending.setException(future.getCause());
+                }
+            }
+        });
+        return pending;
+    }
+
+    private static final class Watch {
+        final Header.Watch header;
+        final ChangeListener listener;
+
+        Watch(Header.Watch header, ChangeListener listener) {
+            this.header = header;
+            this.listener = listener;
+        }
+    }
+
+    /** Registers the listener to hear the changes the server sends for a watch request. */
+    void watch(Header.Watch watch, ChangeListener listener) {
+        if (watches.putIfAbsent(watch.correlationId, new Watch(watch, listener)) != null) {
+            throw new IllegalStateException("Duplicate correlation id " + watch.correlationId);
+        }
+    }
+
+    /** Forgets the listeners of every watch of the name or prefix that a stop request stops. */
+    void unwatch(Header.Watch stop) {
+        for (Iterator<Watch> i = watches.values().iterator(); i.hasNext(); ) {
+            Header.Watch watch = i.next().header;
+            if (watch.prefix == stop.prefix && watch.filename.equals(stop.filename)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Registers the future to resolve when the server answers request {@code id}.
+     */
+    void expect(CorrelationId id, SettableFuture<Result> future) {
+        if (requests.putIfAbsent(id, future) != null) {
+            throw new IllegalStateException("Duplicate correlation id " + id);
+        }
+    }
+
+    void resolve(CorrelationId id, Result result) {
+        SettableFuture<Result> future = requests.remove(id);
+        if (future == null) {
+            log.debug("Ignoring {} response to unknown request {}", result, id);
+        } else {
+            future.set(result);
+        }
+    }
+
+    void fail(CorrelationId id, Throwable cause) {
+        outboundFiles.remove(id);
+        SettableFuture<Result> future = requests.remove(id);
+        if (future != null) {
+            future.setException(cause);
+        }
+    }
+
+    private void complete(CorrelationId id, ChannelFuture transfer) {
+        if (transfer.isSuccess()) {
+            resolve(id, Result.Success);
+        } else {
+            fail(id, transfer.getCause());
+        }
+    }
+
+    /**
+     * A multiplexing server acknowledges completed puts and delegations; a text server is silent.
+     */
+    static boolean isMultiplexed(ChannelPipeline pipeline) {
+        return pipeline.get(StreamMultiplexer.class) != null;
+    }
+
+    /**
+     * Registers a file to send once the server OKs its put. Without a multiplexer the channel can
+     * only carry one body at a time, so this fails if another put is already outstanding.
+     */
+    boolean addOutboundFile(ChannelPipeline pipeline, OutboundFile outboundFile) {
+        if (!isMultiplexed(pipeline)) {
+            synchronized (outboundFiles) {
+                if (!outboundFiles.isEmpty()) {
+                    return false;
+                }
+                outboundFiles.put(outboundFile.put.correlationId, outboundFile);
+                return true;
+            }
+        }
+        return outboundFiles.putIfAbsent(outboundFile.put.correlationId, outboundFile) == null;
+    }
+
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        deltaWorker.shutdownNow();
+        outboundFiles.clear();
+        for (CorrelationId id : requests.keySet()) {
+            fail(id, new ClosedChannelException());
+        }
+        for (PendingBundle pending : bundles.values()) {
+            pending.future.setException(new ClosedChannelException());
+        }
+        bundles.clear();
+        for (PendingStat pending : stats.values()) {
+            pending.future.setException(new ClosedChannelException());
+        }
+        stats.clear();
+        for (PendingDelegations pending : delegations.values()) {
+            pending.future.setException(new ClosedChannelException());
+        }
+        delegations.clear();
+        for (SettableFuture<Listing> pending : listings.values()) {
+            pending.setException(new ClosedChannelException());
+        }
+        listings.clear();
+        watches.clear();
+        super.channelClosed(ctx, e);
     }
 
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
@@ -3,32 +3,46 @@ package sdfs.client;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
 import org.jboss.netty.handler.codec.string.StringDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sdfs.protocol.AdaptiveChunkedStream;
+import sdfs.protocol.BinaryHeaderCodec;
+import sdfs.protocol.Compression;
+import sdfs.protocol.FrameCompressor;
 import sdfs.protocol.HeaderCodec;
+import sdfs.protocol.HeaderFormat;
 import sdfs.protocol.Protocol;
+import sdfs.protocol.TextHeaderFramer;
+import sdfs.protocol.StreamMultiplexer;
 import sdfs.store.ByteStore;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import java.util.List;
 
 public class ClientPipelineFactory implements ChannelPipelineFactory {
 
     private static final Logger log = LoggerFactory.getLogger(ClientPipelineFactory.class);
 
     private final Protocol protocol;
+    private final HeaderFormat headerFormat;
     private final SSLContext sslContext;
     private final ByteStore store;
+    private final List<Compression> compressions;
+    private final AdaptiveChunkedStream.Bounds chunkSizes;
 
-    public ClientPipelineFactory(Protocol protocol, SSLContext sslContext, ByteStore store) {
+    public ClientPipelineFactory(Protocol protocol, HeaderFormat headerFormat, SSLContext sslContext, ByteStore store,
+                                 List<Compression> compressions, AdaptiveChunkedStream.Bounds chunkSizes) {
         this.protocol = protocol;
+        this.headerFormat = headerFormat;
         this.sslContext = sslContext;
         this.store = store;
+        this.compressions = compressions;
+        this.chunkSizes = chunkSizes;
     }
 
     public ChannelPipeline getPipeline() throws Exception {
@@ -43,18 +57,25 @@ public class ClientPipelineFactory implements ChannelPipelineFactory {
         sslHandler.setCloseOnSSLException(true);
         pipeline.addLast("ssl", sslHandler);
 
-        pipeline.addLast("chunker", new ChunkedWriteHandler());
+        if (headerFormat == HeaderFormat.Binary) {
+            BinaryHeaderCodec headerCodec = new BinaryHeaderCodec(protocol);
+            pipeline.addLast("framer", headerCodec.decoder());
+            pipeline.addLast("headerEncoder", headerCodec.encoder());
+            pipeline.addLast("compressor", new FrameCompressor(protocol));
+            pipeline.addLast("mux", new StreamMultiplexer(protocol));
+        } else {
+            pipeline.addLast("chunker", new ChunkedWriteHandler());
 
-        pipeline.addLast("framer",
-                new DelimiterBasedFrameDecoder(protocol.maxHeaderLength(), protocol.headerDelimiter()));
-        pipeline.addLast("stringDecoder", new StringDecoder(protocol.headerCharset()));
-        pipeline.addLast("stringEncoder", new StringEncoder(protocol.headerCharset()));
+            pipeline.addLast("framer", new TextHeaderFramer(protocol));
+            pipeline.addLast("stringDecoder", new StringDecoder(protocol.headerCharset()));
+            pipeline.addLast("stringEncoder", new StringEncoder(protocol.headerCharset()));
 
-        HeaderCodec headerCodec = new HeaderCodec(protocol);
-        pipeline.addLast("headerDecoder", headerCodec.decoder());
-        pipeline.addLast("headerEncoder", headerCodec.encoder());
+            HeaderCodec headerCodec = new HeaderCodec(protocol);
+            pipeline.addLast("headerDecoder", headerCodec.decoder());
+            pipeline.addLast("headerEncoder", headerCodec.encoder());
+        }
 
-        pipeline.addLast("client", new ClientHandler(store));
+        pipeline.addLast("client", new ClientHandler(store, compressions, chunkSizes));
 
         return pipeline;
     }
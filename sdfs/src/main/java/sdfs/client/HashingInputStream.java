@@ -0,0 +1,54 @@
+package sdfs.client;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Hashes and counts what is read through it, for the trailer of a put of unknown size. */
+final class HashingInputStream extends FilterInputStream {
+
+    private final Hasher hasher;
+    private long count;
+
+    HashingInputStream(InputStream in, Hasher hasher) {
+        super(in);
+        this.hasher = hasher;
+    }
+
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            hasher.putByte((byte) b);
+            count++;
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            hasher.putBytes(b, off, n);
+            count += n;
+        }
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        throw new IOException("Cannot skip bytes that must be hashed");
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    long count() {
+        return count;
+    }
+
+    HashCode hash() {
+        return hasher.hash();
+    }
+}
@@ -0,0 +1,20 @@
+package sdfs.client;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/** A page of the names of files on the server. */
+public final class Listing {
+
+    public final List<String> names;
+
+    /** Where the next page starts, or null if this is the last. */
+    public final String next;
+
+    Listing(List<String> names, String next) {
+        this.names = ImmutableList.copyOf(names);
+        this.next = next;
+    }
+
+}
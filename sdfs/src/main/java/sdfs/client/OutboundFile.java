@@ -3,12 +3,24 @@ package sdfs.client;
 import com.google.common.io.ByteSource;
 import sdfs.protocol.Header;
 
+import java.io.InputStream;
+
 final class OutboundFile {
     final Header.Put put;
     final ByteSource file;
 
+    /** Content of unknown size, for a put with a trailer; null when sending {@link #file}. */
+    final InputStream stream;
+
     OutboundFile(Header.Put put, ByteSource file) {
         this.put = put;
         this.file = file;
+        stream = null;
+    }
+
+    OutboundFile(Header.Put put, InputStream stream) {
+        this.put = put;
+        file = null;
+        this.stream = stream;
     }
 }
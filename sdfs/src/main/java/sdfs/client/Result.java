@@ -0,0 +1,19 @@
+package sdfs.client;
+
+/**
+ * How the server answered a request.
+ */
+public enum Result {
+
+    Success,
+
+    Prohibited,
+
+    Unavailable,
+
+    Nonexistent,
+
+    /** The client's copy of a file was already the same as the server's. */
+    NotModified
+
+}
@@ -0,0 +1,42 @@
+package sdfs.crypto;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Remembers what recent ciphertexts decrypt to, so that reading the same file hashes again, as a
+ * client checking many files keeps doing, costs no more private key operations. What it encrypts
+ * it remembers too, so files written since the server started never need decrypting at all.
+ */
+public class CachingBlockCipher implements UnlockedBlockCipher {
+
+    private final UnlockedBlockCipher cipher;
+    private final Cache<ByteBuffer, byte[]> decrypted;
+
+    public CachingBlockCipher(UnlockedBlockCipher cipher, int maximumSize) {
+        this.cipher = cipher;
+        decrypted = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext) {
+        byte[] ciphertext = cipher.encrypt(plaintext);
+        decrypted.put(ByteBuffer.wrap(Arrays.copyOf(ciphertext, ciphertext.length)),
+                Arrays.copyOf(plaintext, plaintext.length));
+        return ciphertext;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext) {
+        ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(ciphertext, ciphertext.length));
+        byte[] plaintext = decrypted.getIfPresent(key);
+        if (plaintext == null) {
+            plaintext = cipher.decrypt(ciphertext);
+            decrypted.put(key, plaintext);
+        }
+        return Arrays.copyOf(plaintext, plaintext.length);
+    }
+}
@@ -1,43 +1,197 @@
 package sdfs.crypto;
 
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.SecureRandom;
+import java.util.Random;
 
+/**
+ * Encrypts file content in the {@link SegmentedCipher} format, and decrypts both that and the
+ * original format of a single AES/CBC stream after its IV.
+ */
 public class CipherStreamFactory {
 
     private static final Logger log = LoggerFactory.getLogger(CipherStreamFactory.class);
 
+    private static final int CBC_BLOCK_SIZE = 16;
+
+    private final Random random = new SecureRandom();
+
     private final Crypto crypto;
 
     public CipherStreamFactory(Crypto crypto) {
         this.crypto = crypto;
     }
 
-    public CipherOutputStream encrypt(OutputStream out, byte[] key) throws IOException {
-        Cipher cipher = crypto.newCipherForEncryption(key);
+    public OutputStream encrypt(OutputStream out, byte[] key) throws IOException {
+        byte[] nonce = new byte[SegmentedCipher.NONCE_LENGTH];
+        random.nextBytes(nonce);
+        log.debug("Nonce = {}", BaseEncoding.base16().lowerCase().encode(nonce));
+
+        SegmentedCipher cipher = new SegmentedCipher(crypto, key, SegmentedCipher.DEFAULT_SEGMENT_SIZE, nonce);
+        cipher.writeHeader(new DataOutputStream(out));
+        return cipher.new Output(out, 0);
+    }
+
+    /**
+     * How far an interrupted {@link #encrypt} got: the plaintext it wrote whole segments of, and
+     * where in the encrypted file those segments end.
+     */
+    public static final class Checkpoint {
+        public final long plaintextLength;
+        public final long encryptedLength;
 
-        byte[] iv = cipher.getIV();
-        log.debug("IV = {}", BaseEncoding.base16().lowerCase().encode(iv));
+        private final SegmentedCipher cipher;
+        private final int segments;
 
-        new DataOutputStream(out).writeInt(iv.length);
-        out.write(iv);
+        private Checkpoint(SegmentedCipher cipher, int segments) {
+            this.cipher = cipher;
+            this.segments = segments;
+            plaintextLength = (long) segments * cipher.segmentSize;
+            encryptedLength = cipher.segmentPosition(segments);
+        }
+    }
 
-        return new CipherOutputStream(out, cipher);
+    /**
+     * Finds where the encryption of {@code partial} can be continued from, writing the plaintext up
+     * to that point to {@code plaintext}. Returns null if the file can't be continued at all.
+     */
+    public Checkpoint checkpoint(ByteSource partial, byte[] key, OutputStream plaintext) throws IOException {
+        try (InputStream in = partial.openBufferedStream()) {
+            DataInputStream dataIn = new DataInputStream(in);
+            if (dataIn.readInt() != SegmentedCipher.MAGIC) {
+                return null;
+            }
+            SegmentedCipher cipher = SegmentedCipher.readHeader(crypto, key, dataIn);
+            return new Checkpoint(cipher, cipher.intactSegments(in, plaintext));
+        } catch (EOFException e) {
+            return null;
+        }
     }
 
-    public CipherInputStream decrypt(InputStream in, byte[] key) throws IOException {
+    /**
+     * Where to continue a whole encrypted file of {@code size} bytes of plaintext so as to append to
+     * it: the start of its last segment, which is written again since it is marked as the last.
+     * Its plaintext must be written again first, and so has the same ciphertext as before. Returns
+     * null for a file in the CBC format, which can only be written anew.
+     */
+    public Checkpoint appendPoint(ByteSource encrypted, byte[] key, long size) throws IOException {
+        try (InputStream in = encrypted.openBufferedStream()) {
+            DataInputStream dataIn = new DataInputStream(in);
+            if (dataIn.readInt() != SegmentedCipher.MAGIC) {
+                return null;
+            }
+            SegmentedCipher cipher = SegmentedCipher.readHeader(crypto, key, dataIn);
+            long last = size == 0 ? 0 : (size - 1) / cipher.segmentSize;
+            if (last >= Integer.MAX_VALUE) {
+                throw new IOException("File too large for segment size " + cipher.segmentSize);
+            }
+            return new Checkpoint(cipher, (int) last);
+        }
+    }
+
+    /**
+     * Continues encrypting to a file that has been cut back to {@link Checkpoint#encryptedLength}.
+     */
+    public OutputStream resume(Checkpoint checkpoint, OutputStream out) {
+        return checkpoint.cipher.new Output(out, checkpoint.segments);
+    }
+
+    public InputStream decrypt(InputStream in, byte[] key) throws IOException {
         DataInput dataIn = new DataInputStream(in);
-        int ivLen = dataIn.readInt();
-        byte[] iv = new byte[ivLen];
+        int magicOrIvLen = dataIn.readInt();
+        if (magicOrIvLen == SegmentedCipher.MAGIC) {
+            return SegmentedCipher.readHeader(crypto, key, dataIn).new Input(in, 0, 0, Long.MAX_VALUE);
+        }
+
+        byte[] iv = new byte[magicOrIvLen];
         dataIn.readFully(iv);
 
         Cipher cipher = crypto.newCipherForDecryption(key, iv);
         return new CipherInputStream(in, cipher);
     }
+
+    /** The plaintext of an encrypted file, which can be sliced without decrypting what comes before. */
+    public ByteSource decrypted(final ByteSource encrypted, final byte[] key) {
+        return new ByteSource() {
+            public InputStream openStream() throws IOException {
+                return decrypt(encrypted.openStream(), key);
+            }
+
+            public ByteSource slice(final long offset, final long length) {
+                return new ByteSource() {
+                    public InputStream openStream() throws IOException {
+                        return decrypt(encrypted, key, offset, length);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Decrypts {@code length} bytes of plaintext starting at {@code offset}, reading only from the
+     * segment that contains the offset onwards. CBC files can be entered at any block too, using
+     * the ciphertext of the block before as the IV.
+     */
+    public InputStream decrypt(ByteSource source, byte[] key, long offset, long length) throws IOException {
+        int magicOrIvLen;
+        SegmentedCipher segmented = null;
+        byte[] iv = null;
+        try (InputStream in = source.openBufferedStream()) {
+            DataInput dataIn = new DataInputStream(in);
+            magicOrIvLen = dataIn.readInt();
+            if (magicOrIvLen == SegmentedCipher.MAGIC) {
+                segmented = SegmentedCipher.readHeader(crypto, key, dataIn);
+            } else {
+                iv = new byte[magicOrIvLen];
+                dataIn.readFully(iv);
+            }
+        }
+
+        if (segmented != null) {
+            long segment = offset / segmented.segmentSize;
+            InputStream in = source.slice(segmented.segmentPosition(segment), Long.MAX_VALUE).openStream();
+            return segmented.new Input(in, segment, (int) (offset % segmented.segmentSize), length);
+        }
+
+        long block = offset / CBC_BLOCK_SIZE;
+        long start = 4 + magicOrIvLen + block * CBC_BLOCK_SIZE;
+        if (block > 0) {
+            iv = source.slice(start - CBC_BLOCK_SIZE, CBC_BLOCK_SIZE).read();
+        }
+        InputStream in = new CipherInputStream(
+                source.slice(start, Long.MAX_VALUE).openStream(), crypto.newCipherForDecryption(key, iv));
+        ByteStreams.skipFully(in, offset % CBC_BLOCK_SIZE);
+        return ByteStreams.limit(in, length);
+    }
+
+    /**
+     * Decrypts {@code length} bytes of plaintext starting at {@code offset} as above, reading the
+     * channel a buffer at a time. Returns null if the file is not segmented, and so has to be
+     * streamed instead; the channel is then left to the caller.
+     */
+    public DecryptedSegments decryptSegments(SeekableByteChannel channel, byte[] key, long offset, long length)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SegmentedCipher.HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header) >= 0) { }
+        header.flip();
+        if (header.remaining() < SegmentedCipher.HEADER_LENGTH || header.getInt() != SegmentedCipher.MAGIC) {
+            return null;
+        }
+        SegmentedCipher segmented = SegmentedCipher.readHeader(
+                crypto, key, new DataInputStream(new ByteArrayInputStream(header.array(), 4, header.remaining())));
+
+        long segment = offset / segmented.segmentSize;
+        channel.position(segmented.segmentPosition(segment));
+        return segmented.new Reader(channel, segment, (int) (offset % segmented.segmentSize), length);
+    }
 }
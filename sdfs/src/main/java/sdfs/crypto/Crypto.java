@@ -6,6 +6,7 @@ import sdfs.crypto.UnlockedAsymmetricBlockCipher;
 import sdfs.crypto.UnlockedBlockCipher;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -14,6 +15,7 @@ import javax.net.ssl.*;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 
 import static java.util.Objects.requireNonNull;
@@ -46,6 +48,35 @@ public class Crypto {
         }
     }
 
+    /**
+     * AES in counter mode, for one segment of a {@link SegmentedCipher} file. Counter mode needs no
+     * padding and encrypts and decrypts alike, so ciphertext can be produced and read at any
+     * block boundary.
+     */
+    public Cipher newSegmentCipher(byte[] key, byte[] iv) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey(key), new IvParameterSpec(iv));
+            return cipher;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Authenticates segments of a {@link SegmentedCipher} file, under a key derived from the file key. */
+    public Mac newSegmentMac(byte[] key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("sdfs segment mac".getBytes(StandardCharsets.US_ASCII));
+            digest.update(key);
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(digest.digest(), "HmacSHA256"));
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private SecretKeySpec aesKey(byte[] key) {
         return new SecretKeySpec(key, 0, 256/Byte.SIZE, "AES");
     }
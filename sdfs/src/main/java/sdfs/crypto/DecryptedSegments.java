@@ -0,0 +1,16 @@
+package sdfs.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** The plaintext of part of a segmented file, decrypted a buffer at a time. */
+public interface DecryptedSegments extends Closeable {
+
+    /**
+     * Reads and decrypts as many whole segments as fit in {@code size} bytes, or one if none do,
+     * and returns their plaintext within the range asked for. Returns null at the end.
+     */
+    ByteBuffer read(int size) throws IOException;
+
+}
@@ -0,0 +1,356 @@
+package sdfs.crypto;
+
+import com.google.common.io.ByteStreams;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Encrypted file format that can be read starting at any offset.
+ *
+ * A file is a header of {@code magic, version, segment size, nonce}, followed by segments holding
+ * up to segment-size bytes of plaintext each. A segment is encrypted with AES/CTR starting from
+ * the counter block {@code nonce || segment index || 0}, and is followed by a MAC over its index,
+ * whether it is the last segment, and its ciphertext. A reader can seek straight to the segment
+ * holding an offset, and notices tampered, reordered or truncated segments as it reads them.
+ */
+class SegmentedCipher {
+
+    /** Distinguishes segmented files from CBC files, which begin with the IV length. */
+    static final int MAGIC = 0x53444653;
+    static final byte VERSION = 1;
+
+    static final int NONCE_LENGTH = 8;
+    static final int MAC_LENGTH = 16;
+    static final int HEADER_LENGTH = 4 + 1 + 4 + NONCE_LENGTH;
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private final Crypto crypto;
+    private final byte[] key;
+    private final byte[] nonce;
+    private final Mac mac;
+
+    final int segmentSize;
+
+    SegmentedCipher(Crypto crypto, byte[] key, int segmentSize, byte[] nonce) {
+        this.crypto = crypto;
+        this.key = key;
+        this.segmentSize = segmentSize;
+        this.nonce = Arrays.copyOf(nonce, NONCE_LENGTH);
+        mac = crypto.newSegmentMac(key);
+    }
+
+    void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(segmentSize);
+        out.write(nonce);
+    }
+
+    /** Reads the rest of a header whose magic number has already been read. */
+    static SegmentedCipher readHeader(Crypto crypto, byte[] key, DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported segmented file version " + version);
+        }
+        int segmentSize = in.readInt();
+        if (segmentSize <= 0) {
+            throw new IOException("Invalid segment size " + segmentSize);
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        in.readFully(nonce);
+        return new SegmentedCipher(crypto, key, segmentSize, nonce);
+    }
+
+    /** Position in the encrypted file at which segment {@code index} starts. */
+    long segmentPosition(long index) {
+        return HEADER_LENGTH + index * (segmentSize + MAC_LENGTH);
+    }
+
+    private byte[] iv(int index) {
+        return ByteBuffer.allocate(16).put(nonce).putInt(index).putInt(0).array();
+    }
+
+    /** MACs the ciphertext between the position and the limit, leaving the position unchanged. */
+    private byte[] mac(int index, boolean last, ByteBuffer ciphertext) {
+        mac.update(nonce);
+        mac.update(ByteBuffer.allocate(4).putInt(index).array());
+        mac.update((byte) (last ? 1 : 0));
+        mac.update(ciphertext.duplicate());
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+
+    /** Appends the MAC to the first {@code length} bytes of an encrypted segment. */
+    private int seal(int index, boolean last, byte[] segment, int length) {
+        System.arraycopy(mac(index, last, ByteBuffer.wrap(segment, 0, length)), 0, segment, length, MAC_LENGTH);
+        return length + MAC_LENGTH;
+    }
+
+    /** Checks the MAC of a segment and decrypts it in place. Returns the length of the plaintext. */
+    private int decrypt(int index, boolean last, byte[] segment, int length) throws IOException {
+        return decrypt(index, last, ByteBuffer.wrap(segment, 0, length));
+    }
+
+    /**
+     * Checks the MAC of the segment between the buffer's position and limit, and decrypts it in
+     * place. Returns the length of the plaintext, which starts at the position.
+     */
+    private int decrypt(int index, boolean last, ByteBuffer segment) throws IOException {
+        ByteBuffer ciphertext = segment.duplicate();
+        ciphertext.limit(segment.limit() - MAC_LENGTH);
+        ByteBuffer actual = segment.duplicate();
+        actual.position(ciphertext.limit());
+        byte[] tag = new byte[MAC_LENGTH];
+        actual.get(tag);
+        if (!MessageDigest.isEqual(mac(index, last, ciphertext), tag)) {
+            throw new IOException("Segment " + index + " failed authentication");
+        }
+        try {
+            Cipher cipher = crypto.newSegmentCipher(key, iv(index));
+            return cipher.doFinal(ciphertext, ciphertext.duplicate());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Counts the segments at the front of a file that are whole, authentic and not the last, and
+     * copies out their plaintext. The stream must be positioned just after the header.
+     */
+    int intactSegments(InputStream in, OutputStream plaintext) throws IOException {
+        byte[] segment = new byte[segmentSize + MAC_LENGTH];
+        int index = 0;
+        while (ByteStreams.read(in, segment, 0, segment.length) == segment.length) {
+            try {
+                decrypt(index, false, segment, segment.length);
+            } catch (IOException e) {
+                break;
+            }
+            plaintext.write(segment, 0, segmentSize);
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Encrypts everything written to it into segments, starting at segment {@code index}. What is
+     * written is encrypted as it is copied into the segment, rather than copied and then encrypted.
+     */
+    final class Output extends FilterOutputStream {
+
+        private final byte[] segment = new byte[segmentSize + MAC_LENGTH];
+        private int filled;
+        private int index;
+        private boolean closed;
+
+        /** Encrypts the segment being filled; CTR mode keeps no bytes back, so it can go a write at a time. */
+        private Cipher cipher;
+
+        Output(OutputStream out, int index) {
+            super(out);
+            this.index = index;
+            cipher = crypto.newSegmentCipher(key, iv(index));
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // Only write a full segment once more data arrives, since the last one is marked
+                if (filled == segmentSize) {
+                    writeSegment(false);
+                }
+                int n = Math.min(len, segmentSize - filled);
+                try {
+                    if (cipher.update(b, off, n, segment, filled) != n) {
+                        throw new IOException("Segment cipher held back part of a write");
+                    }
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                filled += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            if (index == Integer.MAX_VALUE) {
+                throw new IOException("File too large for segment size " + segmentSize);
+            }
+            out.write(segment, 0, seal(index++, last, segment, filled));
+            filled = 0;
+            if (!last) {
+                cipher = crypto.newSegmentCipher(key, iv(index));
+            }
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSegment(true);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Decrypts segments from a stream positioned at the start of segment {@code index}, skipping the
+     * first {@code skip} bytes of plaintext and ending after {@code limit} more.
+     */
+    final class Input extends InputStream {
+
+        private final PushbackInputStream in;
+        private final byte[] segment = new byte[segmentSize + MAC_LENGTH];
+        private int index;
+        private int skip;
+        private long remaining;
+
+        private int position;
+        private int length;
+        private boolean last;
+
+        Input(InputStream in, long index, int skip, long limit) throws IOException {
+            if (index > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + index + " out of range");
+            }
+            this.in = new PushbackInputStream(in, 1);
+            this.index = (int) index;
+            this.skip = skip;
+            remaining = limit;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            while (position == length) {
+                if (last) {
+                    return -1;
+                }
+                readSegment();
+            }
+            int n = (int) Math.min(Math.min(len, length - position), remaining);
+            System.arraycopy(segment, position, b, off, n);
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        private void readSegment() throws IOException {
+            int read = ByteStreams.read(in, segment, 0, segment.length);
+            if (read < MAC_LENGTH) {
+                throw new IOException("Segment " + index + " is truncated");
+            }
+            last = read < segment.length || atEnd();
+            length = decrypt(index++, last, segment, read);
+            position = Math.min(skip, length);
+            skip = 0;
+        }
+
+        /**
+         * What is left of the current segment, or once that is read, the whole of the next: reading
+         * waits on nothing but the disk, so chunked readers can take several segments at a time.
+         */
+        public int available() {
+            if (position < length || last) {
+                return (int) Math.min(length - position, remaining);
+            }
+            return (int) Math.min(segmentSize, remaining);
+        }
+
+        private boolean atEnd() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                return true;
+            }
+            in.unread(b);
+            return false;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Decrypts segments from a channel positioned at the start of segment {@code index}, as for an
+     * {@link Input}, but a buffer at a time. Each segment is read straight into the buffer it is
+     * returned in and decrypted there, so its plaintext is never copied.
+     */
+    final class Reader implements DecryptedSegments {
+
+        private final SeekableByteChannel in;
+        private int index;
+        private int skip;
+        private long remaining;
+        private boolean last;
+
+        Reader(SeekableByteChannel in, long index, int skip, long limit) throws IOException {
+            if (index > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + index + " out of range");
+            }
+            this.in = in;
+            this.index = (int) index;
+            this.skip = skip;
+            remaining = limit;
+        }
+
+        public ByteBuffer read(int size) throws IOException {
+            if (remaining <= 0 || last) {
+                return null;
+            }
+            int segments = Math.max(1, size / segmentSize);
+            // Room for the MAC after the last segment; each other's is overwritten by the next
+            ByteBuffer buffer = ByteBuffer.allocate(segments * segmentSize + MAC_LENGTH);
+            int plaintext = 0;
+            for (int i = 0; i < segments && !last; i++) {
+                ByteBuffer segment = buffer.duplicate();
+                segment.position(plaintext).limit(plaintext + segmentSize + MAC_LENGTH);
+                int read = readFully(segment);
+                if (read < MAC_LENGTH) {
+                    throw new IOException("Segment " + index + " is truncated");
+                }
+                last = read < segmentSize + MAC_LENGTH || in.position() >= in.size();
+                segment.flip().position(plaintext);
+                plaintext += decrypt(index++, last, segment);
+            }
+
+            int start = Math.min(skip, plaintext);
+            skip = 0;
+            int length = (int) Math.min(plaintext - start, remaining);
+            remaining -= length;
+            buffer.position(start).limit(start + length);
+            return buffer.slice();
+        }
+
+        private int readFully(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            while (buffer.hasRemaining() && in.read(buffer) >= 0) { }
+            return buffer.position() - start;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
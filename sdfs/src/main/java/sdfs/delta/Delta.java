@@ -0,0 +1,263 @@
+package sdfs.delta;
+
+import com.google.common.io.ByteSource;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import sdfs.protocol.Varints;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A file described as a sequence of ops against the {@link Signatures} of a base file: runs of
+ * base blocks to copy, and literal bytes that the base doesn't have.
+ *
+ * On the wire a copy is {@code 1, varint first block, varint block count} and a literal is
+ * {@code 2, varint length} followed by the bytes.
+ */
+public final class Delta {
+
+    static final byte COPY = 1;
+    static final byte LITERAL = 2;
+
+    private final List<Op> ops = new ArrayList<>();
+    private long size;
+    private long literalBytes;
+
+    private Delta() { }
+
+    /** Sends the whole file as a literal. */
+    public static Delta literal(long fileSize) {
+        Delta delta = new Delta();
+        delta.addLiteral(0, fileSize);
+        return delta;
+    }
+
+    /**
+     * Finds the blocks of the base in the file, moving a window along the file one byte at a time
+     * while it doesn't match a block and one block at a time when it does.
+     */
+    public static Delta compute(Signatures signatures, ByteSource file) throws IOException {
+        Delta delta = new Delta();
+        int blockSize = signatures.blockSize;
+        RollingChecksum checksum = new RollingChecksum();
+
+        try (InputStream in = file.openStream()) {
+            Window window = new Window(in, Math.max(4 * blockSize, 256 * 1024));
+            long literalStart = 0;
+            int nextBlock = 0;
+            boolean rolled = false;
+
+            while (window.fill(blockSize)) {
+                if (!rolled) {
+                    checksum.reset();
+                    checksum.update(window.buffer, window.position, blockSize);
+                }
+                int block = signatures.find(
+                        checksum.value(), window.buffer, window.position, blockSize, nextBlock);
+                if (block >= 0) {
+                    delta.addLiteral(literalStart, window.offset() - literalStart);
+                    delta.addCopy(block);
+                    window.position += blockSize;
+                    literalStart = window.offset();
+                    nextBlock = block + 1;
+                    rolled = false;
+                } else if (window.fill(blockSize + 1)) {
+                    checksum.roll(window.buffer[window.position], window.buffer[window.position + blockSize]);
+                    window.position++;
+                    rolled = true;
+                } else {
+                    break;
+                }
+            }
+
+            long end = window.offset() + window.remaining();
+            int tail = signatures.blockLength(signatures.blockCount() - 1);
+            if (tail > 0 && window.remaining() >= tail && end - tail >= literalStart
+                    && signatures.isShortLastBlock(window.buffer, window.limit - tail, tail)) {
+                delta.addLiteral(literalStart, end - tail - literalStart);
+                delta.addCopy(signatures.blockCount() - 1);
+            } else {
+                delta.addLiteral(literalStart, end - literalStart);
+            }
+        }
+        return delta;
+    }
+
+    /** Length of the delta as sent. */
+    public long size() {
+        return size;
+    }
+
+    /** How much of the file the base didn't have. */
+    public long literalBytes() {
+        return literalBytes;
+    }
+
+    /** The delta as sent, reading literals from {@code file} as it goes. */
+    public InputStream openStream(final ByteSource file) {
+        final Iterator<Op> i = ops.iterator();
+        return new InputStream() {
+            private InputStream current = new ByteArrayInputStream(new byte[0]);
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (true) {
+                    int n = current.read(b, off, len);
+                    if (n >= 0 || !i.hasNext()) {
+                        return n;
+                    }
+                    current.close();
+                    current = i.next().open(file);
+                }
+            }
+
+            public int available() throws IOException {
+                return current.available();
+            }
+
+            public void close() throws IOException {
+                current.close();
+            }
+        };
+    }
+
+    private void addLiteral(long offset, long length) {
+        if (length > 0) {
+            add(new Literal(offset, length));
+            literalBytes += length;
+        }
+    }
+
+    private void addCopy(int block) {
+        Op last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+        if (last instanceof Copy && ((Copy) last).first + ((Copy) last).count == block) {
+            size -= last.size();
+            ((Copy) last).count++;
+            size += last.size();
+        } else {
+            add(new Copy(block));
+        }
+    }
+
+    private void add(Op op) {
+        ops.add(op);
+        size += op.size();
+    }
+
+    private static abstract class Op {
+        abstract ChannelBuffer header();
+
+        long size() {
+            return header().readableBytes();
+        }
+
+        abstract InputStream open(ByteSource file) throws IOException;
+    }
+
+    private static final class Copy extends Op {
+        final int first;
+        int count = 1;
+
+        Copy(int first) {
+            this.first = first;
+        }
+
+        ChannelBuffer header() {
+            ChannelBuffer out = ChannelBuffers.buffer(1 + 2 * Varints.MAX_LONG_BYTES);
+            out.writeByte(COPY);
+            Varints.writeVarLong(out, first);
+            Varints.writeVarLong(out, count);
+            return out;
+        }
+
+        InputStream open(ByteSource file) {
+            ChannelBuffer header = header();
+            return new ByteArrayInputStream(header.array(), 0, header.readableBytes());
+        }
+    }
+
+    private static final class Literal extends Op {
+        final long offset;
+        final long length;
+
+        Literal(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        ChannelBuffer header() {
+            ChannelBuffer out = ChannelBuffers.buffer(1 + Varints.MAX_LONG_BYTES);
+            out.writeByte(LITERAL);
+            Varints.writeVarLong(out, length);
+            return out;
+        }
+
+        long size() {
+            return super.size() + length;
+        }
+
+        InputStream open(ByteSource file) throws IOException {
+            ChannelBuffer header = header();
+            return new SequenceInputStream(
+                    new ByteArrayInputStream(header.array(), 0, header.readableBytes()),
+                    file.slice(offset, length).openBufferedStream());
+        }
+    }
+
+    /** A buffered window onto a stream, which keeps the unread bytes when it refills. */
+    private static final class Window {
+        private final InputStream in;
+        final byte[] buffer;
+        int position;
+        int limit;
+        private long start;
+        private boolean ended;
+
+        Window(InputStream in, int capacity) {
+            this.in = in;
+            buffer = new byte[capacity];
+        }
+
+        /** Offset in the stream of the current position. */
+        long offset() {
+            return start + position;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        /** Makes sure at least {@code n} bytes follow the position, unless the stream ends first. */
+        boolean fill(int n) throws IOException {
+            if (remaining() >= n) {
+                return true;
+            }
+            if (ended) {
+                return false;
+            }
+            System.arraycopy(buffer, position, buffer, 0, remaining());
+            start += position;
+            limit -= position;
+            position = 0;
+            while (limit < buffer.length && !ended) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    ended = true;
+                } else {
+                    limit += read;
+                }
+            }
+            return remaining() >= n;
+        }
+    }
+}
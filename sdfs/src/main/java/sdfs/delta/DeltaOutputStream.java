@@ -0,0 +1,168 @@
+package sdfs.delta;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.io.ByteSource;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import sdfs.protocol.HashMismatchException;
+import sdfs.protocol.Varints;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Rebuilds a file from the {@link Delta} written to it, copying blocks from the base it was
+ * computed against. Closing it checks the rebuilt file against the size and hash it should have.
+ */
+public final class DeltaOutputStream extends OutputStream {
+
+    private final ByteSource base;
+    private final long baseSize;
+    private final int blockSize;
+    private final OutputStream out;
+    private final long expectedSize;
+    private final Hasher hasher;
+    private final HashCode expectedHash;
+
+    private final byte[] header = new byte[1 + 2 * Varints.MAX_LONG_BYTES];
+    private int headerLength;
+    private long literalRemaining;
+
+    private final byte[] buffer = new byte[8192];
+    private InputStream baseIn;
+    private long basePosition = -1;
+
+    private long written;
+    private boolean closed;
+
+    /**
+     * @param base the plaintext of the base file; copies of contiguous blocks read on from where
+     *             the last copy ended, and others slice it afresh
+     */
+    public DeltaOutputStream(ByteSource base, long baseSize, int blockSize, OutputStream out,
+                             long expectedSize, HashFunction hashFunction, HashCode expectedHash) {
+        this.base = base;
+        this.baseSize = baseSize;
+        this.blockSize = blockSize;
+        this.out = out;
+        this.expectedSize = expectedSize;
+        this.expectedHash = expectedHash;
+        hasher = hashFunction.newHasher();
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (literalRemaining > 0) {
+                int n = (int) Math.min(len, literalRemaining);
+                emit(b, off, n);
+                literalRemaining -= n;
+                off += n;
+                len -= n;
+            } else {
+                header[headerLength++] = b[off++];
+                len--;
+                parseHeader();
+            }
+        }
+    }
+
+    /** Carries out the op in the header once all of it has arrived. */
+    private void parseHeader() throws IOException {
+        ChannelBuffer in = ChannelBuffers.wrappedBuffer(header, 0, headerLength);
+        byte op = in.readByte();
+        switch (op) {
+            case Delta.COPY:
+                long first = Varints.tryReadVarLong(in);
+                long count = first < 0 ? -1 : Varints.tryReadVarLong(in);
+                if (count >= 0) {
+                    headerLength = 0;
+                    copy(first, count);
+                }
+                break;
+            case Delta.LITERAL:
+                long length = Varints.tryReadVarLong(in);
+                if (length >= 0) {
+                    headerLength = 0;
+                    literalRemaining = length;
+                }
+                break;
+            default:
+                throw new IOException("Unknown delta op " + op);
+        }
+    }
+
+    private void copy(long first, long count) throws IOException {
+        long blockCount = Signatures.blockCount(baseSize, blockSize);
+        // Written so as not to overflow, whatever the sender gave
+        if (first > blockCount || count > blockCount - first) {
+            throw new IOException("Delta copies " + count + " blocks from " + first + " of " + blockCount);
+        }
+        if (count == 0) {
+            return;
+        }
+        long start = first * blockSize;
+        // Only the base's last block may be short
+        long length = count == blockCount - first ? baseSize - start : count * blockSize;
+        if (start != basePosition) {
+            closeBase();
+            baseIn = base.slice(start, baseSize - start).openStream();
+            basePosition = start;
+        }
+        while (length > 0) {
+            int n = baseIn.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) {
+                throw new EOFException("Base ended at " + basePosition + " of " + baseSize);
+            }
+            emit(buffer, 0, n);
+            basePosition += n;
+            length -= n;
+        }
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        hasher.putBytes(b, off, len);
+        written += len;
+    }
+
+    private void closeBase() throws IOException {
+        if (baseIn != null) {
+            baseIn.close();
+            baseIn = null;
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeBase();
+        } finally {
+            out.close();
+        }
+        if (headerLength > 0 || literalRemaining > 0) {
+            throw new EOFException("Delta ends part way through an op");
+        }
+        if (written != expectedSize) {
+            throw new IOException("Rebuilt " + written + " bytes but expected " + expectedSize);
+        }
+        HashCode hash = hasher.hash();
+        if (!hash.equals(expectedHash)) {
+            throw new HashMismatchException(expectedHash, hash);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package sdfs.delta;
+
+/**
+ * The weak checksum of rsync: two 16-bit sums over a window of bytes, which can be moved along the
+ * data one byte at a time without summing the whole window again.
+ */
+final class RollingChecksum {
+
+    private int a;
+    private int b;
+    private int length;
+
+    static int of(byte[] bytes, int off, int len) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.update(bytes, off, len);
+        return checksum.value();
+    }
+
+    void reset() {
+        a = 0;
+        b = 0;
+        length = 0;
+    }
+
+    /** Extends the window by {@code len} bytes. */
+    void update(byte[] bytes, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            a += bytes[i] & 0xFF;
+            b += a;
+        }
+        length += len;
+    }
+
+    /** Moves the window along by one byte, dropping {@code out} from its front and adding {@code in}. */
+    void roll(byte out, byte in) {
+        a += (in & 0xFF) - (out & 0xFF);
+        b += a - length * (out & 0xFF);
+    }
+
+    int value() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
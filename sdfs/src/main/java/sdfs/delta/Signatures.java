@@ -0,0 +1,186 @@
+package sdfs.delta;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Signatures of the blocks of a base file, against which a {@link Delta} is computed.
+ *
+ * Each block is described by a record of its {@link RollingChecksum} followed by its MD5. The last
+ * block is shorter than the others unless the block size divides the file size.
+ */
+public final class Signatures {
+
+    public static final int RECORD_LENGTH = 4 + 16;
+
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /** Past this many blocks, as for files over 16 GB, blocks grow instead, so signatures fit in memory. */
+    static final long MAX_BLOCK_COUNT = 256 * 1024;
+
+    static final HashFunction strongHash = Hashing.md5();
+
+    public final int blockSize;
+    public final long baseSize;
+
+    private final byte[] strong;
+    private final int lastWeak;
+    private final ListMultimap<Integer, Integer> blocksByWeak = ArrayListMultimap.create();
+
+    private Signatures(int blockSize, long baseSize, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.baseSize = baseSize;
+        this.strong = strong;
+        lastWeak = weak.length == 0 ? 0 : weak[weak.length - 1];
+
+        // Only whole blocks can match a window of the new file; a short last block is matched at its end
+        for (int i = 0; i < weak.length; i++) {
+            if (blockLength(i) == blockSize) {
+                blocksByWeak.put(weak[i], i);
+            }
+        }
+    }
+
+    /**
+     * About the square root of the file size, as rsync uses, within bounds; or for a file too big
+     * for those, whatever keeps it to {@link #MAX_BLOCK_COUNT} blocks.
+     */
+    public static int blockSize(long baseSize) {
+        long size = (long) Math.sqrt(baseSize) & ~7L;
+        size = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+        long least = (baseSize + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT + 7 & ~7L;
+        return (int) Math.max(size, least);
+    }
+
+    public static long blockCount(long baseSize, int blockSize) {
+        return (baseSize + blockSize - 1) / blockSize;
+    }
+
+    /** Length of the signatures of a file, as sent. */
+    public static long length(long baseSize, int blockSize) {
+        return blockCount(baseSize, blockSize) * RECORD_LENGTH;
+    }
+
+    public int blockCount() {
+        return strong.length / 16;
+    }
+
+    int blockLength(long index) {
+        return (int) Math.min(blockSize, baseSize - index * blockSize);
+    }
+
+    /**
+     * The block with the given checksum and content, preferring {@code preferred} so that runs of
+     * copied blocks stay together. Returns -1 if there is none.
+     */
+    int find(int weak, byte[] bytes, int off, int len, int preferred) {
+        List<Integer> candidates = blocksByWeak.get(weak);
+        if (candidates.isEmpty()) {
+            return -1;
+        }
+        byte[] hash = strongHash.hashBytes(bytes, off, len).asBytes();
+        if (candidates.contains(preferred) && strongMatches(preferred, hash)) {
+            return preferred;
+        }
+        for (int block : candidates) {
+            if (strongMatches(block, hash)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /** Whether the last block is short and the given bytes are it. */
+    boolean isShortLastBlock(byte[] bytes, int off, int len) {
+        int last = blockCount() - 1;
+        return last >= 0 && len < blockSize && len == blockLength(last)
+                && RollingChecksum.of(bytes, off, len) == lastWeak
+                && strongMatches(last, strongHash.hashBytes(bytes, off, len).asBytes());
+    }
+
+    private boolean strongMatches(int block, byte[] hash) {
+        for (int i = 0; i < 16; i++) {
+            if (strong[block * 16 + i] != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static Signatures read(InputStream in, int blockSize, long baseSize) throws IOException {
+        long count = blockCount(baseSize, blockSize);
+        if (count > Integer.MAX_VALUE / 16) {
+            throw new IOException("Too many blocks: " + count);
+        }
+        DataInputStream dataIn = new DataInputStream(in);
+        int[] weak = new int[(int) count];
+        byte[] strong = new byte[(int) count * 16];
+        for (int i = 0; i < count; i++) {
+            weak[i] = dataIn.readInt();
+            dataIn.readFully(strong, i * 16, 16);
+        }
+        return new Signatures(blockSize, baseSize, weak, strong);
+    }
+
+    /**
+     * Computes the signatures of a file as it is read, so that they can be streamed out without
+     * being held in memory.
+     */
+    public static InputStream stream(final InputStream base, final int blockSize) {
+        return new InputStream() {
+            private final byte[] block = new byte[blockSize];
+            private final ByteBuffer records = ByteBuffer.allocate(RECORD_LENGTH * 64);
+            private boolean ended;
+
+            {
+                records.flip();
+            }
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!records.hasRemaining() && !fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, records.remaining());
+                records.get(b, off, n);
+                return n;
+            }
+
+            private boolean fill() throws IOException {
+                records.clear();
+                while (!ended && records.remaining() >= RECORD_LENGTH) {
+                    int n = ByteStreams.read(base, block, 0, blockSize);
+                    ended = n < blockSize;
+                    if (n > 0) {
+                        records.putInt(RollingChecksum.of(block, 0, n));
+                        records.put(strongHash.hashBytes(block, 0, n).asBytes());
+                    }
+                }
+                records.flip();
+                return records.hasRemaining();
+            }
+
+            public int available() {
+                return records.remaining();
+            }
+
+            public void close() throws IOException {
+                base.close();
+            }
+        };
+    }
+}
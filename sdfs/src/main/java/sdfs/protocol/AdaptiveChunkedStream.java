@@ -0,0 +1,207 @@
+package sdfs.protocol;
+
+import com.google.common.base.Ticker;
+import com.typesafe.config.Config;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import sdfs.Output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reads a stream in chunks whose size it tunes as it goes. Every few chunks it measures how fast
+ * they are being taken, and doubles or halves the chunk size: it keeps going the way that made
+ * things faster, turns back from the way that made them slower, and otherwise shrinks. Chunks are
+ * only asked for while the channel is writable, so time spent waiting for it to drain counts in
+ * the measure too; a channel that is the bottleneck settles on small chunks, one whose writes cost
+ * more per chunk than per byte on large ones.
+ *
+ * A chunk is filled for as long as the stream says more is {@link InputStream#available}. A source
+ * of {@link Buffers} is read a buffer at a time instead, and its buffers are sent in slices of the
+ * chunk size without being copied.
+ */
+public class AdaptiveChunkedStream implements ChunkedInput {
+
+    /** Chunks to a measure, at the least. */
+    static final int SAMPLE_CHUNKS = 16;
+
+    /** Time to a measure, at the least, so that one scheduling hiccup doesn't decide it. */
+    static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /** How much faster or slower a measure must be than the last to count as either. */
+    static final double SIGNIFICANT = 0.1;
+
+    /** The smallest and largest chunks to read. */
+    public static final class Bounds {
+        public final int min;
+        public final int max;
+
+        public Bounds(int min, int max) {
+            checkArgument(0 < min && min <= max, "Chunk size bounds %s to %s", min, max);
+            this.min = min;
+            this.max = max;
+        }
+
+        /** Reads {@code sdfs.chunk-size}, of which no chunk may be larger than a stream window. */
+        public static Bounds fromConfig(Config config) {
+            int max = Math.min(config.getBytes("sdfs.chunk-size.max").intValue(), new Protocol().streamWindow());
+            return new Bounds(Math.min(config.getBytes("sdfs.chunk-size.min").intValue(), max), max);
+        }
+
+        int clamp(int size) {
+            return Math.max(min, Math.min(max, size));
+        }
+    }
+
+    /** Reads whole buffers of about the size asked for, which chunks are then sliced from. */
+    public interface Buffers extends Closeable {
+
+        /** Returns the next buffer, or null at the end. */
+        ByteBuffer read(int size) throws IOException;
+
+    }
+
+    private final Buffers in;
+    private final Bounds bounds;
+    private final Ticker ticker;
+
+    private ByteBuffer buffer;
+
+    private int chunkSize;
+    private boolean growing = true;
+    private int smallest;
+    private int largest;
+
+    private long sampleStart = -1;
+    private long sampleBytes;
+    private int sampleChunks;
+    /** Bytes per nanosecond in the last measure, or zero before the first. */
+    private double lastRate;
+
+    /** Starts at {@code initial} bytes a chunk, within the bounds. */
+    public AdaptiveChunkedStream(InputStream in, int initial, Bounds bounds) {
+        this(buffers(in), initial, bounds, Ticker.systemTicker());
+    }
+
+    public AdaptiveChunkedStream(Buffers in, int initial, Bounds bounds) {
+        this(in, initial, bounds, Ticker.systemTicker());
+    }
+
+    AdaptiveChunkedStream(InputStream in, int initial, Bounds bounds, Ticker ticker) {
+        this(buffers(in), initial, bounds, ticker);
+    }
+
+    AdaptiveChunkedStream(Buffers in, int initial, Bounds bounds, Ticker ticker) {
+        this.in = in;
+        this.bounds = bounds;
+        this.ticker = ticker;
+        chunkSize = bounds.clamp(initial);
+        smallest = chunkSize;
+        largest = chunkSize;
+    }
+
+    public boolean hasNextChunk() throws Exception {
+        return !isEndOfInput();
+    }
+
+    public Object nextChunk() throws Exception {
+        if (isEndOfInput()) {
+            return null;
+        }
+        measure();
+
+        ByteBuffer chunk = buffer.slice();
+        chunk.limit(Math.min(chunkSize, chunk.remaining()));
+        buffer.position(buffer.position() + chunk.remaining());
+
+        sampleBytes += chunk.remaining();
+        sampleChunks++;
+        return ChannelBuffers.wrappedBuffer(chunk);
+    }
+
+    /** Reads the next buffer once the last has been sent, so as to tell whether there is one. */
+    public boolean isEndOfInput() throws Exception {
+        while (buffer == null || !buffer.hasRemaining()) {
+            buffer = in.read(chunkSize);
+            if (buffer == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void close() throws Exception {
+        in.close();
+    }
+
+    /** Reads a stream into buffers of the size asked for, filled for as long as more is available. */
+    private static Buffers buffers(final InputStream in) {
+        return new Buffers() {
+            public ByteBuffer read(int size) throws IOException {
+                byte[] chunk = new byte[size];
+                int length = 0;
+                do {
+                    int n = in.read(chunk, length, chunk.length - length);
+                    if (n < 0) {
+                        break;
+                    }
+                    length += n;
+                } while (length < chunk.length && in.available() > 0);
+                return length == 0 ? null : ByteBuffer.wrap(chunk, 0, length);
+            }
+
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /** The chunk size the next chunk will be read at. */
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /** The range of chunk sizes read at so far, for transfer stats. */
+    public String chunkSizes() {
+        return smallest == largest
+                ? Output.transferSize(smallest)
+                : Output.transferSize(smallest) + " to " + Output.transferSize(largest);
+    }
+
+    /** Ends the measure once it is long enough, and adjusts the chunk size by it. */
+    private void measure() {
+        long now = ticker.read();
+        if (sampleStart < 0) {
+            sampleStart = now;
+            return;
+        }
+        long elapsed = now - sampleStart;
+        if (sampleChunks < SAMPLE_CHUNKS || elapsed < SAMPLE_NANOS) {
+            return;
+        }
+
+        double rate = (double) sampleBytes / elapsed;
+        if (lastRate > 0) {
+            if (rate < lastRate * (1 - SIGNIFICANT)) {
+                growing = !growing;
+            } else if (rate < lastRate * (1 + SIGNIFICANT)) {
+                // Chunk size makes no difference, so take the smaller, which hold less of the channel
+                growing = false;
+            }
+        }
+        lastRate = rate;
+        chunkSize = bounds.clamp(growing ? chunkSize * 2 : chunkSize / 2);
+        smallest = Math.min(smallest, chunkSize);
+        largest = Math.max(largest, chunkSize);
+
+        sampleStart = now;
+        sampleBytes = 0;
+        sampleChunks = 0;
+    }
+}
@@ -0,0 +1,628 @@
+package sdfs.protocol;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCodes;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sdfs.CN;
+import sdfs.sdfs.AccessType;
+import sdfs.sdfs.DelegationType;
+import sdfs.sdfs.Right;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Length-prefixed binary alternative to {@link HeaderCodec}.
+ *
+ * Each header is a frame of {@code varint length, op-code, fields...}. Strings and byte arrays are
+ * varint-length-prefixed, numbers are varints, and nothing is parsed through an intermediate string.
+ *
+ * The same framing carries the {@link Frame}s of the multiplexed data channel.
+ */
+public class BinaryHeaderCodec {
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryHeaderCodec.class);
+
+    static final byte BYE = 1;
+    static final byte PROHIBITED = 2;
+    static final byte UNAVAILABLE = 3;
+    static final byte NONEXISTENT = 4;
+    static final byte OK = 5;
+    static final byte GET = 6;
+    static final byte PUT = 7;
+    static final byte DELEGATE = 8;
+    static final byte RESUME = 9;
+    static final byte NOT_MODIFIED = 10;
+    static final byte SIGNATURES = 11;
+    static final byte DELTA = 12;
+    static final byte TRAILER = 13;
+    static final byte BUNDLE = 14;
+    static final byte COPY = 15;
+
+    static final byte DATA = 16;
+    static final byte WINDOW = 17;
+    static final byte RESET = 18;
+    static final byte COMPRESSED = 19;
+
+    static final byte STAT = 20;
+    static final byte LISTING = 21;
+    static final byte WATCH = 22;
+    static final byte CHANGED = 23;
+    static final byte DELEGATIONS = 24;
+
+    private static final int PUT_DELTA = 1;
+    private static final int PUT_TRAILER = 2;
+    private static final int PUT_APPEND = 4;
+
+    private static final int WATCH_PREFIX = 1;
+    private static final int WATCH_STOP = 2;
+
+    private static final int CHANGED_REMOVED = 1;
+    private static final int CHANGED_OVERFLOWED = 2;
+
+    private static final int RIGHT_PUT = 1;
+    private static final int RIGHT_STAR = 2;
+
+    final Protocol protocol;
+    private final Charset charset;
+
+    public BinaryHeaderCodec(Protocol protocol) {
+        this.protocol = protocol;
+        charset = protocol.headerCharset();
+    }
+
+    public Decoder decoder() { return new Decoder(); }
+    public Encoder encoder() { return new Encoder(); }
+
+    public class Decoder extends FrameDecoder {
+
+        protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+            int start = buffer.readerIndex();
+            long length = Varints.tryReadVarLong(buffer);
+            if (length < 0) {
+                return null;
+            }
+            if (length > protocol.maxHeaderLength()) {
+                if (!buffer.readable()) {
+                    buffer.readerIndex(start);
+                    return null;
+                }
+                byte op = buffer.getByte(buffer.readerIndex());
+                long maxLength = op == PUT
+                        ? protocol.maxHeaderLength() + protocol.maxInlinePutSize()
+                        : protocol.maxDataFrameLength();
+                if (op != DATA && op != COMPRESSED && op != PUT || length > maxLength) {
+                    buffer.skipBytes(buffer.readableBytes());
+                    throw new TooLongFrameException("Frame length " + length + " exceeds maximum");
+                }
+            }
+            if (buffer.readableBytes() < length) {
+                buffer.readerIndex(start);
+                return null;
+            }
+            ChannelBuffer frame = buffer.slice(buffer.readerIndex(), (int) length);
+            buffer.skipBytes((int) length);
+            return decodeFrame(frame);
+        }
+
+        Object decodeFrame(final ChannelBuffer in) throws Exception {
+            byte op = in.readByte();
+            switch (op) {
+                case DATA: return new Frame.Data(readCorrelationId(in), in.readSlice(in.readableBytes()));
+                case WINDOW: return checkConsumed(new Frame.Window(readCorrelationId(in), Varints.readVarInt(in)), in);
+                case RESET: return checkConsumed(new Frame.Reset(readCorrelationId(in)), in);
+                case COMPRESSED: return new Frame.Compressed(readCorrelationId(in),
+                        Compression.fromCode(in.readByte()), Varints.readVarInt(in), in.readSlice(in.readableBytes()));
+            }
+
+            Header header = newHeader(op);
+            header.correlationId = readCorrelationId(in);
+
+            header.accept(new Header.Visitor() {
+                public void visit(Header.Bye bye) { }
+
+                private void visit(Header.File file) {
+                    file.filename = readString(in);
+                }
+
+                public void visit(Header.Prohibited prohibited) {
+                    visit((Header.File) prohibited);
+                }
+
+                public void visit(Header.Unavailable unavailable) {
+                    visit((Header.File) unavailable);
+                }
+
+                public void visit(Header.Nonexistent nonexistent) {
+                    visit((Header.File) nonexistent);
+                }
+
+                public void visit(Header.NotModified notModified) {
+                    visit((Header.File) notModified);
+                }
+
+                public void visit(Header.Ok ok) {
+                    visit((Header.File) ok);
+                    if (in.readable()) {
+                        ok.accept = readCompressions(in);
+                    }
+                }
+
+                public void visit(Header.Resume resume) {
+                    visit((Header.File) resume);
+                    resume.offset = Varints.readVarLong(in);
+                    if (in.readable()) {
+                        resume.accept = readCompressions(in);
+                    }
+                }
+
+                public void visit(Header.Get get) {
+                    visit((Header.File) get);
+                    if (in.readable()) {
+                        get.offset = Varints.readSignedVarLong(in);
+                        get.length = Varints.readSignedVarLong(in);
+                    }
+                    if (in.readable()) {
+                        byte[] hash = readBytes(in);
+                        get.hash = hash.length == 0 ? null : HashCodes.fromBytes(hash);
+                    }
+                    if (in.readable()) {
+                        get.accept = readCompressions(in);
+                    }
+                }
+
+                public void visit(Header.Put put) {
+                    visit((Header.File) put);
+                    byte[] hash = readBytes(in);
+                    put.hash = hash.length == 0 ? null : HashCodes.fromBytes(hash);
+                    put.size = Varints.readVarLong(in);
+                    if (in.readable()) {
+                        put.offset = Varints.readVarLong(in);
+                    }
+                    if (in.readable()) {
+                        int flags = in.readUnsignedByte();
+                        put.delta = (flags & PUT_DELTA) != 0;
+                        put.trailer = (flags & PUT_TRAILER) != 0;
+                        put.append = (flags & PUT_APPEND) != 0;
+                    }
+                    if (in.readable()) {
+                        put.content = readBytes(in);
+                    }
+                }
+
+                public void visit(Header.Signatures signatures) {
+                    visit((Header.File) signatures);
+                    signatures.blockSize = Varints.readVarInt(in);
+                    signatures.baseSize = Varints.readVarLong(in);
+                    signatures.size = Varints.readVarLong(in);
+                    if (in.readable()) {
+                        signatures.accept = readCompressions(in);
+                    }
+                }
+
+                public void visit(Header.Delta delta) {
+                    visit((Header.File) delta);
+                    delta.size = Varints.readVarLong(in);
+                }
+
+                public void visit(Header.Trailer trailer) {
+                    visit((Header.File) trailer);
+                    trailer.size = Varints.readVarLong(in);
+                    trailer.hash = HashCodes.fromBytes(readBytes(in));
+                    if (in.readable()) {
+                        trailer.fileHash = HashCodes.fromBytes(readBytes(in));
+                    }
+                }
+
+                public void visit(Header.Bundle bundle) {
+                    bundle.get = in.readByte() != 0;
+                    bundle.count = Varints.readVarInt(in);
+                    bundle.size = Varints.readVarLong(in);
+                }
+
+                public void visit(Header.Stat stat) {
+                    stat.count = Varints.readVarInt(in);
+                    stat.size = Varints.readVarLong(in);
+                }
+
+                public void visit(Header.Listing listing) {
+                    listing.prefix = readString(in);
+                    listing.after = Strings.emptyToNull(readString(in));
+                    listing.count = Varints.readVarInt(in);
+                    listing.size = Varints.readVarLong(in);
+                }
+
+                public void visit(Header.Watch watch) {
+                    visit((Header.File) watch);
+                    byte flags = in.readByte();
+                    watch.prefix = (flags & WATCH_PREFIX) != 0;
+                    watch.stop = (flags & WATCH_STOP) != 0;
+                }
+
+                public void visit(Header.Changed changed) {
+                    visit((Header.File) changed);
+                    byte flags = in.readByte();
+                    changed.removed = (flags & CHANGED_REMOVED) != 0;
+                    changed.overflowed = (flags & CHANGED_OVERFLOWED) != 0;
+                    if (!changed.removed && !changed.overflowed) {
+                        changed.size = Varints.readVarLong(in);
+                        changed.hash = HashCodes.fromBytes(readBytes(in));
+                    }
+                }
+
+                public void visit(Header.Copy copy) {
+                    visit((Header.File) copy);
+                    copy.to = readString(in);
+                    copy.move = in.readByte() != 0;
+                }
+
+                public void visit(Header.Delegate delegate) {
+                    visit((Header.File) delegate);
+                    delegate.to = new CN(readString(in));
+                    delegate.rights = readRights(in);
+                    delegate.expiration = new Instant(Varints.readVarLong(in));
+                }
+
+                public void visit(Header.Delegations delegations) {
+                    delegations.count = Varints.readVarInt(in);
+                    delegations.size = Varints.readVarLong(in);
+                }
+            });
+
+            checkConsumed(header, in);
+            if (log.isTraceEnabled()) {
+                log.trace("decoded {} header {}", header.getClass().getSimpleName(), header.correlationId);
+            }
+            return header;
+        }
+
+        private <T> T checkConsumed(T decoded, ChannelBuffer in) {
+            if (in.readable()) {
+                throw new ProtocolException(in.readableBytes() + " unexpected trailing bytes in frame");
+            }
+            return decoded;
+        }
+    }
+
+    private static Header newHeader(byte op) {
+        switch (op) {
+            case BYE: return new Header.Bye();
+            case PROHIBITED: return new Header.Prohibited();
+            case UNAVAILABLE: return new Header.Unavailable();
+            case NONEXISTENT: return new Header.Nonexistent();
+            case OK: return new Header.Ok();
+            case GET: return new Header.Get();
+            case PUT: return new Header.Put();
+            case DELEGATE: return new Header.Delegate();
+            case RESUME: return new Header.Resume();
+            case NOT_MODIFIED: return new Header.NotModified();
+            case SIGNATURES: return new Header.Signatures();
+            case DELTA: return new Header.Delta();
+            case TRAILER: return new Header.Trailer();
+            case BUNDLE: return new Header.Bundle();
+            case COPY: return new Header.Copy();
+            case STAT: return new Header.Stat();
+            case LISTING: return new Header.Listing();
+            case WATCH: return new Header.Watch();
+            case CHANGED: return new Header.Changed();
+            case DELEGATIONS: return new Header.Delegations();
+        }
+        throw new ProtocolException("Unknown op-code: " + op);
+    }
+
+    public class Encoder extends OneToOneEncoder {
+
+        protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+            if (msg instanceof Header) {
+                return encode((Header) msg);
+            }
+            if (msg instanceof Frame) {
+                return encode((Frame) msg);
+            }
+            return msg;
+        }
+
+        ChannelBuffer encode(Frame frame) {
+            ChannelBuffer out = newFrameBuffer();
+            if (frame instanceof Frame.Data) {
+                ChannelBuffer data = ((Frame.Data) frame).data;
+                out.writeByte(DATA);
+                writeString(out, frame.streamId.id);
+                return ChannelBuffers.wrappedBuffer(finishFrame(out, data.readableBytes()), data);
+            } else if (frame instanceof Frame.Compressed) {
+                Frame.Compressed compressed = (Frame.Compressed) frame;
+                out.writeByte(COMPRESSED);
+                writeString(out, frame.streamId.id);
+                out.writeByte(compressed.compression.code);
+                Varints.writeVarLong(out, compressed.length);
+                return ChannelBuffers.wrappedBuffer(
+                        finishFrame(out, compressed.data.readableBytes()), compressed.data);
+            } else if (frame instanceof Frame.Window) {
+                out.writeByte(WINDOW);
+                writeString(out, frame.streamId.id);
+                Varints.writeVarLong(out, ((Frame.Window) frame).credit);
+            } else {
+                out.writeByte(RESET);
+                writeString(out, frame.streamId.id);
+            }
+            return finishFrame(out, 0);
+        }
+
+        ChannelBuffer encode(Header msg) throws Exception {
+            final ChannelBuffer out = newFrameBuffer();
+
+            msg.accept(new Header.Visitor() {
+                public void visit(Header.Bye bye) {
+                    op(BYE, bye);
+                }
+
+                private void op(byte op, Header header) {
+                    out.writeByte(op);
+                    writeString(out, header.correlationId == null
+                            ? protocol.correlationId() : header.correlationId.id);
+                }
+
+                private void file(byte op, Header.File file) {
+                    op(op, file);
+                    writeString(out, file.filename);
+                }
+
+                public void visit(Header.Prohibited prohibited) {
+                    file(PROHIBITED, prohibited);
+                }
+
+                public void visit(Header.Unavailable unavailable) {
+                    file(UNAVAILABLE, unavailable);
+                }
+
+                public void visit(Header.Nonexistent nonexistent) {
+                    file(NONEXISTENT, nonexistent);
+                }
+
+                public void visit(Header.NotModified notModified) {
+                    file(NOT_MODIFIED, notModified);
+                }
+
+                public void visit(Header.Ok ok) {
+                    file(OK, ok);
+                    if (!ok.accept.isEmpty()) {
+                        writeCompressions(out, ok.accept);
+                    }
+                }
+
+                public void visit(Header.Resume resume) {
+                    file(RESUME, resume);
+                    Varints.writeVarLong(out, resume.offset);
+                    if (!resume.accept.isEmpty()) {
+                        writeCompressions(out, resume.accept);
+                    }
+                }
+
+                public void visit(Header.Get get) {
+                    file(GET, get);
+                    if (get.isRange() || get.hash != null || !get.accept.isEmpty()) {
+                        Varints.writeSignedVarLong(out, get.offset);
+                        Varints.writeSignedVarLong(out, get.length);
+                    }
+                    if (get.hash != null || !get.accept.isEmpty()) {
+                        writeBytes(out, get.hash == null ? new byte[0] : get.hash.asBytes());
+                    }
+                    if (!get.accept.isEmpty()) {
+                        writeCompressions(out, get.accept);
+                    }
+                }
+
+                public void visit(Header.Put put) {
+                    file(PUT, put);
+                    writeBytes(out, put.hash == null ? new byte[0] : put.hash.asBytes());
+                    Varints.writeVarLong(out, put.size);
+                    if (put.offset != 0 || put.delta || put.trailer || put.append || put.content != null) {
+                        Varints.writeVarLong(out, put.offset);
+                    }
+                    if (put.delta || put.trailer || put.append || put.content != null) {
+                        out.writeByte((put.delta ? PUT_DELTA : 0) | (put.trailer ? PUT_TRAILER : 0)
+                                | (put.append ? PUT_APPEND : 0));
+                    }
+                    if (put.content != null) {
+                        writeBytes(out, put.content);
+                    }
+                }
+
+                public void visit(Header.Signatures signatures) {
+                    file(SIGNATURES, signatures);
+                    Varints.writeVarLong(out, signatures.blockSize);
+                    Varints.writeVarLong(out, signatures.baseSize);
+                    Varints.writeVarLong(out, signatures.size);
+                    if (!signatures.accept.isEmpty()) {
+                        writeCompressions(out, signatures.accept);
+                    }
+                }
+
+                public void visit(Header.Delta delta) {
+                    file(DELTA, delta);
+                    Varints.writeVarLong(out, delta.size);
+                }
+
+                public void visit(Header.Trailer trailer) {
+                    file(TRAILER, trailer);
+                    Varints.writeVarLong(out, trailer.size);
+                    writeBytes(out, trailer.hash.asBytes());
+                    if (trailer.fileHash != null) {
+                        writeBytes(out, trailer.fileHash.asBytes());
+                    }
+                }
+
+                public void visit(Header.Bundle bundle) {
+                    op(BUNDLE, bundle);
+                    out.writeByte(bundle.get ? 1 : 0);
+                    Varints.writeVarLong(out, bundle.count);
+                    Varints.writeVarLong(out, bundle.size);
+                }
+
+                public void visit(Header.Stat stat) {
+                    op(STAT, stat);
+                    Varints.writeVarLong(out, stat.count);
+                    Varints.writeVarLong(out, stat.size);
+                }
+
+                public void visit(Header.Listing listing) {
+                    op(LISTING, listing);
+                    writeString(out, listing.prefix);
+                    writeString(out, Strings.nullToEmpty(listing.after));
+                    Varints.writeVarLong(out, listing.count);
+                    Varints.writeVarLong(out, listing.size);
+                }
+
+                public void visit(Header.Watch watch) {
+                    file(WATCH, watch);
+                    out.writeByte((watch.prefix ? WATCH_PREFIX : 0) | (watch.stop ? WATCH_STOP : 0));
+                }
+
+                public void visit(Header.Changed changed) {
+                    file(CHANGED, changed);
+                    out.writeByte((changed.removed ? CHANGED_REMOVED : 0) | (changed.overflowed ? CHANGED_OVERFLOWED : 0));
+                    if (!changed.removed && !changed.overflowed) {
+                        Varints.writeVarLong(out, changed.size);
+                        writeBytes(out, changed.hash.asBytes());
+                    }
+                }
+
+                public void visit(Header.Copy copy) {
+                    file(COPY, copy);
+                    writeString(out, copy.to);
+                    out.writeByte(copy.move ? 1 : 0);
+                }
+
+                public void visit(Header.Delegate delegate) {
+                    file(DELEGATE, delegate);
+                    writeString(out, delegate.to.name);
+                    writeRights(out, delegate.rights);
+                    Varints.writeVarLong(out, delegate.expiration.getMillis());
+                }
+
+                public void visit(Header.Delegations delegations) {
+                    op(DELEGATIONS, delegations);
+                    Varints.writeVarLong(out, delegations.count);
+                    Varints.writeVarLong(out, delegations.size);
+                }
+            });
+
+            return finishFrame(out, 0);
+        }
+
+        /** Leaves room in front of the body for the length prefix, which isn't known until the end. */
+        private ChannelBuffer newFrameBuffer() {
+            ChannelBuffer out = ChannelBuffers.dynamicBuffer(128);
+            out.writerIndex(Varints.MAX_LONG_BYTES);
+            return out;
+        }
+
+        /** Fills in the length prefix of a frame whose body is followed by {@code trailing} more bytes. */
+        private ChannelBuffer finishFrame(ChannelBuffer out, int trailing) {
+            int length = out.writerIndex() - Varints.MAX_LONG_BYTES + trailing;
+            int start = Varints.MAX_LONG_BYTES - Varints.varLongSize(length);
+            int end = out.writerIndex();
+            out.writerIndex(start);
+            Varints.writeVarLong(out, length);
+            out.writerIndex(end);
+            out.readerIndex(start);
+            return out;
+        }
+    }
+
+    CorrelationId readCorrelationId(ChannelBuffer in) {
+        return new CorrelationId(readString(in));
+    }
+
+    String readString(ChannelBuffer in) {
+        int length = readLength(in);
+        String s = in.toString(in.readerIndex(), length, charset);
+        in.skipBytes(length);
+        return s;
+    }
+
+    void writeString(ChannelBuffer out, String s) {
+        writeBytes(out, s.getBytes(charset));
+    }
+
+    /**
+     * Reads the length of what follows, or the count of what follows a byte each, checking it
+     * before anything is allocated for it: it can't be more than is left to read.
+     */
+    private static int readLength(ChannelBuffer in) {
+        int length = Varints.readVarInt(in);
+        if (length > in.readableBytes()) {
+            throw new ProtocolException("Length " + length + " exceeds the " + in.readableBytes() + " bytes left");
+        }
+        return length;
+    }
+
+    static byte[] readBytes(ChannelBuffer in) {
+        byte[] bytes = new byte[readLength(in)];
+        in.readBytes(bytes);
+        return bytes;
+    }
+
+    static void writeBytes(ChannelBuffer out, byte[] bytes) {
+        Varints.writeVarLong(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    /** Reads the codes of compressions, skipping any this end doesn't know. */
+    static List<Compression> readCompressions(ChannelBuffer in) {
+        int count = readLength(in);
+        List<Compression> compressions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte code = in.readByte();
+            for (Compression compression : Compression.values()) {
+                if (compression.code == code) {
+                    compressions.add(compression);
+                }
+            }
+        }
+        return compressions;
+    }
+
+    static void writeCompressions(ChannelBuffer out, List<Compression> compressions) {
+        Varints.writeVarLong(out, compressions.size());
+        for (Compression compression : compressions) {
+            out.writeByte(compression.code);
+        }
+    }
+
+    static List<Right> readRights(ChannelBuffer in) {
+        int count = readLength(in);
+        List<Right> rights = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int bits = in.readUnsignedByte();
+            rights.add(new Right(
+                    (bits & RIGHT_PUT) != 0 ? AccessType.Put : AccessType.Get,
+                    (bits & RIGHT_STAR) != 0 ? DelegationType.Star : DelegationType.None));
+        }
+        return rights;
+    }
+
+    static void writeRights(ChannelBuffer out, Iterable<Right> rights) {
+        int count = 0;
+        for (Right ignored : rights) {
+            count++;
+        }
+        Varints.writeVarLong(out, count);
+        for (Right right : rights) {
+            int bits = 0;
+            if (right.accessType == AccessType.Put) bits |= RIGHT_PUT;
+            if (right.delegationType == DelegationType.Star) bits |= RIGHT_STAR;
+            out.writeByte(bits);
+        }
+    }
+}
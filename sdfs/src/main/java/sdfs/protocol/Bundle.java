@@ -0,0 +1,364 @@
+package sdfs.protocol;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashCodes;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bodies of a {@link Header.Bundle}. A bundle of files is a run of entries of
+ * {@code name, status}, followed for a file that is there by {@code size, hash} and its content.
+ * A request for files is a run of their names, and the answer to a bundle of files a run of
+ * one status byte each.
+ */
+public final class Bundle {
+
+    public static final byte OK = 0;
+    public static final byte PROHIBITED = 1;
+    public static final byte UNAVAILABLE = 2;
+    public static final byte NONEXISTENT = 3;
+
+    private Bundle() { }
+
+    public static final class Entry {
+        public final String name;
+        public final byte status;
+        public final long size;
+        public final HashCode hash;
+
+        public Entry(String name, long size, HashCode hash) {
+            this(name, OK, size, hash);
+        }
+
+        /** An entry for a file that isn't there, with why not. */
+        public Entry(String name, byte status) {
+            this(name, status, 0, null);
+        }
+
+        private Entry(String name, byte status, long size, HashCode hash) {
+            this.name = name;
+            this.status = status;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /** Length of the entry for a file of {@code size} bytes, content included. */
+    public static long length(Protocol protocol, String name, long size) {
+        int nameLength = name.getBytes(protocol.headerCharset()).length;
+        int hashLength = protocol.fileHashFunction().bits() / 8;
+        return Varints.varLongSize(nameLength) + nameLength + 1
+                + Varints.varLongSize(size) + Varints.varLongSize(hashLength) + hashLength + size;
+    }
+
+    /** Length of the entry for a file that isn't there. */
+    public static long length(Protocol protocol, String name) {
+        int nameLength = name.getBytes(protocol.headerCharset()).length;
+        return Varints.varLongSize(nameLength) + nameLength + 1;
+    }
+
+    static byte[] header(Protocol protocol, Entry entry) {
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer(128);
+        BinaryHeaderCodec.writeBytes(out, entry.name.getBytes(protocol.headerCharset()));
+        out.writeByte(entry.status);
+        if (entry.status == OK) {
+            Varints.writeVarLong(out, entry.size);
+            BinaryHeaderCodec.writeBytes(out, entry.hash.asBytes());
+        }
+        byte[] header = new byte[out.readableBytes()];
+        out.readBytes(header);
+        return header;
+    }
+
+    public static byte[] names(Protocol protocol, Iterable<String> names) {
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer(1024);
+        for (String name : names) {
+            BinaryHeaderCodec.writeBytes(out, name.getBytes(protocol.headerCharset()));
+        }
+        byte[] body = new byte[out.readableBytes()];
+        out.readBytes(body);
+        return body;
+    }
+
+    public static List<String> readNames(Protocol protocol, byte[] body, int count) {
+        // Every name takes at least the byte giving its length
+        if (count < 0 || count > body.length) {
+            throw new ProtocolException("Body of " + body.length + " bytes cannot name " + count + " files");
+        }
+        ChannelBuffer in = ChannelBuffers.wrappedBuffer(body);
+        List<String> names = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                names.add(new String(BinaryHeaderCodec.readBytes(in), protocol.headerCharset()));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException("Bundle names fewer than " + count + " files");
+        }
+        if (in.readable()) {
+            throw new ProtocolException("Bundle names more than " + count + " files");
+        }
+        return names;
+    }
+
+    /**
+     * Reads as a bundle of entries, opening the content of each only once it is reached. The
+     * content opened for an entry must be of the size it gives.
+     */
+    public abstract static class Writer extends InputStream {
+
+        private final Protocol protocol;
+
+        private Entry entry;
+        private InputStream current;
+        private long remaining;
+        private boolean ended;
+
+        protected Writer(Protocol protocol) {
+            this.protocol = protocol;
+        }
+
+        /** The next entry, or null if there are no more. */
+        protected abstract Entry next() throws IOException;
+
+        /** Opens the content of an entry for a file that is there. */
+        protected abstract InputStream open(Entry entry) throws IOException;
+
+        /** Called once done with an entry, whether or not all of it was read. */
+        protected void finished(Entry entry) throws IOException { }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null) {
+                if (!advance()) {
+                    return -1;
+                }
+            }
+            int n = current.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("Content of `" + entry.name + "' ended " + remaining + " bytes short");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                finish();
+            }
+            return n;
+        }
+
+        /**
+         * Reading waits on nothing but the disk, so the rest of the bundle counts as available.
+         * Otherwise {@link org.jboss.netty.handler.stream.ChunkedStream} sizes chunks from the one
+         * byte it has pushed back, and sends the bundle a byte a frame.
+         */
+        public int available() {
+            return ended ? 0 : Integer.MAX_VALUE;
+        }
+
+        private boolean advance() throws IOException {
+            if (ended) {
+                return false;
+            }
+            entry = next();
+            if (entry == null) {
+                ended = true;
+                return false;
+            }
+            byte[] header = header(protocol, entry);
+            current = new ByteArrayInputStream(header);
+            remaining = header.length;
+            if (entry.status == OK && entry.size > 0) {
+                current = new SequenceInputStream(current, open(entry));
+                remaining += entry.size;
+            }
+            return true;
+        }
+
+        private void finish() throws IOException {
+            InputStream in = current;
+            current = null;
+            try {
+                in.close();
+            } finally {
+                finished(entry);
+            }
+        }
+
+        public void close() throws IOException {
+            ended = true;
+            if (current != null) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Parses a bundle of entries as it is written, handing the content of each to the stream
+     * {@link #open} gives for it. Content is checked against its entry's hash before the entry is
+     * {@link #commit}ted, and a mismatch fails the bundle.
+     */
+    public abstract static class Reader extends OutputStream {
+
+        private final HashFunction hashFunction;
+        private final Charset charset;
+        private final int count;
+
+        private final byte[] header;
+        private int headerLength;
+
+        private Entry entry;
+        private OutputStream out;
+        private Hasher hasher;
+        private long remaining;
+
+        private int entries;
+        private boolean closed;
+
+        protected Reader(Protocol protocol, int count) {
+            hashFunction = protocol.fileHashFunction();
+            charset = protocol.headerCharset();
+            this.count = count;
+            header = new byte[protocol.maxHeaderLength()];
+        }
+
+        /** Where to write the content of an entry, or null to skip it. Called for every entry. */
+        protected abstract OutputStream open(Entry entry) throws IOException;
+
+        /** Called once all of an entry has been written to what {@link #open} gave for it, and closed. */
+        protected abstract void commit(Entry entry) throws IOException;
+
+        /** Called for an entry whose content didn't arrive whole or intact. */
+        protected abstract void abort(Entry entry) throws IOException;
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (entry != null) {
+                    int n = (int) Math.min(len, remaining);
+                    if (out != null) {
+                        out.write(b, off, n);
+                        hasher.putBytes(b, off, n);
+                    }
+                    remaining -= n;
+                    off += n;
+                    len -= n;
+                    if (remaining == 0) {
+                        finish();
+                    }
+                } else {
+                    if (entries == count) {
+                        throw new IOException("Bundle has more than " + count + " entries");
+                    }
+                    if (headerLength == header.length) {
+                        throw new IOException("Bundle entry header is too long");
+                    }
+                    header[headerLength++] = b[off++];
+                    len--;
+                    parseHeader();
+                }
+            }
+        }
+
+        /** Starts the entry in the header once all of it has arrived. */
+        private void parseHeader() throws IOException {
+            ChannelBuffer in = ChannelBuffers.wrappedBuffer(header, 0, headerLength);
+            long nameLength = Varints.tryReadVarLong(in);
+            if (nameLength < 0 || in.readableBytes() < nameLength + 1) {
+                return;
+            }
+            String name = in.toString(in.readerIndex(), (int) nameLength, charset);
+            in.skipBytes((int) nameLength);
+            byte status = in.readByte();
+
+            Entry started;
+            if (status == OK) {
+                long size = Varints.tryReadVarLong(in);
+                long hashLength = size < 0 ? -1 : Varints.tryReadVarLong(in);
+                if (hashLength < 0 || in.readableBytes() < hashLength) {
+                    return;
+                }
+                byte[] hash = new byte[(int) hashLength];
+                in.readBytes(hash);
+                started = new Entry(name, size, HashCodes.fromBytes(hash));
+            } else {
+                started = new Entry(name, status);
+            }
+            headerLength = 0;
+
+            entry = started;
+            remaining = entry.size;
+            out = open(entry);
+            hasher = out == null ? null : hashFunction.newHasher();
+            if (remaining == 0) {
+                finish();
+            }
+        }
+
+        private void finish() throws IOException {
+            Entry finished = entry;
+            OutputStream finishedOut = out;
+            entry = null;
+            out = null;
+            entries++;
+            if (finishedOut == null) {
+                return;
+            }
+            try {
+                finishedOut.close();
+            } catch (IOException e) {
+                abort(finished);
+                throw e;
+            }
+            if (finished.status == OK) {
+                HashCode hash = hasher.hash();
+                if (!hash.equals(finished.hash)) {
+                    abort(finished);
+                    throw new HashMismatchException(finished.hash, hash);
+                }
+            }
+            commit(finished);
+        }
+
+        /** Closing part way through the bundle aborts the entry that was being written, and fails. */
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (entry != null) {
+                Entry unfinished = entry;
+                entry = null;
+                if (out != null) {
+                    try {
+                        out.close();
+                    } finally {
+                        abort(unfinished);
+                    }
+                }
+            }
+            if (entries != count || headerLength > 0) {
+                throw new EOFException("Bundle ended after " + entries + " of " + count + " entries");
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs that {@link FrameCompressor} can apply to the data frames of a transfer. Each frame is
+ * compressed on its own, so a receiver needs no state beyond the frame.
+ */
+public enum Compression {
+
+    None("none", 0) {
+        ChannelBuffer compress(ChannelBuffer data) {
+            return data;
+        }
+
+        ChannelBuffer decompress(ChannelBuffer data, int length) {
+            return data;
+        }
+    },
+
+    /** Fast, for when the link is quicker than deflate. */
+    Lz4("lz4", 1) {
+        ChannelBuffer compress(ChannelBuffer data) {
+            byte[] src = bytes(data);
+            byte[] dest = new byte[Lz4Block.maxCompressedLength(src.length)];
+            return ChannelBuffers.wrappedBuffer(dest, 0, Lz4Block.compress(src, 0, src.length, dest));
+        }
+
+        ChannelBuffer decompress(ChannelBuffer data, int length) throws IOException {
+            byte[] src = bytes(data);
+            byte[] dest = new byte[length];
+            Lz4Block.decompress(src, 0, src.length, dest);
+            return ChannelBuffers.wrappedBuffer(dest);
+        }
+    },
+
+    Deflate("deflate", 2) {
+        ChannelBuffer compress(ChannelBuffer data) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(bytes(data));
+                deflater.finish();
+                ChannelBuffer out = ChannelBuffers.dynamicBuffer(data.readableBytes() / 2 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.writeBytes(buffer, 0, deflater.deflate(buffer));
+                }
+                return out;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        ChannelBuffer decompress(ChannelBuffer data, int length) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(bytes(data));
+                // One spare byte, so that a frame inflating to more than it claims is caught
+                byte[] dest = new byte[length + 1];
+                int n = 0;
+                while (n < dest.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(dest, n, dest.length - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != length || !inflater.finished()) {
+                    throw new IOException("Frame inflated to " + n + " bytes, expected " + length);
+                }
+                return ChannelBuffers.wrappedBuffer(dest, 0, length);
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /** How much of a file is tried before deciding whether to compress it. */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    private static final int RAW_CHUNK_SIZE = 8192;
+    private static final int COMPRESSED_CHUNK_SIZE = 64 * 1024;
+
+    /** Send raw unless a sample shrinks to this fraction of its size. */
+    private static final double WORTHWHILE_RATIO = 0.9;
+
+    private static final int MIN_SAMPLE = 512;
+
+    private final String marshaled;
+    final byte code;
+
+    private Compression(String marshaled, int code) {
+        this.marshaled = marshaled;
+        this.code = (byte) code;
+    }
+
+    abstract ChannelBuffer compress(ChannelBuffer data);
+
+    /** Decompresses a frame that holds {@code length} bytes uncompressed. */
+    abstract ChannelBuffer decompress(ChannelBuffer data, int length) throws IOException;
+
+    /** How much to read at a time for sending; larger frames compress better. */
+    public int chunkSize() {
+        return this == None ? RAW_CHUNK_SIZE : COMPRESSED_CHUNK_SIZE;
+    }
+
+    public String marshal() {
+        return marshaled;
+    }
+
+    public static Compression unmarshal(String s) {
+        for (Compression compression : values()) {
+            if (compression.marshaled.equals(s)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression: " + s);
+    }
+
+    static Compression fromCode(byte code) {
+        for (Compression compression : values()) {
+            if (compression.code == code) {
+                return compression;
+            }
+        }
+        throw new ProtocolException("Unknown compression code: " + code);
+    }
+
+    /** The codecs this end can decompress. */
+    public static List<Compression> supported() {
+        return ImmutableList.of(Lz4, Deflate);
+    }
+
+    /** The codecs in {@code preferred} that the peer accepts, in order of preference. */
+    public static List<Compression> negotiate(List<Compression> preferred, Collection<Compression> accepted) {
+        ImmutableList.Builder<Compression> both = ImmutableList.builder();
+        for (Compression compression : preferred) {
+            if (compression != None && accepted.contains(compression)) {
+                both.add(compression);
+            }
+        }
+        return both.build();
+    }
+
+    /**
+     * Picks the first of the candidates that shrinks a sample from the start of the stream enough
+     * to be worth it, or {@link #None}. The stream must support mark and reset.
+     */
+    public static Compression choose(List<Compression> candidates, InputStream in) throws IOException {
+        if (candidates.isEmpty()) {
+            return None;
+        }
+        in.mark(SAMPLE_SIZE);
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int n = ByteStreams.read(in, sample, 0, SAMPLE_SIZE);
+        in.reset();
+        return choose(candidates, ChannelBuffers.wrappedBuffer(sample, 0, n));
+    }
+
+    /** Picks a compression as above, by the first {@link #SAMPLE_SIZE} bytes of a buffer. */
+    public static Compression choose(List<Compression> candidates, ByteBuffer start) {
+        ByteBuffer sample = start.duplicate();
+        sample.limit(sample.position() + Math.min(sample.remaining(), SAMPLE_SIZE));
+        return choose(candidates, ChannelBuffers.wrappedBuffer(sample));
+    }
+
+    private static Compression choose(List<Compression> candidates, ChannelBuffer sample) {
+        int n = sample.readableBytes();
+        if (candidates.isEmpty() || n < MIN_SAMPLE) {
+            return None;
+        }
+        for (Compression compression : candidates) {
+            if (compression.compress(sample.duplicate()).readableBytes() < n * WORTHWHILE_RATIO) {
+                return compression;
+            }
+        }
+        return None;
+    }
+
+    private static byte[] bytes(ChannelBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.readerIndex() == 0
+                && data.readableBytes() == data.array().length) {
+            return data.array();
+        }
+        byte[] bytes = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), bytes);
+        return bytes;
+    }
+}
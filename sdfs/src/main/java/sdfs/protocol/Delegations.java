@@ -0,0 +1,66 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.joda.time.Instant;
+import sdfs.CN;
+import sdfs.sdfs.Delegation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bodies of a {@link Header.Delegations}. The client sends how many delegations there are,
+ * then each as {@code to, rights, expiration}, then names the files as for a {@link Bundle}
+ * request. The server answers with one bundle status for each file, in the order they were named.
+ */
+public final class Delegations {
+
+    private Delegations() { }
+
+    public static final class Request {
+        public final List<Delegation> delegations;
+        public final List<String> names;
+
+        public Request(Iterable<Delegation> delegations, Iterable<String> names) {
+            this.delegations = ImmutableList.copyOf(delegations);
+            this.names = ImmutableList.copyOf(names);
+        }
+    }
+
+    public static byte[] request(Protocol protocol, Request request) {
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer(1024);
+        Varints.writeVarLong(out, request.delegations.size());
+        for (Delegation delegation : request.delegations) {
+            BinaryHeaderCodec.writeBytes(out, delegation.to.name.getBytes(protocol.headerCharset()));
+            BinaryHeaderCodec.writeRights(out, delegation.rights);
+            Varints.writeVarLong(out, delegation.expiration.getMillis());
+        }
+        out.writeBytes(Bundle.names(protocol, request.names));
+        byte[] body = new byte[out.readableBytes()];
+        out.readBytes(body);
+        return body;
+    }
+
+    public static Request readRequest(Protocol protocol, byte[] body, int count) {
+        ChannelBuffer in = ChannelBuffers.wrappedBuffer(body);
+        List<Delegation> delegations;
+        try {
+            int delegationCount = Varints.readVarInt(in);
+            if (delegationCount > in.readableBytes()) {
+                throw new ProtocolException("Delegations request gives " + delegationCount + " delegations");
+            }
+            delegations = new ArrayList<>(delegationCount);
+            for (int i = 0; i < delegationCount; i++) {
+                CN to = new CN(new String(BinaryHeaderCodec.readBytes(in), protocol.headerCharset()));
+                delegations.add(new Delegation(to, BinaryHeaderCodec.readRights(in), new Instant(Varints.readVarLong(in))));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException("Delegations request ends before its names");
+        }
+        byte[] names = new byte[in.readableBytes()];
+        in.readBytes(names);
+        return new Request(delegations, Bundle.readNames(protocol, names, count));
+    }
+}
@@ -0,0 +1,65 @@
+package sdfs.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Messages of the multiplexed data channel. Every frame belongs to the stream of the request
+ * whose {@link CorrelationId} it carries.
+ */
+public abstract class Frame {
+
+    public final CorrelationId streamId;
+
+    Frame(CorrelationId streamId) {
+        this.streamId = streamId;
+    }
+
+    /** A chunk of file content. */
+    public static class Data extends Frame {
+        public final ChannelBuffer data;
+
+        /** How {@link FrameCompressor} should compress the chunk on its way out. */
+        public final Compression compression;
+
+        public Data(CorrelationId streamId, ChannelBuffer data) {
+            this(streamId, data, Compression.None);
+        }
+
+        public Data(CorrelationId streamId, ChannelBuffer data, Compression compression) {
+            super(streamId);
+            this.data = data;
+            this.compression = compression;
+        }
+    }
+
+    /** A chunk of file content as sent compressed, which is {@code length} bytes uncompressed. */
+    public static class Compressed extends Frame {
+        public final Compression compression;
+        public final int length;
+        public final ChannelBuffer data;
+
+        public Compressed(CorrelationId streamId, Compression compression, int length, ChannelBuffer data) {
+            super(streamId);
+            this.compression = compression;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    /** Permits the peer to send {@code credit} more bytes of data on the stream. */
+    public static class Window extends Frame {
+        public final int credit;
+
+        public Window(CorrelationId streamId, int credit) {
+            super(streamId);
+            this.credit = credit;
+        }
+    }
+
+    /** Abandons the stream; the peer should stop sending or expecting its data. */
+    public static class Reset extends Frame {
+        public Reset(CorrelationId streamId) {
+            super(streamId);
+        }
+    }
+}
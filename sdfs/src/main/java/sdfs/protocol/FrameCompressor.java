@@ -0,0 +1,57 @@
+package sdfs.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.io.IOException;
+
+/**
+ * Compresses outbound {@link Frame.Data} frames that ask for it into {@link Frame.Compressed} ones,
+ * and decompresses inbound ones, between the binary codec and the {@link StreamMultiplexer}. A frame
+ * that doesn't shrink is sent as it is.
+ */
+public class FrameCompressor extends SimpleChannelHandler {
+
+    private final int maxFrameLength;
+
+    public FrameCompressor(Protocol protocol) {
+        maxFrameLength = protocol.maxDataFrameLength();
+    }
+
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof Frame.Data && ((Frame.Data) msg).compression != Compression.None) {
+            Frame.Data data = (Frame.Data) msg;
+            int length = data.data.readableBytes();
+            ChannelBuffer compressed = data.compression.compress(data.data.duplicate());
+            Object frame = compressed.readableBytes() < length
+                    ? new Frame.Compressed(data.streamId, data.compression, length, compressed)
+                    : new Frame.Data(data.streamId, data.data);
+            Channels.write(ctx, e.getFuture(), frame, e.getRemoteAddress());
+        } else {
+            ctx.sendDownstream(e);
+        }
+    }
+
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof Frame.Compressed) {
+            Frame.Compressed compressed = (Frame.Compressed) msg;
+            if (compressed.length > maxFrameLength) {
+                throw new ProtocolException("Compressed frame of " + compressed.length + " bytes exceeds maximum");
+            }
+            ChannelBuffer data;
+            try {
+                data = compressed.compression.decompress(compressed.data, compressed.length);
+            } catch (IOException ex) {
+                throw new ProtocolException("Corrupt compressed frame: " + ex.getMessage());
+            }
+            Channels.fireMessageReceived(ctx, new Frame.Data(compressed.streamId, data), e.getRemoteAddress());
+        } else {
+            ctx.sendUpstream(e);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import org.joda.time.Instant;
 import sdfs.CN;
 import sdfs.sdfs.Right;
 
+import java.util.Collections;
+import java.util.List;
+
 public abstract class Header {
 
     public CorrelationId correlationId;
@@ -56,7 +59,21 @@ public abstract class Header {
         return unavailable;
     }
 
+    /** Answers a get whose {@link Get#hash} matched the file, so it needn't be sent. */
+    public static class NotModified extends File {
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static NotModified notModified(File request) {
+        NotModified notModified = new NotModified();
+        notModified.respondsTo(request);
+        return notModified;
+    }
+
     public static class Ok extends File {
+        /** Answering a put: the compressions the server can take its body in. */
+        public List<Compression> accept = Collections.emptyList();
+
         public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
     }
 
@@ -66,7 +83,43 @@ public abstract class Header {
         return unavailable;
     }
 
+    /**
+     * Accepts a put, but asks for its body only from {@link #offset} on: the server kept that much
+     * of an earlier attempt at the same file.
+     */
+    public static class Resume extends File {
+        public long offset;
+        public List<Compression> accept = Collections.emptyList();
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Resume resume(Put request, long offset) {
+        Resume resume = new Resume();
+        resume.respondsTo(request);
+        resume.offset = offset;
+        return resume;
+    }
+
     public static class Get extends File {
+        /** Asks for everything from {@link #offset} to the end of the file. */
+        public static final long TO_END = -1;
+
+        /** Where to start reading; a negative offset counts back from the end of the file. */
+        public long offset;
+        public long length = TO_END;
+
+        /** Hash of the copy the client already has, if any. */
+        public HashCode hash;
+
+        /** Compressions the client can take the body in, most preferred first. */
+        public List<Compression> accept = Collections.emptyList();
+
+        /** Whether this asks for less than the whole file. */
+        public boolean isRange() {
+            return offset != 0 || length != TO_END;
+        }
+
         public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
     }
 
@@ -74,6 +127,233 @@ public abstract class Header {
         public HashCode hash;
         public long size;
 
+        /**
+         * Where in the file the body starts. A put answering a ranged get carries just that part of
+         * the file, and no hash: the server has already authenticated the segments it read.
+         */
+        public long offset;
+
+        /** Asks for {@link Signatures} of the server's copy, so that only a {@link Delta} need be sent. */
+        public boolean delta;
+
+        /**
+         * The size and hash are not known until the body has been read, and follow it in a
+         * {@link Trailer}; until then they are unset. Only multiplexed bodies can be ended this way.
+         */
+        public boolean trailer;
+
+        /**
+         * Adds the body to the end of the server's copy, rather than replacing it. The server answers
+         * with a {@link Resume} at the end of its copy, and the body is sent from there with a
+         * trailer, whose size and hash are of the body alone, and whose {@link Trailer#fileHash} is
+         * of the whole file once appended to.
+         */
+        public boolean append;
+
+        /**
+         * The whole file, for a put small enough to ride in its header. The server commits it at
+         * once and answers with a single ok, rather than ok-ing the put and waiting for a body.
+         */
+        public byte[] content;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    /**
+     * Accepts a delta put of a file the server already has. The body is {@link #size} bytes of
+     * signatures of the blocks of the server's copy, to be answered with a {@link Delta}.
+     */
+    public static class Signatures extends File {
+        public int blockSize;
+        public long baseSize;
+        public long size;
+
+        /** The compressions the server can take the delta in. */
+        public List<Compression> accept = Collections.emptyList();
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Signatures signatures(Put request, int blockSize, long baseSize, long size) {
+        Signatures signatures = new Signatures();
+        signatures.respondsTo(request);
+        signatures.blockSize = blockSize;
+        signatures.baseSize = baseSize;
+        signatures.size = size;
+        return signatures;
+    }
+
+    /** Answers {@link Signatures}: the body is {@link #size} bytes of delta against the server's copy. */
+    public static class Delta extends File {
+        public long size;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Delta delta(Signatures request, long size) {
+        Delta delta = new Delta();
+        delta.respondsTo(request);
+        delta.size = size;
+        return delta;
+    }
+
+    /** Ends the body of a put that had a {@link Put#trailer}, giving the size and hash of what was sent. */
+    public static class Trailer extends File {
+        public long size;
+        public HashCode hash;
+
+        /** For an {@link Put#append}, the hash of the whole file with the body added; otherwise null. */
+        public HashCode fileHash;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Trailer trailer(Put request, long size, HashCode hash) {
+        Trailer trailer = new Trailer();
+        trailer.respondsTo(request);
+        trailer.size = size;
+        trailer.hash = hash;
+        return trailer;
+    }
+
+    /**
+     * Many files sent or fetched in one body, so that each needn't cost a request of its own. The
+     * client's body is a {@link sdfs.protocol.Bundle} of the files, or their names if it asks for
+     * them; the server answers with a bundle of the files asked for, or a status for each file sent.
+     */
+    public static class Bundle extends Header {
+        /** Whether the body names files to fetch, rather than holding files to store. */
+        public boolean get;
+        public int count;
+        public long size;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Bundle bundle(Bundle request, long size) {
+        Bundle bundle = new Bundle();
+        bundle.respondsTo(request);
+        bundle.get = request.get;
+        bundle.count = request.count;
+        bundle.size = size;
+        return bundle;
+    }
+
+    /**
+     * Asks what the server knows of many files at once, without fetching any of them. The client's
+     * body names the files; the server answers with a {@link sdfs.protocol.Stat} entry for each.
+     */
+    public static class Stat extends Header {
+        public int count;
+        public long size;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Stat stat(Stat request, long size) {
+        Stat stat = new Stat();
+        stat.respondsTo(request);
+        stat.count = request.count;
+        stat.size = size;
+        return stat;
+    }
+
+    /**
+     * Lists the names of stored files that begin with a prefix, a page at a time and in order. The
+     * server answers with the names of the page as its body, in the encoding of a bundle request.
+     */
+    public static class Listing extends Header {
+        public String prefix;
+
+        /**
+         * Where the page starts: after this name, or at the first if null. In the answer, where the
+         * next page starts, or null if this is the last.
+         */
+        public String after;
+
+        /** In the request, the most names to list; in the answer, how many are listed. */
+        public int count;
+        public long size;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Listing listing(Listing request, String after, int count, long size) {
+        Listing listing = new Listing();
+        listing.respondsTo(request);
+        listing.prefix = request.prefix;
+        listing.after = after;
+        listing.count = count;
+        listing.size = size;
+        return listing;
+    }
+
+    /**
+     * Subscribes to changes to a file, or to every file whose name begins with a prefix. The server
+     * answers with an OK, then a {@link Changed} with the same correlation id each time one of them
+     * changes, for as long as the connection lasts or until the same subscription is stopped.
+     */
+    public static class Watch extends File {
+        public boolean prefix;
+
+        /** Whether to stop the subscription to this name or prefix, rather than start it. */
+        public boolean stop;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    /**
+     * A change to a watched file: its new size and hash, or that it was moved away. Changes in quick
+     * succession may arrive as one.
+     */
+    public static class Changed extends File {
+        public long size;
+        public HashCode hash;
+        public boolean removed;
+
+        /**
+         * Whether more changes came than could be held for a watcher slow to take them, so that any
+         * file watched may have changed. Such a change names no file.
+         */
+        public boolean overflowed;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Changed changed(Watch watch, String filename, long size, HashCode hash) {
+        Changed changed = changed(watch, filename);
+        changed.size = size;
+        changed.hash = hash;
+        return changed;
+    }
+
+    public static Changed removed(Watch watch, String filename) {
+        Changed changed = changed(watch, filename);
+        changed.removed = true;
+        return changed;
+    }
+
+    public static Changed overflowed(Watch watch) {
+        Changed changed = changed(watch, "");
+        changed.overflowed = true;
+        return changed;
+    }
+
+    private static Changed changed(Watch watch, String filename) {
+        Changed changed = new Changed();
+        changed.correlationId = watch.correlationId;
+        changed.filename = filename;
+        return changed;
+    }
+
+    /**
+     * Copies or moves a file to another name, entirely on the server. A move takes the file's policy
+     * with it; a copy belongs to whoever made it.
+     */
+    public static class Copy extends File {
+        public String to;
+        public boolean move;
+
         public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
     }
 
@@ -85,6 +365,26 @@ public abstract class Header {
         public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
     }
 
+    /**
+     * Delegates rights on many files at once. The client's body holds the delegations, then names
+     * the files, of which there are {@code count}; see {@link sdfs.protocol.Delegations}. The server
+     * makes every delegation on a file or none of them, and answers with a bundle status for each.
+     */
+    public static class Delegations extends Header {
+        public int count;
+        public long size;
+
+        public void accept(Visitor visitor) throws Exception { visitor.visit(this); }
+    }
+
+    public static Delegations delegations(Delegations request, long size) {
+        Delegations delegations = new Delegations();
+        delegations.respondsTo(request);
+        delegations.count = request.count;
+        delegations.size = size;
+        return delegations;
+    }
+
     public abstract void accept(Visitor visitor) throws Exception;
 
     public interface Visitor {
@@ -92,9 +392,21 @@ public abstract class Header {
         void visit(Prohibited prohibited) throws Exception;
         void visit(Unavailable unavailable) throws Exception;
         void visit(Nonexistent nonexistent) throws Exception;
+        void visit(NotModified notModified) throws Exception;
         void visit(Ok ok) throws Exception;
+        void visit(Resume resume) throws Exception;
         void visit(Get get) throws Exception;
         void visit(Put put) throws Exception;
+        void visit(Signatures signatures) throws Exception;
+        void visit(Delta delta) throws Exception;
+        void visit(Trailer trailer) throws Exception;
+        void visit(Bundle bundle) throws Exception;
+        void visit(Stat stat) throws Exception;
+        void visit(Listing listing) throws Exception;
+        void visit(Watch watch) throws Exception;
+        void visit(Changed changed) throws Exception;
+        void visit(Copy copy) throws Exception;
         void visit(Delegate delegate) throws Exception;
+        void visit(Delegations delegations) throws Exception;
     }
 }
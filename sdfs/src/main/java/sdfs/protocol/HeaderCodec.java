@@ -35,7 +35,19 @@ public class HeaderCodec {
                 .put(Header.Put.class, protocol.put())
                 .put(Header.Unavailable.class, protocol.unavailable())
                 .put(Header.Nonexistent.class, protocol.nonexistent())
+                .put(Header.NotModified.class, protocol.notModified())
                 .put(Header.Ok.class, protocol.ok())
+                .put(Header.Resume.class, protocol.resume())
+                .put(Header.Signatures.class, protocol.signatures())
+                .put(Header.Delta.class, protocol.delta())
+                .put(Header.Trailer.class, protocol.trailer())
+                .put(Header.Bundle.class, protocol.bundle())
+                .put(Header.Stat.class, protocol.stat())
+                .put(Header.Delegations.class, protocol.delegations())
+                .put(Header.Listing.class, protocol.list())
+                .put(Header.Watch.class, protocol.watch())
+                .put(Header.Changed.class, protocol.changed())
+                .put(Header.Copy.class, protocol.copy())
                 .build();
     }
 
@@ -51,7 +63,7 @@ public class HeaderCodec {
         }
 
         protected Object decode(ChannelHandlerContext ctx, Channel channel, String msg) throws Exception {
-            log.info("decoding headers\n{}\n", msg);
+            log.trace("decoding headers\n{}\n", msg);
             final Iterator<String> headers = protocol.decodeHeaders(msg).iterator();
 
             Header header = opCodec.inverse().get(headers.next()).newInstance();
@@ -76,18 +88,101 @@ public class HeaderCodec {
                     visit((Header.File) nonexistent);
                 }
 
+                public void visit(Header.NotModified notModified) {
+                    visit((Header.File) notModified);
+                }
+
                 public void visit(Header.Ok ok) {
                     visit((Header.File) ok);
+                    if (headers.hasNext()) {
+                        ok.accept = protocol.decodeCompressions(headers.next());
+                    }
+                }
+
+                public void visit(Header.Resume resume) {
+                    visit((Header.File) resume);
+                    resume.offset = Long.parseLong(headers.next());
+                    if (headers.hasNext()) {
+                        resume.accept = protocol.decodeCompressions(headers.next());
+                    }
                 }
 
                 public void visit(Header.Get get) {
                     visit((Header.File) get);
+                    if (headers.hasNext()) {
+                        get.offset = Long.parseLong(headers.next());
+                        get.length = Long.parseLong(headers.next());
+                    }
+                    if (headers.hasNext()) {
+                        String hash = headers.next();
+                        get.hash = hash.equals(protocol.noHash()) ? null : HashCodes.fromBytes(protocol.hashEncoding().decode(hash));
+                    }
+                    if (headers.hasNext()) {
+                        get.accept = protocol.decodeCompressions(headers.next());
+                    }
                 }
 
                 public void visit(Header.Put put) {
                     visit((Header.File) put);
-                    put.hash = HashCodes.fromBytes(protocol.hashEncoding().decode(headers.next()));
+                    String hash = headers.next();
+                    put.hash = hash.equals(protocol.noHash()) ? null : HashCodes.fromBytes(protocol.hashEncoding().decode(hash));
                     put.size = Long.parseLong(headers.next());
+                    if (headers.hasNext()) {
+                        put.offset = Long.parseLong(headers.next());
+                    }
+                    if (headers.hasNext()) {
+                        put.delta = headers.next().equals(protocol.delta());
+                    }
+                }
+
+                public void visit(Header.Signatures signatures) {
+                    visit((Header.File) signatures);
+                    signatures.blockSize = Integer.parseInt(headers.next());
+                    signatures.baseSize = Long.parseLong(headers.next());
+                    signatures.size = Long.parseLong(headers.next());
+                    if (headers.hasNext()) {
+                        signatures.accept = protocol.decodeCompressions(headers.next());
+                    }
+                }
+
+                public void visit(Header.Delta delta) {
+                    visit((Header.File) delta);
+                    delta.size = Long.parseLong(headers.next());
+                }
+
+                public void visit(Header.Trailer trailer) {
+                    visit((Header.File) trailer);
+                    trailer.size = Long.parseLong(headers.next());
+                    trailer.hash = HashCodes.fromBytes(protocol.hashEncoding().decode(headers.next()));
+                }
+
+                public void visit(Header.Bundle bundle) {
+                    bundle.get = headers.next().equals(protocol.get());
+                    bundle.count = Integer.parseInt(headers.next());
+                    bundle.size = Long.parseLong(headers.next());
+                }
+
+                public void visit(Header.Stat stat) {
+                    stat.count = Integer.parseInt(headers.next());
+                    stat.size = Long.parseLong(headers.next());
+                }
+
+                public void visit(Header.Listing listing) {
+                    throw new ProtocolException("Text headers cannot carry listings");
+                }
+
+                public void visit(Header.Watch watch) {
+                    throw new ProtocolException("Text headers cannot carry watches");
+                }
+
+                public void visit(Header.Changed changed) {
+                    throw new ProtocolException("Text headers cannot carry changes");
+                }
+
+                public void visit(Header.Copy copy) {
+                    visit((Header.File) copy);
+                    copy.to = headers.next();
+                    copy.move = headers.next().equals(protocol.move());
                 }
 
                 public void visit(Header.Delegate delegate) {
@@ -96,6 +191,11 @@ public class HeaderCodec {
                     delegate.rights = protocol.decodeRights(headers.next());
                     delegate.expiration = new Instant(Long.parseLong(headers.next()));
                 }
+
+                public void visit(Header.Delegations delegations) {
+                    delegations.count = Integer.parseInt(headers.next());
+                    delegations.size = Long.parseLong(headers.next());
+                }
             });
 
             return header;
@@ -135,18 +235,107 @@ public class HeaderCodec {
                     visit((Header.File) nonexistent);
                 }
 
+                public void visit(Header.NotModified notModified) {
+                    visit((Header.File) notModified);
+                }
+
                 public void visit(Header.Ok ok) {
                     visit((Header.File) ok);
+                    if (!ok.accept.isEmpty()) {
+                        headers.add(protocol.encodeCompressions(ok.accept));
+                    }
+                }
+
+                public void visit(Header.Resume resume) {
+                    visit((Header.File) resume);
+                    headers.add(String.valueOf(resume.offset));
+                    if (!resume.accept.isEmpty()) {
+                        headers.add(protocol.encodeCompressions(resume.accept));
+                    }
                 }
 
                 public void visit(Header.Get get) {
                     visit((Header.File) get);
+                    // Servers that predate ranges ignore the extra fields and send the whole file
+                    if (get.isRange() || get.hash != null || !get.accept.isEmpty()) {
+                        headers.add(String.valueOf(get.offset));
+                        headers.add(String.valueOf(get.length));
+                    }
+                    if (get.hash != null || !get.accept.isEmpty()) {
+                        headers.add(get.hash == null ? protocol.noHash() : protocol.hashEncoding().encode(get.hash.asBytes()));
+                    }
+                    if (!get.accept.isEmpty()) {
+                        headers.add(protocol.encodeCompressions(get.accept));
+                    }
                 }
 
                 public void visit(Header.Put put) {
+                    // Text bodies are unframed, so must follow their header and be of known size
+                    if (put.content != null || put.trailer || put.append) {
+                        throw new IllegalArgumentException("Text headers cannot carry inline, trailed or appended puts");
+                    }
                     visit((Header.File) put);
-                    headers.add(protocol.hashEncoding().encode(put.hash.asBytes()));
+                    headers.add(put.hash == null ? protocol.noHash() : protocol.hashEncoding().encode(put.hash.asBytes()));
                     headers.add(String.valueOf(put.size));
+                    if (put.offset != 0 || put.delta) {
+                        headers.add(String.valueOf(put.offset));
+                    }
+                    // Servers that predate deltas ignore this and take the whole file
+                    if (put.delta) {
+                        headers.add(protocol.delta());
+                    }
+                }
+
+                public void visit(Header.Signatures signatures) {
+                    visit((Header.File) signatures);
+                    headers.add(String.valueOf(signatures.blockSize));
+                    headers.add(String.valueOf(signatures.baseSize));
+                    headers.add(String.valueOf(signatures.size));
+                    if (!signatures.accept.isEmpty()) {
+                        headers.add(protocol.encodeCompressions(signatures.accept));
+                    }
+                }
+
+                public void visit(Header.Delta delta) {
+                    visit((Header.File) delta);
+                    headers.add(String.valueOf(delta.size));
+                }
+
+                public void visit(Header.Trailer trailer) {
+                    visit((Header.File) trailer);
+                    headers.add(String.valueOf(trailer.size));
+                    headers.add(protocol.hashEncoding().encode(trailer.hash.asBytes()));
+                }
+
+                public void visit(Header.Bundle bundle) {
+                    headers.add(bundle.get ? protocol.get() : protocol.put());
+                    headers.add(String.valueOf(bundle.count));
+                    headers.add(String.valueOf(bundle.size));
+                }
+
+                public void visit(Header.Stat stat) {
+                    headers.add(String.valueOf(stat.count));
+                    headers.add(String.valueOf(stat.size));
+                }
+
+                public void visit(Header.Listing listing) {
+                    // An empty prefix or continuation would end the header early
+                    throw new IllegalArgumentException("Text headers cannot carry listings");
+                }
+
+                public void visit(Header.Watch watch) {
+                    // The server could never push changes without interleaving them with bodies
+                    throw new IllegalArgumentException("Text headers cannot carry watches");
+                }
+
+                public void visit(Header.Changed changed) {
+                    throw new IllegalArgumentException("Text headers cannot carry changes");
+                }
+
+                public void visit(Header.Copy copy) {
+                    visit((Header.File) copy);
+                    headers.add(copy.to);
+                    headers.add(copy.move ? protocol.move() : protocol.copy());
                 }
 
                 public void visit(Header.Delegate delegate) {
@@ -155,10 +344,15 @@ public class HeaderCodec {
                     headers.add(protocol.encodeRights(delegate.rights));
                     headers.add(String.valueOf(delegate.expiration.getMillis()));
                 }
+
+                public void visit(Header.Delegations delegations) {
+                    headers.add(String.valueOf(delegations.count));
+                    headers.add(String.valueOf(delegations.size));
+                }
             });
 
             String encoded = protocol.encodeHeaders(headers);
-            log.info("encoded headers\n{}\n", encoded);
+            log.trace("encoded headers\n{}\n", encoded);
             return encoded;
         }
     }
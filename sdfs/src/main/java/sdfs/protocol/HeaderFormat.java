@@ -0,0 +1,27 @@
+package sdfs.protocol;
+
+public enum HeaderFormat {
+
+    Text("text"),
+    Binary("binary");
+
+    private final String marshaled;
+
+    private HeaderFormat(String marshaled) {
+        this.marshaled = marshaled;
+    }
+
+    public String marshal() {
+        return marshaled;
+    }
+
+    public static HeaderFormat unmarshal(String s) {
+        for (HeaderFormat format : values()) {
+            if (format.marshaled.equals(s)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown header format: " + s);
+    }
+
+}
@@ -20,33 +20,64 @@ public class InboundFile {
     private static final Logger log = LoggerFactory.getLogger(InboundFile.class);
 
     private final OutputStream dest;
-    public final long size;
+    /** {@link #UNKNOWN_SIZE} until a file received without knowing its size is {@link #end}ed. */
+    public long size;
+    private final long offset;
     private long count;
     private final Hasher hasher;
-    private final HashCode expectedHash;
+    private HashCode expectedHash;
     private final Stopwatch stopwatch;
 
     private HashCode hash;
 
+    public static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
+    /**
+     * Receives a file of {@code size} bytes; its hash is not checked if {@code expectedHash} is null.
+     * The size is no hint to a streaming hash, and past 2 GB no int either, so the hasher gets none.
+     */
     public InboundFile(OutputStream dest, long size, HashFunction hashFunction, HashCode expectedHash) {
-        hasher = hashFunction.newHasher((int) size);
+        this(dest, size, 0, expectedHash == null ? null : hashFunction.newHasher(), expectedHash);
+    }
+
+    /**
+     * Receives the rest of a file from {@code offset} on. The hasher must already have been given
+     * the bytes before the offset.
+     */
+    public InboundFile(OutputStream dest, long size, long offset, Hasher hasher, HashCode expectedHash) {
+        this.hasher = hasher;
         this.expectedHash = expectedHash;
         this.dest = new HashingOutputStream(dest, hasher);
         this.size = size;
+        this.offset = offset;
+        count = offset;
         stopwatch = new Stopwatch().start();
     }
 
+    /** Receives a file until it is {@link #end}ed, which only a multiplexed transfer can do. */
+    public static InboundFile ofUnknownSize(OutputStream dest, HashFunction hashFunction) {
+        return new InboundFile(dest, UNKNOWN_SIZE, 0, hashFunction.newHasher(), null);
+    }
+
+    /** Bytes still to be received. */
+    public long remaining() {
+        return size - count;
+    }
+
     public String transferTime() {
         return stopwatch.toString();
     }
 
     public String transferRate() {
-        return Output.transferRate(size, stopwatch);
+        return Output.transferRate(size - offset, stopwatch);
     }
 
-    /** Reads from the given input buffer. Returns true iff done receiving the file and hash matches correctly. */
+    /**
+     * Reads from the given input buffer, up to the end of the file; anything after that is left in
+     * the buffer. Returns true iff done receiving the file and hash matches correctly.
+     */
     public boolean read(ChannelBuffer in) throws IOException {
-        in.readBytes(dest, in.readableBytes());
+        in.readBytes(dest, (int) Math.min(in.readableBytes(), size - count));
         if (count == size) {
             close();
             return true;
@@ -59,13 +90,32 @@ public class InboundFile {
         dest.close();
 
         stopwatch.stop();
-        log.info("Received file ({} bytes) in {} ({})", size, stopwatch, transferRate());
+        log.info("Received file ({} bytes) in {} ({})", size - offset, stopwatch, transferRate());
 
         checkHashMatches();
     }
 
+    /**
+     * Finishes a file of unknown size, once the sender has said how big it was and what it hashes
+     * to. Throws if that isn't what was received.
+     */
+    void end(long size, HashCode hash) throws IOException {
+        checkState(this.size == UNKNOWN_SIZE);
+        if (count != size) {
+            throw new IOException("Received " + count + " bytes but expected " + size);
+        }
+        this.size = size;
+        expectedHash = hash;
+        close();
+    }
+
+    /** Closes the destination after a failed transfer, without checking the hash. */
+    void abort() throws IOException {
+        dest.close();
+    }
+
     private void checkHashMatches() throws HashMismatchException {
-        if (!expectedHash.equals(hash())) {
+        if (expectedHash != null && !expectedHash.equals(hash())) {
             throw new HashMismatchException(expectedHash, hash());
         }
     }
@@ -90,14 +140,18 @@ public class InboundFile {
         @Override
         public void write(int b) throws IOException {
             out.write(b);
-            hasher.putByte((byte) b);
+            if (hasher != null) {
+                hasher.putByte((byte) b);
+            }
             count++;
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             out.write(b, off, len);
-            hasher.putBytes(b, off, len);
+            if (hasher != null) {
+                hasher.putBytes(b, off, len);
+            }
             count += len;
         }
     }
@@ -7,16 +7,30 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
+/**
+ * Receives the raw body that a {@link TextHeaderFramer} passes up after a header, then removes itself.
+ * Given a {@link WriteBehind.Queue}, it hands the body to that to be written, and waits for it to
+ * catch up only once the last of the body has arrived.
+ */
 public class InboundFileHandler extends SimpleChannelUpstreamHandler implements LifeCycleAwareChannelHandler {
 
     private static final Logger log = LoggerFactory.getLogger(InboundFileHandler.class);
 
     private final InboundFile inboundFile;
+    /** Null when the body is written as it is received. */
+    private final WriteBehind.Queue queue;
+    private long remaining;
 
     private ChannelFuture transferFuture;
 
     public InboundFileHandler(InboundFile inboundFile) {
+        this(inboundFile, null);
+    }
+
+    public InboundFileHandler(InboundFile inboundFile, WriteBehind.Queue queue) {
         this.inboundFile = inboundFile;
+        this.queue = queue;
+        remaining = inboundFile.remaining();
     }
 
     public void beforeAdd(ChannelHandlerContext ctx) throws Exception {
@@ -32,24 +46,51 @@ public class InboundFileHandler extends SimpleChannelUpstreamHandler implements
     }
 
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        ChannelBuffer buf = (ChannelBuffer) e.getMessage();
-        if (inboundFile.read(buf)) {
+        if (!(e.getMessage() instanceof Frame.Data)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        if (read(((Frame.Data) e.getMessage()).data)) {
             log.info("Finished receiving inbound file ({} bytes)", inboundFile.size);
             ctx.getPipeline().remove(this);
             transferFuture.setSuccess();
         }
     }
 
+    private boolean read(ChannelBuffer data) throws Exception {
+        if (queue == null) {
+            return inboundFile.read(data);
+        }
+        remaining -= data.readableBytes();
+        queue.offer(data);
+        return remaining <= 0 && queue.drain();
+    }
+
+    private void abort() throws InterruptedException {
+        if (queue != null) {
+            queue.stop();
+        }
+        try {
+            inboundFile.abort();
+        } catch (IOException ignored) {
+        }
+    }
+
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         Throwable cause = e.getCause();
         log.error("File transfer error", cause);
         if (transferFuture != null) {
-            try {
-                inboundFile.close();
-            } catch (IOException ignored) {
-            }
+            abort();
             transferFuture.setFailure(cause);
         }
         ctx.getChannel().close();
     }
+
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (!transferFuture.isDone()) {
+            abort();
+            transferFuture.setFailure(new IOException("Channel closed before file was received"));
+        }
+        ctx.sendUpstream(e);
+    }
 }
@@ -0,0 +1,148 @@
+package sdfs.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressor and decompressor for the LZ4 block format: a sequence of literal runs, each followed by
+ * a copy of earlier output. It only finds matches through a small hash table, trading ratio for
+ * speed.
+ */
+final class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    private Lz4Block() { }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /** Compresses into {@code dest}, which must hold {@link #maxCompressedLength}, and returns the compressed length. */
+    static int compress(byte[] src, int off, int len, byte[] dest) {
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+
+        int end = off + len;
+        int matchLimit = end - LAST_LITERALS;
+        int anchor = off;
+        int ip = off;
+        int op = 0;
+
+        if (len >= MATCH_FIND_LIMIT + 1) {
+            int limit = end - MATCH_FIND_LIMIT;
+            while (ip < limit) {
+                int sequence = readInt(src, ip);
+                int h = (sequence * -1640531535) >>> (32 - HASH_BITS);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, dest, op, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeSequence(src, anchor, end - anchor, dest, op, 0, 0);
+    }
+
+    /** A match length of zero writes the final, literals-only sequence. */
+    private static int writeSequence(byte[] src, int literals, int literalLength, byte[] dest, int op,
+                                     int offset, int matchLength) {
+        int token = op++;
+        dest[token] = (byte) (Math.min(literalLength, 15) << 4);
+        op = writeLength(dest, op, literalLength);
+        System.arraycopy(src, literals, dest, op, literalLength);
+        op += literalLength;
+        if (matchLength == 0) {
+            return op;
+        }
+        dest[op++] = (byte) offset;
+        dest[op++] = (byte) (offset >>> 8);
+        dest[token] |= (byte) Math.min(matchLength - MIN_MATCH, 15);
+        return writeLength(dest, op, matchLength - MIN_MATCH);
+    }
+
+    /** Writes what of a length doesn't fit in its 4 bits of the token. */
+    private static int writeLength(byte[] dest, int op, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dest[op++] = (byte) 255;
+                length -= 255;
+            }
+            dest[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    /** Decompresses exactly {@code dest.length} bytes. */
+    static void decompress(byte[] src, int off, int len, byte[] dest) throws IOException {
+        int end = off + len;
+        int ip = off;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (ip + literalLength > end || op + literalLength > dest.length) {
+                    throw new IOException("Literals overrun the block");
+                }
+                System.arraycopy(src, ip, dest, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == end) {
+                    break;
+                }
+
+                int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                if (offset == 0 || offset > op) {
+                    throw new IOException("Match offset " + offset + " out of range");
+                }
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (op + matchLength > dest.length) {
+                    throw new IOException("Match overruns the block");
+                }
+                // Byte by byte, since a match may overlap the bytes it produces
+                for (int ref = op - offset, stop = op + matchLength; op < stop; ) {
+                    dest[op++] = dest[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated block", e);
+        }
+        if (op != dest.length) {
+            throw new IOException("Block decompressed to " + op + " bytes, expected " + dest.length);
+        }
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
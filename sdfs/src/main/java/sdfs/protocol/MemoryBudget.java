@@ -0,0 +1,223 @@
+package sdfs.protocol;
+
+import com.typesafe.config.Config;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import sdfs.Output;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounds the bytes in flight over every connection at once: chunks written but not yet sent, bytes
+ * received but still waiting for a worker, and bodies received but not yet written to disk. Each
+ * connection has a {@link Share} in its pipeline and may hold an equal part of the budget. One that
+ * holds its part, or finds the budget spent, is paused, not failed: its outbound bodies make no more
+ * chunks and its uploads aren't read, until enough of what it and the others hold has gone.
+ *
+ * A connection with nothing in flight may always go on, so that none waits forever on the rest;
+ * the budget can be overrun by at most a chunk or a read for each connection.
+ */
+public class MemoryBudget {
+
+    private final long limit;
+
+    private long used;
+    private int connections;
+    private final Set<Share> waiting = new LinkedHashSet<>();
+
+    public MemoryBudget(long limit) {
+        checkArgument(limit > 0, "Transfer memory budget %s", limit);
+        this.limit = limit;
+    }
+
+    public static MemoryBudget fromConfig(Config config) {
+        return new MemoryBudget(config.getBytes("sdfs.transfer-memory"));
+    }
+
+    /**
+     * The handler that accounts for one connection; it must sit below the chunker and just before
+     * the workers, with its {@link Share#handled} just after them.
+     */
+    public Share newShare() {
+        return new Share();
+    }
+
+    /** Gates {@code input} by the share in {@code pipeline}, if it has one. */
+    static ChunkedInput gate(ChannelPipeline pipeline, ChunkedInput input) {
+        Share share = pipeline.get(Share.class);
+        return share == null ? input : share.gate(input);
+    }
+
+    /** What each connection may hold. */
+    private long fairShare() {
+        return limit / Math.max(1, connections);
+    }
+
+    public synchronized String toString() {
+        return String.format("Transfer buffers: %s of %s in use by %d connections (%s each)",
+                Output.transferSize(used), Output.transferSize(limit), connections,
+                Output.transferSize(fairShare()));
+    }
+
+    /** Runs what waits on every share that now has room. */
+    private void wake() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            for (Share share : new ArrayList<>(waiting)) {
+                if (share.hasRoomLocked()) {
+                    waiting.remove(share);
+                    ready.addAll(share.waiters);
+                    share.waiters.clear();
+                }
+            }
+        }
+        for (Runnable waiter : ready) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * One connection's part of the budget. It counts every buffer written down the pipeline until
+     * its write completes, and every buffer received until a worker has handled it; uploads count
+     * what they hold themselves. What waits for the workers doesn't pause reads here, since the
+     * workers' own limit on each channel does that, but it leaves less room for the rest.
+     */
+    public final class Share extends SimpleChannelHandler {
+
+        private long held;
+        private final Set<Runnable> waiters = new LinkedHashSet<>();
+
+        private Channel channel;
+
+        /** Wakes the chunker, or the multiplexer, as if the channel had drained. */
+        private final Runnable resumeOutbound = new Runnable() {
+            public void run() {
+                Channels.fireChannelInterestChangedLater(channel);
+            }
+        };
+
+        private Share() { }
+
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            channel = ctx.getChannel();
+            synchronized (MemoryBudget.this) {
+                connections++;
+            }
+            ctx.sendUpstream(e);
+        }
+
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            synchronized (MemoryBudget.this) {
+                connections--;
+                waiting.remove(this);
+                waiters.clear();
+            }
+            // The rest may each hold more now
+            wake();
+            ctx.sendUpstream(e);
+        }
+
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if (e.getMessage() instanceof ChannelBuffer) {
+                acquire(((ChannelBuffer) e.getMessage()).readableBytes());
+            }
+            ctx.sendUpstream(e);
+        }
+
+        /** Lets go of each buffer {@link #messageReceived} counted once the handlers past it are done with it. */
+        public ChannelUpstreamHandler handled() {
+            return new ChannelUpstreamHandler() {
+                public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+                    if (!(e instanceof MessageEvent) || !(((MessageEvent) e).getMessage() instanceof ChannelBuffer)) {
+                        ctx.sendUpstream(e);
+                        return;
+                    }
+                    // Read before the framer consumes it
+                    int length = ((ChannelBuffer) ((MessageEvent) e).getMessage()).readableBytes();
+                    try {
+                        ctx.sendUpstream(e);
+                    } finally {
+                        release(length);
+                    }
+                }
+            };
+        }
+
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if (e.getMessage() instanceof ChannelBuffer) {
+                final int length = ((ChannelBuffer) e.getMessage()).readableBytes();
+                acquire(length);
+                e.getFuture().addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        release(length);
+                    }
+                });
+            }
+            ctx.sendDownstream(e);
+        }
+
+        /** Counts {@code bytes} more as held by this connection. */
+        void acquire(long bytes) {
+            synchronized (MemoryBudget.this) {
+                held += bytes;
+                used += bytes;
+            }
+        }
+
+        /** Counts {@code bytes} as no longer held, and wakes whoever that makes room for. */
+        void release(long bytes) {
+            synchronized (MemoryBudget.this) {
+                held -= bytes;
+                used -= bytes;
+            }
+            wake();
+        }
+
+        /**
+         * Whether this connection may put more in flight. If not, {@code waiter} is run once it may,
+         * unless the connection closes first.
+         */
+        boolean hasRoom(Runnable waiter) {
+            synchronized (MemoryBudget.this) {
+                if (hasRoomLocked()) {
+                    return true;
+                }
+                waiters.add(waiter);
+                waiting.add(this);
+                return false;
+            }
+        }
+
+        private boolean hasRoomLocked() {
+            return held == 0 || (held < fairShare() && used < limit);
+        }
+
+        /** Makes no chunks of {@code input} while this connection has no room. */
+        ChunkedInput gate(final ChunkedInput input) {
+            return new ChunkedInput() {
+                public boolean hasNextChunk() throws Exception {
+                    return input.hasNextChunk();
+                }
+
+                /** Null for now, which has the chunker wait until it is woken. */
+                public Object nextChunk() throws Exception {
+                    return hasRoom(resumeOutbound) ? input.nextChunk() : null;
+                }
+
+                public boolean isEndOfInput() throws Exception {
+                    return input.isEndOfInput();
+                }
+
+                public void close() throws Exception {
+                    input.close();
+                }
+            };
+        }
+    }
+}
@@ -43,10 +43,44 @@ public class Protocol {
     }
     private final ChannelBuffer headerDelimiter = ChannelBuffers.copiedBuffer(endHeader(), headerCharset());
 
+    /**
+     * Sent by a client before its first header to select the binary header format. Text clients
+     * never begin with a zero byte, so the server can tell the two apart by the first byte alone.
+     */
+    public ChannelBuffer binaryPreface() {
+        return ChannelBuffers.wrappedBuffer(BINARY_PREFACE);
+    }
+    private static final byte[] BINARY_PREFACE = { 0, 'S', 'D', 'F', 'S', 1 };
+
     public int maxHeaderLength() {
         return 8192;
     }
 
+    /** Largest frame of the multiplexed data channel, including its framing. */
+    public int maxDataFrameLength() {
+        return streamWindow() + maxHeaderLength();
+    }
+
+    /** Largest file a put may carry in its header, on top of {@link #maxHeaderLength()}. */
+    public int maxInlinePutSize() {
+        return streamWindow();
+    }
+
+    /** Largest body of names a client may ask for a bundle of files, or their stats, with. */
+    public int maxBundleRequestLength() {
+        return 64 * 1024 * 1024;
+    }
+
+    /** Most names the server lists in one page. */
+    public int maxListingPage() {
+        return 10000;
+    }
+
+    /** Bytes a multiplexed stream may have in flight before the receiver grants it more. */
+    public int streamWindow() {
+        return 256 * 1024;
+    }
+
     public Charset headerCharset() {
         return StandardCharsets.UTF_8;
     }
@@ -83,10 +117,62 @@ public class Protocol {
         return "nonexistent";
     }
 
+    public String notModified() {
+        return "not-modified";
+    }
+
     public String ok() {
         return "ok";
     }
 
+    public String resume() {
+        return "resume";
+    }
+
+    public String signatures() {
+        return "signatures";
+    }
+
+    public String delta() {
+        return "delta";
+    }
+
+    public String trailer() {
+        return "trailer";
+    }
+
+    public String bundle() {
+        return "bundle";
+    }
+
+    public String stat() {
+        return "stat";
+    }
+
+    public String delegations() {
+        return "delegations";
+    }
+
+    public String list() {
+        return "list";
+    }
+
+    public String watch() {
+        return "watch";
+    }
+
+    public String changed() {
+        return "changed";
+    }
+
+    public String copy() {
+        return "copy";
+    }
+
+    public String move() {
+        return "move";
+    }
+
     public String encodeRights(Iterable<Right> rights) {
         return Joiner.on(" ").join(FluentIterable.from(rights).transform(new Function<Right, Object>() {
             public String apply(Right right) {
@@ -142,6 +228,26 @@ public class Protocol {
         throw new ProtocolException("Invalid access type: " + accessType);
     }
 
+    public String encodeCompressions(List<Compression> compressions) {
+        return Joiner.on(" ").join(FluentIterable.from(compressions).transform(new Function<Compression, String>() {
+            public String apply(Compression compression) {
+                return compression.marshal();
+            }
+        }));
+    }
+
+    /** Decodes the compressions named in a header, skipping any this end doesn't know. */
+    public List<Compression> decodeCompressions(String s) {
+        ImmutableList.Builder<Compression> compressions = ImmutableList.builder();
+        for (String name : Splitter.on(" ").omitEmptyStrings().split(s)) {
+            try {
+                compressions.add(Compression.unmarshal(name));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return compressions.build();
+    }
+
     public HashFunction fileHashFunction() {
         return Hashing.sha512();
     }
@@ -149,4 +255,9 @@ public class Protocol {
     public BaseEncoding hashEncoding() {
         return BaseEncoding.base64();
     }
+
+    /** Stands in for the hash of a partial file. An empty line would end the header. */
+    public String noHash() {
+        return "-";
+    }
 }
@@ -0,0 +1,53 @@
+package sdfs.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+import java.io.IOException;
+
+/**
+ * The original unframed transport: a body is the raw bytes that follow its header, so a channel
+ * can only carry one transfer at a time.
+ */
+public final class RawTransport implements Transport {
+
+    private static final RawTransport instance = new RawTransport();
+
+    private RawTransport() { }
+
+    /** The multiplexer if the pipeline has one, otherwise the raw transport. */
+    public static Transport of(ChannelPipeline pipeline) {
+        Transport mux = pipeline.get(StreamMultiplexer.class);
+        return mux != null ? mux : instance;
+    }
+
+    public ChannelFuture send(ChannelHandlerContext ctx, CorrelationId id, ChunkedInput input) {
+        return ctx.getChannel().write(MemoryBudget.gate(ctx.getPipeline(), input));
+    }
+
+    /** Raw bodies have no frames to compress, so this sends the input as it is. */
+    public ChannelFuture send(ChannelHandlerContext ctx, CorrelationId id, ChunkedInput input, Compression compression) {
+        return send(ctx, id, input);
+    }
+
+    public ChannelFuture receive(ChannelHandlerContext ctx, CorrelationId id, InboundFile file) {
+        if (file.remaining() == 0) {
+            try {
+                file.read(ChannelBuffers.EMPTY_BUFFER);
+                return Channels.succeededFuture(ctx.getChannel());
+            } catch (IOException e) {
+                return Channels.failedFuture(ctx.getChannel(), e);
+            }
+        }
+        WriteBehind writeBehind = ctx.getPipeline().get(WriteBehind.class);
+        InboundFileHandler handler = new InboundFileHandler(file, writeBehind == null ? null
+                : writeBehind.queue(ctx.getChannel(), file, ctx.getPipeline().get(MemoryBudget.Share.class)));
+        ctx.getPipeline().addAfter("headerDecoder", "inboundFile", handler);
+        ctx.getPipeline().get(TextHeaderFramer.class).expectBody(id, file.remaining());
+        return handler.transferFuture();
+    }
+}
@@ -0,0 +1,108 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashCodes;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import sdfs.sdfs.Right;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bodies of a {@link Header.Stat}. The client names files as for a {@link Bundle} request; the
+ * server answers with a run of entries of {@code name, status}, followed for a file the client may
+ * get by {@code size, hash, rights}, and for one it may not by just {@code rights}. Statuses are
+ * those of a bundle.
+ */
+public final class Stat {
+
+    private Stat() { }
+
+    public static final class Entry {
+        public final String name;
+        public final byte status;
+        public final long size;
+        public final HashCode hash;
+
+        /** What the client may do with the file: get, put, and delegate either. */
+        public final List<Right> rights;
+
+        public Entry(String name, long size, HashCode hash, Iterable<Right> rights) {
+            this(name, Bundle.OK, size, hash, rights);
+        }
+
+        /** An entry for a file that the client may not get, with what it may do instead. */
+        public Entry(String name, Iterable<Right> rights) {
+            this(name, Bundle.PROHIBITED, 0, null, rights);
+        }
+
+        /** An entry for a file that isn't there. */
+        public Entry(String name) {
+            this(name, Bundle.NONEXISTENT, 0, null, ImmutableList.<Right>of());
+        }
+
+        private Entry(String name, byte status, long size, HashCode hash, Iterable<Right> rights) {
+            this.name = name;
+            this.status = status;
+            this.size = size;
+            this.hash = hash;
+            this.rights = ImmutableList.copyOf(rights);
+        }
+    }
+
+    public static byte[] entries(Protocol protocol, Iterable<Entry> entries) {
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer(4096);
+        for (Entry entry : entries) {
+            BinaryHeaderCodec.writeBytes(out, entry.name.getBytes(protocol.headerCharset()));
+            out.writeByte(entry.status);
+            if (entry.status == Bundle.OK) {
+                Varints.writeVarLong(out, entry.size);
+                BinaryHeaderCodec.writeBytes(out, entry.hash.asBytes());
+            }
+            if (entry.status == Bundle.OK || entry.status == Bundle.PROHIBITED) {
+                BinaryHeaderCodec.writeRights(out, entry.rights);
+            }
+        }
+        byte[] body = new byte[out.readableBytes()];
+        out.readBytes(body);
+        return body;
+    }
+
+    public static List<Entry> readEntries(Protocol protocol, byte[] body, int count) {
+        // Every entry takes at least the bytes giving its name's length and its status
+        if (count < 0 || count > body.length / 2) {
+            throw new ProtocolException("Body of " + body.length + " bytes cannot answer " + count + " files");
+        }
+        ChannelBuffer in = ChannelBuffers.wrappedBuffer(body);
+        List<Entry> entries = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = new String(BinaryHeaderCodec.readBytes(in), protocol.headerCharset());
+                byte status = in.readByte();
+                switch (status) {
+                    case Bundle.OK:
+                        long size = Varints.readVarLong(in);
+                        HashCode hash = HashCodes.fromBytes(BinaryHeaderCodec.readBytes(in));
+                        entries.add(new Entry(name, size, hash, BinaryHeaderCodec.readRights(in)));
+                        break;
+                    case Bundle.PROHIBITED:
+                        entries.add(new Entry(name, BinaryHeaderCodec.readRights(in)));
+                        break;
+                    case Bundle.NONEXISTENT:
+                        entries.add(new Entry(name));
+                        break;
+                    default:
+                        throw new ProtocolException("Unknown stat status " + status);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException("Stat answers fewer than " + count + " files");
+        }
+        if (in.readable()) {
+            throw new ProtocolException("Stat answers more than " + count + " files");
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,393 @@
+package sdfs.protocol;
+
+import com.google.common.hash.HashCode;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries any number of concurrent file bodies over one channel as {@link Frame.Data} frames keyed
+ * by the {@link CorrelationId} of their request.
+ *
+ * Outbound streams take turns sending one chunk at a time while the channel is writable, so a
+ * small transfer is never queued behind the whole of a large one. Each stream may only have
+ * {@link Protocol#streamWindow()} bytes unacknowledged; the receiver grants more with
+ * {@link Frame.Window} frames as it consumes them.
+ */
+public class StreamMultiplexer extends SimpleChannelHandler implements Transport, LifeCycleAwareChannelHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamMultiplexer.class);
+
+    private final int streamWindow;
+
+    private final Map<CorrelationId, OutboundStream> outbound = new LinkedHashMap<>();
+    private final Map<CorrelationId, InboundStream> inbound = new HashMap<>();
+
+    /**
+     * Streams' futures settled while holding the lock, to be completed once it has been let go of:
+     * their listeners may commit files, and must neither hold up nor call back into the rest.
+     */
+    private final List<Runnable> settled = new ArrayList<>();
+
+    private ChannelHandlerContext ctx;
+
+    public StreamMultiplexer(Protocol protocol) {
+        streamWindow = protocol.streamWindow();
+    }
+
+    public void beforeAdd(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    public void afterAdd(ChannelHandlerContext ctx) throws Exception { }
+    public void beforeRemove(ChannelHandlerContext ctx) throws Exception { }
+    public void afterRemove(ChannelHandlerContext ctx) throws Exception { }
+
+    public ChannelFuture send(ChannelHandlerContext ctx, CorrelationId id, ChunkedInput input) {
+        return send(ctx, id, input, Compression.None);
+    }
+
+    public ChannelFuture send(ChannelHandlerContext ignored, CorrelationId id, ChunkedInput input,
+                              Compression compression) {
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        synchronized (this) {
+            if (outbound.containsKey(id)) {
+                future.setFailure(new ProtocolException("Already sending stream " + id));
+                return future;
+            }
+            outbound.put(id, new OutboundStream(id, MemoryBudget.gate(ctx.getPipeline(), input), compression, future));
+            flush();
+        }
+        completeSettled();
+        return future;
+    }
+
+    public ChannelFuture receive(ChannelHandlerContext ignored, CorrelationId id, InboundFile file) {
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        synchronized (this) {
+            if (inbound.containsKey(id)) {
+                future.setFailure(new ProtocolException("Already receiving stream " + id));
+                return future;
+            }
+            InboundStream stream = new InboundStream(id, file, future);
+            if (file.remaining() == 0) {
+                stream.read(ChannelBuffers.EMPTY_BUFFER);
+            } else {
+                inbound.put(id, stream);
+            }
+        }
+        completeSettled();
+        return future;
+    }
+
+    /**
+     * Ends a stream being received into a file of unknown size, with the size and hash the sender
+     * gave for it. A stream that has already failed is ignored.
+     */
+    public void end(CorrelationId id, long size, HashCode hash) {
+        synchronized (this) {
+            InboundStream stream = inbound.remove(id);
+            if (stream == null) {
+                log.debug("Ignoring end of unknown stream {}", id);
+                return;
+            }
+            stream.end(size, hash);
+        }
+        completeSettled();
+    }
+
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof Frame.Data) {
+            dataReceived((Frame.Data) msg);
+        } else if (msg instanceof Frame.Window) {
+            windowReceived((Frame.Window) msg);
+        } else if (msg instanceof Frame.Reset) {
+            resetReceived((Frame.Reset) msg);
+        } else {
+            ctx.sendUpstream(e);
+        }
+    }
+
+    private void dataReceived(Frame.Data data) {
+        synchronized (this) {
+            InboundStream stream = inbound.get(data.streamId);
+            if (stream == null) {
+                log.debug("Discarding data for unknown stream {}", data.streamId);
+                return;
+            }
+            stream.read(data.data);
+        }
+        completeSettled();
+    }
+
+    private void windowReceived(Frame.Window window) {
+        synchronized (this) {
+            OutboundStream stream = outbound.get(window.streamId);
+            if (stream != null) {
+                stream.window += window.credit;
+                flush();
+            }
+        }
+        completeSettled();
+    }
+
+    private void resetReceived(Frame.Reset reset) {
+        synchronized (this) {
+            IOException cause = new IOException("Stream " + reset.streamId + " was reset by peer");
+            OutboundStream out = outbound.remove(reset.streamId);
+            if (out != null) {
+                out.fail(cause);
+            }
+            InboundStream in = inbound.remove(reset.streamId);
+            if (in != null) {
+                in.fail(cause);
+            }
+        }
+        completeSettled();
+    }
+
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (ctx.getChannel().isWritable()) {
+            synchronized (this) {
+                flush();
+            }
+            completeSettled();
+        }
+        ctx.sendUpstream(e);
+    }
+
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            ClosedChannelException cause = new ClosedChannelException();
+            for (OutboundStream stream : outbound.values()) {
+                stream.fail(cause);
+            }
+            outbound.clear();
+            for (InboundStream stream : inbound.values()) {
+                stream.fail(cause);
+            }
+            inbound.clear();
+        }
+        completeSettled();
+        ctx.sendUpstream(e);
+    }
+
+    /**
+     * Succeeds {@code future}, or fails it if there is a {@code cause}; only once the lock has been
+     * let go of, if it is held.
+     */
+    private void complete(final ChannelFuture future, final Throwable cause) {
+        Runnable completion = new Runnable() {
+            public void run() {
+                if (cause == null) {
+                    future.setSuccess();
+                } else {
+                    future.setFailure(cause);
+                }
+            }
+        };
+        if (Thread.holdsLock(this)) {
+            settled.add(completion);
+        } else {
+            completion.run();
+        }
+    }
+
+    /** Completes the futures settled under the lock; must be called without holding it. */
+    private void completeSettled() {
+        List<Runnable> ready;
+        synchronized (this) {
+            if (settled.isEmpty()) {
+                return;
+            }
+            ready = new ArrayList<>(settled);
+            settled.clear();
+        }
+        for (Runnable completion : ready) {
+            completion.run();
+        }
+    }
+
+    /** Writes chunks round-robin from every stream that has window left until the channel is saturated. */
+    private void flush() {
+        Channel channel = ctx.getChannel();
+        boolean progress = true;
+        while (progress && channel.isWritable() && !outbound.isEmpty()) {
+            progress = false;
+            for (OutboundStream stream : new ArrayList<>(outbound.values())) {
+                if (!channel.isWritable()) {
+                    break;
+                }
+                progress |= stream.writeChunk();
+            }
+        }
+    }
+
+    private void write(Object msg, ChannelFuture future) {
+        Channels.write(ctx, future, msg);
+    }
+
+    private final class OutboundStream {
+        final CorrelationId id;
+        final ChunkedInput input;
+        final Compression compression;
+        final ChannelFuture future;
+        int window = streamWindow;
+        ChannelBuffer pending;
+
+        OutboundStream(CorrelationId id, ChunkedInput input, Compression compression, ChannelFuture future) {
+            this.id = id;
+            this.input = input;
+            this.compression = compression;
+            this.future = future;
+        }
+
+        /** Returns whether any data was written. */
+        boolean writeChunk() {
+            try {
+                if (pending == null || !pending.readable()) {
+                    if (input.isEndOfInput()) {
+                        finish(Channels.succeededFuture(ctx.getChannel()));
+                        return false;
+                    }
+                    pending = (ChannelBuffer) input.nextChunk();
+                    if (pending == null) {
+                        return false;
+                    }
+                }
+                if (window <= 0) {
+                    return false;
+                }
+
+                ChannelBuffer data = pending.readSlice(Math.min(window, pending.readableBytes()));
+                window -= data.readableBytes();
+                boolean last = !pending.readable() && input.isEndOfInput();
+
+                ChannelFuture writeFuture = Channels.future(ctx.getChannel());
+                write(new Frame.Data(id, data, compression), writeFuture);
+                if (last) {
+                    finish(writeFuture);
+                } else {
+                    writeFuture.addListener(new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture written) throws Exception {
+                            if (!written.isSuccess()) {
+                                failAndRemove(written.getCause());
+                            }
+                        }
+                    });
+                }
+                return true;
+            } catch (Exception e) {
+                failAndRemove(e);
+                write(new Frame.Reset(id), Channels.future(ctx.getChannel()));
+                return false;
+            }
+        }
+
+        private void finish(ChannelFuture lastWrite) {
+            outbound.remove(id);
+            closeInput();
+            lastWrite.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture written) throws Exception {
+                    complete(future, written.isSuccess() ? null : written.getCause());
+                }
+            });
+        }
+
+        private void failAndRemove(Throwable cause) {
+            synchronized (StreamMultiplexer.this) {
+                if (outbound.remove(id) == this) {
+                    fail(cause);
+                }
+            }
+            // Under the lock, its holder completes them once it lets go
+            if (!Thread.holdsLock(StreamMultiplexer.this)) {
+                completeSettled();
+            }
+        }
+
+        void fail(Throwable cause) {
+            closeInput();
+            complete(future, cause);
+        }
+
+        private void closeInput() {
+            try {
+                input.close();
+            } catch (Exception e) {
+                log.debug("Failed to close input of stream {}", id, e);
+            }
+        }
+    }
+
+    private final class InboundStream {
+        final CorrelationId id;
+        final InboundFile file;
+        final ChannelFuture future;
+        int unacknowledged;
+
+        InboundStream(CorrelationId id, InboundFile file, ChannelFuture future) {
+            this.id = id;
+            this.file = file;
+            this.future = future;
+        }
+
+        void end(long size, HashCode hash) {
+            try {
+                file.end(size, hash);
+            } catch (Exception e) {
+                log.error("Failed to receive stream {}", id, e);
+                fail(e);
+                write(new Frame.Reset(id), Channels.future(ctx.getChannel()));
+                return;
+            }
+            complete(future, null);
+        }
+
+        void read(ChannelBuffer data) {
+            int length = data.readableBytes();
+            boolean done;
+            try {
+                done = file.read(data);
+            } catch (Exception e) {
+                log.error("Failed to receive stream {}", id, e);
+                inbound.remove(id);
+                fail(e);
+                write(new Frame.Reset(id), Channels.future(ctx.getChannel()));
+                return;
+            }
+
+            if (done) {
+                inbound.remove(id);
+                complete(future, null);
+                return;
+            }
+
+            unacknowledged += length;
+            if (unacknowledged >= streamWindow / 2) {
+                write(new Frame.Window(id, unacknowledged), Channels.future(ctx.getChannel()));
+                unacknowledged = 0;
+            }
+        }
+
+        void fail(Throwable cause) {
+            try {
+                file.abort();
+            } catch (IOException ignored) {
+            }
+            complete(future, cause);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package sdfs.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Splits text headers on the header delimiter, except while a raw file body is expected, when the
+ * next {@code size} bytes are passed up as {@link Frame.Data} instead. Because the switch happens
+ * inside the decoder, body bytes that arrive in the same read as their header are not mistaken for
+ * headers, and a header that follows a body in the same read is not lost.
+ */
+public class TextHeaderFramer extends DelimiterBasedFrameDecoder {
+
+    private CorrelationId bodyId;
+    private long bodyRemaining;
+
+    public TextHeaderFramer(Protocol protocol) {
+        super(protocol.maxHeaderLength(), protocol.headerDelimiter());
+    }
+
+    /** The next {@code size} bytes received are the body of request {@code id}. */
+    public void expectBody(CorrelationId id, long size) {
+        checkState(bodyRemaining == 0, "Already receiving a body");
+        bodyId = id;
+        bodyRemaining = size;
+    }
+
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (bodyRemaining == 0) {
+            return super.decode(ctx, channel, buffer);
+        }
+        int length = (int) Math.min(bodyRemaining, buffer.readableBytes());
+        bodyRemaining -= length;
+        return new Frame.Data(bodyId, buffer.readSlice(length));
+    }
+}
@@ -0,0 +1,24 @@
+package sdfs.protocol;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+/**
+ * Moves file content belonging to a request across a channel.
+ */
+public interface Transport {
+
+    /** Sends the input as the body of the request {@code id}. The future completes once it is all written. */
+    ChannelFuture send(ChannelHandlerContext ctx, CorrelationId id, ChunkedInput input);
+
+    /**
+     * Sends the input compressed, where the transport can. The peer must have said it accepts the
+     * compression.
+     */
+    ChannelFuture send(ChannelHandlerContext ctx, CorrelationId id, ChunkedInput input, Compression compression);
+
+    /** Receives the body of the request {@code id} into the file. The future completes once it is all read. */
+    ChannelFuture receive(ChannelHandlerContext ctx, CorrelationId id, InboundFile file);
+
+}
@@ -0,0 +1,85 @@
+package sdfs.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Unsigned LEB128 variable-length integers, as used by the binary header format.
+ */
+public final class Varints {
+
+    private Varints() { }
+
+    /** The most bytes a varint-encoded long can occupy. */
+    public static final int MAX_LONG_BYTES = 10;
+
+    public static void writeVarLong(ChannelBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    public static long readVarLong(ChannelBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_LONG_BYTES; shift += 7) {
+            if (!in.readable()) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public static int readVarInt(ChannelBuffer in) {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Varint out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    /** Writes a signed value zig-zag encoded, so small negative numbers stay short. */
+    public static void writeSignedVarLong(ChannelBuffer out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSignedVarLong(ChannelBuffer in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a varint without consuming it. Returns -1 if the buffer does not yet contain the
+     * whole varint, otherwise leaves the reader index just past it and returns the value.
+     */
+    public static long tryReadVarLong(ChannelBuffer in) {
+        int i = in.readerIndex();
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_LONG_BYTES; shift += 7) {
+            if (i >= in.writerIndex()) {
+                return -1;
+            }
+            byte b = in.getByte(i++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                in.readerIndex(i);
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+}
@@ -0,0 +1,234 @@
+package sdfs.protocol;
+
+import com.typesafe.config.Config;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Writes the raw bodies a channel receives on other threads than the one receiving them, so that
+ * a slow disk holds up only the upload it is writing. Each upload gets its own {@link Queue}; its
+ * channel isn't read while the queue holds more than the high watermark, and is again once the
+ * queue is down to the low one. What a queue holds counts against its connection's
+ * {@link MemoryBudget.Share} too, and reads also wait for that to have room. The workers' executor
+ * pauses and resumes reads of its own, so every buffer offered over the mark pauses them again.
+ *
+ * It sits in the pipeline only so that {@link RawTransport} can find it, and passes every event on.
+ */
+@ChannelHandler.Sharable
+public class WriteBehind extends SimpleChannelUpstreamHandler {
+
+    public static final class Watermarks {
+        public final long low;
+        public final long high;
+
+        public Watermarks(long low, long high) {
+            checkArgument(low >= 0 && high > low, "Write-behind watermarks %s and %s", low, high);
+            this.low = low;
+            this.high = high;
+        }
+
+        public static Watermarks fromConfig(Config config) {
+            return new Watermarks(
+                    config.getBytes("sdfs.write-behind.low-watermark"),
+                    config.getBytes("sdfs.write-behind.high-watermark"));
+        }
+    }
+
+    private final Executor writers;
+    private final Watermarks watermarks;
+
+    public WriteBehind(Executor writers, Watermarks watermarks) {
+        this.writers = writers;
+        this.watermarks = watermarks;
+    }
+
+    /**
+     * A queue to write the upload into {@code file} through, pausing reads from {@code channel}. What
+     * it holds counts against {@code share}, unless that is null.
+     */
+    Queue queue(Channel channel, InboundFile file, MemoryBudget.Share share) {
+        return new Queue(channel, file, share);
+    }
+
+    /**
+     * The buffers of one upload still to be written. At most one writer works through them at a
+     * time, so they reach the file in the order they were offered.
+     */
+    final class Queue implements Runnable {
+
+        private final Channel channel;
+        private final InboundFile file;
+        private final MemoryBudget.Share share;
+
+        private final ArrayDeque<ChannelBuffer> buffers = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean writing;
+        private boolean paused;
+        private boolean stopped;
+        private boolean finished;
+        private IOException failure;
+
+        /** Resumes reads once the budget has room, if the queue is low enough by then. */
+        private final Runnable resumeWhenLow = new Runnable() {
+            public void run() {
+                synchronized (Queue.this) {
+                    if (queuedBytes <= watermarks.low && hasRoom()) {
+                        resume();
+                    }
+                }
+            }
+        };
+
+        private Queue(Channel channel, InboundFile file, MemoryBudget.Share share) {
+            this.channel = channel;
+            this.file = file;
+            this.share = share;
+        }
+
+        /**
+         * Queues what is readable in {@code data} to be written. The buffer is consumed and copied,
+         * since the framer's slices share a cumulation buffer it may reuse once this returns.
+         * Throws if an earlier buffer has already failed to be written.
+         */
+        synchronized void offer(ChannelBuffer data) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (stopped || !data.readable()) {
+                return;
+            }
+            int length = data.readableBytes();
+            queuedBytes += length;
+            buffers.add(data.readBytes(length));
+            if (share != null) {
+                share.acquire(length);
+            }
+            if ((queuedBytes > watermarks.high || !hasRoom()) && (!paused || channel.isReadable())) {
+                // Paused again if already paused, since the workers' executor may have resumed reads
+                paused = true;
+                channel.setReadable(false);
+            }
+            if (!writing) {
+                writing = true;
+                writers.execute(this);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                ChannelBuffer buffer;
+                synchronized (this) {
+                    buffer = stopped ? null : buffers.poll();
+                    if (buffer == null) {
+                        writing = false;
+                        notifyAll();
+                        return;
+                    }
+                }
+
+                int length = buffer.readableBytes();
+                boolean done;
+                try {
+                    done = file.read(buffer);
+                } catch (Exception e) {
+                    long dropped;
+                    synchronized (this) {
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                        dropped = clear();
+                        writing = false;
+                        notifyAll();
+                        // Reads resume so that the next of the body to arrive gets the failure
+                        resume();
+                    }
+                    release(dropped);
+                    return;
+                }
+
+                synchronized (this) {
+                    finished |= done;
+                    if (stopped) {
+                        // What was being written was already let go of by stop()
+                        continue;
+                    }
+                    queuedBytes -= length;
+                }
+                release(length);
+                synchronized (this) {
+                    if (queuedBytes <= watermarks.low && hasRoom()) {
+                        resume();
+                    }
+                }
+            }
+        }
+
+        /** Whether the budget has room for this connection; if not, reads are resumed once it does. */
+        private boolean hasRoom() {
+            return share == null || share.hasRoom(resumeWhenLow);
+        }
+
+        /** Drops what hasn't been written, and returns how much that was. */
+        private long clear() {
+            long dropped = queuedBytes;
+            buffers.clear();
+            queuedBytes = 0;
+            return dropped;
+        }
+
+        /**
+         * Lets go of {@code bytes} in the budget. Never called holding this queue's lock, since that
+         * may resume other queues, which may be letting go of bytes of their own.
+         */
+        private void release(long bytes) {
+            if (share != null) {
+                share.release(bytes);
+            }
+        }
+
+        private void resume() {
+            if (paused) {
+                paused = false;
+                channel.setReadable(true);
+            }
+        }
+
+        /**
+         * Waits until everything offered has been written, and returns whether that finished the
+         * file. Throws if any of it failed to be written.
+         */
+        synchronized boolean drain() throws IOException, InterruptedException {
+            while (writing) {
+                wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return finished;
+        }
+
+        /** Drops whatever hasn't been written yet, and waits for the writer to let go of the file. */
+        void stop() throws InterruptedException {
+            long dropped;
+            synchronized (this) {
+                stopped = true;
+                dropped = clear();
+                while (writing) {
+                    wait();
+                }
+            }
+            release(dropped);
+        }
+
+        /** Bytes offered but not yet written. */
+        synchronized long queuedBytes() {
+            return queuedBytes;
+        }
+    }
+}
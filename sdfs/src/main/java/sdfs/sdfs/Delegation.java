@@ -0,0 +1,22 @@
+package sdfs.sdfs;
+
+import com.google.common.collect.ImmutableList;
+import org.joda.time.Instant;
+import sdfs.CN;
+
+import java.util.List;
+
+/** Rights to hand a principal on a resource, until they expire. */
+public final class Delegation {
+
+    public final CN to;
+    public final List<Right> rights;
+    public final Instant expiration;
+
+    public Delegation(CN to, Iterable<Right> rights, Instant expiration) {
+        this.to = to;
+        this.rights = ImmutableList.copyOf(rights);
+        this.expiration = expiration;
+    }
+
+}
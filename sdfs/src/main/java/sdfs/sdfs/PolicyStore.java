@@ -3,14 +3,25 @@ package sdfs.sdfs;
 import org.joda.time.Instant;
 import sdfs.CN;
 
+import java.util.List;
+
 public interface PolicyStore {
 
     boolean hasAccess(CN cn, String resourceName, AccessType accessType);
 
     boolean isOwner(CN cn, String resourceName);
 
+    /**
+     * The rights a principal holds on a resource now. A star right stands for being able to
+     * delegate the right.
+     */
+    List<Right> rights(CN cn, String resourceName);
+
     void grantOwner(CN cn, String resourceName);
 
     void delegate(CN from, CN to, String resourceName, Right right, Instant expiration);
 
+    /** Makes every delegation on a resource, or if any of them may not be made, none. */
+    void delegate(CN from, String resourceName, Iterable<Delegation> delegations);
+
 }
@@ -12,6 +12,7 @@ import sdfs.time.ChronosImpl;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.List;
 
 class PolicyStoreImpl implements PolicyStore {
 
@@ -43,6 +44,10 @@ class PolicyStoreImpl implements PolicyStore {
         return loadPolicy(resourceName).principalRights(cn).isOwner();
     }
 
+    public synchronized List<Right> rights(CN cn, String resourceName) {
+        return loadPolicy(resourceName).principalRights(cn).rights(chronos.now());
+    }
+
     public synchronized void grantOwner(CN cn, String resourceName) {
         savePolicy(resourceName, loadPolicy(resourceName).grantOwner(cn));
     }
@@ -53,6 +58,17 @@ class PolicyStoreImpl implements PolicyStore {
         savePolicy(resourceName, policy);
     }
 
+    public synchronized void delegate(CN from, String resourceName, Iterable<Delegation> delegations) {
+        Instant now = chronos.now();
+        Policy policy = loadPolicy(resourceName);
+        for (Delegation delegation : delegations) {
+            for (Right right : delegation.rights) {
+                policy = policy.delegate(from, delegation.to, right, delegation.expiration, now);
+            }
+        }
+        savePolicy(resourceName, policy);
+    }
+
     private Path policyFile(String resourceName) {
         return new File(resourceName).toPath().resolve("policy");
     }
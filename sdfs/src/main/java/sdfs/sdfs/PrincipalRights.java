@@ -4,6 +4,9 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigValueFactory;
 import org.joda.time.Instant;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class PrincipalRights {
 
     final Config x;
@@ -68,6 +71,22 @@ class PrincipalRights {
             || hasDelegatedRight(new Right(accessType, DelegationType.Star), now);
     }
 
+    /** Each right that may be exercised, with its star form for each that may be delegated. */
+    List<Right> rights(Instant now) {
+
+        List<Right> rights = new ArrayList<>();
+        for (AccessType accessType : AccessType.values()) {
+            Right right = new Right(accessType, DelegationType.None);
+            if (mayDo(accessType, now)) {
+                rights.add(right);
+            }
+            if (mayGrant(right, now)) {
+                rights.add(right.star());
+            }
+        }
+        return rights;
+    }
+
     PrincipalRights delegate(Right right, Instant expiration) {
 
         Instant previousExpiration = getExpiration(right);
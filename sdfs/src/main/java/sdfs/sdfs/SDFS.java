@@ -6,6 +6,8 @@ import org.joda.time.Instant;
 import sdfs.CN;
 
 import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
 
 public interface SDFS {
 
@@ -15,25 +17,137 @@ public interface SDFS {
     Put put(CN cn, String resourceName)
             throws AccessControlException, ResourceUnavailableException;
 
+    /**
+     * What a principal may learn of a resource without opening its content. Takes no lock, and so
+     * sees the version last committed even while another is being put.
+     */
+    Stat stat(CN cn, String resourceName) throws ResourceNonexistentException, IOException;
+
+    /**
+     * Names of resources that begin with {@code prefix}, in order, at most {@code limit} of them,
+     * starting after {@code after} unless that is null. Needs no rights on the resources.
+     */
+    List<String> list(String prefix, String after, int limit);
+
     void delegate(CN from, CN to, String resourceName, Right right, Instant expiration)
             throws AccessControlException, ResourceNonexistentException;
 
+    /**
+     * Makes many delegations on a resource at once, reading and writing its policy only the once.
+     * If any of them may not be made, none are.
+     */
+    void delegate(CN from, String resourceName, Iterable<Delegation> delegations)
+            throws AccessControlException, ResourceNonexistentException;
+
+    /**
+     * Copies a resource to another name without rewriting its content. Needs get rights on the
+     * source, and put rights on the target if it exists; otherwise the copier owns the copy.
+     */
+    void copy(CN cn, String resourceName, String targetName)
+            throws AccessControlException, ResourceNonexistentException, ResourceUnavailableException;
+
+    /**
+     * Renames a resource, policy and all. Needs put rights on the source, and on the target if it
+     * exists.
+     */
+    void move(CN cn, String resourceName, String targetName)
+            throws AccessControlException, ResourceNonexistentException, ResourceUnavailableException;
+
+    /**
+     * Discards suspended puts that nobody has resumed in time.
+     */
+    void expireSuspendedPuts() throws IOException;
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /**
+     * Told of each change to a resource once it has been made. Called by whoever made it, perhaps
+     * with the store locked, so must be quick and must not call back.
+     */
+    interface Listener {
+
+        /** A new version of a resource was committed, whether put or copied there. */
+        void changed(String resourceName);
+
+        /** A resource was moved to another name, policy and all. */
+        void moved(String resourceName, String targetName);
+
+        /** A resource was deleted along with the one it was stored inside, which something else replaced. */
+        void removed(String resourceName);
+
+    }
+
     interface Put {
 
         ByteSink contentByteSink() throws IOException;
 
+        /**
+         * Continues the content of the suspended put, keeping its first {@code keep} bytes.
+         */
+        ByteSink contentByteSink(long keep) throws IOException;
+
+        /**
+         * Extends the committed content after its first {@code keep} bytes, instead of writing it
+         * anew; the content is as it was again if the put is aborted. Only an existing resource can
+         * be appended to.
+         */
+        ByteSink appendedContentByteSink(long keep) throws IOException;
+
         ByteSink metaByteSink() throws IOException;
 
+        /**
+         * Whether an earlier put of this resource was suspended, leaving partial content and meta
+         * behind.
+         */
+        boolean resumable();
+
+        ByteSource partialContentByteSource();
+
+        ByteSource partialMetaByteSource();
+
+        /**
+         * The committed version this put will replace, or null if there is none or the putter may
+         * not read it. It needn't be released, and can be read until the put ends.
+         */
+        Get previous();
+
+        /** Whether there is a committed version this put will replace, whether or not the putter may read it. */
+        boolean replaces();
+
         void release() throws IOException;
 
         void abort() throws IOException;
 
+        /**
+         * Gives up the lock but keeps what has been written, so that a later put can resume it.
+         */
+        void suspend() throws IOException;
+
+    }
+
+    final class Stat {
+
+        /** The meta of the resource, or null if the principal may not get it. */
+        public final byte[] meta;
+
+        /** The rights the principal holds on the resource, as {@link PolicyStore#rights} gives them. */
+        public final List<Right> rights;
+
+        public Stat(byte[] meta, List<Right> rights) {
+            this.meta = meta;
+            this.rights = rights;
+        }
+
     }
 
     interface Get {
 
         ByteSource contentByteSource();
 
+        SeekableByteChannel contentChannel() throws IOException;
+
         ByteSource metaByteSource();
 
         void release();
@@ -3,35 +3,68 @@ package sdfs.sdfs;
 import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 import com.typesafe.config.Config;
+import org.joda.time.Duration;
 import org.joda.time.Instant;
 import sdfs.CN;
 import sdfs.store.ByteStore;
 import sdfs.store.FileStore;
 import sdfs.store.PathManipulator;
+import sdfs.time.Chronos;
+import sdfs.time.ChronosImpl;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class SDFSImpl implements SDFS {
 
     private final ByteStore byteStore;
     private final PathManipulator pathManipulator;
     private final PolicyStore policyStore;
+    private final Chronos chronos;
+    private final Duration suspendedPutLifetime;
 
-    public SDFSImpl(ByteStore byteStore, PathManipulator pathManipulator, PolicyStore policyStore) {
+    public SDFSImpl(ByteStore byteStore, PathManipulator pathManipulator, PolicyStore policyStore,
+                    Chronos chronos, Duration suspendedPutLifetime) {
         this.byteStore = byteStore;
         this.pathManipulator = pathManipulator;
         this.policyStore = policyStore;
+        this.chronos = chronos;
+        this.suspendedPutLifetime = suspendedPutLifetime;
+
+        try {
+            for (Path meta : pathManipulator.find("meta")) {
+                Path resource = meta.getParent();
+                // Skip the meta of puts in progress
+                if (resource != null && !resource.getFileName().toString().equals("tmp")) {
+                    index.add(resourceName(resource));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public static SDFSImpl fromConfig(Config config) {
         FileStore fileStore = new FileStore(new File(config.getString("sdfs.store.server")).toPath());
-        return new SDFSImpl(fileStore, fileStore, PolicyStoreImpl.fromConfig(config));
+        return new SDFSImpl(fileStore, fileStore, PolicyStoreImpl.fromConfig(config), new ChronosImpl(),
+                new Duration(config.getMilliseconds("sdfs.partial-uploads.expire-after")));
     }
 
     private static class Lock {
@@ -44,6 +77,14 @@ public class SDFSImpl implements SDFS {
 
     final Map<String, Lock> locks = new HashMap<>();
 
+    /** When each suspended put was suspended, by resource name. */
+    final Map<String, Instant> suspended = new HashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** The names of all resources with committed content, so that listing them needn't walk the store. */
+    final NavigableSet<String> index = new TreeSet<>();
+
     private Lock getOrCreateLock(String resourceName) {
 
         Lock lock = locks.get(resourceName);
@@ -64,6 +105,10 @@ public class SDFSImpl implements SDFS {
             throw new ResourceUnavailableException("Cannot read; file is currently being written");
         }
 
+        if (lock == null) {
+            recoverAppend(resourceName);
+        }
+
         if (!pathManipulator.exists(resourcePath(resourceName).resolve("meta"))) {
             throw new ResourceNonexistentException();
         }
@@ -79,6 +124,39 @@ public class SDFSImpl implements SDFS {
         return get;
     }
 
+    public synchronized Stat stat(CN cn, String resourceName) throws IOException {
+
+        Path meta = resourcePath(resourceName).resolve("meta");
+        if (!pathManipulator.exists(meta)) {
+            throw new ResourceNonexistentException();
+        }
+
+        List<Right> rights = policyStore.rights(cn, resourceName);
+        for (Right right : rights) {
+            if (right.accessType == AccessType.Get && right.delegationType == DelegationType.None) {
+                // Read under the lock, so that a put being released can't swap it out part way through
+                return new Stat(byteStore.get(meta).read(), rights);
+            }
+        }
+        return new Stat(null, rights);
+    }
+
+    public synchronized List<String> list(String prefix, String after, int limit) {
+
+        NavigableSet<String> names = after != null && after.compareTo(prefix) >= 0
+                ? index.tailSet(after, false)
+                : index.tailSet(prefix, true);
+
+        List<String> page = new ArrayList<>();
+        for (String name : names) {
+            if (page.size() == limit || !name.startsWith(prefix)) {
+                break;
+            }
+            page.add(name);
+        }
+        return page;
+    }
+
     public synchronized Put put(CN cn, String resourceName) {
 
         Lock lock = getOrCreateLock(resourceName);
@@ -91,15 +169,23 @@ public class SDFSImpl implements SDFS {
             throw new ResourceUnavailableException("Cannot write; file is currently being read");
         }
 
+        recoverAppend(resourceName);
+
         if (!pathManipulator.exists(resourcePath(resourceName).resolve("meta"))) {
 
             // Clean up anything that might be there already. This could happen in a weird
             // situation like if a client disconnected while uploading a file for the first
-            // time, after the policy file had been written.
-            try {
-                pathManipulator.delete(resourcePath(resourceName));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            // time, after the policy file had been written. The owner of such an upload may
+            // resume it, though.
+            boolean ownSuspendedPut = pathManipulator.exists(partialMetaPath(resourceName))
+                    && policyStore.isOwner(cn, resourceName);
+            if (!ownSuspendedPut) {
+                try {
+                    pathManipulator.delete(resourcePath(resourceName));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                notifyRemoved(unindex(resourceName));
             }
 
             policyStore.grantOwner(cn, resourceName);
@@ -109,7 +195,10 @@ public class SDFSImpl implements SDFS {
             throw new AccessControlException();
         }
 
-        Put put = new PutImpl(resourceName);
+        boolean readable = pathManipulator.exists(resourcePath(resourceName).resolve("meta"))
+                && policyStore.hasAccess(cn, resourceName, AccessType.Get);
+
+        Put put = new PutImpl(resourceName, readable);
         lock.put = put;
         return put;
     }
@@ -124,6 +213,256 @@ public class SDFSImpl implements SDFS {
 
     }
 
+    public synchronized void delegate(CN from, String resourceName, Iterable<Delegation> delegations) {
+
+        if (!pathManipulator.exists(resourcePath(resourceName))) {
+            throw new ResourceNonexistentException();
+        }
+
+        policyStore.delegate(from, resourceName, delegations);
+
+    }
+
+    public synchronized void copy(CN cn, String resourceName, String targetName) {
+
+        // Reading the source alongside gets is fine; only the target must be left alone
+        checkNotWritten(resourceName);
+        checkUnlocked(targetName);
+
+        if (!locks.containsKey(resourceName)) {
+            recoverAppend(resourceName);
+        }
+
+        if (!pathManipulator.exists(resourcePath(resourceName).resolve("meta"))) {
+            throw new ResourceNonexistentException();
+        }
+
+        if (!policyStore.hasAccess(cn, resourceName, AccessType.Get)) {
+            throw new AccessControlException();
+        }
+
+        Path target = resourcePath(targetName);
+        if (pathManipulator.exists(target.resolve("meta"))
+                && !policyStore.hasAccess(cn, targetName, AccessType.Put)) {
+            throw new AccessControlException();
+        }
+
+        if (resourceName.equals(targetName)) {
+            return;
+        }
+        checkDisjoint(resourceName, targetName);
+
+        List<String> removed = new ArrayList<>();
+        try {
+            if (!pathManipulator.exists(target.resolve("meta"))) {
+                pathManipulator.delete(target);
+                removed = unindex(targetName);
+                policyStore.grantOwner(cn, targetName);
+            }
+            suspended.remove(targetName);
+
+            // Content is encrypted under its own hash, or a key kept in the meta, so the copy can
+            // share both. Staged in tmp like a put, so that the old version is replaced whole.
+            Path source = resourcePath(resourceName);
+            for (String filename : new String[] { "content", "meta" }) {
+                pathManipulator.link(source.resolve(filename), target.resolve("tmp").resolve(filename));
+            }
+            for (String filename : new String[] { "content", "meta" }) {
+                pathManipulator.move(target.resolve("tmp").resolve(filename), target.resolve(filename));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        index.add(targetName);
+
+        notifyRemoved(removed);
+        for (Listener listener : listeners) {
+            listener.changed(targetName);
+        }
+    }
+
+    public synchronized void move(CN cn, String resourceName, String targetName) {
+
+        // Resources stored inside either move or are cleared along with it
+        checkTreeUnlocked(resourceName);
+        checkTreeUnlocked(targetName);
+
+        if (!pathManipulator.exists(resourcePath(resourceName).resolve("meta"))) {
+            throw new ResourceNonexistentException();
+        }
+
+        if (!policyStore.hasAccess(cn, resourceName, AccessType.Put)) {
+            throw new AccessControlException();
+        }
+
+        Path target = resourcePath(targetName);
+        if (pathManipulator.exists(target.resolve("meta"))
+                && !policyStore.hasAccess(cn, targetName, AccessType.Put)) {
+            throw new AccessControlException();
+        }
+
+        if (resourceName.equals(targetName)) {
+            return;
+        }
+        checkDisjoint(resourceName, targetName);
+
+        List<String> descendants = new ArrayList<>(subtree(resourceName));
+        List<String> removed;
+
+        try {
+            pathManipulator.delete(target);
+            removed = unindex(targetName);
+            for (Iterator<String> names = suspended.keySet().iterator(); names.hasNext(); ) {
+                if (within(names.next(), targetName)) {
+                    names.remove();
+                }
+            }
+            pathManipulator.move(resourcePath(resourceName), target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        unindex(resourceName);
+        index.add(targetName);
+        for (String descendant : descendants) {
+            index.add(renamed(descendant, resourceName, targetName));
+        }
+
+        // Suspended puts move with the resources, and can be resumed under their new names
+        Map<String, Instant> moved = new HashMap<>();
+        for (Iterator<Map.Entry<String, Instant>> entries = suspended.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<String, Instant> entry = entries.next();
+            if (within(entry.getKey(), resourceName)) {
+                moved.put(renamed(entry.getKey(), resourceName, targetName), entry.getValue());
+                entries.remove();
+            }
+        }
+        suspended.putAll(moved);
+
+        notifyRemoved(removed);
+        for (Listener listener : listeners) {
+            listener.moved(resourceName, targetName);
+            for (String descendant : descendants) {
+                listener.moved(descendant, renamed(descendant, resourceName, targetName));
+            }
+        }
+    }
+
+    /** The indexed resources stored inside {@code resourceName}, not counting itself. */
+    private SortedSet<String> subtree(String resourceName) {
+        return index.subSet(resourceName + '/', resourceName + (char) ('/' + 1));
+    }
+
+    /** Whether {@code name} is {@code resourceName} or stored inside it. */
+    private static boolean within(String name, String resourceName) {
+        return name.equals(resourceName) || name.startsWith(resourceName + '/');
+    }
+
+    /** The name {@code name}, inside {@code resourceName}, takes once that is moved to {@code targetName}. */
+    private static String renamed(String name, String resourceName, String targetName) {
+        return targetName + name.substring(resourceName.length());
+    }
+
+    /**
+     * Drops a resource from the index, with those stored inside it, once its directory has been deleted.
+     * Returns the names that were indexed, and so are gone.
+     */
+    private List<String> unindex(String resourceName) {
+
+        List<String> unindexed = new ArrayList<>();
+        if (index.remove(resourceName)) {
+            unindexed.add(resourceName);
+        }
+        SortedSet<String> subtree = subtree(resourceName);
+        unindexed.addAll(subtree);
+        subtree.clear();
+        return unindexed;
+    }
+
+    private void notifyRemoved(List<String> resourceNames) {
+
+        for (Listener listener : listeners) {
+            for (String resourceName : resourceNames) {
+                listener.removed(resourceName);
+            }
+        }
+    }
+
+    /** Neither resource may be stored inside the other, as clearing the target would take the source with it. */
+    private void checkDisjoint(String resourceName, String targetName) {
+
+        Path source = resourcePath(resourceName);
+        Path target = resourcePath(targetName);
+
+        if (source.startsWith(target) || target.startsWith(source)) {
+            throw new ResourceUnavailableException("Cannot copy a file within itself");
+        }
+    }
+
+    private void checkNotWritten(String resourceName) {
+
+        Lock lock = locks.get(resourceName);
+
+        if (lock != null && lock.put != null) {
+            throw new ResourceUnavailableException("File is currently being written");
+        }
+    }
+
+    /** Checks that neither {@code resourceName} nor anything stored inside it is being read or written. */
+    private void checkTreeUnlocked(String resourceName) {
+
+        for (String lockedName : new ArrayList<>(locks.keySet())) {
+            if (within(lockedName, resourceName)) {
+                checkUnlocked(lockedName);
+            }
+        }
+    }
+
+    private void checkUnlocked(String resourceName) {
+
+        checkNotWritten(resourceName);
+
+        Lock lock = locks.get(resourceName);
+
+        if (lock != null && !lock.gets.isEmpty()) {
+            throw new ResourceUnavailableException("File is currently being read");
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void expireSuspendedPuts() throws IOException {
+
+        Instant cutoff = chronos.now().minus(suspendedPutLifetime);
+
+        Iterator<Map.Entry<String, Instant>> i = suspended.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Instant> entry = i.next();
+            String resourceName = entry.getKey();
+
+            Lock lock = locks.get(resourceName);
+            if (entry.getValue().isAfter(cutoff) || lock != null && lock.put != null) {
+                continue;
+            }
+            i.remove();
+
+            // Without committed content, the suspended put is all there is
+            Path path = resourcePath(resourceName);
+            if (pathManipulator.exists(path.resolve("meta"))) {
+                pathManipulator.delete(path.resolve("tmp"));
+            } else {
+                pathManipulator.delete(path);
+                notifyRemoved(unindex(resourceName));
+            }
+        }
+
+    }
+
     private synchronized void release(GetImpl get) {
 
         Lock lock = locks.get(get.resourceName);
@@ -137,12 +476,78 @@ public class SDFSImpl implements SDFS {
     private synchronized void release(PutImpl put) {
 
         locks.remove(put.resourceName);
+        suspended.remove(put.resourceName);
+        if (pathManipulator.exists(resourcePath(put.resourceName).resolve("meta"))) {
+            index.add(put.resourceName);
+        }
+    }
+
+    private synchronized void suspend(PutImpl put) {
+
+        locks.remove(put.resourceName);
+        suspended.put(put.resourceName, chronos.now());
+    }
+
+    /**
+     * Puts back the end of the content that an append replaced in place, if it never finished,
+     * whether it was aborted or the server stopped part way through. The append was committed if
+     * the meta has changed since it began, and then only what it saved is left to clean up.
+     */
+    private void recoverAppend(String resourceName) {
+
+        try {
+            Path partialTail = partialTailPath(resourceName);
+            if (pathManipulator.exists(partialTail)) {
+                // Stopped while saving the tail, before the content was touched
+                pathManipulator.delete(partialTail);
+            }
+
+            Path replacedTail = replacedTailPath(resourceName);
+            if (!pathManipulator.exists(replacedTail)) {
+                return;
+            }
+
+            ByteBuffer saved = ByteBuffer.wrap(byteStore.get(replacedTail).read());
+            long keep = saved.getLong();
+            byte[] meta = new byte[saved.getInt()];
+            saved.get(meta);
+
+            Path metaPath = resourcePath(resourceName).resolve("meta");
+            if (Arrays.equals(meta, byteStore.get(metaPath).read())) {
+                byte[] tail = new byte[saved.remaining()];
+                saved.get(tail);
+                byteStore.append(resourcePath(resourceName).resolve("content"), keep).write(tail);
+            }
+            pathManipulator.delete(replacedTail);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private Path resourcePath(String resourceName) {
         return new File(resourceName).toPath();
     }
 
+    private static String resourceName(Path resourcePath) {
+        StringBuilder name = new StringBuilder();
+        for (Path element : resourcePath) {
+            name.append(name.length() == 0 ? "" : "/").append(element);
+        }
+        return name.toString();
+    }
+
+    private Path replacedTailPath(String resourceName) {
+        return resourcePath(resourceName).resolve("tmp").resolve("tail");
+    }
+
+    private Path partialTailPath(String resourceName) {
+        return resourcePath(resourceName).resolve("tmp").resolve("tail-part");
+    }
+
+    private Path partialMetaPath(String resourceName) {
+        return resourcePath(resourceName).resolve("tmp").resolve("meta");
+    }
+
     private abstract class Operation {
 
         final String resourceName;
@@ -167,6 +572,10 @@ public class SDFSImpl implements SDFS {
             return byteStore.get(path().resolve("content"));
         }
 
+        public SeekableByteChannel contentChannel() throws IOException {
+            return byteStore.channel(path().resolve("content"));
+        }
+
         public ByteSource metaByteSource() {
             return byteStore.get(path().resolve("meta"));
         }
@@ -179,8 +588,16 @@ public class SDFSImpl implements SDFS {
 
     private class PutImpl extends Operation implements Put {
 
-        PutImpl(String resourceName) {
+        final boolean resumable;
+        final boolean readable;
+
+        /** Whether the put appends to the committed content in place, rather than writing it anew in tmp. */
+        private boolean inPlace;
+
+        PutImpl(String resourceName, boolean readable) {
             super(resourceName);
+            this.readable = readable;
+            resumable = pathManipulator.exists(partialMetaPath(resourceName));
         }
 
         Path tmp() {
@@ -191,10 +608,68 @@ public class SDFSImpl implements SDFS {
             return byteStore.put(tmp().resolve("content"));
         }
 
+        public ByteSink contentByteSink(long keep) throws IOException {
+            return byteStore.append(tmp().resolve("content"), keep);
+        }
+
+        public ByteSink appendedContentByteSink(long keep) throws IOException {
+            Path content = path().resolve("content");
+            if (!pathManipulator.exists(content)) {
+                throw new IOException("Cannot append to missing content of " + resourceName);
+            }
+
+            if (pathManipulator.shared(content)) {
+                // A copy shares its bytes, so this one gets bytes of its own
+                byteStore.get(content).copyTo(byteStore.put(tmp().resolve("content")));
+                return byteStore.append(tmp().resolve("content"), keep);
+            }
+
+            // Kept, with where it goes and the meta it belongs with, until the put ends
+            byte[] meta = byteStore.get(path().resolve("meta")).read();
+            Path partialTail = partialTailPath(resourceName);
+            try (OutputStream out = byteStore.put(partialTail).openBufferedStream()) {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeLong(keep);
+                data.writeInt(meta.length);
+                data.write(meta);
+                byteStore.get(content).slice(keep, Long.MAX_VALUE).copyTo(data);
+                data.flush();
+            }
+            pathManipulator.move(partialTail, replacedTailPath(resourceName));
+            inPlace = true;
+            return byteStore.append(content, keep);
+        }
+
         public ByteSink metaByteSink() throws IOException {
             return byteStore.put(tmp().resolve("meta"));
         }
 
+        public boolean replaces() {
+            return pathManipulator.exists(path().resolve("meta"));
+        }
+
+        public boolean resumable() {
+            return resumable;
+        }
+
+        public ByteSource partialContentByteSource() {
+            return byteStore.get(tmp().resolve("content"));
+        }
+
+        public ByteSource partialMetaByteSource() {
+            return byteStore.get(tmp().resolve("meta"));
+        }
+
+        public Get previous() {
+            if (!readable) {
+                return null;
+            }
+            // The put's lock already keeps the committed version in place
+            return new GetImpl(resourceName) {
+                public void release() { }
+            };
+        }
+
         void moveFromTmp(String filename) throws IOException {
             pathManipulator.move(tmp().resolve(filename), path().resolve(filename));
         }
@@ -205,18 +680,36 @@ public class SDFSImpl implements SDFS {
 
         public void release() throws IOException {
             try {
-                moveFromTmp("content");
+                if (inPlace) {
+                    // Anything left of a suspended put can't be resumed once the content has changed
+                    deleteTmp("content");
+                } else {
+                    moveFromTmp("content");
+                }
                 moveFromTmp("meta");
+                if (inPlace) {
+                    // Moving the meta committed the append; a tail left behind by a crash here is
+                    // recognised by the meta it was saved with, and only deleted
+                    deleteTmp("tail");
+                }
             } finally {
                 SDFSImpl.this.release(this);
             }
+
+            for (Listener listener : listeners) {
+                listener.changed(resourceName);
+            }
         }
 
         @Override
         public void abort() throws IOException {
             try {
                 try {
-                    deleteTmp("content");
+                    if (inPlace) {
+                        recoverAppend(resourceName);
+                    } else {
+                        deleteTmp("content");
+                    }
                 } finally {
                     deleteTmp("meta");
                 }
@@ -225,6 +718,10 @@ public class SDFSImpl implements SDFS {
             }
         }
 
+        public void suspend() {
+            SDFSImpl.this.suspend(this);
+        }
+
     }
 
 }
@@ -3,14 +3,40 @@ package sdfs.server;
 import java.io.*;
 import java.util.Arrays;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class FileMetaData {
 
     public final long size;
     public final byte[] encryptedHash;
 
+    /**
+     * The key the content is encrypted with, if not the hash. A file streamed in before its hash
+     * was known has a random key.
+     */
+    public final byte[] encryptedKey;
+
+    /**
+     * The saved progress of the hash, so that it can be extended when the file is appended to; only
+     * kept once a file has been. An appended file always has a key of its own.
+     */
+    public final byte[] encryptedHashState;
+
     public FileMetaData(long size, byte[] encryptedHash) {
+        this(size, encryptedHash, null);
+    }
+
+    public FileMetaData(long size, byte[] encryptedHash, byte[] encryptedKey) {
+        this(size, encryptedHash, encryptedKey, null);
+    }
+
+    public FileMetaData(long size, byte[] encryptedHash, byte[] encryptedKey, byte[] encryptedHashState) {
+        checkArgument(encryptedHashState == null || encryptedKey != null, "Hash state without a key");
         this.size = size;
         this.encryptedHash = Arrays.copyOf(encryptedHash, encryptedHash.length);
+        this.encryptedKey = encryptedKey == null ? null : Arrays.copyOf(encryptedKey, encryptedKey.length);
+        this.encryptedHashState = encryptedHashState == null
+                ? null : Arrays.copyOf(encryptedHashState, encryptedHashState.length);
     }
 
     public void writeTo(OutputStream out) throws IOException {
@@ -18,6 +44,14 @@ public class FileMetaData {
         data.writeLong(size);
         data.writeInt(encryptedHash.length);
         data.write(encryptedHash);
+        if (encryptedKey != null) {
+            data.writeInt(encryptedKey.length);
+            data.write(encryptedKey);
+        }
+        if (encryptedHashState != null) {
+            data.writeInt(encryptedHashState.length);
+            data.write(encryptedHashState);
+        }
         out.flush();
     }
 
@@ -27,6 +61,25 @@ public class FileMetaData {
         int hashSize = data.readInt();
         byte[] encryptedHash = new byte[hashSize];
         data.readFully(encryptedHash);
-        return new FileMetaData(size, encryptedHash);
+
+        int keySize;
+        try {
+            keySize = data.readInt();
+        } catch (EOFException e) {
+            // Keyed by the hash
+            return new FileMetaData(size, encryptedHash);
+        }
+        byte[] encryptedKey = new byte[keySize];
+        data.readFully(encryptedKey);
+
+        int stateSize;
+        try {
+            stateSize = data.readInt();
+        } catch (EOFException e) {
+            return new FileMetaData(size, encryptedHash, encryptedKey);
+        }
+        byte[] encryptedHashState = new byte[stateSize];
+        data.readFully(encryptedHashState);
+        return new FileMetaData(size, encryptedHash, encryptedKey, encryptedHashState);
     }
 }
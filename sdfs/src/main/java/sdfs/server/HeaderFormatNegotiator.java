@@ -0,0 +1,70 @@
+package sdfs.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sdfs.protocol.BinaryHeaderCodec;
+import sdfs.protocol.FrameCompressor;
+import sdfs.protocol.HeaderFormat;
+import sdfs.protocol.Protocol;
+import sdfs.protocol.ProtocolException;
+import sdfs.protocol.StreamMultiplexer;
+
+/**
+ * Looks at the first bytes a client sends to decide which header format it speaks. A client that
+ * opens with {@link Protocol#binaryPreface()} gets the binary codec; anything else is left on the
+ * text pipeline. Either way, this handler removes itself once it has decided.
+ *
+ * Binary connections carry file bodies through a {@link StreamMultiplexer} rather than as raw
+ * bytes after the header, so they don't need the chunked writer either.
+ */
+class HeaderFormatNegotiator extends FrameDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(HeaderFormatNegotiator.class);
+
+    private final Protocol protocol;
+    private final ChannelBuffer preface;
+
+    HeaderFormatNegotiator(Protocol protocol) {
+        this.protocol = protocol;
+        preface = protocol.binaryPreface();
+    }
+
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        ChannelPipeline pipeline = ctx.getPipeline();
+
+        if (buffer.getByte(buffer.readerIndex()) != preface.getByte(preface.readerIndex())) {
+            log.debug("Channel {} speaks {} headers", channel.getId(), HeaderFormat.Text.marshal());
+            pipeline.remove(this);
+            return buffer.readBytes(buffer.readableBytes());
+        }
+
+        if (buffer.readableBytes() < preface.readableBytes()) {
+            return null;
+        }
+        if (!buffer.readSlice(preface.readableBytes()).equals(preface)) {
+            throw new ProtocolException("Unsupported binary protocol preface");
+        }
+
+        log.debug("Channel {} speaks {} headers", channel.getId(), HeaderFormat.Binary.marshal());
+        BinaryHeaderCodec codec = new BinaryHeaderCodec(protocol);
+        pipeline.remove("chunker");
+        pipeline.remove("stringDecoder");
+        pipeline.remove("stringEncoder");
+        pipeline.remove("headerDecoder");
+        pipeline.replace("framer", "framer", codec.decoder());
+        pipeline.replace("headerEncoder", "headerEncoder", codec.encoder());
+        pipeline.addAfter("headerEncoder", "compressor", new FrameCompressor(protocol));
+        pipeline.addAfter("compressor", "mux", new StreamMultiplexer(protocol));
+        pipeline.remove(this);
+
+        if (buffer.readable()) {
+            return buffer.readBytes(buffer.readableBytes());
+        }
+        return null;
+    }
+}
@@ -1,14 +1,24 @@
 package sdfs.server;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sdfs.crypto.Crypto;
+import sdfs.protocol.AdaptiveChunkedStream;
+import sdfs.protocol.MemoryBudget;
+import sdfs.protocol.WriteBehind;
 import sdfs.sdfs.SDFS;
 import sdfs.sdfs.SDFSImpl;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -17,27 +27,53 @@ import static com.google.common.base.Preconditions.checkState;
  */
 public class Server {
 
+    private static final Logger log = LoggerFactory.getLogger(Server.class);
+
     public final int port;
     private final Crypto crypto;
     private final SDFS sdfs;
+    private final long sweepIntervalMillis;
+    private final AdaptiveChunkedStream.Bounds chunkSizes;
+    private final Workers.Settings workerSettings;
+    private final WriteBehind.Watermarks writeBehindWatermarks;
+    private final MemoryBudget budget;
+    private final SharedReads sharedReads;
 
     private ServerBootstrap bootstrap;
+    private ScheduledExecutorService sweeper;
+    private ExecutorService notifier;
+    private Workers workers;
+    private ExecutorService writers;
 
     private Thread shutdownHook;
 
     private boolean started;
 
-    public Server(int port, Crypto crypto, SDFS sdfs) {
+    public Server(int port, Crypto crypto, SDFS sdfs, long sweepIntervalMillis, AdaptiveChunkedStream.Bounds chunkSizes,
+                  Workers.Settings workerSettings, WriteBehind.Watermarks writeBehindWatermarks,
+                  MemoryBudget budget, SharedReads sharedReads) {
         this.port = port;
         this.crypto = crypto;
         this.sdfs = sdfs;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        this.chunkSizes = chunkSizes;
+        this.workerSettings = workerSettings;
+        this.writeBehindWatermarks = writeBehindWatermarks;
+        this.budget = budget;
+        this.sharedReads = sharedReads;
     }
 
     public static Server fromConfig(Config config) {
         return new Server(
             config.getInt("sdfs.port"),
             new Crypto(config),
-            SDFSImpl.fromConfig(config)
+            SDFSImpl.fromConfig(config),
+            config.getMilliseconds("sdfs.partial-uploads.sweep-interval"),
+            AdaptiveChunkedStream.Bounds.fromConfig(config),
+            Workers.Settings.fromConfig(config),
+            WriteBehind.Watermarks.fromConfig(config),
+            MemoryBudget.fromConfig(config),
+            SharedReads.fromConfig(config)
         );
     }
 
@@ -54,7 +90,24 @@ public class Server {
                         Executors.newCachedThreadPool())
         );
 
-        bootstrap.setPipelineFactory(new ServerPipelineFactory(crypto, sdfs));
+        notifier = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sdfs-notifier-%d").build());
+        workers = new Workers(workerSettings);
+        writers = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sdfs-writer-%d").build());
+        bootstrap.setPipelineFactory(new ServerPipelineFactory(crypto, sdfs, new ExecutionHandler(workers),
+                new WriteBehind(writers, writeBehindWatermarks), budget, sharedReads, notifier, chunkSizes));
+
+        sweeper = Executors.newSingleThreadScheduledExecutor();
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sdfs.expireSuspendedPuts();
+                } catch (Exception e) {
+                    log.warn("Failed to expire suspended puts", e);
+                }
+            }
+        }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
 
         shutdownHook = new Thread(new Runnable() {
             @Override
@@ -80,7 +133,11 @@ public class Server {
             shutdownHook = null;
         }
 
+        sweeper.shutdownNow();
+        notifier.shutdownNow();
         bootstrap.releaseExternalResources();
+        workers.shutdownNow();
+        writers.shutdownNow();
         System.out.println("Server stopped.");
     }
 
@@ -89,7 +146,10 @@ public class Server {
     public synchronized String toString() {
         StringBuilder string = new StringBuilder();
         if (started) {
-            string.append("Server is listening on port ").append(port);
+            string.append("Server is listening on port ").append(port).append("\n");
+            string.append(workers).append("\n");
+            string.append(budget).append("\n");
+            string.append(sharedReads);
         } else {
             string.append("Server is not running.");
         }
@@ -2,8 +2,13 @@ package sdfs.server;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.HashCodes;
+import com.google.common.hash.Hasher;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedStream;
@@ -12,16 +17,35 @@ import org.slf4j.LoggerFactory;
 import sdfs.CN;
 import sdfs.Output;
 import sdfs.crypto.CipherStreamFactory;
+import sdfs.crypto.DecryptedSegments;
+import sdfs.crypto.ResumableSha512;
 import sdfs.crypto.UnlockedBlockCipher;
+import sdfs.delta.DeltaOutputStream;
+import sdfs.delta.Signatures;
 import sdfs.protocol.*;
 import sdfs.sdfs.*;
 
 import javax.net.ssl.SSLSession;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -35,13 +59,32 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
     private final SDFS sdfs;
     private final UnlockedBlockCipher fileHashCipher;
     private final CipherStreamFactory cipherStreamFactory;
+    private final SharedReads sharedReads;
+    private final Executor notifier;
+    private final AdaptiveChunkedStream.Bounds chunkSizes;
 
     private CN client;
 
-    public ServerHandler(SDFS sdfs, UnlockedBlockCipher fileHashCipher, CipherStreamFactory cipherStreamFactory) {
+    /** The files this connection watches, once it watches any. */
+    private Watcher watcher;
+
+    /** Delta puts whose signatures have been sent, waiting for the delta. */
+    private final ConcurrentMap<CorrelationId, PendingDelta> pendingDeltas = new ConcurrentHashMap<>();
+
+    /** Puts being received whose size and hash will come in a trailer. */
+    private final ConcurrentMap<CorrelationId, Header.Put> trailedPuts = new ConcurrentHashMap<>();
+
+    /** Appends among those, whose trailer also gives the hash of the whole file. */
+    private final ConcurrentMap<CorrelationId, Append> trailedAppends = new ConcurrentHashMap<>();
+
+    public ServerHandler(SDFS sdfs, UnlockedBlockCipher fileHashCipher, CipherStreamFactory cipherStreamFactory,
+                         SharedReads sharedReads, Executor notifier, AdaptiveChunkedStream.Bounds chunkSizes) {
         this.sdfs = sdfs;
         this.fileHashCipher = fileHashCipher;
         this.cipherStreamFactory = cipherStreamFactory;
+        this.sharedReads = sharedReads;
+        this.notifier = notifier;
+        this.chunkSizes = chunkSizes;
     }
 
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
@@ -95,10 +138,22 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
             throw new ProtocolException("Client cannot sent nonexistent header to server");
         }
 
+        public void visit(Header.NotModified notModified) throws Exception {
+            throw new ProtocolException("Client cannot sent not-modified header to server");
+        }
+
         public void visit(Header.Ok ok) throws Exception {
             throw new ProtocolException("Client cannot sent ok header to server");
         }
 
+        public void visit(Header.Resume resume) throws Exception {
+            throw new ProtocolException("Client cannot sent resume header to server");
+        }
+
+        public void visit(Header.Signatures signatures) throws Exception {
+            throw new ProtocolException("Client cannot sent signatures header to server");
+        }
+
         public void visit(final Header.Put put) throws IOException {
             log.info("Receiving file `{}' ({} bytes) from {}", put.filename, put.size, client);
 
@@ -113,24 +168,74 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
                 return;
             }
 
-            OutputStream fileContent = sdfsPut.contentByteSink().openBufferedStream();
+            if (put.content != null) {
+                putInline(ctx.getChannel(), put, sdfsPut);
+                return;
+            }
+            if (put.append) {
+                receiveAppend(ctx, put, sdfsPut);
+                return;
+            }
+            if (put.trailer) {
+                receiveTrailed(ctx, put, sdfsPut);
+                return;
+            }
+
             byte[] fileHash = put.hash.asBytes();
             log.debug("File hash {}", BaseEncoding.base16().lowerCase().encode(fileHash));
-            fileContent = cipherStreamFactory.encrypt(fileContent, fileHash);
 
-            final InboundFile inboundFile =
-                    new InboundFile(fileContent, put.size, protocol.fileHashFunction(), put.hash);
+            // Only multiplexing clients know to resume from an offset
+            boolean resumable = acknowledges(ctx.getChannel());
+
+            Hasher hasher = protocol.fileHashFunction().newHasher();
+            CipherStreamFactory.Checkpoint checkpoint = resumable ? checkpoint(put, sdfsPut, hasher) : null;
+
+            if (resumable) {
+                // Record what is being uploaded, so that a later put can tell whether to resume it
+                writeMeta(sdfsPut, put);
+            }
+
+            if (put.delta && (checkpoint == null || checkpoint.plaintextLength == 0)) {
+                SDFS.Get previous = sdfsPut.previous();
+                if (previous != null) {
+                    sendSignatures(ctx, put, sdfsPut, previous, resumable);
+                    return;
+                }
+            }
+
+            OutputStream fileContent;
+            long offset = 0;
+            if (checkpoint != null) {
+                offset = checkpoint.plaintextLength;
+                fileContent = sdfsPut.contentByteSink(checkpoint.encryptedLength).openBufferedStream();
+                fileContent = cipherStreamFactory.resume(checkpoint, fileContent);
+            } else {
+                hasher = protocol.fileHashFunction().newHasher();
+                fileContent = sdfsPut.contentByteSink().openBufferedStream();
+                fileContent = cipherStreamFactory.encrypt(fileContent, fileHash);
+            }
+
+            final InboundFile inboundFile = new InboundFile(fileContent, put.size, offset, hasher, put.hash);
 
-            InboundFileHandler handler = new InboundFileHandler(inboundFile);
-            ctx.getPipeline().addBefore("framer", "inboundFile", handler);
+            ChannelFuture transferFuture =
+                    RawTransport.of(ctx.getPipeline()).receive(ctx, put.correlationId, inboundFile);
 
-            System.out.printf("Receiving `%s' (%s) from `%s'...%n",
-                    put.filename, Output.transferSize(inboundFile.size), client.name);
+            if (offset > 0) {
+                System.out.printf("Resuming `%s' (%s) from `%s' at byte %d...%n",
+                        put.filename, Output.transferSize(inboundFile.size), client.name, offset);
+                Header.Resume resume = Header.resume(put, offset);
+                resume.accept = accept(ctx.getChannel());
+                ctx.getChannel().write(resume);
+            } else {
+                System.out.printf("Receiving `%s' (%s) from `%s'...%n",
+                        put.filename, Output.transferSize(inboundFile.size), client.name);
 
-            // OK client's put request
-            ctx.getChannel().write(Header.ok(put));
+                // OK client's put request
+                Header.Ok ok = Header.ok(put);
+                ok.accept = accept(ctx.getChannel());
+                ctx.getChannel().write(ok);
+            }
 
-            ChannelFuture transferFuture = handler.transferFuture();
             transferFuture.addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
@@ -143,7 +248,137 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
                     }
                 }
             });
-            transferFuture.addListener(new FinishPut(put, sdfsPut));
+            transferFuture.addListener(new FinishPut(ctx.getChannel(), put, sdfsPut, resumable));
+        }
+
+        public void visit(final Header.Delta delta) throws IOException {
+            final PendingDelta pending = pendingDeltas.remove(delta.correlationId);
+            if (pending == null) {
+                throw new ProtocolException("Client sent delta for a put that was not accepted");
+            }
+            final Header.Put put = pending.put;
+
+            OutputStream fileContent = pending.sdfsPut.contentByteSink().openBufferedStream();
+            fileContent = cipherStreamFactory.encrypt(fileContent, put.hash.asBytes());
+            OutputStream rebuilt = new DeltaOutputStream(pending.base, pending.baseSize, pending.blockSize,
+                    fileContent, put.size, protocol.fileHashFunction(), put.hash);
+
+            // The rebuilt file is checked when the delta output closes
+            final InboundFile inboundFile = new InboundFile(rebuilt, delta.size, protocol.fileHashFunction(), null);
+
+            ChannelFuture transferFuture =
+                    RawTransport.of(ctx.getPipeline()).receive(ctx, delta.correlationId, inboundFile);
+
+            System.out.printf("Receiving `%s' (%s as a delta of %s) from `%s'...%n", put.filename,
+                    Output.transferSize(put.size), Output.transferSize(inboundFile.size), client.name);
+
+            transferFuture.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        System.out.printf("Received `%s' (%s as a delta of %s) from `%s' in %s (%s).%n",
+                                put.filename, Output.transferSize(put.size), Output.transferSize(inboundFile.size),
+                                client.name, inboundFile.transferTime(), inboundFile.transferRate());
+                    } else {
+                        System.out.printf("Failed to receive `%s' from `%s'.%n", put.filename, client.name);
+                    }
+                }
+            });
+            transferFuture.addListener(new FinishPut(ctx.getChannel(), put, pending.sdfsPut, pending.resumable));
+        }
+
+        public void visit(Header.Trailer trailer) {
+            StreamMultiplexer mux = ctx.getPipeline().get(StreamMultiplexer.class);
+            if (mux == null) {
+                throw new ProtocolException("Client cannot sent trailer header without multiplexing");
+            }
+            Header.Put put = trailedPuts.remove(trailer.correlationId);
+            if (put == null) {
+                // The transfer may have failed while the trailer was on its way
+                log.debug("Ignoring trailer of unknown put {}", trailer.correlationId);
+                return;
+            }
+            Append append = trailedAppends.remove(trailer.correlationId);
+            if (append != null) {
+                // Checked as the transfer ends, once all of the body has been hashed
+                append.fileHash = trailer.fileHash;
+            }
+            // Filled in for the meta data before the transfer completes
+            put.size = trailer.size;
+            put.hash = trailer.hash;
+            mux.end(trailer.correlationId, trailer.size, trailer.hash);
+        }
+
+        public void visit(Header.Bundle bundle) {
+            if (!acknowledges(ctx.getChannel())) {
+                throw new ProtocolException("Client cannot sent bundle header without multiplexing");
+            }
+            if (bundle.get) {
+                receiveBundleRequest(ctx, bundle);
+            } else {
+                receiveBundle(ctx, bundle);
+            }
+        }
+
+        public void visit(Header.Stat stat) {
+            if (!acknowledges(ctx.getChannel())) {
+                throw new ProtocolException("Client cannot sent stat header without multiplexing");
+            }
+            receiveStatRequest(ctx, stat);
+        }
+
+        public void visit(Header.Delegations delegations) {
+            if (!acknowledges(ctx.getChannel())) {
+                throw new ProtocolException("Client cannot sent delegations header without multiplexing");
+            }
+            receiveDelegationsRequest(ctx, delegations);
+        }
+
+        public void visit(Header.Listing listing) {
+            if (!acknowledges(ctx.getChannel())) {
+                throw new ProtocolException("Client cannot sent listing header without multiplexing");
+            }
+            int limit = listing.count <= 0
+                    ? protocol.maxListingPage()
+                    : Math.min(listing.count, protocol.maxListingPage());
+
+            // One more than the page, to tell whether there is another
+            List<String> names = sdfs.list(listing.prefix, listing.after, limit + 1);
+            String next = null;
+            if (names.size() > limit) {
+                names = names.subList(0, limit);
+                next = names.get(limit - 1);
+            }
+            byte[] body = Bundle.names(protocol, names);
+
+            log.debug("Listing {} files after `{}' of `{}*' for {}", names.size(), listing.after, listing.prefix, client);
+            ctx.getChannel().write(Header.listing(listing, next, names.size(), body.length));
+            RawTransport.of(ctx.getPipeline()).send(ctx, listing.correlationId,
+                    new ChunkedStream(new ByteArrayInputStream(body)));
+        }
+
+        public void visit(Header.Watch watch) {
+            if (!acknowledges(ctx.getChannel())) {
+                throw new ProtocolException("Client cannot sent watch header without multiplexing");
+            }
+            if (watch.stop) {
+                if (watcher != null) {
+                    watcher.stop(watch);
+                }
+                log.debug("Stopped watching `{}' for {}", watch.filename, client);
+            } else {
+                if (watcher == null) {
+                    watcher = new Watcher(sdfs, fileHashCipher, client, ctx.getChannel(), notifier);
+                    sdfs.addListener(watcher);
+                }
+                watcher.watch(watch);
+                log.debug("Watching `{}{}' for {}", watch.filename, watch.prefix ? "*" : "", client);
+            }
+            ctx.getChannel().write(Header.ok(watch));
+        }
+
+        public void visit(Header.Changed changed) {
+            throw new ProtocolException("Client cannot sent changed header to server");
         }
 
         public void visit(Header.Get get) throws IOException {
@@ -168,28 +403,68 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
             byte[] fileHash = fileHashCipher.decrypt(fileMetaData.encryptedHash);
             log.debug("Recovered file hash {}", BaseEncoding.base16().lowerCase().encode(fileHash));
 
-            log.info("Sending file `{}' ({} bytes) to {}", get.filename, fileMetaData.size, client);
+            if (get.hash != null && !get.isRange() && get.hash.equals(HashCodes.fromBytes(fileHash))) {
+                log.info("Client {} already has `{}'", client, get.filename);
+                log.debug("Releasing `{}'", get.filename);
+                sdfsGet.release();
+                ctx.getChannel().write(Header.notModified(get));
+                return;
+            }
+
+            long start = get.offset < 0
+                    ? Math.max(0, fileMetaData.size + get.offset)
+                    : Math.min(get.offset, fileMetaData.size);
+            long end = get.length < 0 || get.length > fileMetaData.size - start
+                    ? fileMetaData.size
+                    : start + get.length;
+            boolean whole = start == 0 && end == fileMetaData.size;
+
+            log.info("Sending file `{}' (bytes {} to {} of {}) to {}", get.filename, start, end, fileMetaData.size, client);
 
             final Header.Put put = new Header.Put();
             put.correlationId = get.correlationId;
             put.filename = get.filename;
-            put.hash = HashCodes.fromBytes(fileHash);
-            put.size = fileMetaData.size;
+            put.hash = whole ? HashCodes.fromBytes(fileHash) : null;
+            put.offset = start;
+            put.size = end - start;
             ctx.getChannel().write(put);
 
-            InputStream fileContent = sdfsGet.contentByteSource().openStream();
-            fileContent = cipherStreamFactory.decrypt(fileContent, fileHash);
+            byte[] key = contentKey(fileMetaData, fileHash);
+            List<Compression> candidates = Compression.negotiate(get.accept, accept(ctx.getChannel()));
+            Closeable fileContent;
+            Compression compression;
+            final AdaptiveChunkedStream content;
+            // Whole files are read once for every get of them under way; ranges each on their own
+            SegmentBuffers segments = whole
+                    ? SegmentBuffers.shared(sharedReads, cipherStreamFactory, sdfsGet, key,
+                                            get.filename, put.hash, put.size)
+                    : SegmentBuffers.open(cipherStreamFactory, sdfsGet, key, start, put.size);
+            if (segments != null) {
+                fileContent = segments;
+                compression = Compression.choose(candidates, segments.sample());
+                content = new AdaptiveChunkedStream(segments, compression.chunkSize(), chunkSizes);
+            } else {
+                InputStream in = cipherStreamFactory.decrypt(sdfsGet.contentByteSource(), key, start, put.size);
+                if (!candidates.isEmpty()) {
+                    in = new BufferedInputStream(in, Compression.SAMPLE_SIZE);
+                }
+                fileContent = in;
+                compression = Compression.choose(candidates, in);
+                content = new AdaptiveChunkedStream(in, compression.chunkSize(), chunkSizes);
+            }
+            log.debug("Sending `{}' with {} compression", get.filename, compression.marshal());
 
             final Stopwatch stopwatch = new Stopwatch().start();
-            ChannelFuture chunkFuture = ctx.getChannel().write(new ChunkedStream(fileContent));
+            ChannelFuture chunkFuture = RawTransport.of(ctx.getPipeline()).send(ctx, get.correlationId,
+                    content, compression);
             chunkFuture.addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
                     stopwatch.stop();
                     if (future.isSuccess()) {
-                        System.out.printf("Sent `%s' (%s) to `%s' in %s (%s).%n",
-                                put.filename, Output.transferSize(put.size), client.name,
-                                stopwatch.toString(), Output.transferRate(put.size, stopwatch));
+                        System.out.printf("Sent `%s' (%s) to `%s' in %s (%s, chunks of %s).%n",
+                                put.filename, Output.transferSize(put.size), client.name, stopwatch.toString(),
+                                Output.transferRate(put.size, stopwatch), content.chunkSizes());
                     } else {
                         System.out.printf("Failed to send `%s' to `%s'%n", put.filename, client.name);
                     }
@@ -198,6 +473,33 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
             chunkFuture.addListener(new FinishGet(fileContent, get, sdfsGet));
         }
 
+        public void visit(Header.Copy copy) {
+            log.info("{} `{}' to `{}' for `{}'", copy.move ? "Moving" : "Copying", copy.filename, copy.to, client);
+
+            try {
+                if (copy.move) {
+                    sdfs.move(client, copy.filename, copy.to);
+                } else {
+                    sdfs.copy(client, copy.filename, copy.to);
+                }
+            } catch (AccessControlException e) {
+                ctx.getChannel().write(Header.prohibited(copy));
+                return;
+            } catch (ResourceNonexistentException e) {
+                ctx.getChannel().write(Header.nonexistent(copy));
+                return;
+            } catch (ResourceUnavailableException e) {
+                ctx.getChannel().write(Header.unavailable(copy));
+                return;
+            }
+
+            System.out.printf("%s `%s' to `%s' for `%s'.%n",
+                    copy.move ? "Moved" : "Copied", copy.filename, copy.to, client.name);
+            if (acknowledges(ctx.getChannel())) {
+                ctx.getChannel().write(Header.ok(copy));
+            }
+        }
+
         public void visit(Header.Delegate delegate) {
             log.info("Delegating right {} on `{}' from `{}' to `{}' until {}",
                     Joiner.on(", ").join(delegate.rights), delegate.filename, client, delegate.to, delegate.expiration);
@@ -213,32 +515,714 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
                     return;
                 }
             }
+
+            if (acknowledges(ctx.getChannel())) {
+                ctx.getChannel().write(Header.ok(delegate));
+            }
+        }
+    }
+
+    /**
+     * Looks for a suspended put of the same content, and finds how much of it can be kept. The
+     * hasher is given the content up to that point. Returns null if the put must start over.
+     */
+    private CipherStreamFactory.Checkpoint checkpoint(Header.Put put, SDFS.Put sdfsPut, Hasher hasher) {
+        if (!sdfsPut.resumable()) {
+            return null;
+        }
+        try {
+            FileMetaData partial;
+            try (InputStream in = sdfsPut.partialMetaByteSource().openBufferedStream()) {
+                partial = FileMetaData.readFrom(in);
+            }
+            byte[] fileHash = put.hash.asBytes();
+            if (partial.size != put.size || !Arrays.equals(fileHashCipher.decrypt(partial.encryptedHash), fileHash)) {
+                log.debug("Suspended put of `{}' was of different content", put.filename);
+                return null;
+            }
+            return cipherStreamFactory.checkpoint(
+                    sdfsPut.partialContentByteSource(), fileHash, Funnels.asOutputStream(hasher));
+        } catch (IOException e) {
+            log.warn("Cannot resume put of `{}'", put.filename, e);
+            return null;
+        }
+    }
+
+    /**
+     * Receives a put whose size and hash follow its body in a trailer. Its content can't be keyed
+     * by a hash that isn't known yet, so is encrypted with a random key kept in its meta data.
+     */
+    private void receiveTrailed(ChannelHandlerContext ctx, final Header.Put put, SDFS.Put sdfsPut)
+            throws IOException {
+        StreamMultiplexer mux = ctx.getPipeline().get(StreamMultiplexer.class);
+        if (mux == null) {
+            sdfsPut.abort();
+            throw new ProtocolException("Client cannot sent trailed put without multiplexing");
         }
+
+        byte[] key = new byte[protocol.fileHashFunction().bits() / 8];
+        random.nextBytes(key);
+        OutputStream fileContent = sdfsPut.contentByteSink().openBufferedStream();
+        fileContent = cipherStreamFactory.encrypt(fileContent, key);
+
+        final InboundFile inboundFile = InboundFile.ofUnknownSize(fileContent, protocol.fileHashFunction());
+        ChannelFuture transferFuture = mux.receive(ctx, put.correlationId, inboundFile);
+        trailedPuts.put(put.correlationId, put);
+
+        System.out.printf("Receiving `%s' from `%s'...%n", put.filename, client.name);
+        Header.Ok ok = Header.ok(put);
+        ok.accept = accept(ctx.getChannel());
+        ctx.getChannel().write(ok);
+
+        transferFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    System.out.printf("Received `%s' (%s) from `%s' in %s (%s).%n",
+                            put.filename, Output.transferSize(inboundFile.size),
+                            client.name, inboundFile.transferTime(), inboundFile.transferRate());
+                } else {
+                    trailedPuts.remove(put.correlationId);
+                    System.out.printf("Failed to receive `%s' from `%s'.%n", put.filename, client.name);
+                }
+            }
+        });
+        transferFuture.addListener(new FinishPut(ctx.getChannel(), put, sdfsPut, false, key));
+    }
+
+    /**
+     * Adds what the client streams to the end of a file. Only the last segment of the stored content
+     * is encrypted again, and the hash is taken up from the state kept in the meta data, so that an
+     * append costs what is appended rather than what is already there. The first append to a file
+     * hashes its content once to start keeping that state.
+     */
+    private void receiveAppend(ChannelHandlerContext ctx, final Header.Put put, final SDFS.Put sdfsPut)
+            throws IOException {
+        StreamMultiplexer mux = ctx.getPipeline().get(StreamMultiplexer.class);
+        if (mux == null || !put.trailer) {
+            sdfsPut.abort();
+            throw new ProtocolException("Client cannot sent appended put without multiplexing and a trailer");
+        }
+
+        SDFS.Get previous = sdfsPut.previous();
+        if (previous == null && sdfsPut.replaces()) {
+            // The size it is answered with would tell the client about a file it cannot read
+            sdfsPut.abort();
+            ctx.getChannel().write(Header.prohibited(put));
+            return;
+        }
+
+        final Append append;
+        try {
+            append = previous == null ? newAppend(sdfsPut) : append(put, sdfsPut, previous);
+        } catch (IOException e) {
+            sdfsPut.abort();
+            throw e;
+        }
+
+        final InboundFile inboundFile = InboundFile.ofUnknownSize(append.checkedContent(), protocol.fileHashFunction());
+        ChannelFuture transferFuture = mux.receive(ctx, put.correlationId, inboundFile);
+        trailedPuts.put(put.correlationId, put);
+        trailedAppends.put(put.correlationId, append);
+
+        System.out.printf("Appending to `%s' (%s) from `%s'...%n",
+                put.filename, Output.transferSize(append.base), client.name);
+        Header.Resume resume = Header.resume(put, append.base);
+        resume.accept = accept(ctx.getChannel());
+        ctx.getChannel().write(resume);
+
+        transferFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    System.out.printf("Appended %s to `%s' from `%s' in %s (%s).%n",
+                            Output.transferSize(inboundFile.size), put.filename,
+                            client.name, inboundFile.transferTime(), inboundFile.transferRate());
+                } else {
+                    trailedPuts.remove(put.correlationId);
+                    trailedAppends.remove(put.correlationId);
+                    System.out.printf("Failed to append to `%s' from `%s'.%n", put.filename, client.name);
+                }
+            }
+        });
+        transferFuture.addListener(new FinishAppend(ctx.getChannel(), put, sdfsPut, append));
+    }
+
+    /** An append to a file that isn't there yet, which is just the appended content. */
+    private Append newAppend(SDFS.Put sdfsPut) throws IOException {
+        byte[] key = new byte[protocol.fileHashFunction().bits() / 8];
+        random.nextBytes(key);
+        OutputStream fileContent = sdfsPut.contentByteSink().openBufferedStream();
+        return new Append(0, key, new ResumableSha512(), cipherStreamFactory.encrypt(fileContent, key));
+    }
+
+    private Append append(Header.Put put, SDFS.Put sdfsPut, SDFS.Get previous) throws IOException {
+        FileMetaData fileMetaData;
+        try (InputStream in = previous.metaByteSource().openBufferedStream()) {
+            fileMetaData = FileMetaData.readFrom(in);
+        }
+        long size = fileMetaData.size;
+        byte[] fileHash = fileHashCipher.decrypt(fileMetaData.encryptedHash);
+        byte[] key = contentKey(fileMetaData, fileHash);
+        ByteSource plaintext = cipherStreamFactory.decrypted(previous.contentByteSource(), key);
+
+        ResumableSha512 hash;
+        if (fileMetaData.encryptedHashState != null) {
+            long hashed = size - size % ResumableSha512.BLOCK_LENGTH;
+            hash = ResumableSha512.resume(fileHashCipher.decrypt(fileMetaData.encryptedHashState), hashed);
+            plaintext.slice(hashed, size - hashed).copyTo(hash);
+        } else {
+            log.debug("Hashing `{}' to start appending to it", put.filename);
+            hash = new ResumableSha512();
+            plaintext.copyTo(hash);
+        }
+        if (!Arrays.equals(hash.hash().asBytes(), fileHash)) {
+            throw new IOException("Hash state of `" + put.filename + "' does not match its content");
+        }
+
+        OutputStream fileContent;
+        CipherStreamFactory.Checkpoint checkpoint =
+                cipherStreamFactory.appendPoint(previous.contentByteSource(), key, size);
+        if (checkpoint != null) {
+            byte[] lastSegment = plaintext.slice(checkpoint.plaintextLength, size - checkpoint.plaintextLength).read();
+            fileContent = sdfsPut.appendedContentByteSink(checkpoint.encryptedLength).openBufferedStream();
+            fileContent = cipherStreamFactory.resume(checkpoint, fileContent);
+            fileContent.write(lastSegment);
+        } else {
+            log.debug("Rewriting `{}' in segments to append to it", put.filename);
+            fileContent = sdfsPut.contentByteSink().openBufferedStream();
+            fileContent = cipherStreamFactory.encrypt(fileContent, key);
+            plaintext.copyTo(fileContent);
+        }
+        return new Append(size, key, hash, fileContent);
+    }
+
+    private static final class Append {
+        /** Size of the file before the append. */
+        final long base;
+        final byte[] key;
+        final ResumableSha512 hash;
+        final OutputStream content;
+
+        /** The hash of the whole file once appended to, as the trailer gave it. */
+        volatile HashCode fileHash;
+
+        Append(long base, byte[] key, ResumableSha512 hash, OutputStream content) {
+            this.base = base;
+            this.key = key;
+            this.hash = hash;
+            this.content = content;
+        }
+
+        /**
+         * Writes the appended content and adds it to the hash, which once closed must match the
+         * trailer's hash of the whole file; a server's copy that wasn't the start of the client's
+         * file fails the append.
+         */
+        OutputStream checkedContent() {
+            return new FilterOutputStream(new TeeOutputStream(content, hash)) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                public void close() throws IOException {
+                    super.close();
+                    if (fileHash == null) {
+                        throw new IOException("Append ended without the hash of the whole file");
+                    }
+                    HashCode actual = hash.hash();
+                    if (!fileHash.equals(actual)) {
+                        throw new HashMismatchException(fileHash, actual);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Stores each file of a bundle as soon as all of it has arrived, and once the whole bundle has,
+     * tells the client what became of each.
+     */
+    private void receiveBundle(final ChannelHandlerContext ctx, final Header.Bundle bundle) {
+        System.out.printf("Receiving bundle of %d files (%s) from `%s'...%n",
+                bundle.count, Output.transferSize(bundle.size), client.name);
+
+        final BundledPuts puts = new BundledPuts(bundle.count);
+        final InboundFile inboundFile = new InboundFile(puts, bundle.size, protocol.fileHashFunction(), null);
+        RawTransport.of(ctx.getPipeline()).receive(ctx, bundle.correlationId, inboundFile).addListener(
+                new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            System.out.printf("Failed to receive bundle from `%s'.%n", client.name);
+                            return;
+                        }
+                        System.out.printf("Received bundle of %d files (%s) from `%s' in %s (%s).%n",
+                                bundle.count, Output.transferSize(bundle.size), client.name,
+                                inboundFile.transferTime(), inboundFile.transferRate());
+
+                        byte[] statuses = puts.statuses.toByteArray();
+                        ctx.getChannel().write(Header.bundle(bundle, statuses.length));
+                        RawTransport.of(ctx.getPipeline()).send(ctx, bundle.correlationId,
+                                new ChunkedStream(new ByteArrayInputStream(statuses)));
+                    }
+                });
+    }
+
+    /** Stores the files of a bundle as they arrive, noting what became of each. */
+    private final class BundledPuts extends Bundle.Reader {
+        final ByteArrayOutputStream statuses = new ByteArrayOutputStream();
+        private SDFS.Put sdfsPut;
+
+        BundledPuts(int count) {
+            super(protocol, count);
+        }
+
+        protected OutputStream open(Bundle.Entry entry) throws IOException {
+            if (entry.status != Bundle.OK) {
+                throw new ProtocolException("Client cannot sent bundle entry without content");
+            }
+            try {
+                sdfsPut = sdfs.put(client, entry.name);
+            } catch (ResourceUnavailableException e) {
+                statuses.write(Bundle.UNAVAILABLE);
+                return null;
+            } catch (AccessControlException e) {
+                statuses.write(Bundle.PROHIBITED);
+                return null;
+            }
+            OutputStream fileContent = sdfsPut.contentByteSink().openBufferedStream();
+            return cipherStreamFactory.encrypt(fileContent, entry.hash.asBytes());
+        }
+
+        protected void commit(Bundle.Entry entry) throws IOException {
+            try {
+                writeMeta(sdfsPut, entry.size, entry.hash, null);
+            } finally {
+                log.debug("Releasing `{}'", entry.name);
+                sdfsPut.release();
+                sdfsPut = null;
+            }
+            statuses.write(Bundle.OK);
+        }
+
+        protected void abort(Bundle.Entry entry) throws IOException {
+            log.debug("Aborting `{}' put", entry.name);
+            sdfsPut.abort();
+            sdfsPut = null;
+        }
+    }
+
+    /** Receives the names of the files a client asks for in a bundle, and sends them. */
+    private void receiveBundleRequest(final ChannelHandlerContext ctx, final Header.Bundle bundle) {
+        receiveNames(ctx, bundle, bundle.size, bundle.count, new NamesReceived() {
+            public void received(List<String> names) throws Exception {
+                sendBundle(ctx, bundle, names);
+            }
+        });
+    }
+
+    /** Receives the names of the files a client asks about, and answers for each of them. */
+    private void receiveStatRequest(final ChannelHandlerContext ctx, final Header.Stat stat) {
+        receiveNames(ctx, stat, stat.size, stat.count, new NamesReceived() {
+            public void received(List<String> names) throws Exception {
+                sendStats(ctx, stat, names);
+            }
+        });
+    }
+
+    /** Receives what the client would delegate on which files, and delegates it. */
+    private void receiveDelegationsRequest(final ChannelHandlerContext ctx, final Header.Delegations delegations) {
+        receiveBody(ctx, delegations, delegations.size, delegations.count, new BodyReceived() {
+            public void received(byte[] body) throws Exception {
+                delegate(ctx, delegations, Delegations.readRequest(protocol, body, delegations.count));
+            }
+        });
+    }
+
+    private interface NamesReceived {
+        void received(List<String> names) throws Exception;
+    }
+
+    /** Receives a body of {@code count} names for request {@code header}, then hands them on. */
+    private void receiveNames(ChannelHandlerContext ctx, Header header, long size, final int count,
+                              final NamesReceived then) {
+        receiveBody(ctx, header, size, count, new BodyReceived() {
+            public void received(byte[] body) throws Exception {
+                then.received(Bundle.readNames(protocol, body, count));
+            }
+        });
+    }
+
+    private interface BodyReceived {
+        void received(byte[] body) throws Exception;
+    }
+
+    /** Receives the body of request {@code header}, which concerns {@code count} files, then hands it on. */
+    private void receiveBody(final ChannelHandlerContext ctx, Header header, long size, int count,
+                             final BodyReceived then) {
+        if (size > protocol.maxBundleRequestLength()) {
+            throw new ProtocolException("Request for " + count + " files of " + size + " bytes exceeds maximum");
+        }
+        if (count < 0 || count > size) {
+            throw new ProtocolException("Request of " + size + " bytes cannot concern " + count + " files");
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InboundFile inboundFile = new InboundFile(body, size, protocol.fileHashFunction(), null);
+        RawTransport.of(ctx.getPipeline()).receive(ctx, header.correlationId, inboundFile).addListener(
+                new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            return;
+                        }
+                        try {
+                            then.received(body.toByteArray());
+                        } catch (Exception e) {
+                            Channels.fireExceptionCaught(ctx.getChannel(), e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Makes every delegation on each file the client named, and answers with how each went. A file
+     * gets all of them or, if the client may not make one of them there, none.
+     */
+    private void delegate(ChannelHandlerContext ctx, Header.Delegations request, Delegations.Request delegations) {
+        Stopwatch stopwatch = new Stopwatch().start();
+        byte[] statuses = new byte[delegations.names.size()];
+        int rights = 0;
+        for (Delegation delegation : delegations.delegations) {
+            rights += delegation.rights.size();
+        }
+        for (int i = 0; i < statuses.length; i++) {
+            try {
+                sdfs.delegate(client, delegations.names.get(i), delegations.delegations);
+                statuses[i] = Bundle.OK;
+            } catch (AccessControlException e) {
+                statuses[i] = Bundle.PROHIBITED;
+            } catch (ResourceNonexistentException e) {
+                statuses[i] = Bundle.NONEXISTENT;
+            }
+        }
+
+        ctx.getChannel().write(Header.delegations(request, statuses.length));
+        RawTransport.of(ctx.getPipeline()).send(ctx, request.correlationId,
+                new ChunkedStream(new ByteArrayInputStream(statuses)));
+        System.out.printf("Delegated %d rights on %d files for `%s' in %s.%n",
+                rights, statuses.length, client.name, stopwatch.stop());
+    }
+
+    /** Answers what the client may know of each file it named, from meta and policy alone. */
+    private void sendStats(ChannelHandlerContext ctx, Header.Stat request, List<String> names) throws IOException {
+        Stopwatch stopwatch = new Stopwatch().start();
+        List<Stat.Entry> entries = new ArrayList<>(names.size());
+        for (String name : names) {
+            SDFS.Stat stat;
+            try {
+                stat = sdfs.stat(client, name);
+            } catch (ResourceNonexistentException e) {
+                entries.add(new Stat.Entry(name));
+                continue;
+            }
+            if (stat.meta == null) {
+                entries.add(new Stat.Entry(name, stat.rights));
+                continue;
+            }
+            FileMetaData fileMetaData = FileMetaData.readFrom(new ByteArrayInputStream(stat.meta));
+            HashCode hash = HashCodes.fromBytes(fileHashCipher.decrypt(fileMetaData.encryptedHash));
+            entries.add(new Stat.Entry(name, fileMetaData.size, hash, stat.rights));
+        }
+        byte[] body = Stat.entries(protocol, entries);
+
+        ctx.getChannel().write(Header.stat(request, body.length));
+        RawTransport.of(ctx.getPipeline()).send(ctx, request.correlationId,
+                new ChunkedStream(new ByteArrayInputStream(body)));
+        System.out.printf("Answered stat of %d files for `%s' in %s.%n", names.size(), client.name, stopwatch.stop());
+    }
+
+    /**
+     * Sends the files a client asked for in a bundle. Each stays locked until it has been sent, so
+     * that it is still the size the bundle said it was.
+     */
+    private void sendBundle(ChannelHandlerContext ctx, Header.Bundle request, List<String> names) throws IOException {
+        final List<BundledGet> gets = new ArrayList<>(names.size());
+        long size = 0;
+        try {
+            for (String name : names) {
+                BundledGet get = bundledGet(name);
+                gets.add(get);
+                size += get.entry.status == Bundle.OK
+                        ? Bundle.length(protocol, name, get.entry.size)
+                        : Bundle.length(protocol, name);
+            }
+        } catch (IOException e) {
+            for (BundledGet get : gets) {
+                get.release();
+            }
+            throw e;
+        }
+
+        log.info("Sending bundle of {} files ({} bytes) to {}", gets.size(), size, client);
+        ctx.getChannel().write(Header.bundle(request, size));
+
+        final Iterator<BundledGet> remaining = gets.iterator();
+        final Bundle.Writer body = new Bundle.Writer(protocol) {
+            private BundledGet current;
+
+            protected Bundle.Entry next() {
+                if (!remaining.hasNext()) {
+                    return null;
+                }
+                current = remaining.next();
+                return current.entry;
+            }
+
+            protected InputStream open(Bundle.Entry entry) throws IOException {
+                return cipherStreamFactory.decrypt(current.sdfsGet.contentByteSource(), current.key, 0, entry.size);
+            }
+
+            protected void finished(Bundle.Entry entry) throws IOException {
+                current.release();
+            }
+
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    for (BundledGet get : gets) {
+                        get.release();
+                    }
+                }
+            }
+        };
+
+        final Stopwatch stopwatch = new Stopwatch().start();
+        final long sent = size;
+        final AdaptiveChunkedStream content = new AdaptiveChunkedStream(body, Compression.None.chunkSize(), chunkSizes);
+        RawTransport.of(ctx.getPipeline()).send(ctx, request.correlationId, content).addListener(
+                new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        body.close();
+                        stopwatch.stop();
+                        if (future.isSuccess()) {
+                            System.out.printf("Sent bundle of %d files (%s) to `%s' in %s (%s, chunks of %s).%n",
+                                    gets.size(), Output.transferSize(sent), client.name, stopwatch,
+                                    Output.transferRate(sent, stopwatch), content.chunkSizes());
+                        } else {
+                            System.out.printf("Failed to send bundle to `%s'%n", client.name);
+                        }
+                    }
+                });
+    }
+
+    private BundledGet bundledGet(String name) throws IOException {
+        SDFS.Get sdfsGet;
+        try {
+            sdfsGet = sdfs.get(client, name);
+        } catch (ResourceNonexistentException e) {
+            return new BundledGet(new Bundle.Entry(name, Bundle.NONEXISTENT), null, null);
+        } catch (ResourceUnavailableException e) {
+            return new BundledGet(new Bundle.Entry(name, Bundle.UNAVAILABLE), null, null);
+        } catch (AccessControlException e) {
+            return new BundledGet(new Bundle.Entry(name, Bundle.PROHIBITED), null, null);
+        }
+        try {
+            FileMetaData fileMetaData;
+            try (InputStream in = sdfsGet.metaByteSource().openBufferedStream()) {
+                fileMetaData = FileMetaData.readFrom(in);
+            }
+            byte[] fileHash = fileHashCipher.decrypt(fileMetaData.encryptedHash);
+            return new BundledGet(new Bundle.Entry(name, fileMetaData.size, HashCodes.fromBytes(fileHash)),
+                    sdfsGet, contentKey(fileMetaData, fileHash));
+        } catch (IOException e) {
+            sdfsGet.release();
+            throw e;
+        }
+    }
+
+    private static final class BundledGet {
+        final Bundle.Entry entry;
+        final SDFS.Get sdfsGet;
+        final byte[] key;
+        private boolean released;
+
+        BundledGet(Bundle.Entry entry, SDFS.Get sdfsGet, byte[] key) {
+            this.entry = entry;
+            this.sdfsGet = sdfsGet;
+            this.key = key;
+        }
+
+        synchronized void release() {
+            if (sdfsGet != null && !released) {
+                released = true;
+                log.debug("Releasing `{}'", entry.name);
+                sdfsGet.release();
+            }
+        }
+    }
+
+    /**
+     * Commits a put whose content came in its header, and acknowledges it. Content that doesn't
+     * match the put's size and hash aborts the put, and the error closes the connection.
+     */
+    private void putInline(Channel channel, Header.Put put, SDFS.Put sdfsPut) throws IOException {
+        boolean committed = false;
+        try {
+            if (put.hash == null || put.content.length != put.size) {
+                throw new ProtocolException("Inline put of " + put.content.length + " bytes claims " + put.size);
+            }
+            HashCode hash = protocol.fileHashFunction().hashBytes(put.content);
+            if (!hash.equals(put.hash)) {
+                throw new HashMismatchException(put.hash, hash);
+            }
+            try (OutputStream fileContent = cipherStreamFactory.encrypt(
+                    sdfsPut.contentByteSink().openBufferedStream(), put.hash.asBytes())) {
+                fileContent.write(put.content);
+            }
+            writeMeta(sdfsPut, put);
+            committed = true;
+        } finally {
+            if (committed) {
+                log.debug("Releasing `{}'", put.filename);
+                sdfsPut.release();
+            } else {
+                log.debug("Aborting `{}' put", put.filename);
+                sdfsPut.abort();
+            }
+        }
+        System.out.printf("Received `%s' (%s) from `%s' inline.%n",
+                put.filename, Output.transferSize(put.size), client.name);
+        channel.write(Header.ok(put));
+    }
+
+    /**
+     * Answers a delta put of a file the server has with signatures of the blocks of its plaintext,
+     * computed as they are sent, and waits for the delta.
+     */
+    private void sendSignatures(ChannelHandlerContext ctx, Header.Put put, SDFS.Put sdfsPut,
+                                SDFS.Get previous, boolean resumable) throws IOException {
+        FileMetaData fileMetaData;
+        try (InputStream in = previous.metaByteSource().openBufferedStream()) {
+            fileMetaData = FileMetaData.readFrom(in);
+        }
+        byte[] fileHash = fileHashCipher.decrypt(fileMetaData.encryptedHash);
+        ByteSource base = cipherStreamFactory.decrypted(
+                previous.contentByteSource(), contentKey(fileMetaData, fileHash));
+
+        int blockSize = Signatures.blockSize(fileMetaData.size);
+        pendingDeltas.put(put.correlationId,
+                new PendingDelta(put, sdfsPut, base, fileMetaData.size, blockSize, resumable));
+
+        log.info("Sending signatures of `{}' ({} bytes in blocks of {}) to {}",
+                put.filename, fileMetaData.size, blockSize, client);
+        Header.Signatures header = Header.signatures(
+                put, blockSize, fileMetaData.size, Signatures.length(fileMetaData.size, blockSize));
+        header.accept = accept(ctx.getChannel());
+        ctx.getChannel().write(header);
+
+        final InputStream signatures = Signatures.stream(base.openBufferedStream(), blockSize);
+        RawTransport.of(ctx.getPipeline()).send(ctx, put.correlationId, new ChunkedStream(signatures))
+                .addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        signatures.close();
+                    }
+                });
+    }
+
+    private static final class PendingDelta {
+        final Header.Put put;
+        final SDFS.Put sdfsPut;
+        final ByteSource base;
+        final long baseSize;
+        final int blockSize;
+        final boolean resumable;
+
+        PendingDelta(Header.Put put, SDFS.Put sdfsPut, ByteSource base, long baseSize, int blockSize,
+                     boolean resumable) {
+            this.put = put;
+            this.sdfsPut = sdfsPut;
+            this.base = base;
+            this.baseSize = baseSize;
+            this.blockSize = blockSize;
+            this.resumable = resumable;
+        }
+    }
+
+    private void writeMeta(SDFS.Put sdfsPut, Header.Put put) throws IOException {
+        writeMeta(sdfsPut, put.size, put.hash, null);
+    }
+
+    /** @param key the key the content is encrypted with, or null if it is the hash */
+    private void writeMeta(SDFS.Put sdfsPut, long size, HashCode hash, byte[] key) throws IOException {
+        writeMeta(sdfsPut, size, hash, key, null);
+    }
+
+    /** @param hashState the progress of the hash, kept once a file has been appended to */
+    private void writeMeta(SDFS.Put sdfsPut, long size, HashCode hash, byte[] key, byte[] hashState)
+            throws IOException {
+        byte[] encryptedFileHash = fileHashCipher.encrypt(hash.asBytes());
+        log.debug("Encrypted file hash");
+
+        FileMetaData metaData = new FileMetaData(size, encryptedFileHash,
+                key == null ? null : fileHashCipher.encrypt(key),
+                hashState == null ? null : fileHashCipher.encrypt(hashState));
+        try (OutputStream out = sdfsPut.metaByteSink().openBufferedStream()) {
+            metaData.writeTo(out);
+        }
+    }
+
+    private byte[] contentKey(FileMetaData fileMetaData, byte[] fileHash) {
+        return fileMetaData.encryptedKey == null ? fileHash : fileHashCipher.decrypt(fileMetaData.encryptedKey);
+    }
+
+    /** The compressions a client can send bodies in; only multiplexed bodies have frames to compress. */
+    private static List<Compression> accept(Channel channel) {
+        return acknowledges(channel) ? Compression.supported() : Collections.<Compression>emptyList();
+    }
+
+    /**
+     * Text clients predate acknowledgements of completed puts and delegations, and would reject an
+     * ok they weren't expecting. Clients that multiplex know to wait for one.
+     */
+    private static boolean acknowledges(Channel channel) {
+        return channel.getPipeline().get(StreamMultiplexer.class) != null;
     }
 
     private final class FinishPut implements ChannelFutureListener {
+        private final Channel channel;
         private final Header.Put put;
         private final SDFS.Put sdfsPut;
+        private final boolean resumable;
+        private final byte[] key;
 
-        private FinishPut(Header.Put put, SDFS.Put sdfsPut) {
+        private FinishPut(Channel channel, Header.Put put, SDFS.Put sdfsPut, boolean resumable) {
+            this(channel, put, sdfsPut, resumable, null);
+        }
+
+        private FinishPut(Channel channel, Header.Put put, SDFS.Put sdfsPut, boolean resumable, byte[] key) {
+            this.channel = channel;
             this.put = put;
             this.sdfsPut = sdfsPut;
+            this.resumable = resumable;
+            this.key = key;
         }
 
         public void operationComplete(ChannelFuture future) throws Exception {
             if (future.isSuccess()) {
                 try {
-                    byte[] encryptedFileHash = fileHashCipher.encrypt(put.hash.asBytes());
-                    log.debug("Encrypted file hash");
-
-                    FileMetaData metaData = new FileMetaData(put.size, encryptedFileHash);
-                    try (OutputStream out = sdfsPut.metaByteSink().openBufferedStream()) {
-                        metaData.writeTo(out);
+                    if (!resumable) {
+                        writeMeta(sdfsPut, put.size, put.hash, key);
                     }
                 } finally {
                     log.debug("Releasing `{}'", put.filename);
                     sdfsPut.release();
                 }
+                if (acknowledges(channel)) {
+                    channel.write(Header.ok(put));
+                }
+            } else if (resumable && !(future.getCause() instanceof HashMismatchException)) {
+                log.debug("Suspending `{}' put", put.filename);
+                sdfsPut.suspend();
             } else {
                 log.debug("Aborting `{}' put", put.filename);
                 sdfsPut.abort();
@@ -246,12 +1230,125 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
         }
     }
 
+    private final class FinishAppend implements ChannelFutureListener {
+        private final Channel channel;
+        private final Header.Put put;
+        private final SDFS.Put sdfsPut;
+        private final Append append;
+
+        private FinishAppend(Channel channel, Header.Put put, SDFS.Put sdfsPut, Append append) {
+            this.channel = channel;
+            this.put = put;
+            this.sdfsPut = sdfsPut;
+            this.append = append;
+        }
+
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+                log.debug("Aborting `{}' append", put.filename);
+                sdfsPut.abort();
+                return;
+            }
+            // The content has already changed in place, so must not be kept without its meta data
+            try {
+                writeMeta(sdfsPut, append.base + put.size, append.hash.hash(), append.key, append.hash.state());
+            } catch (IOException e) {
+                sdfsPut.abort();
+                throw e;
+            }
+            log.debug("Releasing `{}'", put.filename);
+            sdfsPut.release();
+            if (acknowledges(channel)) {
+                channel.write(Header.ok(put));
+            }
+        }
+    }
+
+    /**
+     * The segments of a file being sent, read and decrypted a buffer at a time. The first is read
+     * straight away, to sample for compression.
+     */
+    private static final class SegmentBuffers implements AdaptiveChunkedStream.Buffers {
+        private final DecryptedSegments segments;
+        private ByteBuffer first;
+
+        private SegmentBuffers(DecryptedSegments segments) throws IOException {
+            this.segments = segments;
+            first = segments.read(Compression.SAMPLE_SIZE);
+        }
+
+        /** Opens part of a file to be sent, or returns null if it is in a format that must be streamed. */
+        static SegmentBuffers open(CipherStreamFactory cipherStreamFactory, SDFS.Get sdfsGet, byte[] key,
+                                   long offset, long length) throws IOException {
+            DecryptedSegments segments = decrypt(cipherStreamFactory, sdfsGet, key, offset, length);
+            return segments == null ? null : buffers(segments);
+        }
+
+        /**
+         * Opens the whole of a file to be sent, sharing the read with any other gets of it at the
+         * same hash, or returns null if it is in a format that must be streamed.
+         */
+        static SegmentBuffers shared(SharedReads sharedReads, final CipherStreamFactory cipherStreamFactory,
+                                     final SDFS.Get sdfsGet, final byte[] key, String filename, HashCode hash,
+                                     final long size) throws IOException {
+            DecryptedSegments segments = sharedReads.open(filename, hash, new SharedReads.Opener() {
+                public DecryptedSegments open(long offset) throws IOException {
+                    return decrypt(cipherStreamFactory, sdfsGet, key, offset, size - offset);
+                }
+            });
+            return segments == null ? null : buffers(segments);
+        }
+
+        /** Wraps the segments, closing them if their first buffer can't be read. */
+        private static SegmentBuffers buffers(DecryptedSegments segments) throws IOException {
+            try {
+                return new SegmentBuffers(segments);
+            } catch (IOException | RuntimeException e) {
+                segments.close();
+                throw e;
+            }
+        }
+
+        private static DecryptedSegments decrypt(CipherStreamFactory cipherStreamFactory, SDFS.Get sdfsGet,
+                                                 byte[] key, long offset, long length) throws IOException {
+            SeekableByteChannel channel = sdfsGet.contentChannel();
+            try {
+                DecryptedSegments segments = cipherStreamFactory.decryptSegments(channel, key, offset, length);
+                if (segments != null) {
+                    return segments;
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+            return null;
+        }
+
+        ByteBuffer sample() {
+            return first == null ? ByteBuffer.allocate(0) : first;
+        }
+
+        public ByteBuffer read(int size) throws IOException {
+            if (first != null) {
+                ByteBuffer buffer = first;
+                first = null;
+                return buffer;
+            }
+            return segments.read(size);
+        }
+
+        public void close() throws IOException {
+            segments.close();
+        }
+    }
+
     private static final class FinishGet implements ChannelFutureListener {
-        private final InputStream src;
+        private final Closeable src;
         private final Header.Get get;
         private final SDFS.Get sdfsGet;
 
-        private FinishGet(InputStream src, Header.Get get, SDFS.Get sdfsGet) {
+        private FinishGet(Closeable src, Header.Get get, SDFS.Get sdfsGet) {
             this.src = src;
             this.get = get;
             this.sdfsGet = sdfsGet;
@@ -267,6 +1364,25 @@ public class ServerHandler extends SimpleChannelUpstreamHandler {
         }
     }
 
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // Whoever takes a pending delta out of the map owns it, so none is both received and aborted
+        for (CorrelationId id : pendingDeltas.keySet()) {
+            PendingDelta pending = pendingDeltas.remove(id);
+            if (pending != null) {
+                log.debug("Aborting `{}' put still waiting for its delta", pending.put.filename);
+                pending.sdfsPut.abort();
+            }
+        }
+        // The multiplexer fails their transfers, which aborts them
+        trailedPuts.clear();
+        trailedAppends.clear();
+        if (watcher != null) {
+            sdfs.removeListener(watcher);
+            watcher.close();
+        }
+        super.channelClosed(ctx, e);
+    }
+
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         log.error("Server error", e.getCause());
         ctx.getChannel().close();
@@ -3,22 +3,28 @@ package sdfs.server;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
 import org.jboss.netty.handler.codec.string.StringDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sdfs.crypto.CachingBlockCipher;
 import sdfs.crypto.CipherStreamFactory;
 import sdfs.crypto.Crypto;
 import sdfs.crypto.UnlockedBlockCipher;
+import sdfs.protocol.AdaptiveChunkedStream;
 import sdfs.protocol.HeaderCodec;
+import sdfs.protocol.MemoryBudget;
 import sdfs.protocol.Protocol;
+import sdfs.protocol.TextHeaderFramer;
+import sdfs.protocol.WriteBehind;
 import sdfs.sdfs.SDFS;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import java.util.concurrent.Executor;
 
 class ServerPipelineFactory implements ChannelPipelineFactory {
 
@@ -28,14 +34,31 @@ class ServerPipelineFactory implements ChannelPipelineFactory {
     private final SDFS sdfs;
     private final UnlockedBlockCipher fileHashCipher;
     private final CipherStreamFactory cipherStreamFactory;
+    private final ExecutionHandler workers;
+    private final WriteBehind writeBehind;
+    private final MemoryBudget budget;
+    private final SharedReads sharedReads;
+    private final Executor notifier;
+    private final AdaptiveChunkedStream.Bounds chunkSizes;
 
     private final Protocol protocol = new Protocol();
 
-    public ServerPipelineFactory(Crypto crypto, SDFS sdfs) {
+    /** File hashes kept decrypted; each takes well under a kilobyte. */
+    private static final int DECRYPTED_HASH_CACHE_SIZE = 64 * 1024;
+
+    public ServerPipelineFactory(Crypto crypto, SDFS sdfs, ExecutionHandler workers, WriteBehind writeBehind,
+                                 MemoryBudget budget, SharedReads sharedReads, Executor notifier,
+                                 AdaptiveChunkedStream.Bounds chunkSizes) {
         sslContext = crypto.newSslContext();
-        fileHashCipher = crypto.unlockedBlockCipher();
+        fileHashCipher = new CachingBlockCipher(crypto.unlockedBlockCipher(), DECRYPTED_HASH_CACHE_SIZE);
         cipherStreamFactory = new CipherStreamFactory(crypto);
         this.sdfs = sdfs;
+        this.workers = workers;
+        this.writeBehind = writeBehind;
+        this.budget = budget;
+        this.sharedReads = sharedReads;
+        this.notifier = notifier;
+        this.chunkSizes = chunkSizes;
     }
 
     public ChannelPipeline getPipeline() throws Exception {
@@ -51,10 +74,23 @@ class ServerPipelineFactory implements ChannelPipelineFactory {
         sslHandler.setCloseOnSSLException(true);
         pipeline.addLast("ssl", sslHandler);
 
+        // Below the chunker, so as to count each chunk until it has been sent, and before the
+        // workers, so as to count what is received until a worker has handled it
+        MemoryBudget.Share share = budget.newShare();
+        pipeline.addLast("budget", share);
+
+        // Everything past TLS runs on the workers, the framer included, so that a header has been
+        // handled, and any body it announces expected, before the bytes after it are decoded
+        pipeline.addLast("workers", workers);
+        pipeline.addLast("handled", share.handled());
+
         pipeline.addLast("chunker", new ChunkedWriteHandler());
 
-        pipeline.addLast("framer",
-                new DelimiterBasedFrameDecoder(protocol.maxHeaderLength(), protocol.headerDelimiter()));
+        pipeline.addLast("writeBehind", writeBehind);
+
+        pipeline.addLast("negotiator", new HeaderFormatNegotiator(protocol));
+
+        pipeline.addLast("framer", new TextHeaderFramer(protocol));
         pipeline.addLast("stringDecoder", new StringDecoder(protocol.headerCharset()));
         pipeline.addLast("stringEncoder", new StringEncoder(protocol.headerCharset()));
 
@@ -62,7 +98,8 @@ class ServerPipelineFactory implements ChannelPipelineFactory {
         pipeline.addLast("headerDecoder", headerCodec.decoder());
         pipeline.addLast("headerEncoder", headerCodec.encoder());
 
-        pipeline.addLast("server", new ServerHandler(sdfs, fileHashCipher, cipherStreamFactory));
+        pipeline.addLast("server", new ServerHandler(
+                sdfs, fileHashCipher, cipherStreamFactory, sharedReads, notifier, chunkSizes));
 
         return pipeline;
     }
@@ -0,0 +1,265 @@
+package sdfs.server;
+
+import com.google.common.hash.HashCode;
+import com.typesafe.config.Config;
+import sdfs.crypto.DecryptedSegments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Lets concurrent gets of the same file, at the same hash, share one read and decryption of it.
+ * The first get starts a {@link Flight} reading the file; a get that comes along while the flight
+ * still holds the file's first buffer joins it. Each buffer decrypted is kept in a ring for the
+ * rest to take in turn, whichever of them is furthest ahead reading the next. One that falls so
+ * far behind that the ring has let go of the buffer it needs next reads the rest of the file on
+ * its own instead, so that it holds up neither the others nor their memory.
+ */
+public final class SharedReads {
+
+    /** Opens the plaintext of a file from an offset to its end, for one get. */
+    interface Opener {
+
+        /** Returns null if the file is in a format that can't be read a buffer at a time. */
+        DecryptedSegments open(long offset) throws IOException;
+
+    }
+
+    private final int ringSize;
+
+    /** The latest flight of each file and hash, while it has any readers. */
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    public SharedReads(int ringSize) {
+        checkArgument(ringSize > 0, "Shared read ring of %s buffers", ringSize);
+        this.ringSize = ringSize;
+    }
+
+    public static SharedReads fromConfig(Config config) {
+        return new SharedReads(config.getInt("sdfs.shared-reads.ring-buffers"));
+    }
+
+    /**
+     * Reads the whole of {@code filename}, which hashes to {@code hash}, with any other gets of it
+     * under way, or else starts a flight of its own with what {@code opener} opens. Returns null if
+     * the file can't be read a buffer at a time.
+     */
+    DecryptedSegments open(String filename, HashCode hash, Opener opener) throws IOException {
+        String key = filename + "\u0000" + hash;
+        synchronized (this) {
+            Flight flight = flights.get(key);
+            if (flight != null && flight.join()) {
+                return new Reader(flight, opener);
+            }
+        }
+
+        DecryptedSegments source = opener.open(0);
+        if (source == null) {
+            return null;
+        }
+        synchronized (this) {
+            Flight flight = new Flight(key, source);
+            flights.put(key, flight);
+            return new Reader(flight, opener);
+        }
+    }
+
+    /** Files being read by more than one get, for the server status. */
+    synchronized int shared() {
+        int shared = 0;
+        for (Flight flight : flights.values()) {
+            if (flight.readers() > 1) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+
+    public synchronized String toString() {
+        return String.format("Shared reads: %d files being read, %d of them by more than one get",
+                flights.size(), shared());
+    }
+
+    /** Takes {@code reader} out of its flight, and lets go of the flight if that was its last. */
+    private void leave(Reader reader) throws IOException {
+        Flight flight = reader.flight;
+        DecryptedSegments source;
+        synchronized (this) {
+            source = flight.leave();
+            if (source != null && flights.get(flight.key) == flight) {
+                flights.remove(flight.key);
+            }
+        }
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    /** One read of a file, and the buffers of it that its readers may still need. */
+    private final class Flight {
+
+        final String key;
+        private final DecryptedSegments source;
+
+        private final ByteBuffer[] ring = new ByteBuffer[ringSize];
+        /** The sequence number of the oldest buffer the ring holds. */
+        private long base;
+        /** The sequence number of the next buffer to be read from the source. */
+        private long head;
+
+        private boolean reading;
+        private boolean ended;
+        private IOException failure;
+        private int readers = 1;
+
+        Flight(String key, DecryptedSegments source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        /** Adds a reader, if the ring still holds the start of the file. */
+        synchronized boolean join() {
+            if (base > 0 || failure != null || readers == 0) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        synchronized int readers() {
+            return readers;
+        }
+
+        /**
+         * Takes a reader out, and returns the source for it to be closed if that was the last one;
+         * otherwise null.
+         */
+        synchronized DecryptedSegments leave() {
+            return --readers == 0 ? source : null;
+        }
+
+        /**
+         * Returns the buffer numbered {@code sequence}, reading it if it is the next, and waiting if
+         * another reader is reading it already. Returns null at the end, or {@link #BEHIND} if the
+         * ring no longer holds it.
+         */
+        ByteBuffer get(long sequence, int size) throws IOException {
+            synchronized (this) {
+                while (true) {
+                    if (sequence < base) {
+                        return BEHIND;
+                    }
+                    if (sequence < head) {
+                        return ring[(int) (sequence % ringSize)].duplicate();
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (ended) {
+                        return null;
+                    }
+                    if (!reading) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for a shared read", e);
+                    }
+                }
+                reading = true;
+            }
+
+            ByteBuffer buffer;
+            try {
+                buffer = source.read(size);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    reading = false;
+                    notifyAll();
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                reading = false;
+                notifyAll();
+                if (buffer == null) {
+                    ended = true;
+                    return null;
+                }
+                if (head - base == ringSize) {
+                    ring[(int) (base % ringSize)] = null;
+                    base++;
+                }
+                ring[(int) (head % ringSize)] = buffer;
+                head++;
+                return buffer.duplicate();
+            }
+        }
+    }
+
+    /** Stands for a buffer that a reader has fallen too far behind for. */
+    private static final ByteBuffer BEHIND = ByteBuffer.allocate(0);
+
+    /** One get's view of a flight, until it falls behind and reads on its own. */
+    private final class Reader implements DecryptedSegments {
+
+        final Flight flight;
+        private final Opener opener;
+
+        private long sequence;
+        /** Plaintext bytes returned so far. */
+        private long position;
+        /** The reader's own read of the rest, once it has fallen behind. */
+        private DecryptedSegments own;
+        private boolean left;
+
+        Reader(Flight flight, Opener opener) {
+            this.flight = flight;
+            this.opener = opener;
+        }
+
+        public ByteBuffer read(int size) throws IOException {
+            if (own == null) {
+                ByteBuffer buffer = flight.get(sequence, size);
+                if (buffer != BEHIND) {
+                    if (buffer != null) {
+                        sequence++;
+                        position += buffer.remaining();
+                    }
+                    return buffer;
+                }
+                leave();
+                own = opener.open(position);
+                if (own == null) {
+                    throw new IOException("File can no longer be read a buffer at a time");
+                }
+            }
+            return own.read(size);
+        }
+
+        private void leave() throws IOException {
+            if (!left) {
+                left = true;
+                SharedReads.this.leave(this);
+            }
+        }
+
+        public void close() throws IOException {
+            try {
+                leave();
+            } finally {
+                if (own != null) {
+                    own.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package sdfs.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashCodes;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sdfs.CN;
+import sdfs.crypto.UnlockedBlockCipher;
+import sdfs.protocol.Header;
+import sdfs.sdfs.ResourceNonexistentException;
+import sdfs.sdfs.SDFS;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The subscriptions of one connection to changes, and the changes waiting to be sent over it.
+ * Changes to the same file are held as one, and only {@link #MAX_PENDING} are held at all: past
+ * that they are dropped for a single overflow, so a client slow to read costs the server no more.
+ * They are sent by the notifier a batch at a time, each once the last has been written.
+ */
+class Watcher implements SDFS.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(Watcher.class);
+
+    static final int MAX_PENDING = 1024;
+
+    private final SDFS sdfs;
+    private final UnlockedBlockCipher fileHashCipher;
+    private final CN client;
+    private final Channel channel;
+    private final Executor notifier;
+
+    private final List<Header.Watch> subscriptions = new ArrayList<>();
+
+    /**
+     * Files changed since the last batch, each with the name whose rights decide whether the client
+     * may hear of it: its own, or the one it was moved to. Removed files have none left to check, so
+     * they are held with null.
+     */
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    private boolean overflowed;
+    private boolean sending;
+    private boolean closed;
+
+    private final Runnable send = new Runnable() {
+        public void run() {
+            send();
+        }
+    };
+
+    Watcher(SDFS sdfs, UnlockedBlockCipher fileHashCipher, CN client, Channel channel, Executor notifier) {
+        this.sdfs = sdfs;
+        this.fileHashCipher = fileHashCipher;
+        this.client = client;
+        this.channel = channel;
+        this.notifier = notifier;
+    }
+
+    /** Starts a subscription, in place of any to the same name or prefix. */
+    synchronized void watch(Header.Watch watch) {
+        stop(watch);
+        subscriptions.add(watch);
+    }
+
+    synchronized void stop(Header.Watch watch) {
+        for (Iterator<Header.Watch> i = subscriptions.iterator(); i.hasNext(); ) {
+            Header.Watch subscription = i.next();
+            if (subscription.prefix == watch.prefix && subscription.filename.equals(watch.filename)) {
+                i.remove();
+            }
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        subscriptions.clear();
+        pending.clear();
+    }
+
+    public void changed(String resourceName) {
+        pend(resourceName, resourceName);
+    }
+
+    public void moved(String resourceName, String targetName) {
+        pend(resourceName, targetName);
+        pend(targetName, targetName);
+    }
+
+    public void removed(String resourceName) {
+        pend(resourceName, null);
+    }
+
+    private synchronized void pend(String name, String rightsName) {
+        if (closed || overflowed || !watched(subscriptions, name)) {
+            return;
+        }
+        // Once overflowed, the client must check everything anyway
+        pending.remove(name);
+        if (pending.size() == MAX_PENDING) {
+            pending.clear();
+            overflowed = true;
+        } else {
+            pending.put(name, rightsName);
+        }
+        if (!sending) {
+            sending = true;
+            notifier.execute(send);
+        }
+    }
+
+    private static boolean watched(List<Header.Watch> subscriptions, String name) {
+        for (Header.Watch subscription : subscriptions) {
+            if (watches(subscription, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean watches(Header.Watch subscription, String name) {
+        return subscription.prefix ? name.startsWith(subscription.filename) : name.equals(subscription.filename);
+    }
+
+    private void send() {
+        List<Header.Watch> batchSubscriptions;
+        Map<String, String> batch;
+        boolean batchOverflowed;
+        synchronized (this) {
+            batchSubscriptions = new ArrayList<>(subscriptions);
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            batchOverflowed = overflowed;
+            overflowed = false;
+        }
+
+        ChannelFuture last = null;
+        try {
+            if (batchOverflowed) {
+                for (Header.Watch subscription : batchSubscriptions) {
+                    last = channel.write(Header.overflowed(subscription));
+                }
+            }
+            for (Map.Entry<String, String> change : batch.entrySet()) {
+                ChannelFuture written = send(batchSubscriptions, change.getKey(), change.getValue());
+                if (written != null) {
+                    last = written;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to send changes to {}", client, e);
+        }
+
+        if (last == null) {
+            sent();
+        } else {
+            last.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) {
+                    sent();
+                }
+            });
+        }
+    }
+
+    /** Sends a change to each subscription it falls under, if the client may still get the file. */
+    private ChannelFuture send(List<Header.Watch> subscriptions, String name, String rightsName) throws Exception {
+        if (rightsName == null) {
+            ChannelFuture last = null;
+            for (Header.Watch subscription : subscriptions) {
+                if (watches(subscription, name)) {
+                    last = channel.write(Header.removed(subscription, name));
+                }
+            }
+            return last;
+        }
+
+        SDFS.Stat stat;
+        try {
+            stat = sdfs.stat(client, rightsName);
+        } catch (ResourceNonexistentException e) {
+            // Gone since; whatever took its place will have a change of its own
+            return null;
+        }
+        if (stat.meta == null) {
+            return null;
+        }
+
+        FileMetaData fileMetaData = FileMetaData.readFrom(new ByteArrayInputStream(stat.meta));
+        HashCode hash = HashCodes.fromBytes(fileHashCipher.decrypt(fileMetaData.encryptedHash));
+        ChannelFuture last = null;
+        for (Header.Watch subscription : subscriptions) {
+            if (watches(subscription, name)) {
+                last = channel.write(name.equals(rightsName)
+                        ? Header.changed(subscription, name, fileMetaData.size, hash)
+                        : Header.removed(subscription, name));
+            }
+        }
+        return last;
+    }
+
+    private void sent() {
+        synchronized (this) {
+            if (closed || pending.isEmpty() && !overflowed) {
+                sending = false;
+                return;
+            }
+        }
+        notifier.execute(send);
+    }
+}
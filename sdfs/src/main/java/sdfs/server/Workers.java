@@ -0,0 +1,79 @@
+package sdfs.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import sdfs.Output;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The threads that requests are handled on instead of the network threads, along with the
+ * hashing, encryption and disk I/O they need. Each connection's events are handled one at a time
+ * in the order they arrived, while its network thread goes on decrypting what it sends next. A
+ * connection that has {@link Settings#channelMemory} waiting isn't read until some of it is
+ * handled, nor is any connection while they have {@link Settings#totalMemory} waiting between them.
+ */
+public class Workers extends OrderedMemoryAwareThreadPoolExecutor {
+
+    /** How long a worker beyond those busy is kept idle. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public static final class Settings {
+        public final int threads;
+        public final long channelMemory;
+        public final long totalMemory;
+
+        public Settings(int threads, long channelMemory, long totalMemory) {
+            checkArgument(threads > 0, "Need at least one worker, not %s", threads);
+            checkArgument(channelMemory > 0 && totalMemory >= channelMemory,
+                    "Worker memory limits %s per connection and %s in all", channelMemory, totalMemory);
+            this.threads = threads;
+            this.channelMemory = channelMemory;
+            this.totalMemory = totalMemory;
+        }
+
+        public static Settings fromConfig(Config config) {
+            return new Settings(
+                    config.getInt("sdfs.workers.threads"),
+                    config.getBytes("sdfs.workers.channel-memory"),
+                    config.getBytes("sdfs.workers.total-memory"));
+        }
+    }
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    Workers(Settings settings) {
+        super(settings.threads, settings.channelMemory, settings.totalMemory, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sdfs-worker-%d").build());
+    }
+
+    protected void increaseCounter(Runnable task) {
+        super.increaseCounter(task);
+        if (shouldCount(task)) {
+            queued.incrementAndGet();
+        }
+    }
+
+    protected void decreaseCounter(Runnable task) {
+        super.decreaseCounter(task);
+        if (shouldCount(task)) {
+            queued.decrementAndGet();
+        }
+    }
+
+    /** Events received but not yet handled, over all connections. */
+    int queued() {
+        return queued.get();
+    }
+
+    public String toString() {
+        return String.format("Workers: %d of %d busy, %d events queued (at most %s per connection, %s in all)",
+                getActiveCount(), getMaximumPoolSize(), queued(),
+                Output.transferSize(getMaxChannelMemorySize()),
+                Output.transferSize(getMaxTotalMemorySize()));
+    }
+}
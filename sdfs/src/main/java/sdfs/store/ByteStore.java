@@ -4,12 +4,21 @@ import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 
 import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
 
 public interface ByteStore {
 
     ByteSink put(Path path) throws IOException;
 
+    /**
+     * Opens an existing file for writing after its first {@code keep} bytes, discarding the rest.
+     */
+    ByteSink append(Path path, long keep) throws IOException;
+
     ByteSource get(Path path);
 
+    /** Opens an existing file to be read from any position, a buffer at a time. */
+    SeekableByteChannel channel(Path path) throws IOException;
+
 }
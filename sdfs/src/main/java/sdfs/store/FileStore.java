@@ -6,10 +6,19 @@ import com.google.common.io.Files;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
@@ -39,10 +48,33 @@ public class FileStore implements ByteStore, StringStore, PathManipulator {
         return Files.asByteSink(file);
     }
 
+    public ByteSink append(Path path, final long keep) throws IOException {
+        final File file = file(path);
+        if (!file.isFile()) {
+            throw new IOException("Cannot append to missing file " + path);
+        }
+        return new ByteSink() {
+            public OutputStream openStream() throws IOException {
+                FileOutputStream out = new FileOutputStream(file, true);
+                try {
+                    out.getChannel().truncate(keep);
+                } catch (IOException e) {
+                    out.close();
+                    throw e;
+                }
+                return out;
+            }
+        };
+    }
+
     public ByteSource get(Path path) {
         return Files.asByteSource(file(path));
     }
 
+    public SeekableByteChannel channel(Path path) throws IOException {
+        return FileChannel.open(path(path));
+    }
+
     public String read(Path path) {
 
         path = path(path);
@@ -81,15 +113,44 @@ public class FileStore implements ByteStore, StringStore, PathManipulator {
     public void move(Path source, Path target) throws IOException {
         source = path(source);
         if (java.nio.file.Files.exists(source)) {
+            File parent = path(target).getParent().toFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create parent directory");
+            }
             java.nio.file.Files.move(source, path(target), REPLACE_EXISTING);
         } else {
             delete(target);
         }
     }
 
+    public void link(Path source, Path target) throws IOException {
+        source = path(source);
+        target = path(target);
+        File parent = target.getParent().toFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create parent directory");
+        }
+        java.nio.file.Files.deleteIfExists(target);
+        try {
+            java.nio.file.Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            java.nio.file.Files.copy(source, target);
+        }
+    }
+
+    public boolean shared(Path path) {
+        try {
+            return (Integer) java.nio.file.Files.getAttribute(path(path), "unix:nlink") > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            // Can't tell, so assume so
+            return true;
+        }
+    }
+
     public void delete(Path path) throws IOException {
+        path = path(path);
         if (path.toFile().isDirectory()) {
-            FileUtils.deleteDirectory(path(path).toFile());
+            FileUtils.deleteDirectory(path.toFile());
         } else {
             java.nio.file.Files.deleteIfExists(path);
         }
@@ -99,4 +160,20 @@ public class FileStore implements ByteStore, StringStore, PathManipulator {
         return java.nio.file.Files.exists(path(path));
     }
 
+    public List<Path> find(final String filename) throws IOException {
+        final List<Path> found = new ArrayList<>();
+        if (!java.nio.file.Files.isDirectory(rootPath)) {
+            return found;
+        }
+        java.nio.file.Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().equals(filename)) {
+                    found.add(rootPath.relativize(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return found;
+    }
+
 }
@@ -2,13 +2,26 @@ package sdfs.store;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 
 public interface PathManipulator {
 
     void move(Path source, Path target) throws IOException;
 
+    /**
+     * Makes {@code target} a file with the same bytes as {@code source}, sharing them where the
+     * store can. Neither may be written in place afterwards.
+     */
+    void link(Path source, Path target) throws IOException;
+
+    /** Whether a file's bytes may be shared with another by {@link #link}, and so must not be written in place. */
+    boolean shared(Path path);
+
     void delete(Path path) throws IOException;
 
     boolean exists(Path path);
 
+    /** Every file in the store named {@code filename}, however deep. */
+    List<Path> find(String filename) throws IOException;
+
 }
@@ -0,0 +1,257 @@
+package sdfs.crypto;
+
+import com.google.common.io.ByteStreams;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import sdfs.store.MockStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CipherStreamFactoryTest {
+
+    static class Fixture {
+
+        Crypto crypto = new Crypto(ConfigFactory.empty());
+        CipherStreamFactory factory = new CipherStreamFactory(crypto);
+
+        Random random = new Random(7);
+        byte[] key = bytes(64);
+        byte[] plaintext = bytes(3 * SegmentedCipher.DEFAULT_SEGMENT_SIZE + 1000);
+
+        byte[] bytes(int length) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+
+        byte[] encrypt(byte[] plaintext) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (OutputStream encrypted = factory.encrypt(out, key)) {
+                encrypted.write(plaintext);
+            }
+            return out.toByteArray();
+        }
+
+        /** The format files were stored in before segmentation. */
+        byte[] encryptCbc(byte[] plaintext) throws IOException {
+            Cipher cipher = crypto.newCipherForEncryption(key);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new DataOutputStream(out).writeInt(cipher.getIV().length);
+            out.write(cipher.getIV());
+            try (OutputStream encrypted = new CipherOutputStream(out, cipher)) {
+                encrypted.write(plaintext);
+            }
+            return out.toByteArray();
+        }
+
+        byte[] decrypt(byte[] ciphertext, long offset, long length) throws IOException {
+            try (InputStream in = factory.decrypt(ByteStreams.asByteSource(ciphertext), key, offset, length)) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+
+        /** Decrypts by segments, reading buffers of {@code size}; null if the file must be streamed. */
+        byte[] decryptSegments(byte[] ciphertext, long offset, long length, int size) throws IOException {
+            MockStore store = new MockStore();
+            Path path = Paths.get("content");
+            store.put(path).write(ciphertext);
+            try (DecryptedSegments segments = factory.decryptSegments(store.channel(path), key, offset, length)) {
+                if (segments == null) {
+                    return null;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (ByteBuffer buffer; (buffer = segments.read(size)) != null; ) {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+                return out.toByteArray();
+            }
+        }
+
+        int segment = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+        long[][] ranges = {
+            { 0, plaintext.length },
+            { 0, 10 },
+            { 17, 33 },
+            { segment - 5, 10 },
+            { segment, segment },
+            { segment + 1, 2 * segment + 500 },
+            { plaintext.length - 1, 1 },
+            { plaintext.length, 0 },
+        };
+
+        void assertRangesDecrypt(byte[] ciphertext) throws IOException {
+            for (long[] range : ranges) {
+                int from = (int) range[0];
+                int to = (int) Math.min(plaintext.length, range[0] + range[1]);
+                assertArrayEquals(
+                    "bytes " + from + " to " + to,
+                    Arrays.copyOfRange(plaintext, from, to),
+                    decrypt(ciphertext, range[0], range[1])
+                );
+            }
+        }
+
+    }
+
+    @Test public void wholeFileRoundTrip() throws Exception { new Fixture() {{
+
+        try (InputStream in = factory.decrypt(new ByteArrayInputStream(encrypt(plaintext)), key)) {
+            assertArrayEquals(plaintext, ByteStreams.toByteArray(in));
+        }
+
+    }}; }
+
+    @Test public void unevenWritesRoundTrip() throws Exception { new Fixture() {{
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypted = factory.encrypt(out, key)) {
+            int offset = 0;
+            for (int n = 1; offset < plaintext.length; n = n * 3 + 1) {
+                int length = Math.min(n, plaintext.length - offset);
+                encrypted.write(plaintext, offset, length);
+                offset += length;
+            }
+        }
+
+        assertArrayEquals(plaintext, decrypt(out.toByteArray(), 0, Long.MAX_VALUE));
+
+    }}; }
+
+    @Test public void emptyFileRoundTrip() throws Exception { new Fixture() {{
+
+        assertArrayEquals(new byte[0], decrypt(encrypt(new byte[0]), 0, Long.MAX_VALUE));
+
+    }}; }
+
+    @Test public void segmentedRanges() throws Exception { new Fixture() {{
+
+        assertRangesDecrypt(encrypt(plaintext));
+
+    }}; }
+
+    @Test public void segmentedRangesByBuffer() throws Exception { new Fixture() {{
+
+        byte[] ciphertext = encrypt(plaintext);
+        for (int size : new int[] { 1, segment, 2 * segment + 1 }) {
+            for (long[] range : ranges) {
+                int from = (int) range[0];
+                int to = (int) Math.min(plaintext.length, range[0] + range[1]);
+                assertArrayEquals(
+                    "bytes " + from + " to " + to + " in buffers of " + size,
+                    Arrays.copyOfRange(plaintext, from, to),
+                    decryptSegments(ciphertext, range[0], range[1], size)
+                );
+            }
+        }
+        assertArrayEquals(new byte[0], decryptSegments(encrypt(new byte[0]), 0, Long.MAX_VALUE, segment));
+
+    }}; }
+
+    @Test public void cbcIsNotReadByBuffer() throws Exception { new Fixture() {{
+
+        assertNull(decryptSegments(encryptCbc(plaintext), 0, Long.MAX_VALUE, segment));
+
+    }}; }
+
+    @Test public void cbcRanges() throws Exception { new Fixture() {{
+
+        assertRangesDecrypt(encryptCbc(plaintext));
+
+    }}; }
+
+    @Test public void resumeFromCheckpoint() throws Exception { new Fixture() {{
+
+        int cut = 2 * SegmentedCipher.DEFAULT_SEGMENT_SIZE + 1234;
+
+        // An upload cut off part way through its third segment
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypted = factory.encrypt(out, key)) {
+            encrypted.write(plaintext, 0, cut);
+        }
+        byte[] partial = out.toByteArray();
+
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        CipherStreamFactory.Checkpoint checkpoint =
+                factory.checkpoint(ByteStreams.asByteSource(partial), key, prefix);
+
+        assertEquals(2 * SegmentedCipher.DEFAULT_SEGMENT_SIZE, checkpoint.plaintextLength);
+        assertArrayEquals(Arrays.copyOf(plaintext, (int) checkpoint.plaintextLength), prefix.toByteArray());
+
+        out = new ByteArrayOutputStream();
+        out.write(partial, 0, (int) checkpoint.encryptedLength);
+        try (OutputStream encrypted = factory.resume(checkpoint, out)) {
+            int offset = (int) checkpoint.plaintextLength;
+            encrypted.write(plaintext, offset, plaintext.length - offset);
+        }
+
+        assertArrayEquals(plaintext, decrypt(out.toByteArray(), 0, Long.MAX_VALUE));
+
+    }}; }
+
+    @Test public void appendAtLastSegment() throws Exception { new Fixture() {{
+
+        int size = 2 * SegmentedCipher.DEFAULT_SEGMENT_SIZE + 1234;
+        byte[] original = encrypt(Arrays.copyOf(plaintext, size));
+
+        CipherStreamFactory.Checkpoint checkpoint =
+                factory.appendPoint(ByteStreams.asByteSource(original), key, size);
+        assertEquals(2 * SegmentedCipher.DEFAULT_SEGMENT_SIZE, checkpoint.plaintextLength);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(original, 0, (int) checkpoint.encryptedLength);
+        try (OutputStream encrypted = factory.resume(checkpoint, out)) {
+            int offset = (int) checkpoint.plaintextLength;
+            encrypted.write(plaintext, offset, plaintext.length - offset);
+        }
+
+        assertArrayEquals(plaintext, decrypt(out.toByteArray(), 0, Long.MAX_VALUE));
+        assertEquals(null, factory.appendPoint(ByteStreams.asByteSource(encryptCbc(plaintext)), key, size));
+
+    }}; }
+
+    @Test(expected = IOException.class)
+    public void tamperedSegmentIsRejected() throws Exception { new Fixture() {{
+
+        byte[] ciphertext = encrypt(plaintext);
+        ciphertext[(int) new SegmentedCipher(crypto, key, SegmentedCipher.DEFAULT_SEGMENT_SIZE, new byte[8])
+                .segmentPosition(1) + 3] ^= 1;
+        decrypt(ciphertext, SegmentedCipher.DEFAULT_SEGMENT_SIZE, 10);
+
+    }}; }
+
+    @Test(expected = IOException.class)
+    public void tamperedSegmentIsRejectedByBuffer() throws Exception { new Fixture() {{
+
+        byte[] ciphertext = encrypt(plaintext);
+        ciphertext[(int) new SegmentedCipher(crypto, key, segment, new byte[8]).segmentPosition(2) - 1] ^= 1;
+        decryptSegments(ciphertext, 0, Long.MAX_VALUE, 4 * segment);
+
+    }}; }
+
+    @Test(expected = IOException.class)
+    public void truncationIsRejected() throws Exception { new Fixture() {{
+
+        byte[] ciphertext = encrypt(plaintext);
+        int end = (int) new SegmentedCipher(crypto, key, SegmentedCipher.DEFAULT_SEGMENT_SIZE, new byte[8])
+                .segmentPosition(3);
+        decrypt(Arrays.copyOf(ciphertext, end), 0, Long.MAX_VALUE);
+
+    }}; }
+
+}
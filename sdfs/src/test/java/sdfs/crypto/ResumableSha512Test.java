@@ -0,0 +1,58 @@
+package sdfs.crypto;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResumableSha512Test {
+
+    static class Fixture {
+
+        byte[] bytes = new byte[5000];
+        {
+            new Random(11).nextBytes(bytes);
+        }
+
+        ResumableSha512 hashOf(int length) {
+            ResumableSha512 sha = new ResumableSha512();
+            sha.write(bytes, 0, length);
+            return sha;
+        }
+    }
+
+    @Test public void matchesSha512() throws Exception { new Fixture() {{
+
+        for (int length : new int[] { 0, 1, 111, 112, 127, 128, 129, 239, 240, 256, 4999 }) {
+            assertEquals("length " + length,
+                    Hashing.sha512().hashBytes(bytes, 0, length), hashOf(length).hash());
+        }
+
+    }}; }
+
+    @Test public void resumesFromState() throws Exception { new Fixture() {{
+
+        ResumableSha512 first = hashOf(1000);
+        long whole = first.length() / ResumableSha512.BLOCK_LENGTH * ResumableSha512.BLOCK_LENGTH;
+
+        ResumableSha512 resumed = ResumableSha512.resume(first.state(), whole);
+        resumed.write(bytes, (int) whole, bytes.length - (int) whole);
+
+        assertEquals(bytes.length, resumed.length());
+        assertEquals(Hashing.sha512().hashBytes(bytes), resumed.hash());
+
+    }}; }
+
+    @Test public void hashingCarriesOn() throws Exception { new Fixture() {{
+
+        ResumableSha512 sha = hashOf(300);
+        assertEquals(Hashing.sha512().hashBytes(Arrays.copyOf(bytes, 300)), sha.hash());
+        sha.write(bytes, 300, 200);
+        assertEquals(Hashing.sha512().hashBytes(Arrays.copyOf(bytes, 500)), sha.hash());
+
+    }}; }
+
+}
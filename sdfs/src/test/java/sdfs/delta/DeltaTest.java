@@ -0,0 +1,181 @@
+package sdfs.delta;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import sdfs.protocol.HashMismatchException;
+import sdfs.protocol.Varints;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTest {
+
+    static class Fixture {
+
+        HashFunction hashFunction = Hashing.sha512();
+
+        Random random = new Random(7);
+        byte[] base = bytes(300 * 1000 + 123);
+
+        byte[] bytes(int length) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+
+        int blockSize() {
+            return Signatures.blockSize(base.length);
+        }
+
+        Signatures signatures() throws IOException {
+            try (InputStream in = Signatures.stream(new ByteArrayInputStream(base), blockSize())) {
+                byte[] records = ByteStreams.toByteArray(in);
+                assertEquals(Signatures.length(base.length, blockSize()), records.length);
+                return Signatures.read(new ByteArrayInputStream(records), blockSize(), base.length);
+            }
+        }
+
+        Delta delta(byte[] file) throws IOException {
+            return Delta.compute(signatures(), ByteStreams.asByteSource(file));
+        }
+
+        byte[] rebuild(Delta delta, byte[] file) throws IOException {
+            return rebuild(delta, file, file);
+        }
+
+        byte[] rebuild(Delta delta, byte[] file, byte[] expected) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputStream rebuilt = new DeltaOutputStream(ByteStreams.asByteSource(base), base.length, blockSize(),
+                    out, expected.length, hashFunction, hashFunction.hashBytes(expected));
+            byte[] sent;
+            try (InputStream in = delta.openStream(ByteStreams.asByteSource(file))) {
+                sent = ByteStreams.toByteArray(in);
+            }
+            assertEquals(delta.size(), sent.length);
+
+            // Written in small pieces, so that ops arrive split across writes
+            for (int i = 0; i < sent.length; i += 7) {
+                rebuilt.write(sent, i, Math.min(7, sent.length - i));
+            }
+            rebuilt.close();
+            return out.toByteArray();
+        }
+
+        byte[] concat(byte[]... parts) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] part : parts) {
+                out.write(part, 0, part.length);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void unchangedFileIsAllCopies() throws Exception {
+        new Fixture() {{
+            Delta delta = delta(base);
+            assertEquals(0, delta.literalBytes());
+            assertTrue(delta.size() < 20);
+            assertArrayEquals(base, rebuild(delta, base));
+        }};
+    }
+
+    @Test
+    public void editsAreSentAsLiterals() throws Exception {
+        new Fixture() {{
+            byte[] inserted = bytes(100);
+            byte[] file = concat(
+                    Arrays.copyOfRange(base, 0, 5000),
+                    inserted,
+                    Arrays.copyOfRange(base, 5000, 200 * 1000),
+                    Arrays.copyOfRange(base, 201 * 1000, base.length),
+                    bytes(10));
+            Delta delta = delta(file);
+            assertTrue(delta.literalBytes() < 4 * blockSize());
+            assertArrayEquals(file, rebuild(delta, file));
+        }};
+    }
+
+    @Test
+    public void unrelatedFileIsOneLiteral() throws Exception {
+        new Fixture() {{
+            byte[] file = bytes(50 * 1000);
+            Delta delta = delta(file);
+            assertEquals(file.length, delta.literalBytes());
+            assertArrayEquals(file, rebuild(delta, file));
+        }};
+    }
+
+    @Test
+    public void emptyFiles() throws Exception {
+        new Fixture() {{
+            assertArrayEquals(new byte[0], rebuild(delta(new byte[0]), new byte[0]));
+            base = new byte[0];
+            byte[] file = bytes(1000);
+            assertArrayEquals(file, rebuild(delta(file), file));
+        }};
+    }
+
+    @Test(expected = HashMismatchException.class)
+    public void rebuiltFileIsChecked() throws Exception {
+        new Fixture() {{
+            byte[] file = Arrays.copyOf(base, base.length);
+            file[1000]++;
+            rebuild(delta(file), file, base);
+        }};
+    }
+
+    @Test(expected = IOException.class)
+    public void copyPastTheBaseIsRejected() throws Exception {
+        new Fixture() {{
+            ChannelBuffer op = ChannelBuffers.dynamicBuffer();
+            op.writeByte(Delta.COPY);
+            Varints.writeVarLong(op, 1);
+            Varints.writeVarLong(op, Long.MAX_VALUE);
+            byte[] header = new byte[op.readableBytes()];
+            op.readBytes(header);
+
+            OutputStream rebuilt = new DeltaOutputStream(ByteStreams.asByteSource(base), base.length, blockSize(),
+                    new ByteArrayOutputStream(), base.length, hashFunction, hashFunction.hashBytes(base));
+            rebuilt.write(header);
+        }};
+    }
+
+    @Test
+    public void rollingChecksumMatchesRecomputed() {
+        new Fixture() {{
+            int window = 64;
+            RollingChecksum checksum = new RollingChecksum();
+            checksum.update(base, 0, window);
+            for (int i = 1; i < 1000; i++) {
+                checksum.roll(base[i - 1], base[i - 1 + window]);
+                assertEquals(RollingChecksum.of(base, i, window), checksum.value());
+            }
+        }};
+    }
+
+    @Test
+    public void blocksGrowRatherThanOutnumberTheBound() {
+        assertEquals(Signatures.MIN_BLOCK_SIZE, Signatures.blockSize(1000));
+        assertEquals(Signatures.MAX_BLOCK_SIZE, Signatures.blockSize(16L << 30));
+        for (long size : new long[] { 16L << 30, (16L << 30) + 1, 200L << 30, 1L << 40, 3L << 40 }) {
+            int blockSize = Signatures.blockSize(size);
+            assertEquals(0, blockSize % 8);
+            assertTrue(Signatures.blockCount(size, blockSize) <= Signatures.MAX_BLOCK_COUNT);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package sdfs.protocol;
+
+import com.google.common.base.Ticker;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+import sdfs.Output;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveChunkedStreamTest {
+
+    static class Fixture {
+
+        AdaptiveChunkedStream.Bounds bounds = new AdaptiveChunkedStream.Bounds(8 * 1024, 256 * 1024);
+
+        long nanos;
+        Ticker ticker = new Ticker() {
+            public long read() {
+                return nanos;
+            }
+        };
+
+        /** Endless zeros, a few at a time, as a socket or pipe gives them. */
+        InputStream trickle = new InputStream() {
+            public int read() {
+                return 0;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                return Math.min(len, 1000);
+            }
+
+            public int available() {
+                return 1000;
+            }
+        };
+
+        /**
+         * Takes chunks from the stream, each costing {@code perChunk} nanoseconds plus
+         * {@code perByte} for each byte, and returns the chunk size it settles on.
+         */
+        int send(AdaptiveChunkedStream stream, int chunks, long perChunk, long perByte) throws Exception {
+            for (int i = 0; i < chunks; i++) {
+                ChannelBuffer chunk = (ChannelBuffer) stream.nextChunk();
+                nanos += perChunk + perByte * chunk.readableBytes();
+            }
+            return stream.chunkSize();
+        }
+
+    }
+
+    @Test
+    public void chunksAreFilledFromShortReads() throws Exception { new Fixture() {{
+
+        AdaptiveChunkedStream stream = new AdaptiveChunkedStream(trickle, 64 * 1024, bounds, ticker);
+        assertEquals(64 * 1024, ((ChannelBuffer) stream.nextChunk()).readableBytes());
+
+        stream = new AdaptiveChunkedStream(new ByteArrayInputStream(new byte[100 * 1024]), 64 * 1024, bounds, ticker);
+        assertEquals(64 * 1024, ((ChannelBuffer) stream.nextChunk()).readableBytes());
+        assertEquals(36 * 1024, ((ChannelBuffer) stream.nextChunk()).readableBytes());
+        assertTrue(stream.isEndOfInput());
+        assertNull(stream.nextChunk());
+
+    }}; }
+
+    @Test
+    public void buffersAreSlicedIntoChunks() throws Exception { new Fixture() {{
+
+        final byte[] content = new byte[100 * 1024];
+        AdaptiveChunkedStream.Buffers buffers = new AdaptiveChunkedStream.Buffers() {
+            boolean read;
+
+            public ByteBuffer read(int size) {
+                if (read) {
+                    return null;
+                }
+                read = true;
+                return ByteBuffer.wrap(content);
+            }
+
+            public void close() { }
+        };
+
+        AdaptiveChunkedStream stream = new AdaptiveChunkedStream(buffers, 64 * 1024, bounds, ticker);
+        ChannelBuffer first = (ChannelBuffer) stream.nextChunk();
+        assertEquals(64 * 1024, first.readableBytes());
+        assertSame(content, first.array());
+        assertEquals(36 * 1024, ((ChannelBuffer) stream.nextChunk()).readableBytes());
+        assertTrue(stream.isEndOfInput());
+
+    }}; }
+
+    @Test
+    public void growsWhileChunksCostMoreThanBytes() throws Exception { new Fixture() {{
+
+        AdaptiveChunkedStream stream = new AdaptiveChunkedStream(trickle, 8 * 1024, bounds, ticker);
+        assertEquals(256 * 1024, send(stream, 1000, 5000000, 1));
+        assertEquals(Output.transferSize(8 * 1024) + " to " + Output.transferSize(256 * 1024), stream.chunkSizes());
+
+    }}; }
+
+    @Test
+    public void shrinksWhenOnlyBytesCost() throws Exception { new Fixture() {{
+
+        AdaptiveChunkedStream stream = new AdaptiveChunkedStream(trickle, 64 * 1024, bounds, ticker);
+        assertEquals(8 * 1024, send(stream, 1000, 0, 1000));
+
+    }}; }
+
+    @Test
+    public void staysWithinBounds() throws Exception { new Fixture() {{
+
+        AdaptiveChunkedStream stream = new AdaptiveChunkedStream(trickle, 1024 * 1024, bounds, ticker);
+        assertEquals(256 * 1024, stream.chunkSize());
+        assertEquals(Output.transferSize(256 * 1024), stream.chunkSizes());
+
+    }}; }
+
+}
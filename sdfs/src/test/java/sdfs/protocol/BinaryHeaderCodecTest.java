@@ -0,0 +1,449 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.joda.time.Instant;
+import org.junit.Test;
+import sdfs.CN;
+import sdfs.sdfs.Right;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryHeaderCodecTest {
+
+    static class Fixture {
+
+        Protocol protocol = new Protocol();
+        BinaryHeaderCodec codec = new BinaryHeaderCodec(protocol);
+
+        ChannelBuffer encode(Object message) {
+            EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<>(codec.encoder());
+            encoder.offer(message);
+            return encoder.poll();
+        }
+
+        <T> T decode(ChannelBuffer buffer) {
+            DecoderEmbedder<T> decoder = new DecoderEmbedder<>(codec.decoder());
+            decoder.offer(buffer);
+            return decoder.poll();
+        }
+
+        <T> T roundTrip(T message) {
+            return decode(encode(message));
+        }
+
+    }
+
+    @Test public void putRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Put put = new Header.Put();
+        put.correlationId = new CorrelationId(protocol.correlationId());
+        put.filename = "apples.pdf";
+        put.hash = protocol.fileHashFunction().hashInt(42);
+        put.size = 5000000000L;
+
+        Header.Put decoded = roundTrip(put);
+
+        assertEquals(put.correlationId, decoded.correlationId);
+        assertEquals(put.filename, decoded.filename);
+        assertEquals(put.hash, decoded.hash);
+        assertEquals(put.size, decoded.size);
+        assertNull(decoded.content);
+
+    }}; }
+
+    @Test public void rangedGetRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Get get = new Header.Get();
+        get.filename = "server.log";
+        get.offset = -4096;
+        get.length = 1024;
+
+        Header.Get decoded = roundTrip(get);
+
+        assertEquals(get.offset, decoded.offset);
+        assertEquals(get.length, decoded.length);
+
+    }}; }
+
+    @Test public void sizesPastTwoGigabytesRoundTrip() throws Exception { new Fixture() {{
+
+        long big = (3L << 30) + 12345;
+
+        Header.Get get = new Header.Get();
+        get.filename = "server.log";
+        get.offset = -big;
+        get.length = big;
+        Header.Get decodedGet = roundTrip(get);
+        assertEquals(-big, decodedGet.offset);
+        assertEquals(big, decodedGet.length);
+
+        Header.Put put = new Header.Put();
+        put.correlationId = new CorrelationId(protocol.correlationId());
+        put.filename = "server.log";
+        put.append = true;
+        put.trailer = true;
+
+        assertEquals(big, roundTrip(Header.resume(put, big)).offset);
+
+        Header.Signatures signatures = roundTrip(Header.signatures(put, 1 << 20, big, big / 1024));
+        assertEquals(big, signatures.baseSize);
+        assertEquals(big / 1024, signatures.size);
+
+        assertEquals(big, roundTrip(Header.delta(signatures, big)).size);
+
+    }}; }
+
+    @Test public void conditionalGetRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Get get = new Header.Get();
+        get.filename = "apples.pdf";
+        get.hash = protocol.fileHashFunction().hashInt(42);
+
+        Header.Get decoded = roundTrip(get);
+
+        assertEquals(get.hash, decoded.hash);
+        assertEquals(0, decoded.offset);
+        assertEquals(Header.Get.TO_END, decoded.length);
+
+    }}; }
+
+    @Test public void acceptingGetRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Get get = new Header.Get();
+        get.filename = "apples.pdf";
+        get.accept = ImmutableList.of(Compression.Deflate, Compression.Lz4);
+
+        Header.Get decoded = roundTrip(get);
+
+        assertNull(decoded.hash);
+        assertEquals(get.accept, decoded.accept);
+        assertEquals(Header.Get.TO_END, decoded.length);
+
+    }}; }
+
+    @Test public void inlinePutRoundTrip() throws Exception { new Fixture() {{
+
+        byte[] content = new byte[protocol.maxHeaderLength() * 2];
+        new Random(1).nextBytes(content);
+
+        Header.Put put = new Header.Put();
+        put.filename = "apples.conf";
+        put.hash = protocol.fileHashFunction().hashBytes(content);
+        put.size = content.length;
+        put.content = content;
+
+        Header.Put decoded = roundTrip(put);
+
+        assertEquals(put.hash, decoded.hash);
+        assertEquals(0, decoded.offset);
+        assertFalse(decoded.delta);
+        assertArrayEquals(content, decoded.content);
+
+    }}; }
+
+    @Test public void trailedPutRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Put put = new Header.Put();
+        put.filename = "apples.log";
+        put.trailer = true;
+
+        Header.Put decoded = roundTrip(put);
+
+        assertTrue(decoded.trailer);
+        assertFalse(decoded.delta);
+        assertNull(decoded.hash);
+
+        Header.Trailer trailer = roundTrip(Header.trailer(put, 5000000000L, protocol.fileHashFunction().hashInt(42)));
+
+        assertEquals(put.filename, trailer.filename);
+        assertEquals(5000000000L, trailer.size);
+        assertEquals(protocol.fileHashFunction().hashInt(42), trailer.hash);
+        assertNull(trailer.fileHash);
+
+        Header.Trailer appended = Header.trailer(put, 5, protocol.fileHashFunction().hashInt(42));
+        appended.fileHash = protocol.fileHashFunction().hashInt(43);
+        trailer = roundTrip(appended);
+
+        assertEquals(protocol.fileHashFunction().hashInt(42), trailer.hash);
+        assertEquals(protocol.fileHashFunction().hashInt(43), trailer.fileHash);
+
+    }}; }
+
+    @Test public void bundleRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Bundle bundle = new Header.Bundle();
+        bundle.correlationId = new CorrelationId(protocol.correlationId());
+        bundle.get = true;
+        bundle.count = 2000;
+        bundle.size = 5000000000L;
+
+        Header.Bundle decoded = roundTrip(bundle);
+
+        assertEquals(bundle.correlationId, decoded.correlationId);
+        assertTrue(decoded.get);
+        assertEquals(2000, decoded.count);
+        assertEquals(5000000000L, decoded.size);
+
+        Header.Bundle answer = roundTrip(Header.bundle(bundle, 30));
+
+        assertEquals(bundle.correlationId, answer.correlationId);
+        assertTrue(answer.get);
+        assertEquals(2000, answer.count);
+        assertEquals(30, answer.size);
+
+    }}; }
+
+    @Test public void copyRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Copy copy = new Header.Copy();
+        copy.correlationId = new CorrelationId(protocol.correlationId());
+        copy.filename = "apples.pdf";
+        copy.to = "pears.pdf";
+        copy.move = true;
+
+        Header.Copy decoded = roundTrip(copy);
+
+        assertEquals(copy.correlationId, decoded.correlationId);
+        assertEquals(copy.filename, decoded.filename);
+        assertEquals(copy.to, decoded.to);
+        assertTrue(decoded.move);
+
+    }}; }
+
+    @Test public void statRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Stat stat = new Header.Stat();
+        stat.correlationId = new CorrelationId(protocol.correlationId());
+        stat.count = 30000;
+        stat.size = 900000;
+
+        Header.Stat decoded = roundTrip(stat);
+
+        assertEquals(stat.correlationId, decoded.correlationId);
+        assertEquals(30000, decoded.count);
+        assertEquals(900000, decoded.size);
+
+    }}; }
+
+    @Test public void delegationsRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Delegations delegations = new Header.Delegations();
+        delegations.correlationId = new CorrelationId(protocol.correlationId());
+        delegations.count = 1000;
+        delegations.size = 40000;
+
+        Header.Delegations decoded = roundTrip(Header.delegations(delegations, 1000));
+
+        assertEquals(delegations.correlationId, decoded.correlationId);
+        assertEquals(1000, decoded.count);
+        assertEquals(1000, decoded.size);
+
+    }}; }
+
+    @Test public void listingRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Listing listing = new Header.Listing();
+        listing.correlationId = new CorrelationId(protocol.correlationId());
+        listing.prefix = "";
+        listing.count = 1000;
+
+        Header.Listing decoded = roundTrip(listing);
+
+        assertEquals("", decoded.prefix);
+        assertNull(decoded.after);
+        assertEquals(1000, decoded.count);
+
+        decoded = roundTrip(Header.listing(listing, "logs/2013-05-01", 1000, 24000));
+
+        assertEquals(listing.correlationId, decoded.correlationId);
+        assertEquals("logs/2013-05-01", decoded.after);
+        assertEquals(24000, decoded.size);
+
+    }}; }
+
+    @Test public void watchRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Watch watch = new Header.Watch();
+        watch.correlationId = new CorrelationId(protocol.correlationId());
+        watch.filename = "logs/";
+        watch.prefix = true;
+
+        Header.Watch decoded = roundTrip(watch);
+
+        assertEquals("logs/", decoded.filename);
+        assertTrue(decoded.prefix);
+        assertFalse(decoded.stop);
+
+        Header.Changed changed = roundTrip(
+                Header.changed(watch, "logs/server.log", 1024, protocol.fileHashFunction().hashInt(42)));
+
+        assertEquals(watch.correlationId, changed.correlationId);
+        assertEquals("logs/server.log", changed.filename);
+        assertEquals(1024, changed.size);
+        assertEquals(protocol.fileHashFunction().hashInt(42), changed.hash);
+        assertFalse(changed.removed);
+
+        changed = roundTrip(Header.removed(watch, "logs/server.log"));
+
+        assertTrue(changed.removed);
+        assertNull(changed.hash);
+
+        changed = roundTrip(Header.overflowed(watch));
+
+        assertTrue(changed.overflowed);
+        assertEquals("", changed.filename);
+
+    }}; }
+
+    @Test public void partialPutRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Put put = new Header.Put();
+        put.filename = "server.log";
+        put.size = 1024;
+        put.offset = 5000000000L;
+
+        Header.Put decoded = roundTrip(put);
+
+        assertNull(decoded.hash);
+        assertEquals(put.size, decoded.size);
+        assertEquals(put.offset, decoded.offset);
+
+    }}; }
+
+    @Test public void delegateRoundTrip() throws Exception { new Fixture() {{
+
+        Header.Delegate delegate = new Header.Delegate();
+        delegate.filename = "apples.pdf";
+        delegate.to = new CN("bob");
+        delegate.rights = ImmutableList.of(Right.Get, Right.PutStar);
+        delegate.expiration = new Instant(1234567890123L);
+
+        Header.Delegate decoded = roundTrip(delegate);
+
+        assertEquals(delegate.to, decoded.to);
+        assertEquals(
+            protocol.encodeRights(delegate.rights),
+            protocol.encodeRights(decoded.rights)
+        );
+        assertEquals(delegate.expiration, decoded.expiration);
+
+    }}; }
+
+    @Test public void waitsForWholeFrame() throws Exception { new Fixture() {{
+
+        Header.Get get = new Header.Get();
+        get.filename = "apples.pdf";
+        ChannelBuffer encoded = encode(get);
+
+        DecoderEmbedder<Header> decoder = new DecoderEmbedder<>(codec.decoder());
+        decoder.offer(encoded.readSlice(3));
+        assertNull(decoder.poll());
+
+        decoder.offer(encoded);
+        Header decoded = decoder.poll();
+        assertTrue(decoded instanceof Header.Get);
+        assertEquals("apples.pdf", ((Header.Get) decoded).filename);
+
+    }}; }
+
+    @Test public void decodesBackToBackFrames() throws Exception { new Fixture() {{
+
+        Header.Bye bye = new Header.Bye();
+        Header.Get get = new Header.Get();
+        get.filename = "bananas.pdf";
+
+        DecoderEmbedder<Header> decoder = new DecoderEmbedder<>(codec.decoder());
+        decoder.offer(ChannelBuffers.wrappedBuffer(encode(get), encode(bye)));
+
+        assertTrue(decoder.poll() instanceof Header.Get);
+        assertTrue(decoder.poll() instanceof Header.Bye);
+
+    }}; }
+
+    @Test public void dataFrameLargerThanHeaderLimit() throws Exception { new Fixture() {{
+
+        byte[] bytes = new byte[protocol.maxHeaderLength() * 4];
+        new Random(1).nextBytes(bytes);
+        CorrelationId id = new CorrelationId(protocol.correlationId());
+
+        Frame.Data decoded = roundTrip(new Frame.Data(id, ChannelBuffers.wrappedBuffer(bytes)));
+
+        assertEquals(id, decoded.streamId);
+        assertEquals(ChannelBuffers.wrappedBuffer(bytes), decoded.data);
+
+    }}; }
+
+    @Test public void compressedDataRoundTrip() throws Exception { new Fixture() {{
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append(i).append(",apples,").append(i * 31 % 97).append('\n');
+        }
+        ChannelBuffer data = ChannelBuffers.copiedBuffer(text, protocol.headerCharset());
+        CorrelationId id = new CorrelationId(protocol.correlationId());
+
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<>(codec.encoder(), new FrameCompressor(protocol));
+        encoder.offer(new Frame.Data(id, data.duplicate(), Compression.Lz4));
+        ChannelBuffer encoded = encoder.poll();
+        assertTrue(encoded.readableBytes() < data.readableBytes() / 2);
+
+        DecoderEmbedder<Frame.Data> decoder = new DecoderEmbedder<>(codec.decoder(), new FrameCompressor(protocol));
+        decoder.offer(encoded);
+        Frame.Data decoded = decoder.poll();
+
+        assertEquals(id, decoded.streamId);
+        assertEquals(data, decoded.data);
+
+    }}; }
+
+    @Test public void windowRoundTrip() throws Exception { new Fixture() {{
+
+        CorrelationId id = new CorrelationId(protocol.correlationId());
+
+        Frame.Window decoded = roundTrip(new Frame.Window(id, protocol.streamWindow()));
+
+        assertEquals(id, decoded.streamId);
+        assertEquals(protocol.streamWindow(), decoded.credit);
+
+    }}; }
+
+    /** A length that claims more than is left, here nearly 2 GB. */
+    static ChannelBuffer overlong() {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        Varints.writeVarLong(buffer, Integer.MAX_VALUE);
+        buffer.writeByte(0);
+        return buffer;
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void bytesLongerThanWhatIsLeftAreRejected() {
+        BinaryHeaderCodec.readBytes(overlong());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void moreCompressionsThanWhatIsLeftAreRejected() {
+        BinaryHeaderCodec.readCompressions(overlong());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void moreRightsThanWhatIsLeftAreRejected() {
+        BinaryHeaderCodec.readRights(overlong());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void negativeVarIntIsRejected() {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        Varints.writeVarLong(buffer, -1);
+        Varints.readVarInt(buffer);
+    }
+}
@@ -0,0 +1,189 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BundleTest {
+
+    static class Fixture {
+
+        Protocol protocol = new Protocol();
+        Random random = new Random(11);
+
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        List<Bundle.Entry> entries = new ArrayList<>();
+
+        Map<String, byte[]> committed = new LinkedHashMap<>();
+        List<String> aborted = new ArrayList<>();
+
+        void file(String name, int length) {
+            byte[] content = new byte[length];
+            random.nextBytes(content);
+            files.put(name, content);
+            entries.add(new Bundle.Entry(name, length, protocol.fileHashFunction().hashBytes(content)));
+        }
+
+        void missing(String name, byte status) {
+            entries.add(new Bundle.Entry(name, status));
+        }
+
+        long length() {
+            long length = 0;
+            for (Bundle.Entry entry : entries) {
+                length += entry.status == Bundle.OK
+                        ? Bundle.length(protocol, entry.name, entry.size)
+                        : Bundle.length(protocol, entry.name);
+            }
+            return length;
+        }
+
+        byte[] write() throws IOException {
+            final Iterator<Bundle.Entry> remaining = entries.iterator();
+            InputStream writer = new Bundle.Writer(protocol) {
+                protected Bundle.Entry next() {
+                    return remaining.hasNext() ? remaining.next() : null;
+                }
+
+                protected InputStream open(Bundle.Entry entry) {
+                    return new ByteArrayInputStream(files.get(entry.name));
+                }
+            };
+            try (InputStream in = writer) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+
+        void read(byte[] bundle, int length) throws IOException {
+            OutputStream reader = new Bundle.Reader(protocol, entries.size()) {
+                private ByteArrayOutputStream content;
+
+                protected OutputStream open(Bundle.Entry entry) {
+                    if (entry.status != Bundle.OK) {
+                        committed.put(entry.name, null);
+                        return null;
+                    }
+                    return content = new ByteArrayOutputStream();
+                }
+
+                protected void commit(Bundle.Entry entry) {
+                    committed.put(entry.name, content.toByteArray());
+                }
+
+                protected void abort(Bundle.Entry entry) {
+                    aborted.add(entry.name);
+                }
+            };
+            // Written in small pieces, so that entry headers arrive split across writes
+            for (int i = 0; i < length; i += 7) {
+                reader.write(bundle, i, Math.min(7, length - i));
+            }
+            reader.close();
+        }
+    }
+
+    @Test
+    public void bundleRoundTrip() throws Exception {
+        new Fixture() {{
+            file("a.txt", 1000);
+            missing("secret.txt", Bundle.PROHIBITED);
+            file("empty.txt", 0);
+            missing("gone.txt", Bundle.NONEXISTENT);
+            file("b.bin", 300 * 1000);
+
+            byte[] bundle = write();
+            assertEquals(length(), bundle.length);
+
+            read(bundle, bundle.length);
+            assertEquals(ImmutableList.of("a.txt", "secret.txt", "empty.txt", "gone.txt", "b.bin"),
+                    ImmutableList.copyOf(committed.keySet()));
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                assertArrayEquals(file.getValue(), committed.get(file.getKey()));
+            }
+            assertTrue(aborted.isEmpty());
+        }};
+    }
+
+    @Test
+    public void corruptEntryIsAborted() throws Exception {
+        new Fixture() {{
+            file("a.txt", 1000);
+            file("b.txt", 1000);
+            byte[] bundle = write();
+            bundle[bundle.length - 10]++;
+            try {
+                read(bundle, bundle.length);
+                throw new AssertionError("Corrupt entry was committed");
+            } catch (HashMismatchException e) {
+                assertEquals(ImmutableList.of("a.txt"), ImmutableList.copyOf(committed.keySet()));
+                assertEquals(ImmutableList.of("b.txt"), aborted);
+            }
+        }};
+    }
+
+    @Test
+    public void truncatedBundleFails() throws Exception {
+        new Fixture() {{
+            file("a.txt", 1000);
+            file("b.txt", 1000);
+            byte[] bundle = write();
+            try {
+                read(bundle, bundle.length - 500);
+                throw new AssertionError("Truncated bundle was read");
+            } catch (EOFException e) {
+                assertEquals(ImmutableList.of("a.txt"), ImmutableList.copyOf(committed.keySet()));
+                assertEquals(ImmutableList.of("b.txt"), aborted);
+            }
+        }};
+    }
+
+    @Test(expected = EOFException.class)
+    public void shortContentFailsWriter() throws Exception {
+        new Fixture() {{
+            file("a.txt", 1000);
+            files.put("a.txt", Arrays.copyOf(files.get("a.txt"), 999));
+            write();
+        }};
+    }
+
+    @Test
+    public void namesRoundTrip() {
+        new Fixture() {{
+            List<String> names = ImmutableList.of("a.txt", "", "dir/b.txt");
+            assertEquals(names, Bundle.readNames(protocol, Bundle.names(protocol, names), names.size()));
+        }};
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void namesMustMatchCount() {
+        new Fixture() {{
+            List<String> names = ImmutableList.of("a.txt", "b.txt");
+            Bundle.readNames(protocol, Bundle.names(protocol, names), 3);
+        }};
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void countBeyondBodyIsRejected() {
+        new Fixture() {{
+            Bundle.readNames(protocol, new byte[] { 0 }, Integer.MAX_VALUE);
+        }};
+    }
+}
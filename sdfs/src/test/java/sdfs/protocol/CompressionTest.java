@@ -0,0 +1,101 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+
+    static class Fixture {
+
+        Random random = new Random(7);
+
+        byte[] random(int length) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+
+        byte[] csv(int length) {
+            StringBuilder csv = new StringBuilder();
+            for (int i = 0; csv.length() < length; i++) {
+                csv.append("2013-05-").append(i % 28 + 1).append(",GET,/apples/").append(random.nextInt(50)).append('\n');
+            }
+            return csv.substring(0, length).getBytes();
+        }
+
+        void assertRoundTrips(Compression compression, byte[] bytes) throws IOException {
+            ChannelBuffer compressed = compression.compress(ChannelBuffers.wrappedBuffer(bytes));
+            assertEquals(ChannelBuffers.wrappedBuffer(bytes), compression.decompress(compressed, bytes.length));
+        }
+
+        InputStream stream(byte[] bytes) {
+            return new BufferedInputStream(new ByteArrayInputStream(bytes), Compression.SAMPLE_SIZE);
+        }
+    }
+
+    @Test
+    public void codecsRoundTrip() throws Exception {
+        new Fixture() {{
+            for (Compression compression : Compression.values()) {
+                for (int length : new int[] { 0, 1, 12, 13, 100, 65536, 200 * 1000 }) {
+                    assertRoundTrips(compression, csv(length));
+                    assertRoundTrips(compression, random(length));
+                }
+                // Long runs need the extended match and literal lengths
+                assertRoundTrips(compression, new byte[100 * 1000]);
+            }
+        }};
+    }
+
+    @Test
+    public void textCompresses() throws Exception {
+        new Fixture() {{
+            byte[] csv = csv(65536);
+            for (Compression compression : Compression.supported()) {
+                int compressed = compression.compress(ChannelBuffers.wrappedBuffer(csv)).readableBytes();
+                assertTrue(compression + " to " + compressed, compressed < csv.length / 3);
+            }
+        }};
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlockIsRejected() throws Exception {
+        new Fixture() {{
+            byte[] csv = csv(10000);
+            ChannelBuffer compressed = Compression.Lz4.compress(ChannelBuffers.wrappedBuffer(csv));
+            Compression.Lz4.decompress(compressed.slice(0, compressed.readableBytes() - 10), csv.length);
+        }};
+    }
+
+    @Test
+    public void choosesFromSample() throws Exception {
+        new Fixture() {{
+            ImmutableList<Compression> both = ImmutableList.of(Compression.Lz4, Compression.Deflate);
+            InputStream text = stream(csv(100 * 1000));
+            assertEquals(Compression.Lz4, Compression.choose(both, text));
+            assertEquals('2', text.read());
+
+            assertEquals(Compression.None, Compression.choose(both, stream(random(100 * 1000))));
+            assertEquals(Compression.None, Compression.choose(both, stream(csv(100))));
+            assertEquals(Compression.None, Compression.choose(ImmutableList.<Compression>of(), stream(csv(100 * 1000))));
+        }};
+    }
+
+    @Test
+    public void negotiatesInPreferredOrder() {
+        assertEquals(ImmutableList.of(Compression.Deflate),
+                Compression.negotiate(ImmutableList.of(Compression.None, Compression.Deflate, Compression.Lz4),
+                        ImmutableList.of(Compression.Deflate)));
+    }
+}
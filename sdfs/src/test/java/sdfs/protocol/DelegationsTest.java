@@ -0,0 +1,46 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import org.joda.time.Instant;
+import org.junit.Test;
+import sdfs.CN;
+import sdfs.sdfs.Delegation;
+import sdfs.sdfs.Right;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class DelegationsTest {
+
+    Protocol protocol = new Protocol();
+
+    @Test
+    public void requestRoundTrip() {
+        Delegations.Request request = new Delegations.Request(
+                ImmutableList.of(
+                        new Delegation(new CN("bob"), ImmutableList.of(Right.Get, Right.PutStar), new Instant(10)),
+                        new Delegation(new CN("charlie"), ImmutableList.<Right>of(), new Instant(5000000000L))),
+                ImmutableList.of("apples.pdf", "pears.pdf", "plums.pdf"));
+
+        Delegations.Request read = Delegations.readRequest(protocol, Delegations.request(protocol, request), 3);
+
+        assertEquals(2, read.delegations.size());
+        assertEquals("bob", read.delegations.get(0).to.name);
+        assertEquals("[get-none, put-star]", read.delegations.get(0).rights.toString());
+        assertEquals(new Instant(10), read.delegations.get(0).expiration);
+        assertEquals("charlie", read.delegations.get(1).to.name);
+        assertEquals("[]", read.delegations.get(1).rights.toString());
+        assertEquals(new Instant(5000000000L), read.delegations.get(1).expiration);
+        assertEquals(ImmutableList.of("apples.pdf", "pears.pdf", "plums.pdf"), read.names);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedRequestIsRejected() {
+        byte[] body = Delegations.request(protocol, new Delegations.Request(
+                ImmutableList.of(new Delegation(new CN("bob"), ImmutableList.of(Right.Get), new Instant(10))),
+                ImmutableList.of("apples.pdf")));
+        Delegations.readRequest(protocol, Arrays.copyOf(body, body.length - 1), 1);
+    }
+
+}
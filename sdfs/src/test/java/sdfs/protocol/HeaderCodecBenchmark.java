@@ -0,0 +1,142 @@
+package sdfs.protocol;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.joda.time.Instant;
+import sdfs.CN;
+import sdfs.TestLogConfiguration;
+import sdfs.sdfs.Right;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encode and decode throughput of the text {@link HeaderCodec} against
+ * {@link BinaryHeaderCodec}, each measured through the same pipeline stages a connection uses.
+ *
+ * Not a unit test; run the main method directly.
+ */
+public class HeaderCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+    private static final int HEADERS_PER_ROUND = 100000;
+
+    private final Protocol protocol = new Protocol();
+    private final List<Header> headers = sampleHeaders();
+
+    public static void main(String[] args) throws Exception {
+        TestLogConfiguration.configureLogging();
+        new HeaderCodecBenchmark().run();
+    }
+
+    void run() throws Exception {
+        ChannelBuffer text = encodeText();
+        ChannelBuffer binary = encodeBinary();
+        System.out.printf("Encoded size per %d headers: text %d bytes, binary %d bytes%n",
+                headers.size(), text.readableBytes(), binary.readableBytes());
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            measure(false, text, binary);
+        }
+        for (int i = 0; i < ROUNDS; i++) {
+            measure(true, text, binary);
+        }
+    }
+
+    private void measure(boolean report, ChannelBuffer text, ChannelBuffer binary) throws Exception {
+        int batches = HEADERS_PER_ROUND / headers.size();
+
+        Stopwatch textEncode = new Stopwatch().start();
+        for (int i = 0; i < batches; i++) encodeText();
+        textEncode.stop();
+
+        Stopwatch binaryEncode = new Stopwatch().start();
+        for (int i = 0; i < batches; i++) encodeBinary();
+        binaryEncode.stop();
+
+        Stopwatch textDecode = new Stopwatch().start();
+        for (int i = 0; i < batches; i++) {
+            decode(text.duplicate(),
+                    new TextHeaderFramer(protocol),
+                    new StringDecoder(protocol.headerCharset()),
+                    new HeaderCodec(protocol).decoder());
+        }
+        textDecode.stop();
+
+        Stopwatch binaryDecode = new Stopwatch().start();
+        for (int i = 0; i < batches; i++) {
+            decode(binary.duplicate(), new BinaryHeaderCodec(protocol).decoder());
+        }
+        binaryDecode.stop();
+
+        if (report) {
+            System.out.printf("encode: text %s, binary %s | decode: text %s, binary %s%n",
+                    rate(textEncode), rate(binaryEncode), rate(textDecode), rate(binaryDecode));
+        }
+    }
+
+    private String rate(Stopwatch stopwatch) {
+        double seconds = stopwatch.elapsed(TimeUnit.NANOSECONDS) / 1e9;
+        return String.format("%,.0f headers/s", HEADERS_PER_ROUND / seconds);
+    }
+
+    private ChannelBuffer encodeText() {
+        HeaderCodec codec = new HeaderCodec(protocol);
+        return encode(new EncoderEmbedder<ChannelBuffer>(
+                new StringEncoder(protocol.headerCharset()), codec.encoder()));
+    }
+
+    private ChannelBuffer encodeBinary() {
+        BinaryHeaderCodec codec = new BinaryHeaderCodec(protocol);
+        return encode(new EncoderEmbedder<ChannelBuffer>(codec.encoder()));
+    }
+
+    private ChannelBuffer encode(EncoderEmbedder<ChannelBuffer> encoder) {
+        for (Header header : headers) {
+            encoder.offer(header);
+        }
+        encoder.finish();
+        return ChannelBuffers.wrappedBuffer(encoder.pollAll(new ChannelBuffer[0]));
+    }
+
+    private void decode(ChannelBuffer in, ChannelUpstreamHandler... handlers) {
+        DecoderEmbedder<Header> decoder = new DecoderEmbedder<>(handlers);
+        decoder.offer(in);
+        decoder.finish();
+        if (decoder.size() != headers.size()) {
+            throw new IllegalStateException("Decoded " + decoder.size() + " of " + headers.size() + " headers");
+        }
+    }
+
+    private List<Header> sampleHeaders() {
+        Header.Get get = new Header.Get();
+        get.correlationId = new CorrelationId(protocol.correlationId());
+        get.filename = "logs/2013/04/app-server-07.log";
+
+        Header.Put put = new Header.Put();
+        put.correlationId = new CorrelationId(protocol.correlationId());
+        put.filename = "config/cluster/settings.conf";
+        put.hash = protocol.fileHashFunction().hashLong(1);
+        put.size = 2048;
+
+        Header.Ok ok = Header.ok(put);
+
+        Header.Delegate delegate = new Header.Delegate();
+        delegate.correlationId = new CorrelationId(protocol.correlationId());
+        delegate.filename = get.filename;
+        delegate.to = new CN("client2");
+        delegate.rights = ImmutableList.of(Right.Get, Right.PutStar);
+        delegate.expiration = new Instant(1365000000000L);
+
+        return ImmutableList.<Header>of(get, put, ok, delegate);
+    }
+
+}
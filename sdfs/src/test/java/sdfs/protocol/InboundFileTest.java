@@ -0,0 +1,154 @@
+package sdfs.protocol;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.io.ByteStreams;
+import com.typesafe.config.ConfigFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import sdfs.crypto.CipherStreamFactory;
+import sdfs.crypto.Crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class InboundFileTest {
+
+    static class Fixture {
+
+        Protocol protocol = new Protocol();
+        CipherStreamFactory cipherStreamFactory = new CipherStreamFactory(new Crypto(ConfigFactory.empty()));
+
+        Random random = new Random(7);
+        byte[] key = new byte[64];
+        { random.nextBytes(key); }
+
+        /** A pattern whose length divides neither the segment nor the hash block size. */
+        byte[] pattern = new byte[64 * 1024 + 7];
+        { random.nextBytes(pattern); }
+
+        /** {@code size} bytes of the pattern over and over, made up as they are read. */
+        InputStream synthetic(final long size) {
+            return new InputStream() {
+                long position;
+
+                public int read() {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) {
+                    if (position == size) {
+                        return -1;
+                    }
+                    int start = (int) (position % pattern.length);
+                    int n = (int) Math.min(Math.min(len, pattern.length - start), size - position);
+                    System.arraycopy(pattern, start, b, off, n);
+                    position += n;
+                    return n;
+                }
+            };
+        }
+
+        HashCode hash(InputStream in) throws IOException {
+            Hasher hasher = protocol.fileHashFunction().newHasher();
+            byte[] buffer = new byte[64 * 1024];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                hasher.putBytes(buffer, 0, n);
+            }
+            return hasher.hash();
+        }
+
+    }
+
+    /** Past the largest int, by more than a buffer or a segment. */
+    static final long SIZE = (3L << 30) + 12345;
+
+    @Test
+    public void fileTooBigForAnIntIsExpected() throws Exception { new Fixture() {{
+
+        InboundFile file = new InboundFile(ByteStreams.nullOutputStream(), SIZE, protocol.fileHashFunction(),
+                protocol.fileHashFunction().hashInt(1));
+        assertEquals(SIZE, file.remaining());
+
+    }}; }
+
+    /** The end of a file too big for an int is received across the int's limit, as a resumed put would be. */
+    @Test
+    public void receivesAcrossTheLargestInt() throws Exception { new Fixture() {{
+
+        long offset = Integer.MAX_VALUE - (long) pattern.length;
+        long size = Integer.MAX_VALUE + 3L * pattern.length;
+        Hasher hasher = protocol.fileHashFunction().newHasher();
+        // The hasher stands in for one already given the bytes before the offset
+        HashCode hash = hash(synthetic(size - offset));
+
+        InboundFile file = new InboundFile(ByteStreams.nullOutputStream(), size, offset, hasher, hash);
+        InputStream in = synthetic(size - offset);
+        byte[] buffer = new byte[64 * 1024];
+        boolean done = false;
+        for (int n; (n = in.read(buffer)) >= 0; ) {
+            assertFalse(done);
+            done = file.read(ChannelBuffers.wrappedBuffer(buffer, 0, n));
+        }
+        assertTrue(done);
+        assertEquals(0, file.remaining());
+
+    }}; }
+
+    /**
+     * A file too big for its size to fit in an int is hashed, encrypted, decrypted and received
+     * whole, a buffer at a time, as a put and then a get of it would be. Streaming 3 GB takes about
+     * 20 s, so this only runs with {@code -Dsdfs.test.slow=true}.
+     */
+    @Test
+    public void multiGigabyteFile() throws Exception { new Fixture() {{
+
+        assumeTrue(Boolean.getBoolean("sdfs.test.slow"));
+
+        final long size = SIZE;
+        HashCode hash = hash(synthetic(size));
+
+        ExecutorService encrypter = Executors.newSingleThreadExecutor();
+        final PipedOutputStream pipe = new PipedOutputStream();
+        InputStream encrypted = new PipedInputStream(pipe, 1024 * 1024);
+        Future<Long> written = encrypter.submit(new Callable<Long>() {
+            public Long call() throws IOException {
+                try (OutputStream out = cipherStreamFactory.encrypt(pipe, key)) {
+                    return ByteStreams.copy(synthetic(size), out);
+                }
+            }
+        });
+
+        InboundFile file = new InboundFile(ByteStreams.nullOutputStream(), size, protocol.fileHashFunction(), hash);
+        try (InputStream decrypted = cipherStreamFactory.decrypt(encrypted, key)) {
+            byte[] buffer = new byte[64 * 1024];
+            boolean done = false;
+            for (int n; (n = decrypted.read(buffer)) >= 0; ) {
+                assertFalse(done);
+                done = file.read(ChannelBuffers.wrappedBuffer(buffer, 0, n));
+            }
+            assertTrue(done);
+        } finally {
+            encrypter.shutdown();
+        }
+
+        assertEquals(size, (long) written.get());
+        assertEquals(0, file.remaining());
+
+    }}; }
+
+}
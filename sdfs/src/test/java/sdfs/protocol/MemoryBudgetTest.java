@@ -0,0 +1,89 @@
+package sdfs.protocol;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MemoryBudgetTest {
+
+    MemoryBudget budget = new MemoryBudget(100);
+
+    AtomicInteger woken = new AtomicInteger();
+    Runnable waiter = new Runnable() {
+        public void run() {
+            woken.incrementAndGet();
+        }
+    };
+
+    MemoryBudget.Share open() throws Exception {
+        MemoryBudget.Share share = budget.newShare();
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.getChannel()).thenReturn(mock(Channel.class));
+        share.channelOpen(ctx, mock(ChannelStateEvent.class));
+        return share;
+    }
+
+    @Test
+    public void oneConnectionMayHoldTheWholeBudget() throws Exception {
+        MemoryBudget.Share share = open();
+        share.acquire(99);
+        assertTrue(share.hasRoom(waiter));
+        share.acquire(1);
+        assertFalse(share.hasRoom(waiter));
+    }
+
+    @Test
+    public void connectionsShareTheBudgetEqually() throws Exception {
+        MemoryBudget.Share a = open();
+        MemoryBudget.Share b = open();
+        a.acquire(50);
+        assertFalse(a.hasRoom(waiter));
+        assertTrue(b.hasRoom(waiter));
+    }
+
+    @Test
+    public void connectionWithNothingInFlightMayAlwaysGoOn() throws Exception {
+        MemoryBudget.Share a = open();
+        MemoryBudget.Share b = open();
+        a.acquire(150);
+        assertTrue(b.hasRoom(waiter));
+    }
+
+    @Test
+    public void pausedConnectionIsWokenOnceItHasRoom() throws Exception {
+        MemoryBudget.Share share = open();
+        share.acquire(100);
+        assertFalse(share.hasRoom(waiter));
+        assertFalse(share.hasRoom(waiter));
+
+        share.release(10);
+        assertEquals(1, woken.get());
+        assertTrue(share.hasRoom(waiter));
+    }
+
+    @Test
+    public void receivedBufferCountsUntilHandled() throws Exception {
+        MemoryBudget.Share share = open();
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        MessageEvent e = mock(MessageEvent.class);
+        when(e.getMessage()).thenReturn(ChannelBuffers.wrappedBuffer(new byte[100]));
+
+        share.messageReceived(ctx, e);
+        assertFalse(share.hasRoom(waiter));
+
+        share.handled().handleUpstream(ctx, e);
+        assertEquals(1, woken.get());
+        assertTrue(share.hasRoom(waiter));
+    }
+}
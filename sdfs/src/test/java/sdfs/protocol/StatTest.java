@@ -0,0 +1,53 @@
+package sdfs.protocol;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import sdfs.sdfs.Right;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StatTest {
+
+    Protocol protocol = new Protocol();
+
+    @Test
+    public void entriesRoundTrip() {
+        List<Stat.Entry> entries = ImmutableList.of(
+                new Stat.Entry("apples.pdf", 5000000000L, protocol.fileHashFunction().hashInt(1),
+                        ImmutableList.of(Right.Get, Right.PutStar)),
+                new Stat.Entry("pears.pdf", ImmutableList.of(Right.Put)),
+                new Stat.Entry("plums.pdf"));
+
+        List<Stat.Entry> read = Stat.readEntries(protocol, Stat.entries(protocol, entries), 3);
+
+        assertEquals(Bundle.OK, read.get(0).status);
+        assertEquals("apples.pdf", read.get(0).name);
+        assertEquals(5000000000L, read.get(0).size);
+        assertEquals(protocol.fileHashFunction().hashInt(1), read.get(0).hash);
+        assertEquals("[get-none, put-star]", read.get(0).rights.toString());
+
+        assertEquals(Bundle.PROHIBITED, read.get(1).status);
+        assertNull(read.get(1).hash);
+        assertEquals("[put-none]", read.get(1).rights.toString());
+
+        assertEquals(Bundle.NONEXISTENT, read.get(2).status);
+        assertEquals("plums.pdf", read.get(2).name);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedEntriesAreRejected() {
+        byte[] body = Stat.entries(protocol, ImmutableList.of(
+                new Stat.Entry("apples.pdf", 10, protocol.fileHashFunction().hashInt(1), ImmutableList.of(Right.Get))));
+        Stat.readEntries(protocol, Arrays.copyOf(body, body.length - 1), 1);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void countBeyondBodyIsRejected() {
+        Stat.readEntries(protocol, new byte[] { 0, Bundle.NONEXISTENT }, Integer.MAX_VALUE);
+    }
+
+}
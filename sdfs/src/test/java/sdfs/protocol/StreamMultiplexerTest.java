@@ -0,0 +1,82 @@
+package sdfs.protocol;
+
+import com.google.common.io.ByteStreams;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StreamMultiplexerTest {
+
+    Protocol protocol = new Protocol();
+    Channel channel = mock(Channel.class);
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    StreamMultiplexer mux = new StreamMultiplexer(protocol);
+    CorrelationId id = new CorrelationId(protocol.correlationId());
+
+    @Before
+    public void setUp() throws Exception {
+        when(ctx.getChannel()).thenReturn(channel);
+        mux.beforeAdd(ctx);
+    }
+
+    void receive(byte[] bytes) throws Exception {
+        MessageEvent e = mock(MessageEvent.class);
+        when(e.getMessage()).thenReturn(new Frame.Data(id, ChannelBuffers.wrappedBuffer(bytes)));
+        mux.messageReceived(ctx, e);
+    }
+
+    /** The windows the multiplexer has granted, in the order it granted them. */
+    List<Frame.Window> windows() {
+        ArgumentCaptor<ChannelEvent> written = ArgumentCaptor.forClass(ChannelEvent.class);
+        verify(ctx, atLeast(0)).sendDownstream(written.capture());
+        List<Frame.Window> windows = new ArrayList<>();
+        for (ChannelEvent event : written.getAllValues()) {
+            if (event instanceof MessageEvent && ((MessageEvent) event).getMessage() instanceof Frame.Window) {
+                windows.add((Frame.Window) ((MessageEvent) event).getMessage());
+            }
+        }
+        return windows;
+    }
+
+    /** A stream whose count passes the largest int is credited and finished as any other. */
+    @Test
+    public void receivesAcrossTheLargestInt() throws Exception {
+        int window = protocol.streamWindow();
+        long offset = Integer.MAX_VALUE - (long) window;
+        long size = offset + 3L * window;
+        InboundFile file = new InboundFile(ByteStreams.nullOutputStream(), size, offset,
+                protocol.fileHashFunction().newHasher(), null);
+
+        ChannelFuture future = mux.receive(ctx, id, file);
+        for (int i = 0; i < 6; i++) {
+            assertFalse(future.isDone());
+            receive(new byte[window / 2]);
+        }
+        assertTrue(future.isSuccess());
+        assertEquals(0, file.remaining());
+
+        List<Frame.Window> windows = windows();
+        assertEquals(5, windows.size());
+        for (Frame.Window granted : windows) {
+            assertEquals(id, granted.streamId);
+            assertEquals(window / 2, granted.credit);
+        }
+    }
+}
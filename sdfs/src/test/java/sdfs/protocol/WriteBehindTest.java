@@ -0,0 +1,148 @@
+package sdfs.protocol;
+
+import com.google.common.hash.Hashing;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteBehindTest {
+
+    /** Holds tasks until told to run them. */
+    static class HeldExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> run = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : run) {
+                task.run();
+            }
+        }
+    }
+
+    HeldExecutor writers = new HeldExecutor();
+    Channel channel = mock(Channel.class);
+    WriteBehind writeBehind = new WriteBehind(writers, new WriteBehind.Watermarks(4, 8));
+
+    byte[] bytes(int from, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (from + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void writesInOrderAndFinishes() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] content = bytes(0, 12);
+        InboundFile file = new InboundFile(out, content.length, Hashing.sha512(), Hashing.sha512().hashBytes(content));
+        WriteBehind.Queue queue = writeBehind.queue(channel, file, null);
+
+        queue.offer(ChannelBuffers.wrappedBuffer(content, 0, 5));
+        queue.offer(ChannelBuffers.wrappedBuffer(content, 5, 7));
+        assertEquals(12, queue.queuedBytes());
+        assertEquals(1, writers.tasks.size());
+
+        writers.runAll();
+        assertTrue(queue.drain());
+        assertEquals(0, queue.queuedBytes());
+        assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test
+    public void copiesWhatItIsOffered() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] content = bytes(0, 4);
+        WriteBehind.Queue queue = writeBehind.queue(channel,
+                new InboundFile(out, content.length, Hashing.sha512(), null), null);
+
+        queue.offer(ChannelBuffers.wrappedBuffer(content));
+        Arrays.fill(content, (byte) 0);
+
+        writers.runAll();
+        assertTrue(queue.drain());
+        assertArrayEquals(bytes(0, 4), out.toByteArray());
+    }
+
+    @Test
+    public void pausesReadsAboveHighWatermarkUntilLow() throws Exception {
+        WriteBehind.Queue queue = writeBehind.queue(channel,
+                new InboundFile(new ByteArrayOutputStream(), 20, Hashing.sha512(), null), null);
+
+        queue.offer(ChannelBuffers.wrappedBuffer(bytes(0, 8)));
+        verify(channel, never()).setReadable(false);
+
+        queue.offer(ChannelBuffers.wrappedBuffer(bytes(8, 1)));
+        verify(channel).setReadable(false);
+
+        writers.runAll();
+        verify(channel).setReadable(true);
+        assertFalse(queue.drain());
+    }
+
+    @Test
+    public void pausesReadsAgainIfResumedElsewhere() throws Exception {
+        WriteBehind.Queue queue = writeBehind.queue(channel,
+                new InboundFile(new ByteArrayOutputStream(), 20, Hashing.sha512(), null), null);
+
+        queue.offer(ChannelBuffers.wrappedBuffer(bytes(0, 9)));
+        queue.offer(ChannelBuffers.wrappedBuffer(bytes(9, 1)));
+        verify(channel, times(1)).setReadable(false);
+
+        // The workers' executor drains its own queue and resumes reads
+        when(channel.isReadable()).thenReturn(true);
+        queue.offer(ChannelBuffers.wrappedBuffer(bytes(10, 1)));
+        verify(channel, times(2)).setReadable(false);
+
+        writers.runAll();
+        verify(channel).setReadable(true);
+    }
+
+    @Test
+    public void failureIsThrownToTheReceiver() throws Exception {
+        OutputStream broken = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        WriteBehind.Queue queue = writeBehind.queue(channel, new InboundFile(broken, 8, Hashing.sha512(), null), null);
+
+        queue.offer(ChannelBuffers.wrappedBuffer(bytes(0, 4)));
+        writers.runAll();
+
+        try {
+            queue.offer(ChannelBuffers.wrappedBuffer(bytes(4, 4)));
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            queue.drain();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
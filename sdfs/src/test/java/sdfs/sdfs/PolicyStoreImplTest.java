@@ -1,5 +1,6 @@
 package sdfs.sdfs;
 
+import com.google.common.collect.ImmutableList;
 import org.joda.time.Instant;
 import org.junit.Assert;
 import org.junit.Test;
@@ -124,4 +125,49 @@ public class PolicyStoreImplTest {
 
     }}; }
 
+    @Test public void rightsListWhatMayBeDoneAndDelegated() throws Exception { new Fixture() {{
+
+        policy.grantOwner(alice, apple);
+        policy.delegate(alice, bob, apple, Right.GetStar, new Instant(10));
+        policy.delegate(alice, charlie, apple, Right.Put, new Instant(10));
+
+        Assert.assertEquals("[get-none, get-star, put-none, put-star]", policy.rights(alice, apple).toString());
+        Assert.assertEquals("[get-none, get-star]", policy.rights(bob, apple).toString());
+        Assert.assertEquals("[put-none]", policy.rights(charlie, apple).toString());
+
+        chronos.now = new Instant(12);
+
+        Assert.assertEquals("[]", policy.rights(bob, apple).toString());
+
+    }}; }
+
+    @Test public void batchDelegatesEveryRightToEveryone() throws Exception { new Fixture() {{
+
+        policy.grantOwner(alice, apple);
+        policy.delegate(alice, apple, ImmutableList.of(
+                new Delegation(bob, ImmutableList.of(Right.GetStar), new Instant(10)),
+                new Delegation(charlie, ImmutableList.of(Right.Get, Right.Put), new Instant(10))));
+
+        Assert.assertEquals("[get-none, get-star]", policy.rights(bob, apple).toString());
+        Assert.assertEquals("[get-none, put-none]", policy.rights(charlie, apple).toString());
+
+    }}; }
+
+    @Test public void batchDelegatesNothingIfAnyRightIsRefused() throws Exception { new Fixture() {{
+
+        policy.grantOwner(alice, apple);
+        policy.delegate(alice, bob, apple, Right.GetStar, new Instant(10));
+        try {
+            policy.delegate(bob, apple, ImmutableList.of(
+                    new Delegation(charlie, ImmutableList.of(Right.Get, Right.Put), new Instant(10))));
+            Assert.fail();
+        } catch (AccessControlException expected) { }
+
+        Assert.assertEquals(
+            false,
+            policy.hasAccess(charlie, apple, AccessType.Get)
+        );
+
+    }}; }
+
 }
@@ -1,13 +1,25 @@
 package sdfs.sdfs;
 
+import org.joda.time.Duration;
+import org.joda.time.Instant;
 import org.junit.Test;
 import sdfs.CN;
 import sdfs.MockChronos;
 import sdfs.store.MockStore;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SDFSImplTest {
 
@@ -16,7 +28,7 @@ public class SDFSImplTest {
         MockStore store = new MockStore();
         MockChronos chronos = new MockChronos();
         PolicyStoreImpl policy = new PolicyStoreImpl(chronos, store);
-        SDFSImpl sdfs = new SDFSImpl(store, store, policy);
+        SDFSImpl sdfs = new SDFSImpl(store, store, policy, chronos, Duration.standardHours(1));
 
         CN alice = new CN("alice");
         CN bob = new CN("bob");
@@ -61,6 +73,431 @@ public class SDFSImplTest {
 
     }}; }
 
+    @Test
+    public void testSuspendAndResumePut() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        assertFalse(put.resumable());
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.suspend();
+
+        assertFalse(sdfs.locks.containsKey(apple));
+
+        put = sdfs.put(alice, apple);
+        assertTrue(put.resumable());
+        assertArrayEquals(new byte[] { 4, 5, 6 }, put.partialMetaByteSource().read());
+
+        put.contentByteSink(2).write(new byte[] { 7 });
+        put.release();
+
+        SDFS.Get get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 7 }, get.contentByteSource().read());
+        get.release();
+
+        assertFalse(sdfs.suspended.containsKey(apple));
+
+    }}; }
+
+    @Test
+    public void testOthersCannotResumeFirstPut() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.suspend();
+
+        put = sdfs.put(bob, apple);
+        assertFalse(put.resumable());
+        assertFalse(policy.isOwner(alice, apple));
+
+    }}; }
+
+    @Test
+    public void testExpireSuspendedPut() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.suspend();
+
+        chronos.now = new Instant(Duration.standardMinutes(59).getMillis());
+        sdfs.expireSuspendedPuts();
+        assertTrue(sdfs.suspended.containsKey(apple));
+
+        chronos.now = new Instant(Duration.standardMinutes(61).getMillis());
+        sdfs.expireSuspendedPuts();
+        assertFalse(sdfs.suspended.containsKey(apple));
+
+        put = sdfs.put(alice, apple);
+        assertFalse(put.resumable());
+
+    }}; }
+
+    @Test
+    public void testPreviousVersion() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        assertNull(put.previous());
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.release();
+
+        put = sdfs.put(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, put.previous().contentByteSource().read());
+        put.contentByteSink().write(new byte[] { 7, 8 });
+        put.metaByteSink().write(new byte[] { 9 });
+        put.release();
+
+        policy.delegate(alice, bob, apple, new Right(AccessType.Put, DelegationType.None),
+                new Instant(Duration.standardDays(1).getMillis()));
+        put = sdfs.put(bob, apple);
+        assertNull(put.previous());
+
+    }}; }
+
+    @Test
+    public void testCopy() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.release();
+
+        policy.delegate(alice, bob, apple, new Right(AccessType.Get, DelegationType.None),
+                new Instant(Duration.standardDays(1).getMillis()));
+        sdfs.copy(bob, apple, "pears.pdf");
+
+        assertTrue(policy.isOwner(bob, "pears.pdf"));
+        assertFalse(policy.hasAccess(alice, "pears.pdf", AccessType.Get));
+
+        SDFS.Get get = sdfs.get(bob, "pears.pdf");
+        assertArrayEquals(new byte[] { 1, 2, 3 }, get.contentByteSource().read());
+        assertArrayEquals(new byte[] { 4, 5, 6 }, get.metaByteSource().read());
+        get.release();
+
+        get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, get.contentByteSource().read());
+        try {
+            sdfs.copy(alice, apple, "pears.pdf");
+            throw new AssertionError("Copied over a file without put rights");
+        } catch (AccessControlException ignored) { }
+        try {
+            sdfs.copy(bob, "pears.pdf", apple);
+            throw new AssertionError("Copied over a file being read");
+        } catch (ResourceUnavailableException ignored) { }
+        get.release();
+
+    }}; }
+
+    @Test
+    public void testMove() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.release();
+
+        policy.delegate(alice, bob, apple, new Right(AccessType.Get, DelegationType.None),
+                new Instant(Duration.standardDays(1).getMillis()));
+        try {
+            sdfs.move(bob, apple, "pears.pdf");
+            throw new AssertionError("Moved a file without put rights");
+        } catch (AccessControlException ignored) { }
+
+        sdfs.move(alice, apple, "pears.pdf");
+
+        try {
+            sdfs.get(alice, apple);
+            throw new AssertionError("Moved file is still there");
+        } catch (ResourceNonexistentException ignored) { }
+
+        assertTrue(policy.isOwner(alice, "pears.pdf"));
+        assertTrue(policy.hasAccess(bob, "pears.pdf", AccessType.Get));
+
+        SDFS.Get get = sdfs.get(bob, "pears.pdf");
+        assertArrayEquals(new byte[] { 1, 2, 3 }, get.contentByteSource().read());
+        get.release();
+
+    }}; }
+
+    @Test
+    public void testAppend() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.release();
+
+        put = sdfs.put(alice, apple);
+        put.appendedContentByteSink(2).write(new byte[] { 7, 8 });
+        put.abort();
+
+        SDFS.Get get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, get.contentByteSource().read());
+        get.release();
+
+        put = sdfs.put(alice, apple);
+        put.appendedContentByteSink(2).write(new byte[] { 7, 8 });
+        put.metaByteSink().write(new byte[] { 9 });
+        put.release();
+
+        get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 7, 8 }, get.contentByteSource().read());
+        assertArrayEquals(new byte[] { 9 }, get.metaByteSource().read());
+        get.release();
+
+        sdfs.copy(alice, apple, "pears.pdf");
+        put = sdfs.put(alice, "pears.pdf");
+        put.appendedContentByteSink(4).write(new byte[] { 10 });
+        put.metaByteSink().write(new byte[] { 9 });
+        put.release();
+
+        get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 7, 8 }, get.contentByteSource().read());
+        get.release();
+        get = sdfs.get(alice, "pears.pdf");
+        assertArrayEquals(new byte[] { 1, 2, 7, 8, 10 }, get.contentByteSource().read());
+        get.release();
+
+    }}; }
+
+    @Test
+    public void testMoveResourcesInside() throws Exception { new Fixture() {{
+
+        final List<String> moves = new ArrayList<>();
+        sdfs.addListener(new SDFS.Listener() {
+            public void changed(String resourceName) { }
+
+            public void moved(String resourceName, String targetName) {
+                moves.add(resourceName + " -> " + targetName);
+            }
+
+            public void removed(String resourceName) { }
+        });
+
+        for (String name : Arrays.asList("docs", "docs/a.pdf", "docs/b/c.pdf")) {
+            SDFS.Put put = sdfs.put(alice, name);
+            put.contentByteSink().write(new byte[] { 1, 2, 3 });
+            put.metaByteSink().write(new byte[] { 4, 5, 6 });
+            put.release();
+        }
+
+        SDFS.Get get = sdfs.get(alice, "docs/a.pdf");
+        try {
+            sdfs.move(alice, "docs", "papers");
+            throw new AssertionError("Moved a file being read");
+        } catch (ResourceUnavailableException ignored) { }
+        get.release();
+
+        sdfs.move(alice, "docs", "papers");
+
+        assertEquals(new TreeSet<>(Arrays.asList("papers", "papers/a.pdf", "papers/b/c.pdf")), sdfs.index);
+        assertEquals(Arrays.asList("docs -> papers", "docs/a.pdf -> papers/a.pdf",
+                "docs/b/c.pdf -> papers/b/c.pdf"), moves);
+
+        get = sdfs.get(alice, "papers/b/c.pdf");
+        assertArrayEquals(new byte[] { 1, 2, 3 }, get.contentByteSource().read());
+        get.release();
+
+    }}; }
+
+    /** Fails to delete the tail an append saved, as if the server stopped just before it. */
+    static class CrashingStore extends MockStore {
+
+        boolean crashing;
+
+        public void delete(Path path) throws IOException {
+            if (crashing && path.endsWith("tail")) {
+                crashing = false;
+                throw new IOException("Stopped");
+            }
+            super.delete(path);
+        }
+
+    }
+
+    @Test
+    public void testAppendCommittedBeforeTailDeleted() throws Exception { new Fixture() {{
+
+        CrashingStore store = new CrashingStore();
+        SDFSImpl sdfs = new SDFSImpl(store, store, new PolicyStoreImpl(chronos, store), chronos,
+                Duration.standardHours(1));
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.release();
+
+        put = sdfs.put(alice, apple);
+        put.appendedContentByteSink(2).write(new byte[] { 7, 8 });
+        put.metaByteSink().write(new byte[] { 9 });
+        store.crashing = true;
+        try {
+            put.release();
+            fail();
+        } catch (IOException expected) {
+        }
+
+        SDFS.Get get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 7, 8 }, get.contentByteSource().read());
+        assertArrayEquals(new byte[] { 9 }, get.metaByteSource().read());
+        get.release();
+
+        get = sdfs.get(alice, apple);
+        assertArrayEquals(new byte[] { 1, 2, 7, 8 }, get.contentByteSource().read());
+        get.release();
+
+    }}; }
+
+    @Test
+    public void testStat() throws Exception { new Fixture() {{
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1, 2, 3 });
+        put.metaByteSink().write(new byte[] { 4, 5, 6 });
+        put.release();
+
+        policy.delegate(alice, bob, apple, Right.Put, new Instant(Duration.standardDays(1).getMillis()));
+
+        put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 7 });
+        put.metaByteSink().write(new byte[] { 8 });
+
+        SDFS.Stat stat = sdfs.stat(alice, apple);
+        assertArrayEquals(new byte[] { 4, 5, 6 }, stat.meta);
+        assertEquals(4, stat.rights.size());
+
+        stat = sdfs.stat(bob, apple);
+        assertNull(stat.meta);
+        assertEquals("[put-none]", stat.rights.toString());
+
+        put.release();
+        assertArrayEquals(new byte[] { 8 }, sdfs.stat(alice, apple).meta);
+        assertFalse(sdfs.locks.containsKey(apple));
+
+        try {
+            sdfs.stat(alice, "pears.pdf");
+            throw new AssertionError("Stat a file that isn't there");
+        } catch (ResourceNonexistentException ignored) { }
+
+    }}; }
+
+    @Test
+    public void testList() throws Exception { new Fixture() {{
+
+        for (String name : new String[] { "b/pears.pdf", apple, "b/plums.pdf", "bananas.pdf" }) {
+            SDFS.Put put = sdfs.put(alice, name);
+            put.contentByteSink().write(new byte[] { 1 });
+            put.metaByteSink().write(new byte[] { 2 });
+            put.release();
+        }
+        SDFS.Put unfinished = sdfs.put(alice, "cherries.pdf");
+        unfinished.contentByteSink().write(new byte[] { 1 });
+
+        assertEquals(Arrays.asList(apple, "b/pears.pdf", "b/plums.pdf", "bananas.pdf"), sdfs.list("", null, 10));
+        assertEquals(Arrays.asList("b/pears.pdf", "b/plums.pdf"), sdfs.list("b/", null, 10));
+        assertEquals(Arrays.asList("b/pears.pdf"), sdfs.list("b/", null, 1));
+        assertEquals(Arrays.asList("b/plums.pdf"), sdfs.list("b/", "b/pears.pdf", 1));
+        assertEquals(Arrays.asList("b/pears.pdf", "b/plums.pdf"), sdfs.list("b/", "a", 10));
+
+        // Rebuilt from the store
+        SDFSImpl restarted = new SDFSImpl(store, store, policy, chronos, Duration.standardHours(1));
+        assertEquals(sdfs.list("", null, 10), restarted.list("", null, 10));
+
+        sdfs.move(alice, "bananas.pdf", "dates.pdf");
+        sdfs.copy(alice, apple, "c/apples.pdf");
+        assertEquals(Arrays.asList(apple, "b/pears.pdf", "b/plums.pdf", "c/apples.pdf", "dates.pdf"),
+                sdfs.list("", null, 10));
+
+        // Putting a file where a directory of them was replaces them all
+        SDFS.Put put = sdfs.put(alice, "b");
+        put.contentByteSink().write(new byte[] { 1 });
+        put.metaByteSink().write(new byte[] { 2 });
+        put.release();
+        assertEquals(Arrays.asList(apple, "b", "c/apples.pdf", "dates.pdf"), sdfs.list("", null, 10));
+
+    }}; }
+
+    @Test
+    public void testListeners() throws Exception { new Fixture() {{
+
+        final List<String> changes = new ArrayList<>();
+        sdfs.addListener(new SDFS.Listener() {
+            public void changed(String resourceName) {
+                changes.add(resourceName);
+            }
+
+            public void moved(String resourceName, String targetName) {
+                changes.add(resourceName + " -> " + targetName);
+            }
+
+            public void removed(String resourceName) {
+                changes.add("-" + resourceName);
+            }
+        });
+
+        SDFS.Put put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 1 });
+        put.metaByteSink().write(new byte[] { 2 });
+        assertEquals(Arrays.<String>asList(), changes);
+        put.release();
+
+        put = sdfs.put(alice, apple);
+        put.contentByteSink().write(new byte[] { 3 });
+        put.abort();
+
+        sdfs.copy(alice, apple, "pears.pdf");
+        sdfs.move(alice, "pears.pdf", "plums.pdf");
+
+        assertEquals(Arrays.asList(apple, "pears.pdf", "pears.pdf -> plums.pdf"), changes);
+
+    }}; }
+
+    @Test
+    public void testListenersHearOfClearedResources() throws Exception { new Fixture() {{
+
+        for (String name : Arrays.asList("docs/a.pdf", "docs/b/c.pdf", "papers/a.pdf", "notes/a.pdf", "d.pdf")) {
+            SDFS.Put put = sdfs.put(alice, name);
+            put.contentByteSink().write(new byte[] { 1 });
+            put.metaByteSink().write(new byte[] { 2 });
+            put.release();
+        }
+
+        final List<String> changes = new ArrayList<>();
+        sdfs.addListener(new SDFS.Listener() {
+            public void changed(String resourceName) {
+                changes.add(resourceName);
+            }
+
+            public void moved(String resourceName, String targetName) {
+                changes.add(resourceName + " -> " + targetName);
+            }
+
+            public void removed(String resourceName) {
+                changes.add("-" + resourceName);
+            }
+        });
+
+        sdfs.move(alice, "d.pdf", "docs");
+        assertEquals(Arrays.asList("-docs/a.pdf", "-docs/b/c.pdf", "d.pdf -> docs"), changes);
+
+        changes.clear();
+        sdfs.copy(alice, "docs", "papers");
+        assertEquals(Arrays.asList("-papers/a.pdf", "papers"), changes);
+
+        changes.clear();
+        SDFS.Put put = sdfs.put(alice, "notes");
+        assertEquals(Arrays.asList("-notes/a.pdf"), changes);
+        put.contentByteSink().write(new byte[] { 3 });
+        put.metaByteSink().write(new byte[] { 4 });
+        put.release();
+        assertEquals(Arrays.asList("-notes/a.pdf", "notes"), changes);
+
+        assertEquals(new TreeSet<>(Arrays.asList("docs", "notes", "papers")), sdfs.index);
+
+    }}; }
+
     @Test(expected = AccessControlException.class)
     public void testPutAndFailGet1() throws Exception { new Fixture() {{
 
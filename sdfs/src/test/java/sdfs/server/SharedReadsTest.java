@@ -0,0 +1,139 @@
+package sdfs.server;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import sdfs.crypto.DecryptedSegments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedReadsTest {
+
+    static final int BUFFER = 10;
+
+    byte[] content = new byte[4 * BUFFER + 3];
+    { for (int i = 0; i < content.length; i++) content[i] = (byte) i; }
+
+    HashCode hash = Hashing.sha512().hashBytes(content);
+
+    /** Reads the content from an offset a buffer at a time, remembering every read it opens. */
+    class Segments implements DecryptedSegments {
+        final long offset;
+        int position;
+        boolean closed;
+
+        Segments(long offset) {
+            this.offset = offset;
+            position = (int) offset;
+        }
+
+        public ByteBuffer read(int size) {
+            if (position == content.length) {
+                return null;
+            }
+            int length = Math.min(BUFFER, content.length - position);
+            ByteBuffer buffer = ByteBuffer.wrap(content.clone(), position, length).slice();
+            position += length;
+            return buffer;
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    final List<Segments> opened = new ArrayList<>();
+
+    SharedReads.Opener opener = new SharedReads.Opener() {
+        public DecryptedSegments open(long offset) {
+            Segments segments = new Segments(offset);
+            opened.add(segments);
+            return segments;
+        }
+    };
+
+    byte[] readAll(DecryptedSegments segments) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer;
+        while ((buffer = segments.read(BUFFER)) != null) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            out.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void concurrentGetsShareOneRead() throws Exception {
+        SharedReads sharedReads = new SharedReads(16);
+        DecryptedSegments a = sharedReads.open("f", hash, opener);
+        DecryptedSegments b = sharedReads.open("f", hash, opener);
+        assertEquals(1, opened.size());
+
+        assertArrayEquals(content, readAll(a));
+        assertArrayEquals(content, readAll(b));
+        assertEquals(1, opened.size());
+    }
+
+    @Test
+    public void differentHashesAreReadApart() throws Exception {
+        SharedReads sharedReads = new SharedReads(16);
+        sharedReads.open("f", hash, opener);
+        sharedReads.open("f", Hashing.sha512().hashInt(1), opener);
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void getAfterTheRingHasMovedOnStartsAnotherRead() throws Exception {
+        SharedReads sharedReads = new SharedReads(2);
+        DecryptedSegments a = sharedReads.open("f", hash, opener);
+        for (int i = 0; i < 3; i++) {
+            a.read(BUFFER);
+        }
+
+        DecryptedSegments b = sharedReads.open("f", hash, opener);
+        assertEquals(2, opened.size());
+        assertArrayEquals(content, readAll(b));
+    }
+
+    @Test
+    public void slowGetFallsBackToItsOwnRead() throws Exception {
+        SharedReads sharedReads = new SharedReads(2);
+        DecryptedSegments a = sharedReads.open("f", hash, opener);
+        DecryptedSegments b = sharedReads.open("f", hash, opener);
+
+        ByteBuffer first = b.read(BUFFER);
+        assertEquals(BUFFER, first.remaining());
+        assertArrayEquals(content, readAll(a));
+
+        byte[] rest = readAll(b);
+        assertEquals(2, opened.size());
+        assertEquals(BUFFER, opened.get(1).offset);
+        assertEquals(content.length - BUFFER, rest.length);
+        assertEquals(content[BUFFER], rest[0]);
+    }
+
+    @Test
+    public void lastGetToCloseClosesTheRead() throws Exception {
+        SharedReads sharedReads = new SharedReads(16);
+        DecryptedSegments a = sharedReads.open("f", hash, opener);
+        DecryptedSegments b = sharedReads.open("f", hash, opener);
+
+        a.close();
+        assertFalse(opened.get(0).closed);
+        b.close();
+        assertTrue(opened.get(0).closed);
+
+        sharedReads.open("f", hash, opener);
+        assertEquals(2, opened.size());
+    }
+}
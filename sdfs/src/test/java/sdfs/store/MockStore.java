@@ -4,8 +4,12 @@ import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class MockStore implements StringStore, ByteStore, PathManipulator {
@@ -55,6 +59,19 @@ public class MockStore implements StringStore, ByteStore, PathManipulator {
         };
     }
 
+    public ByteSink append(final Path path, final long keep) throws IOException {
+        if (!(files.get(path) instanceof BytesFile)) {
+            throw new IOException("Cannot append to missing file " + path);
+        }
+        return new ByteSink() {
+            public OutputStream openStream() throws IOException {
+                ByteArrayOutputStream out = (ByteArrayOutputStream) put(path).openStream();
+                out.write(((BytesFile) files.get(path)).bytes, 0, (int) keep);
+                return out;
+            }
+        };
+    }
+
     public ByteSource get(final Path path) {
         return new ByteSource() {
             public InputStream openStream() throws IOException {
@@ -64,21 +81,111 @@ public class MockStore implements StringStore, ByteStore, PathManipulator {
             }
         };
     }
+    public SeekableByteChannel channel(Path path) throws IOException {
+        if (!(files.get(path) instanceof BytesFile)) {
+            throw new FileNotFoundException(path.toString());
+        }
+        return new BytesChannel(((BytesFile) files.get(path)).bytes);
+    }
+
+    private static class BytesChannel implements SeekableByteChannel {
+
+        final byte[] bytes;
+        int position;
+        boolean open = true;
 
+        private BytesChannel(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), bytes.length - position);
+            dst.put(bytes, position, n);
+            position += n;
+            return n;
+        }
+
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long position() {
+            return position;
+        }
 
+        public SeekableByteChannel position(long newPosition) {
+            position = (int) Math.min(newPosition, Integer.MAX_VALUE);
+            return this;
+        }
+
+        public long size() {
+            return bytes.length;
+        }
+
+        public SeekableByteChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+
+    }
 
     public void move(Path source, Path target) throws IOException {
-        files.put(target, files.remove(source));
+        for (Path file : new ArrayList<>(files.keySet())) {
+            if (file.startsWith(source)) {
+                files.put(target.resolve(source.relativize(file)), files.remove(file));
+            }
+        }
+    }
+
+    public void link(Path source, Path target) throws IOException {
+        if (!files.containsKey(source)) {
+            throw new FileNotFoundException(source.toString());
+        }
+        files.put(target, files.get(source));
+    }
+
+    public boolean shared(Path path) {
+        File file = files.get(path);
+        for (Map.Entry<Path, File> other : files.entrySet()) {
+            if (other.getValue() == file && !other.getKey().equals(path)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void delete(Path path) throws IOException {
-        files.remove(path);
+        for (Path file : new ArrayList<>(files.keySet())) {
+            if (file.startsWith(path)) {
+                files.remove(file);
+            }
+        }
     }
 
     public boolean exists(Path path) {
         return files.containsKey(path);
     }
 
+    public List<Path> find(String filename) {
+        List<Path> found = new ArrayList<>();
+        for (Path path : files.keySet()) {
+            if (path.getFileName().toString().equals(filename)) {
+                found.add(path);
+            }
+        }
+        return found;
+    }
+
     public String toString() {
         return files.toString();
     }